@@ -0,0 +1,343 @@
+package pigrank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.pig.ExecType;
+import org.apache.pig.PigServer;
+
+/**
+ * end-to-end benchmark of the UDFs: runs Pig scripts in local mode over
+ * synthetic rankings (see BenchmarkData), and reports per scenario the
+ * throughput in rows per second, percentiles of the time per group, and
+ * the peak heap usage.
+ *
+ * usage:
+ * <pre>
+ * java -cp ... pigrank.Benchmark [key=value ...]
+ * </pre>
+ * with the options of BenchmarkData, and
+ * <ul>
+ * <li>scenarios: comma-separated subset of dcg, ndcg10, mrr, jaccard, rbo (default all)
+ * <li>runs: runs per scenario, after one warm-up run; the fastest one is
+ *   reported (default 3)
+ * <li>input: existing data file, instead of generating one
+ * <li>output: file for the results, e.g. a new baseline
+ * <li>baseline: results of an earlier run to compare with
+ * <li>tolerance: relative loss of throughput against the baseline that
+ *   counts as a regression (default 0.2)
+ * </ul>
+ * The exit status is 1 if a scenario regressed. The times per group are
+ * taken from the pigrank.UDFExec flight recorder events (see ExecEvent),
+ * so the benchmark needs a JVM with JFR.
+ */
+
+public class Benchmark {
+
+  static final String[] KEYS = { "queries", "maxsize", "zipf", "ties", "ids", "overlap", "seed",
+                                  "scenarios", "runs", "input", "output", "baseline", "tolerance" };
+
+  static final String HEADER = "scenario\trows\tgroups\tseconds\trows_per_s\tp50_ms\tp90_ms\tp99_ms\tmax_ms\tpeak_heap_mb";
+
+  static final String LOAD =
+    "data = load '%s' using PigStorage('\\t') as (query:chararray, treatment:chararray, id:chararray, score:double, target:double);";
+
+  /** scenarios: name, UDF of the events, and the definition of the UDF */
+  static final String[][] SCENARIOS = {
+    { "dcg", "DCG", "pigrank.DCG('unnormalized', '-1', '3', '4')" },
+    { "ndcg10", "DCG", "pigrank.DCG('normalized', '10', '3', '4')" },
+    { "mrr", "MRR", "pigrank.MRR('3', '4')" },
+    { "jaccard", "Similarity", "pigrank.Similarity('jaccard', '10', '2', '3', '2', '3')" },
+    { "rbo", "Similarity", "pigrank.Similarity('rbo', '0.9', '2', '3', '2', '3')" } };
+
+  /** result of one scenario */
+  static class Result {
+    String scenario;
+    long rows;
+    long groups;
+    double seconds;
+    double[] latencies = new double[4];
+    double peakHeap;
+
+    double getRowsPerSecond() {
+      return rows / seconds;
+    }
+
+    String format() {
+      return String.format(Locale.ROOT, "%s\t%d\t%d\t%.3f\t%.0f\t%.3f\t%.3f\t%.3f\t%.3f\t%.1f", scenario, rows, groups,
+                           seconds, getRowsPerSecond(), latencies[0], latencies[1], latencies[2], latencies[3], peakHeap);
+    }
+
+    static Result parse(String line) {
+      String[] fields = line.split("\t");
+      Result result = new Result();
+      result.scenario = fields[0];
+      result.rows = Long.parseLong(fields[1]);
+      result.groups = Long.parseLong(fields[2]);
+      result.seconds = Double.parseDouble(fields[3]);
+      for (int k = 0; k < 4; k++) {
+        result.latencies[k] = Double.parseDouble(fields[5 + k]);
+      }
+      result.peakHeap = Double.parseDouble(fields[9]);
+      return result;
+    }
+  };
+
+  private File workDir;
+  private File input;
+  private long numRows;
+
+  Benchmark(File workDir, File input, long numRows) {
+    this.workDir = workDir;
+    this.input = input;
+    this.numRows = numRows;
+  }
+
+  /**
+   * @return lines of the Pig script of a scenario
+   */
+  List<String> script(String[] scenario, File output) {
+    List<String> lines = new ArrayList<String>();
+    lines.add("define EVAL " + scenario[2] + ";");
+    lines.add(String.format(LOAD, input.getPath()));
+    lines.add("data_gr = group data by (query, treatment);");
+    if (scenario[1].equals("Similarity")) {
+      lines.add("data_gr = foreach data_gr generate flatten(group) as (query, treatment), data;");
+      lines.add("split data_gr into data1 if treatment == 't1', data2 otherwise;");
+      lines.add("side_by_side = cogroup data1 by query, data2 by query;");
+      lines.add("pairs = foreach side_by_side generate flatten(group) as query, flatten(data1.data) as group_t1, flatten(data2.data) as group_t2;");
+      lines.add("eval = foreach pairs generate query, EVAL(group_t1, group_t2);");
+    } else {
+      lines.add("eval = foreach data_gr generate flatten(group), EVAL(data);");
+    }
+    lines.add("store eval into '" + output.getPath() + "';");
+    return lines;
+  }
+
+  /**
+   * run a scenario once.
+   */
+  Result run(String[] scenario) throws IOException {
+    File output = new File(workDir, scenario[0] + ".out");
+    File events = new File(workDir, scenario[0] + ".jfr");
+    delete(output);
+
+    System.gc();
+    List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+        pools.add(pool);
+      }
+    }
+
+    Result result = new Result();
+    result.scenario = scenario[0];
+    result.rows = numRows;
+    Recording recording = new Recording();
+    try {
+      recording.enable("pigrank.UDFExec").withThreshold(Duration.ZERO);
+      recording.start();
+
+      long start = System.nanoTime();
+      PigServer pig = new PigServer(ExecType.LOCAL);
+      pig.setBatchOn();
+      for (String line : script(scenario, output)) {
+        pig.registerQuery(line);
+      }
+      pig.executeBatch();
+      pig.shutdown();
+      result.seconds = (System.nanoTime() - start) / 1e9;
+
+      recording.stop();
+      recording.dump(events.toPath());
+    } finally {
+      recording.close();
+    }
+
+    long peak = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      peak += pool.getPeakUsage().getUsed();
+    }
+    result.peakHeap = peak / (1024.0 * 1024.0);
+
+    List<Double> times = new ArrayList<Double>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(events.toPath())) {
+      if (event.getString("udf").equals(scenario[1])) {
+        times.add(event.getDuration().toNanos() / 1e6);
+      }
+    }
+    events.delete();
+    result.groups = times.size();
+    double[] sorted = new double[times.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = times.get(i);
+    }
+    Arrays.sort(sorted);
+    double[] fractions = { 0.5, 0.9, 0.99, 1.0 };
+    for (int k = 0; k < fractions.length; k++) {
+      result.latencies[k] = sorted.length == 0 ? Double.NaN
+        : sorted[Math.min(sorted.length - 1, (int)Math.ceil(fractions[k] * sorted.length) - 1)];
+    }
+    delete(output);
+    return result;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * @return results by scenario, and the data parameters in the "# data:" comment
+   */
+  static Map<String, Result> readResults(File file, StringBuilder params) throws IOException {
+    Map<String, Result> results = new LinkedHashMap<String, Result>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), QrelsIndex.UTF8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("# data: ")) {
+          params.append(line.substring(8));
+        } else if (!line.isEmpty() && !line.startsWith("#") && !line.startsWith("scenario\t")) {
+          Result result = Result.parse(line);
+          results.put(result.scenario, result);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return results;
+  }
+
+  public static void main(String[] args) throws IOException {
+    UDFOptions options = new UDFOptions(args, 0, KEYS);
+    Logger.getRootLogger().setLevel(Level.WARN);
+
+    File workDir = File.createTempFile("pigrank-bench", "");
+    workDir.delete();
+    workDir.mkdirs();
+
+    BenchmarkData data = new BenchmarkData(options);
+    String params;
+    File input;
+    long numRows;
+    if (options.has("input")) {
+      input = new File(options.getString("input", null));
+      params = "input=" + input.getName();
+      numRows = 0;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), QrelsIndex.UTF8));
+      try {
+        while (reader.readLine() != null) {
+          numRows++;
+        }
+      } finally {
+        reader.close();
+      }
+    } else {
+      input = new File(workDir, "rankings.tsv");
+      params = data.describe();
+      numRows = data.write(input);
+    }
+    System.err.println("data: " + numRows + " rows (" + params + ")");
+
+    List<String> names = Arrays.asList(options.getString("scenarios", "dcg,ndcg10,mrr,jaccard,rbo").split(","));
+    int runs = options.getInt("runs", 3);
+    Benchmark benchmark = new Benchmark(workDir, input, numRows);
+    List<Result> results = new ArrayList<Result>();
+    boolean warm = false;
+    for (String[] scenario : SCENARIOS) {
+      if (!names.contains(scenario[0])) {
+        continue;
+      }
+      if (!warm) {
+        // load the Pig classes and compile the common code paths
+        benchmark.run(scenario);
+        warm = true;
+      }
+      Result best = null;
+      for (int run = 0; run < runs; run++) {
+        Result result = benchmark.run(scenario);
+        if (best == null || result.seconds < best.seconds) {
+          best = result;
+        }
+      }
+      results.add(best);
+    }
+    delete(workDir);
+
+    String comment = "# data: " + params;
+    String system = "# java " + System.getProperty("java.version") + ", " + System.getProperty("os.arch") + ", "
+      + Runtime.getRuntime().availableProcessors() + " cores, max heap " + (Runtime.getRuntime().maxMemory() >> 20) + " MB";
+    System.out.println(comment);
+    System.out.println(system);
+    System.out.println(HEADER);
+    for (Result result : results) {
+      System.out.println(result.format());
+    }
+    if (options.has("output")) {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(options.getString("output", null)), QrelsIndex.UTF8));
+      try {
+        out.println(comment);
+        out.println(system);
+        out.println(HEADER);
+        for (Result result : results) {
+          out.println(result.format());
+        }
+      } finally {
+        out.close();
+      }
+    }
+
+    boolean regressed = false;
+    if (options.has("baseline")) {
+      StringBuilder baselineParams = new StringBuilder();
+      Map<String, Result> baseline = readResults(new File(options.getString("baseline", null)), baselineParams);
+      if (!baselineParams.toString().equals(params)) {
+        System.out.println("# warning: baseline data differs (" + baselineParams + ")");
+      }
+      double tolerance = options.getDouble("tolerance", 0.2);
+      System.out.println("scenario\trows_per_s_ratio\tp99_ratio\tpeak_heap_ratio\tstatus");
+      for (Result result : results) {
+        Result base = baseline.get(result.scenario);
+        if (base == null) {
+          continue;
+        }
+        double ratio = result.getRowsPerSecond() / base.getRowsPerSecond();
+        boolean slower = ratio < 1.0 - tolerance;
+        regressed |= slower;
+        System.out.println(String.format(Locale.ROOT, "%s\t%.2f\t%.2f\t%.2f\t%s", result.scenario, ratio,
+                                         result.latencies[2] / base.latencies[2], result.peakHeap / base.peakHeap,
+                                         slower ? "REGRESSION" : "ok"));
+      }
+    }
+    System.exit(regressed ? 1 : 0);
+  }
+};
@@ -0,0 +1,155 @@
+package pigrank;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * generator of synthetic rankings for benchmarks.
+ *
+ * Each query has a ranking for two treatments, t1 and t2, written as
+ * tab-separated rows (query, treatment, id, score, target). The parameters
+ * are options of the form key=value:
+ * <ul>
+ * <li>queries: number of queries (default 2000)
+ * <li>maxsize: largest number of items of a ranking (default 1000)
+ * <li>zipf: exponent of the Zipf distribution of ranking sizes over
+ *   1..maxsize; larger values give more small rankings (default 1.1)
+ * <li>ties: fraction of items whose score is one of a few levels, and
+ *   thus tied with other items (default 0.1)
+ * <li>ids: number of distinct item ids (default 100000)
+ * <li>overlap: probability that an item of t2 is also ranked by t1 for
+ *   the same query (default 0.5)
+ * <li>seed: random seed (default 1)
+ * </ul>
+ * Targets are graded 0 to 3, with 70% zeros; the scores of t1 are
+ * correlated with the targets.
+ */
+
+public class BenchmarkData {
+
+  static final String[] KEYS = { "queries", "maxsize", "zipf", "ties", "ids", "overlap", "seed" };
+
+  /** number of score levels of tied items */
+  static final int TIE_LEVELS = 8;
+
+  int numQueries;
+  int maxSize;
+  double zipf;
+  double ties;
+  int numIds;
+  double overlap;
+  long seed;
+
+  private double[] sizeCdf;
+
+  /**
+   * @param options parameters, see KEYS
+   */
+  BenchmarkData(UDFOptions options) {
+    numQueries = options.getInt("queries", 2000);
+    maxSize = options.getInt("maxsize", 1000);
+    zipf = options.getDouble("zipf", 1.1);
+    ties = options.getDouble("ties", 0.1);
+    numIds = options.getInt("ids", 100000);
+    overlap = options.getDouble("overlap", 0.5);
+    seed = options.getLong("seed", 1L);
+    if (numQueries < 1 || maxSize < 1 || numIds < 1) {
+      throw new IllegalArgumentException("expected positive queries, maxsize and ids");
+    }
+
+    sizeCdf = new double[maxSize];
+    double sum = 0.0;
+    for (int k = 1; k <= maxSize; k++) {
+      sum += Math.pow(k, -zipf);
+      sizeCdf[k - 1] = sum;
+    }
+    for (int k = 0; k < maxSize; k++) {
+      sizeCdf[k] /= sum;
+    }
+  }
+
+  /**
+   * @return the parameters, as options
+   */
+  String describe() {
+    return "queries=" + numQueries + " maxsize=" + maxSize + " zipf=" + zipf + " ties=" + ties
+      + " ids=" + numIds + " overlap=" + overlap + " seed=" + seed;
+  }
+
+  private int nextSize(Random random) {
+    int k = Arrays.binarySearch(sizeCdf, random.nextDouble());
+    return Math.min(maxSize, (k >= 0 ? k : -k - 1) + 1);
+  }
+
+  private double nextScore(Random random, double target) {
+    if (random.nextDouble() < ties) {
+      return random.nextInt(TIE_LEVELS);
+    }
+    return target + 2.0 * random.nextGaussian();
+  }
+
+  private static double nextTarget(Random random) {
+    double u = random.nextDouble();
+    return u < 0.7 ? 0.0 : (u < 0.85 ? 1.0 : (u < 0.95 ? 2.0 : 3.0));
+  }
+
+  /**
+   * write the rankings of all queries.
+   *
+   * @return number of rows
+   */
+  long write(File file) throws IOException {
+    Random random = new Random(seed);
+    long numRows = 0;
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), QrelsIndex.UTF8), 1 << 16);
+    try {
+      StringBuilder line = new StringBuilder();
+      for (int q = 0; q < numQueries; q++) {
+        String query = "q" + q;
+        int size1 = nextSize(random);
+        long[] ids1 = new long[size1];
+        for (int i = 0; i < size1; i++) {
+          ids1[i] = random.nextInt(numIds);
+          double target = nextTarget(random);
+          write(out, line, query, "t1", ids1[i], nextScore(random, target), target);
+        }
+        int size2 = nextSize(random);
+        for (int i = 0; i < size2; i++) {
+          long id = (random.nextDouble() < overlap) ? ids1[random.nextInt(size1)] : random.nextInt(numIds);
+          double target = nextTarget(random);
+          write(out, line, query, "t2", id, nextScore(random, 0.0), target);
+        }
+        numRows += size1 + size2;
+      }
+    } finally {
+      out.close();
+    }
+    return numRows;
+  }
+
+  private static void write(Writer out, StringBuilder line, String query, String treatment, long id, double score, double target) throws IOException {
+    line.setLength(0);
+    line.append(query).append('\t').append(treatment).append("\tid").append(id).append('\t')
+      .append(score).append('\t').append(target).append('\n');
+    out.write(line.toString());
+  }
+
+  /**
+   * usage: BenchmarkData output.tsv [key=value ...]
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: BenchmarkData output.tsv [key=value ...]");
+      System.exit(1);
+    }
+    BenchmarkData data = new BenchmarkData(new UDFOptions(args, 1, KEYS));
+    long numRows = data.write(new File(args[0]));
+    System.err.println("wrote " + numRows + " rows (" + data.describe() + ")");
+  }
+};
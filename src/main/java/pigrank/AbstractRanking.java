@@ -0,0 +1,358 @@
+package pigrank;
+
+import java.util.Arrays;
+
+/**
+ * ranked items and the rank measures that only read them: scores and
+ * targets in rank order, through getScore() and getTarget(). Ranking keeps
+ * the items in arrays and can be built item by item; OffHeapRanking reads
+ * them from off-heap columns.
+ *
+ * note: MRR and DCG are sensitive to how ties are broken, so we compute
+ * these values as an expectation over all possible permutations of
+ * the tied items.
+ */
+
+public abstract class AbstractRanking {
+
+  protected static final double LOG2 = Math.log(2.0);
+
+  /** runs of this length are sorted by insertion sort before merging */
+  static final int INSERTION_SORT_RUN = 32;
+
+  /** number of items */
+  protected int size;
+
+  /** sort algorithm of the last call of rank(), see SortDispatcher */
+  SortDispatcher.Path sortPath = SortDispatcher.Path.MERGE;
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sort items in decreasing order of rank score. The sort is stable,
+   * i.e., tied items keep their insertion order.
+   */
+  public void rank() {
+    rank(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Sort items in decreasing order of rank score, for measures down to a
+   * rank cutoff. Items below the cutoff may be dropped, except those tied
+   * with the item at the cutoff, so that DCG and MRR with this cutoff are
+   * the same as after rank().
+   *
+   * @param cutoff maximum rank of the measures, or Integer.MAX_VALUE
+   */
+  public abstract void rank(int cutoff);
+
+  /**
+   * Sort only the top k items in decreasing order of rank score, and drop
+   * all others; the result is the same as the first k items after rank().
+   *
+   * @param k number of top items to keep
+   */
+  public abstract void rankTop(int k);
+
+  /**
+   * @return name of the sort algorithm of the last call of rank()
+   */
+  public String getSortPath() {
+    return sortPath.name().toLowerCase();
+  }
+
+  /**
+   * @param i rank (zero-based)
+   * @return score of the item with rank i
+   */
+  public abstract double getScore(int i);
+
+  /**
+   * @param i rank (zero-based)
+   * @return target of the item with rank i
+   */
+  public abstract double getTarget(int i);
+
+  /**
+   * @param i rank (zero-based)
+   * @return index at which the item with rank i was inserted
+   */
+  public abstract int getPosition(int i);
+
+  /**
+   * @return number of distinct scores among the items; requires rank()
+   */
+  public int getNumDistinctScores() {
+    int n = size > 0 ? 1 : 0;
+    for (int i = 1; i < size; i++) {
+      if (getScore(i) != getScore(i - 1)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * mean reciprocal rank
+   * @param cutoff ranks greater than this are ignored
+   * @return mrr value
+   */
+  public double getMRR(int cutoff) {
+    int maxIter = Math.min(size(), cutoff);
+    int tiedCount = 0;        // number of items with same score as current one
+    int tiedTargetCount = 0;  // number of positive targets with same score as current one
+    double lastScore = Double.POSITIVE_INFINITY;
+    int tiedTopRank = 0;
+    for (int i = 0; i < maxIter || (i < size() && tiedTargetCount > 0); i++) {
+      double score = getScore(i);
+      if (score != lastScore) {
+        if (tiedTargetCount > 0) {
+          // positive target found, lower items are irrelevant
+          break;
+        }
+
+        // reset tie counters
+        tiedTopRank = i;
+        tiedCount = 1;
+        tiedTargetCount = (getTarget(i) > 0.0) ? 1 : 0;
+        lastScore = score;
+
+      } else {
+        // score == lastScore
+        tiedCount++;
+        if (getTarget(i) > 0.0) {
+          tiedTargetCount++;
+        }
+      }
+    }
+
+    if (tiedTargetCount > 0) {
+      return getExpectedReciprocalRank(tiedTopRank, tiedCount, tiedTargetCount);
+    }
+
+
+    return 0.0;
+  }
+
+  /**
+   * expected reciprocal rank of the first positive target in a group of
+   * tied items, over all permutations of the group.
+   *
+   * @param tiedTopRank rank (zero-based) of the first item of the group
+   * @param tiedCount number of items in the group
+   * @param tiedTargetCount number of positive targets in the group
+   */
+  static double getExpectedReciprocalRank(int tiedTopRank, int tiedCount, int tiedTargetCount) {
+    // we iterate over each position and determine the probability that the *first*
+    // non-zero target is in that position
+    double expMrr = 0.0;
+    double pNoPos = 1.0; // P(t[0:i-1]=0) - probability that we haven't seen a positive yet
+    for (int j = 0; j < tiedCount - tiedTargetCount + 1; j++) {
+      double pPos = ((double) tiedTargetCount) / (tiedCount - j); // P(t[j]=1|t[0:j-1]=0)
+      expMrr += pNoPos * pPos / (tiedTopRank + j + 1);
+      pNoPos *= (1.0 - pPos);
+    }
+    return expMrr;
+  }
+
+  /**
+   * discounted cumulative gain
+   * @param cutoff ranks greater than this are ignored
+   * @param normalized if true, divide by total position weight
+   * @return DCG value
+   */
+  public double getDCG(int cutoff, boolean normalized) {
+    return getDCGByItem(cutoff, normalized);
+  }
+
+  /**
+   * discounted cumulative gain with another position discount; for
+   * another gain, apply it to the targets before adding them.
+   *
+   * @param cutoff ranks greater than this are ignored
+   * @param normalized if true, divide by total position weight
+   * @param discount position discount
+   * @return DCG value
+   */
+  public double getDCG(int cutoff, boolean normalized, Discount discount) {
+    return getDCGByItem(cutoff, normalized, discount.getWeights(Math.min(size(), cutoff)));
+  }
+
+  /**
+   * discounted cumulative gain through getScore() and getTarget(), for
+   * subclasses that do not keep the columns in arrays; see Kernels.dcg().
+   */
+  protected double getDCGByItem(int cutoff, boolean normalized) {
+    return getDCGByItem(cutoff, normalized, Kernels.getWeights(Math.min(size(), cutoff)));
+  }
+
+  /**
+   * @param weights discount factors, see Kernels.dcg()
+   */
+  protected double getDCGByItem(int cutoff, boolean normalized, double[] weights) {
+
+    double sum = 0.0;        // discounted sum of target values
+    double sumWeight = 0.0;  // sum of discount factors
+
+    int tiedCount = 0;       // number of items with same score as current one
+    double tiedWeight = 0.0; // sum of discount factors for items with the current item's score
+    double tiedSum = 0;      // sum of targets with the current item's score
+    double lastScore = (size() > 0) ? getScore(0) : 0.0;
+
+    for (int i = 0; i < size(); i++) {
+
+      double weight = (i < weights.length) ? weights[i] : LOG2 / Math.log(2.0 + i);
+      double score = getScore(i);
+      if (score != lastScore && tiedWeight > 0.0) {
+
+        // expected DCG for a set of tied items is just
+        // (mean of targets) x (sum of the discount factors)
+        sumWeight += tiedWeight;
+        sum += tiedWeight * tiedSum / tiedCount;
+
+        // reset tie counters
+        tiedCount = 0;
+        tiedWeight = 0;
+        tiedSum = 0.0;
+        lastScore = score;
+
+        if (i >= cutoff) {
+          break;
+        }
+      }
+
+      tiedCount++;
+      if (i < cutoff) {
+        // record all targets for tied items, but only record discount
+        // factors for top min(size(), cutoff) positions
+        tiedWeight += weight;
+      }
+      tiedSum += getTarget(i);
+    }
+
+    // last group of ties
+    if (tiedWeight > 0.0) {
+      sumWeight += tiedWeight;
+      sum += tiedWeight * tiedSum / tiedCount;
+    }
+
+    return normalized ? sum / sumWeight : sum;
+  }
+
+  // best possible DCG under perfect ranking
+  public abstract double getMaxDCG(int cutoff);
+
+  // best possible DCG under perfect ranking, with another position discount
+  public abstract double getMaxDCG(int cutoff, Discount discount);
+
+  public double getNDCG(int cutoff) {
+    return getNDCG(cutoff, getMaxDCG(cutoff));
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored
+   * @param maxDCG ideal DCG for the targets, as returned by getMaxDCG()
+   * @return normalized DCG value
+   */
+  public double getNDCG(int cutoff, double maxDCG) {
+    if (maxDCG == 0.0) {
+      return 0.0;
+    }
+    return getDCG(cutoff, false) / maxDCG;
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored
+   * @param maxDCG ideal DCG with the same discount
+   * @param discount position discount
+   * @return normalized DCG value
+   */
+  public double getNDCG(int cutoff, double maxDCG, Discount discount) {
+    if (maxDCG == 0.0) {
+      return 0.0;
+    }
+    return getDCG(cutoff, false, discount) / maxDCG;
+  }
+
+  /**
+   * pairwise accuracy (for binary targets, AUC): the fraction of item pairs
+   * with different targets that are ranked in the order of their targets.
+   * Pairs with tied scores count 1/2, the expectation over both orders.
+   * Discordant pairs are counted with a Fenwick tree over target ranks, in
+   * O(n log n). Must be called after rank().
+   *
+   * @return pairwise accuracy [0-1], or NaN if all targets are equal
+   */
+  public double getPairwiseAccuracy() {
+    int n = size();
+
+    // compress targets into ranks 1..numValues
+    double[] values = new double[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = getTarget(i);
+    }
+    Arrays.sort(values);
+    int numValues = 0;
+    for (int i = 0; i < n; i++) {
+      if (numValues == 0 || values[i] != values[numValues - 1]) {
+        values[numValues++] = values[i];
+      }
+    }
+    int[] ranks = new int[n];
+    for (int i = 0; i < n; i++) {
+      ranks[i] = 1 + Arrays.binarySearch(values, 0, numValues, getTarget(i));
+    }
+
+    // pairs with different targets
+    int[] counts = new int[numValues + 1];
+    for (int i = 0; i < n; i++) {
+      counts[ranks[i]]++;
+    }
+    long numPairs = (long)n * (n - 1) / 2;
+    for (int c : counts) {
+      numPairs -= (long)c * (c - 1) / 2;
+    }
+    if (numPairs == 0) {
+      return Double.NaN;
+    }
+
+    long[] tree = new long[numValues + 1];
+    Arrays.fill(counts, 0);
+    long discordant = 0;   // pairs ranked against their targets
+    long tied = 0;         // pairs with tied scores and different targets
+
+    int start = 0;
+    while (start < n) {
+      // group of items with the same score
+      int end = start + 1;
+      while (end < n && getScore(end) == getScore(start)) {
+        end++;
+      }
+
+      long groupSize = end - start;
+      long groupPairs = groupSize * (groupSize - 1) / 2;
+      for (int i = start; i < end; i++) {
+        int r = ranks[i];
+        // items in higher groups with a lower target
+        for (int k = r - 1; k > 0; k -= k & -k) {
+          discordant += tree[k];
+        }
+        groupPairs -= counts[r]++;
+      }
+      tied += groupPairs;
+
+      for (int i = start; i < end; i++) {
+        int r = ranks[i];
+        counts[r] = 0;
+        for (int k = r; k <= numValues; k += k & -k) {
+          tree[k]++;
+        }
+      }
+      start = end;
+    }
+
+    return (numPairs - discordant - 0.5 * tied) / numPairs;
+  }
+};
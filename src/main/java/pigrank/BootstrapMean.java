@@ -0,0 +1,435 @@
+package pigrank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF to compute the mean of a per-query metric across queries, with
+ * its bootstrap standard error and percentile confidence interval, in a
+ * single pass.
+ *
+ * Called with a bag of (query, value) tuples. Instead of resampling, each
+ * query enters each of B bootstrap replicates with a Poisson(1) distributed
+ * weight (Poisson bootstrap). The weights are derived from a hash of the
+ * query key and the replicate number, so that partial replicate sums can be
+ * merged in any order: the function is Algebraic, and runs in the combiner.
+ *
+ * Returns a tuple (mean, stderr, ci_low, ci_high, n), where stderr is the
+ * standard deviation of the replicate means, and the confidence interval
+ * consists of their percentiles.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * -- 1000 replicates, 95% confidence interval
+ * define BOOTSTRAP pigrank.BootstrapMean('1000', '0.95');
+ *
+ * eval = foreach data_gr
+ * generate
+ *         flatten(group) as query,
+ *         NDCG(data)     as ndcg
+ * ;
+ *
+ * eval_all = group eval all;
+ *
+ * summary = foreach eval_all
+ * generate
+ *         flatten(BOOTSTRAP(eval.(query, ndcg)))
+ * ;
+ *
+ * store summary into 'output';
+ * </pre>
+ *
+ * An optional third argument sets the seed of the replicate weights.
+ */
+
+public class BootstrapMean extends EvalFunc<Tuple> implements Algebraic {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  /** number of bootstrap replicates */
+  int numReplicates;
+
+  /** coverage of confidence interval */
+  double confidence;
+
+  /** seed of replicate weights */
+  long seed;
+
+  public BootstrapMean() {
+    this(new String[0]);
+  }
+
+  /**
+   * Constructor for BootstrapMean function
+   *
+   * @param args number of replicates (default 1000), confidence level
+   *   (default 0.95), and seed of replicate weights (default 0), as strings.
+   */
+
+  public BootstrapMean(String... args) throws IllegalArgumentException {
+    numReplicates = parseReplicates(args);
+    confidence = parseConfidence(args);
+    seed = parseSeed(args);
+  }
+
+  // the Initial, Intermed, and Final classes receive the same arguments;
+  // they can't instantiate BootstrapMean, since EvalFunc instantiates them
+  // in turn to check their return types.
+
+  static int parseReplicates(String[] args) throws IllegalArgumentException {
+    int numReplicates = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    if (numReplicates < 2) {
+      throw new IllegalArgumentException("expected at least two replicates, found " + numReplicates);
+    }
+    return numReplicates;
+  }
+
+  static double parseConfidence(String[] args) throws IllegalArgumentException {
+    double confidence = args.length > 1 ? Double.parseDouble(args[1]) : 0.95;
+    if (confidence <= 0.0 || confidence >= 1.0) {
+      throw new IllegalArgumentException("expected confidence level between 0 and 1, found " + confidence);
+    }
+    return confidence;
+  }
+
+  static long parseSeed(String[] args) {
+    return args.length > 2 ? Long.parseLong(args[2]) : 0L;
+  }
+
+  /**
+   * Entry point for UDF, if the combiner is not used
+   *
+   * @param input bag containing (query, value) tuples
+   * @return tuple (mean, stderr, ci_low, ci_high, n)
+   */
+
+  @Override
+  public Tuple exec(Tuple input) throws IOException {
+    try {
+      State state = new State(numReplicates);
+      state.addAll(input, seed);
+      return state.summarize(confidence);
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  @Override
+  public String getInitial() {
+    return Initial.class.getName();
+  }
+
+  @Override
+  public String getIntermed() {
+    return Intermed.class.getName();
+  }
+
+  @Override
+  public String getFinal() {
+    return Final.class.getName();
+  }
+
+  /**
+   * replicate sums of the rows of a single map input tuple
+   */
+  public static class Initial extends EvalFunc<Tuple> {
+
+    private long seed;
+    private int numReplicates;
+
+    public Initial() {
+      this(new String[0]);
+    }
+
+    public Initial(String... args) {
+      numReplicates = parseReplicates(args);
+      seed = parseSeed(args);
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+      try {
+        State state = new State(numReplicates);
+        state.addAll(input, seed);
+        return state.toTuple();
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  /**
+   * merge of partial replicate sums
+   */
+  public static class Intermed extends EvalFunc<Tuple> {
+
+    private int numReplicates;
+
+    public Intermed() {
+      this(new String[0]);
+    }
+
+    public Intermed(String... args) {
+      numReplicates = parseReplicates(args);
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+      try {
+        return State.merge(input, numReplicates).toTuple();
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  /**
+   * merge of partial replicate sums, and summary statistics
+   */
+  public static class Final extends EvalFunc<Tuple> {
+
+    private int numReplicates;
+    private double confidence;
+
+    public Final() {
+      this(new String[0]);
+    }
+
+    public Final(String... args) {
+      numReplicates = parseReplicates(args);
+      confidence = parseConfidence(args);
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+      try {
+        return State.merge(input, numReplicates).summarize(confidence);
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  /**
+   * number of values, their sum, and weighted sums and total weights of
+   * all replicates. Serialized as a tuple (n, sum, replicates), where
+   * replicates is a byte array of the sums followed by the weights.
+   */
+  static class State {
+
+    long count;
+    double sum;
+    double[] replicateSums;
+    double[] replicateWeights;
+
+    State(int numReplicates) {
+      replicateSums = new double[numReplicates];
+      replicateWeights = new double[numReplicates];
+    }
+
+    /**
+     * add all (query, value) rows of the bag in the first field of input.
+     */
+    void addAll(Tuple input, long seed) throws ExecException {
+      if (input == null || input.size() == 0 || input.get(0) == null) {
+        return;
+      }
+      Iterator<Tuple> it = ((DataBag)input.get(0)).iterator();
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        if (t == null || t.size() < 2 || t.get(1) == null) {
+          continue;
+        }
+        Object key = t.get(0);
+        add(hashKey(key == null ? "" : DataType.toString(key), seed), DataType.toDouble(t.get(1)));
+      }
+    }
+
+    void add(long keyHash, double value) {
+      count++;
+      sum += value;
+      for (int b = 0; b < replicateSums.length; b++) {
+        int w = poissonWeight(keyHash, b);
+        if (w > 0) {
+          replicateSums[b] += w * value;
+          replicateWeights[b] += w;
+        }
+      }
+    }
+
+    /**
+     * merge the states in the bag in the first field of input.
+     */
+    static State merge(Tuple input, int numReplicates) throws ExecException {
+      State state = new State(numReplicates);
+      Iterator<Tuple> it = ((DataBag)input.get(0)).iterator();
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        state.count += (Long)t.get(0);
+        state.sum += (Double)t.get(1);
+        ByteBuffer buf = ByteBuffer.wrap(((DataByteArray)t.get(2)).get());
+        for (int b = 0; b < numReplicates; b++) {
+          state.replicateSums[b] += buf.getDouble();
+        }
+        for (int b = 0; b < numReplicates; b++) {
+          state.replicateWeights[b] += buf.getDouble();
+        }
+      }
+      return state;
+    }
+
+    Tuple toTuple() {
+      ByteBuffer buf = ByteBuffer.allocate(16 * replicateSums.length);
+      for (double s : replicateSums) {
+        buf.putDouble(s);
+      }
+      for (double w : replicateWeights) {
+        buf.putDouble(w);
+      }
+      Tuple t = tupleFactory.newTuple(3);
+      try {
+        t.set(0, count);
+        t.set(1, sum);
+        t.set(2, new DataByteArray(buf.array()));
+      } catch (ExecException e) {
+        throw new IllegalStateException(e);
+      }
+      return t;
+    }
+
+    /**
+     * @return tuple (mean, stderr, ci_low, ci_high, n); the statistics are
+     *   null if there are no values.
+     */
+    Tuple summarize(double confidence) throws ExecException {
+      Tuple result = tupleFactory.newTuple(5);
+      result.set(4, count);
+      if (count == 0) {
+        return result;
+      }
+      result.set(0, sum / count);
+
+      // replicates without any weight are left out
+      double[] means = new double[replicateSums.length];
+      int n = 0;
+      for (int b = 0; b < replicateSums.length; b++) {
+        if (replicateWeights[b] > 0) {
+          means[n++] = replicateSums[b] / replicateWeights[b];
+        }
+      }
+      if (n < 2) {
+        return result;
+      }
+
+      double mean = 0.0;
+      for (int b = 0; b < n; b++) {
+        mean += means[b];
+      }
+      mean /= n;
+      double ss = 0.0;
+      for (int b = 0; b < n; b++) {
+        ss += (means[b] - mean) * (means[b] - mean);
+      }
+      result.set(1, Math.sqrt(ss / (n - 1)));
+
+      Arrays.sort(means, 0, n);
+      double alpha = 1.0 - confidence;
+      result.set(2, percentile(means, n, alpha / 2));
+      result.set(3, percentile(means, n, 1.0 - alpha / 2));
+      return result;
+    }
+  };
+
+  /**
+   * percentile of sorted values, interpolated linearly between order statistics.
+   */
+  static double percentile(double[] sorted, int n, double q) {
+    double h = (n - 1) * q;
+    int lo = (int)Math.floor(h);
+    int hi = Math.min(lo + 1, n - 1);
+    return sorted[lo] + (h - lo) * (sorted[hi] - sorted[lo]);
+  }
+
+  /**
+   * 64-bit FNV-1a hash of a query key, independent of the JVM.
+   */
+  static long hashKey(String key, long seed) {
+    long h = 0xcbf29ce484222325L ^ seed;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /**
+   * Poisson(1) distributed weight of a query in a replicate, by inversion
+   * of a uniform variate derived from the query hash (splitmix64).
+   */
+  static int poissonWeight(long keyHash, int replicate) {
+    long z = keyHash + (replicate + 1) * 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    z = z ^ (z >>> 31);
+    double u = (z >>> 11) * 0x1.0p-53;
+
+    double p = POISSON_P0;
+    double cdf = p;
+    int k = 0;
+    while (u > cdf && k < 20) {
+      k++;
+      p /= k;
+      cdf += p;
+    }
+    return k;
+  }
+
+  private static final double POISSON_P0 = Math.exp(-1.0);
+
+  @Override
+  public Schema outputSchema(Schema input) {
+
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+        throw new IllegalArgumentException("Expected a bag as argument; found: " + input);
+      }
+
+      Schema bagSchema = input.getField(0).schema;
+      Schema tupleSchema = bagSchema.getField(0).schema;
+
+      if (tupleSchema.size() < 2) {
+        throw new IllegalArgumentException("The tuple must contain a query key and a value column");
+      }
+      if (!DataType.isNumberType(tupleSchema.getField(1).type)) {
+        throw new IllegalArgumentException("Expected numeric input type for value, but received schema of type " + DataType.findTypeName(tupleSchema.getField(1).type));
+      }
+
+      Schema resultSchema = new Schema();
+      resultSchema.add(new FieldSchema("mean", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("stderr", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("ci_low", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("ci_high", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("n", DataType.LONG));
+      return new Schema(new FieldSchema("bootstrap", resultSchema, DataType.TUPLE));
+
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+
+  };
+};
@@ -0,0 +1,127 @@
+package pigrank;
+
+import java.nio.ByteBuffer;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+
+/**
+ * streaming 64-bit hash of the content of a ranking, e.g. to detect
+ * unchanged queries (see IncrementalEval).
+ *
+ * Values are mixed in one long at a time with the round and final mix of
+ * xxHash64; strings and byte ranges are preceded by their length, so that
+ * e.g. the ids ("ab", "c") and ("a", "bc") hash differently.
+ * Not a cryptographic hash: different content collides with probability
+ * about 2^-64 per pair.
+ */
+
+class ContentHash {
+
+  private static final long PRIME1 = 0x9e3779b185ebca87L;
+  private static final long PRIME2 = 0xc2b2ae3d27d4eb4fL;
+  private static final long PRIME3 = 0x165667b19e3779f9L;
+
+  private long state;
+  private long count;
+
+  ContentHash() {
+    reset();
+  }
+
+  ContentHash reset() {
+    state = PRIME3;
+    count = 0;
+    return this;
+  }
+
+  ContentHash add(long value) {
+    state = Long.rotateLeft(state + value * PRIME2, 31) * PRIME1;
+    count++;
+    return this;
+  }
+
+  /**
+   * doubles are hashed by their bits, with all NaNs and both zeros equal
+   */
+  ContentHash add(double value) {
+    return add(Double.doubleToLongBits(value + 0.0));
+  }
+
+  /**
+   * @param s string, or null
+   */
+  ContentHash add(String s) {
+    if (s == null) {
+      return add(-1L);
+    }
+    int n = s.length();
+    add((long)n);
+    int i = 0;
+    for (; i + 4 <= n; i += 4) {
+      add((long)s.charAt(i) | (long)s.charAt(i + 1) << 16 | (long)s.charAt(i + 2) << 32 | (long)s.charAt(i + 3) << 48);
+    }
+    long last = 0L;
+    for (int shift = 0; i < n; i++, shift += 16) {
+      last |= (long)s.charAt(i) << shift;
+    }
+    return add(last);
+  }
+
+  /**
+   * @param bytes byte source, e.g. a RankBlock
+   * @param offset absolute offset of the first byte
+   * @param length number of bytes
+   */
+  ContentHash add(ByteBuffer bytes, int offset, int length) {
+    add((long)length);
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      add(bytes.getLong(offset + i));
+    }
+    long last = 0L;
+    for (int shift = 0; i < length; i++, shift += 8) {
+      last |= (bytes.get(offset + i) & 0xffL) << shift;
+    }
+    return add(last);
+  }
+
+  /**
+   * hash a Pig value as is, e.g. an id column, without converting it to a
+   * string; the type is hashed first, so that e.g. the int 1 and the
+   * double 1.0 differ. Other types than strings, numbers and byte arrays
+   * are hashed by their string form.
+   *
+   * @param value Pig value, or null
+   */
+  ContentHash addValue(Object value) throws ExecException {
+    byte type = DataType.findType(value);
+    add((long)type);
+    switch (type) {
+    case DataType.CHARARRAY:
+      return add((String)value);
+    case DataType.INTEGER:
+    case DataType.LONG:
+      return add(((Number)value).longValue());
+    case DataType.FLOAT:
+    case DataType.DOUBLE:
+      return add(((Number)value).doubleValue());
+    case DataType.BYTEARRAY:
+      byte[] bytes = ((DataByteArray)value).get();
+      return add(ByteBuffer.wrap(bytes), 0, bytes.length);
+    default:
+      return add(DataType.toString(value));
+    }
+  }
+
+  long get() {
+    long h = state ^ count;
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h;
+  }
+};
@@ -1,15 +1,16 @@
 package pigrank;
 
 import java.io.IOException;
-
-import java.util.Iterator;
+import java.util.List;
 
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
@@ -41,18 +42,70 @@ import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
  *
  * store eval into 'output';
  * </pre>
+ *
+ * Score and target columns can also be given as comma-separated lists, e.g.
+ * pigrank.DCG('normalized', '10', '1,2,3', '4,5'), to evaluate several models
+ * against several targets in one call. The bag is read only once, the ideal DCG
+ * is computed once per target, and the items are sorted once per score column.
+ * The result is then a tuple with one value for each (score, target) pair, in
+ * score-major order.
+ *
+ * To avoid joining relevance judgments onto the scored rows, the target
+ * column can be replaced by a lookup in an index built with QrelsIndexBuilder,
+ * which is shipped to each task through the distributed cache:
+ *
+ * <pre>
+ * -- rows contain (query, item id, score); items without judgment have target 0
+ * define NDCG pigrank.DCG('normalized', '10', '2', 'qrels',
+ *                         'qrels=/data/judgments.idx', 'query=0', 'id=1', 'unjudged=0');
+ * </pre>
+ * With 'unjudged=skip', items without judgment are removed from the ranking.
+ *
+ * Bags with at least 'offheap=&lt;rows&gt;' rows (default 2^20) are ranked in
+ * off-heap columns, which are reused across calls and freed in finish(); a
+ * value of zero or less disables the off-heap path. Off-heap scores are
+ * stored as floats and targets as bytes while all values fit exactly, and
+ * as doubles otherwise; 'compact=false' always uses doubles.
+ *
+ * To bound the work per call, 'maxrows=&lt;rows&gt;' and
+ * 'maxtime=&lt;milliseconds&gt;' limit the rows evaluated and the time spent
+ * reading a bag (see WorkBudget). Beyond the budget, DCG with a cutoff of
+ * at most maxrows and a single score column is computed from the top rows
+ * by score, which is exact up to ties with the lowest kept row; otherwise,
+ * it is estimated from a uniform sample of the rows (see SampleEstimate).
+ * The result is then always a tuple of the values, the fraction of rows
+ * evaluated (1.0 if exact), and the standard error of each value (0.0 if
+ * exact, NaN if unknown).
+ *
+ * The gain and the position discount can be changed with the options
+ * 'gain=exponential' (2^target - 1, see Gain) and 'discount=reciprocal'
+ * (1 / rank) or 'discount=&lt;w1,w2,...&gt;' (weights of the top ranks, zero
+ * beyond them; see Discount). Gains are applied to the extracted targets
+ * once per bag, and discounts are read from a table, so the kernels are
+ * the same for all combinations.
+ *
+ * With 'cache=&lt;megabytes&gt;', results are cached per task by a hash of
+ * the extracted columns, so that bags with the same scores and targets in
+ * the same order, e.g. identical rankings of several treatments, are sorted
+ * and evaluated only once (see ResultCache).
+ *
+ * Slow calls are recorded as Java Flight Recorder events, see ExecRecorder.
  */
 
-public class DCG extends EvalFunc<Double> {
+public class DCG extends EvalFunc<Object> {
 
   public enum NormType { NORM_MAX, NORM_WEIGHT, NORM_NONE }
 
-  int predictorField;
-  int targetField;
-  int minCols;
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  RankColumns columns;
+  ExecRecorder recorder = ExecRecorder.create(getClass().getSimpleName());
+  ResultCache cache;
   int cutoff;
   NormType normType;
-  Ranking ranking;
+  Gain gain;
+  Discount discount;
+  AbstractRanking ranking;
 
   /**
    * Constructor for DCG function
@@ -64,14 +117,31 @@ public class DCG extends EvalFunc<Double> {
    * @param strCutoff maximum rank to consider in measure, as a string. Values of zero
    *   or less are interpreted as 'no cutoff'.
    * @param strPredictorField zero-based column index of ranking score,
-   *   as a string.
-   * @param strTargetField zero-based column index of ranking score,
-   *   as a string.
+   *   as a string; or a comma-separated list of column indices.
+   * @param strTargetField zero-based column index of target,
+   *   as a string; or a comma-separated list of column indices.
    */
 
   public DCG(String normalization, String strCutoff, String strPredictorField, String strTargetField) throws IllegalArgumentException {
+    this(new String[] { normalization, strCutoff, strPredictorField, strTargetField });
+  }
+
+  /**
+   * Constructor for DCG function with options
+   *
+   * @param args normalization, cutoff, score and target columns as above,
+   *   followed by options of the form "key=value". With the target column
+   *   'qrels', targets are looked up in an index of relevance judgments,
+   *   see RankColumns.setQrelsOptions().
+   */
 
-    normalization = normalization.toLowerCase();
+  public DCG(String... args) throws IllegalArgumentException {
+
+    if (args.length < 4) {
+      throw new IllegalArgumentException("expected normalization, cutoff, score and target column, found " + args.length + " arguments");
+    }
+
+    String normalization = args[0].toLowerCase();
 
     if (normalization.equals("normalized")) {
       normType = NormType.NORM_MAX;
@@ -82,24 +152,40 @@ public class DCG extends EvalFunc<Double> {
     } else {
       throw new IllegalArgumentException("unknown normalization '" + normalization + "', expected one of 'normalized', 'weighted_average', or 'unnormalized'");
     }
-    cutoff = Integer.parseInt(strCutoff);
+    cutoff = Integer.parseInt(args[1]);
     if (cutoff <= 0) {
       cutoff = Integer.MAX_VALUE;
     }
-    predictorField = Integer.parseInt(strPredictorField);
-    targetField = Integer.parseInt(strTargetField);
-    minCols = 1 + Math.max(predictorField, targetField);
+    columns = new RankColumns(args[2], args[3]);
+    UDFOptions options = new UDFOptions(args, 4, "qrels", "query", "id", "unjudged", "offheap", "compact", "maxrows", "maxtime", "cache", "gain", "discount");
+    gain = Gain.parse(options.getString("gain", "linear"));
+    discount = Discount.parse(options.getString("discount", "log"));
+    columns.setQrelsOptions(options);
+    columns.setOffHeapOptions(options);
+    columns.setBudgetOptions(options, cutoff);
+    cache = ResultCache.create(options, getClass().getSimpleName(), args);
+  }
+
+  @Override
+  public void finish() {
+    columns.release();
+  }
+
+  @Override
+  public List<String> getCacheFiles() {
+    return columns.getCacheFiles();
   }
 
   /**
    * Entry point for UDF
    *
    * @param input bag containing tuples of rows to rank
-   * @return Double DCG value
+   * @return Double DCG value, or a tuple of DCG values if several
+   *   score or target columns are given, or a work budget is set
    */
 
   @Override
-  public Double exec(Tuple input) throws IOException {
+  public Object exec(Tuple input) throws IOException {
 
     if (input == null || input.size() != 1) {
       throw new ExecException(
@@ -113,36 +199,87 @@ public class DCG extends EvalFunc<Double> {
       if(bag==null)
         return null;
 
-      Iterator it = bag.iterator();
-
-      ranking = new Ranking((int)bag.size());
-
-      while (it.hasNext()){
+      recorder.begin();
+      if (!columns.extract(bag, this.getClass().getSimpleName())) {
+        return null;
+      }
+      recorder.endExtract();
+
+      // identical rankings, e.g. of other treatments, were evaluated before
+      long key = 0L;
+      if (cache != null) {
+        key = columns.hash(cache.start());
+        Object cached = cache.get(key);
+        if (cached != null) {
+          return cached;
+        }
+      }
+      columns.applyGain(gain);
 
-        Tuple t = (Tuple)it.next();
+      int numPredictors = columns.predictorFields.length;
+      int numTargets = columns.numTargets();
 
-        if (t == null || t.size() < minCols) {
-          System.err.println(this.getClass().getSimpleName() + " expected tuple with at least " + minCols + "columns, got  " + t);
-          return null;
-        };
+      // the ideal DCG does not depend on the ranking scores
+      double[] maxDCG = new double[numTargets];
+      if (normType == NormType.NORM_MAX) {
+        for (int k = 0; k < numTargets; k++) {
+          maxDCG[k] = columns.getMaxDCG(k, cutoff, discount);
+        }
+      }
 
-        if (t.get(predictorField) != null && t.get(targetField) != null) {
-          Double pred   = DataType.toDouble(t.get(predictorField));
-          Double target = DataType.toDouble(t.get(targetField));
-          ranking.addItem(null, pred, target);
+      int numValues = numPredictors * numTargets;
+      boolean isBudgeted = columns.budget.isLimited();
+      boolean isSampled = columns.isSampled();
+      Tuple result = tupleFactory.newTuple(numValues + (isBudgeted ? 1 + numValues : 0));
+
+      for (int j = 0; j < numPredictors; j++) {
+
+        ranking = columns.newRanking(j);
+        recorder.beginSort();
+        // the estimates need the whole sample
+        ranking.rank(isSampled ? Integer.MAX_VALUE : cutoff);
+        recorder.endSort();
+
+        for (int k = 0; k < numTargets; k++) {
+          // rows with a null in this pair of columns are left out
+          AbstractRanking pair = ranking;
+          if (columns.hasNulls(j, k)) {
+            pair = columns.newRanking(j, k);
+            pair.rank(isSampled ? Integer.MAX_VALUE : cutoff);
+          } else if (k > 0) {
+            columns.setTargets(ranking, k);
+          }
+          if (isSampled) {
+            SampleEstimate sample = new SampleEstimate(pair, columns.getPopulation(j, k));
+            double[] estimates = new double[1 + SampleEstimate.NUM_GROUPS];
+            for (int g = -1; g < SampleEstimate.NUM_GROUPS; g++) {
+              estimates[g + 1] = getEstimate(sample, g);
+            }
+            result.set(j * numTargets + k, estimates[0]);
+            result.set(numValues + 1 + j * numTargets + k, columns.getStandardError(estimates));
+          } else {
+            double max = columns.hasNulls(j, k) && normType == NormType.NORM_MAX ? columns.getMaxDCG(j, k, cutoff, discount) : maxDCG[k];
+            result.set(j * numTargets + k, getValue(pair, max));
+            if (isBudgeted) {
+              result.set(numValues + 1 + j * numTargets + k, columns.getStandardError());
+            }
+          }
         }
       }
 
-      ranking.rank();
+      if (recorder.end()) {
+        recorder.commit(bag.size(), ranking.getNumDistinctScores(), columns.getPath(ranking), columns.budget.dropped);
+      }
 
-      switch(normType) {
-      case NORM_MAX:
-        return ranking.getNDCG(cutoff);
-      case NORM_WEIGHT:
-        return ranking.getDCG(cutoff, true);
-      default:
-        return ranking.getDCG(cutoff, false);
+      Object value = columns.isMultiple() ? result : result.get(0);
+      if (isBudgeted) {
+        result.set(numValues, columns.getCoverage());
+        value = result;
       }
+      if (cache != null) {
+        cache.put(key, value);
+      }
+      return value;
 
     } catch (NumberFormatException nfe) {
       System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
@@ -152,6 +289,44 @@ public class DCG extends EvalFunc<Double> {
     }
   };
 
+  private double getValue(AbstractRanking ranking, double maxDCG) {
+    switch(normType) {
+    case NORM_MAX:
+      return ranking.getNDCG(cutoff, maxDCG, discount);
+    case NORM_WEIGHT:
+      return ranking.getDCG(cutoff, true, discount);
+    default:
+      return ranking.getDCG(cutoff, false, discount);
+    }
+  }
+
+  /**
+   * also called on the backend, where the declared score types select
+   * the off-heap storage.
+   */
+  @Override
+  public void setInputSchema(Schema input) {
+    super.setInputSchema(input);
+    columns.setInputSchema(input);
+  }
+
+  /**
+   * @param excluded jackknife group left out, or -1 for the whole sample
+   * @return estimate of the measure of the full list
+   */
+  private double getEstimate(SampleEstimate sample, int excluded) {
+    double dcg = sample.getDCG(cutoff, discount, excluded);
+    switch(normType) {
+    case NORM_MAX:
+      double maxDCG = sample.getMaxDCG(cutoff, discount, excluded);
+      return maxDCG == 0.0 ? 0.0 : dcg / maxDCG;
+    case NORM_WEIGHT:
+      return dcg / sample.getWeightSum(cutoff, discount);
+    default:
+      return dcg;
+    }
+  }
+
   @Override
   public Schema outputSchema(Schema input) {
 
@@ -163,19 +338,10 @@ public class DCG extends EvalFunc<Double> {
       Schema bagSchema = input.getField(0).schema;
       Schema tupleSchema = bagSchema.getField(0).schema;
 
-      if (tupleSchema.size() < minCols) {
-        throw new IllegalArgumentException("The tuple must contain at least " + minCols + " columns");
-      }
-
-      if (!DataType.isNumberType(tupleSchema.getField(predictorField).type)) {
-        throw new IllegalArgumentException("Expected numeric input type for predictor, but received schema of type " + DataType.findTypeName(tupleSchema.getField(predictorField).type));
-      }
-
-      if (!DataType.isNumberType(tupleSchema.getField(targetField).type)) {
-        throw new IllegalArgumentException("Expected numeric input type for target, but received schema of type " + DataType.findTypeName(tupleSchema.getField(targetField).type));
-      }
+      columns.checkSchema(tupleSchema);
 
-      // Construct our output schema consisting of a Double field
+      // Construct our output schema consisting of a Double field,
+      // or a tuple of Double fields for multiple columns
 
       String resultName = "";
       switch(normType) {
@@ -193,14 +359,36 @@ public class DCG extends EvalFunc<Double> {
         resultName = resultName + "_" + cutoff;
       }
 
-      resultName += "_" + input.getField(0).schema.getField(0).schema.getField(targetField).alias;
-      resultName += "_by_" + input.getField(0).schema.getField(0).schema.getField(predictorField).alias;
+      boolean isBudgeted = columns.budget.isLimited();
+      if (!columns.isMultiple() && !isBudgeted) {
+        return new Schema(new FieldSchema(getFieldName(resultName, tupleSchema, 0, 0), DataType.DOUBLE));
+      }
 
-      return new Schema(new FieldSchema(resultName, DataType.DOUBLE));
+      Schema resultSchema = new Schema();
+      for (int j = 0; j < columns.predictorFields.length; j++) {
+        for (int k = 0; k < columns.numTargets(); k++) {
+          resultSchema.add(new FieldSchema(getFieldName(resultName, tupleSchema, j, k), DataType.DOUBLE));
+        }
+      }
+      if (isBudgeted) {
+        resultSchema.add(new FieldSchema(getFieldName(resultName, tupleSchema, 0, 0) + "_coverage", DataType.DOUBLE));
+        for (int j = 0; j < columns.predictorFields.length; j++) {
+          for (int k = 0; k < columns.numTargets(); k++) {
+            resultSchema.add(new FieldSchema(getFieldName(resultName, tupleSchema, j, k) + "_stderr", DataType.DOUBLE));
+          }
+        }
+      }
+      return new Schema(new FieldSchema(resultName, resultSchema, DataType.TUPLE));
 
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
 
   };
+
+  private String getFieldName(String resultName, Schema tupleSchema, int predictor, int target) throws FrontendException {
+    resultName += "_" + columns.getTargetName(tupleSchema, target);
+    resultName += "_by_" + tupleSchema.getField(columns.predictorFields[predictor]).alias;
+    return resultName;
+  }
 };
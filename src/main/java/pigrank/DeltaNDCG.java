@@ -0,0 +1,285 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF to generate LambdaRank training pairs: for each pair of items of
+ * a query, the absolute change |delta nDCG@k| when the two items swap
+ * their positions in the ranking.
+ *
+ * Called with an unordered bag; returns a bag of (item_i, item_j, delta)
+ * tuples, where item_i is ranked above item_j by decreasing score. Items
+ * are identified by their id column with the option 'id=&lt;column&gt;',
+ * and otherwise by their complete input rows, since Pig does not keep the
+ * order of bags stable. Like in LambdaRank, the ranks of tied items are
+ * those of the sorted order (ties are kept in bag order), rather than the
+ * expectation over their permutations used by DCG.
+ *
+ * Swapping the items at ranks i and j changes the DCG by
+ * (t_i - t_j) * (w_i - w_j), where t are the gains and w the discount
+ * factors, which are zero beyond the cutoff; the items are sorted and the
+ * ideal DCG computed once, so all pairs take O(n^2) rather than one nDCG
+ * evaluation per pair. Pairs with equal targets, or with both items below
+ * the cutoff, do not change nDCG and are left out. No pairs are returned
+ * if the ideal DCG is zero. <p>
+ * Example use in a pig script:
+ * <pre>
+ *
+ * -- the second column contains ranking scores, the third one the target
+ * define LAMBDA pigrank.DeltaNDCG('10', '2', '3', 'id=1', 'maxpairs=1000');
+ *
+ * data = load 'input' using PigStorage('\t') as (
+ *         query:chararray,
+ *         doc:chararray,
+ *         score:double,
+ *         target:double
+ * );
+ *
+ * data_gr = group data by query;
+ *
+ * pairs = foreach data_gr
+ * generate
+ *         flatten(group) as query,
+ *         flatten(LAMBDA(data))
+ * ;
+ *
+ * store pairs into 'output';
+ * </pre>
+ *
+ * The gain and the position discount can be changed as for DCG, e.g. with
+ * 'gain=exponential' for the usual LambdaRank gain 2^target - 1.
+ *
+ * With 'maxpairs=&lt;n&gt;', at most n pairs are returned per query: those
+ * of the top ranked items first, i.e. the pairs of ranks (0, 1), (0, 2), ...,
+ * (1, 2), ...
+ *
+ * The options for relevance judgments and off-heap columns are the same as for DCG.
+ */
+
+public class DeltaNDCG extends EvalFunc<DataBag> {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+  private static final BagFactory bagFactory = BagFactory.getInstance();
+
+  RankColumns columns;
+  int cutoff;
+  long maxPairs;
+  /** column of item ids, or -1 to return the input rows */
+  int idField;
+  Gain gain;
+  Discount discount;
+  AbstractRanking ranking;
+
+  /**
+   * Constructor for DeltaNDCG function
+   *
+   * @param strCutoff maximum rank to consider in nDCG, as a string. Values
+   *   of zero or less are interpreted as 'no cutoff'.
+   * @param strPredictorField zero-based column index of ranking score, as a string.
+   * @param strTargetField zero-based column index of target, as a string.
+   */
+
+  public DeltaNDCG(String strCutoff, String strPredictorField, String strTargetField) throws IllegalArgumentException {
+    this(new String[] { strCutoff, strPredictorField, strTargetField });
+  }
+
+  /**
+   * Constructor for DeltaNDCG function with options
+   *
+   * @param args cutoff, score and target columns as above, followed by
+   *   options of the form "key=value".
+   */
+
+  public DeltaNDCG(String... args) throws IllegalArgumentException {
+
+    if (args.length < 3) {
+      throw new IllegalArgumentException("expected cutoff, score and target column, found " + args.length + " arguments");
+    }
+    cutoff = Integer.parseInt(args[0]);
+    if (cutoff <= 0) {
+      cutoff = Integer.MAX_VALUE;
+    }
+    columns = new RankColumns(args[1], args[2]);
+    if (columns.isMultiple()) {
+      throw new IllegalArgumentException("expected a single score and target column, found '" + args[1] + "' and '" + args[2] + "'");
+    }
+    UDFOptions options = new UDFOptions(args, 3, "qrels", "query", "id", "unjudged", "offheap", "compact", "maxpairs", "gain", "discount");
+    gain = Gain.parse(options.getString("gain", "linear"));
+    discount = Discount.parse(options.getString("discount", "log"));
+    columns.setQrelsOptions(options);
+    columns.setOffHeapOptions(options);
+    idField = options.getInt("id", -1);
+    if (idField >= 0) {
+      columns.minCols = Math.max(columns.minCols, idField + 1);
+    }
+    columns.keepRows = true;
+    maxPairs = options.getLong("maxpairs", Long.MAX_VALUE);
+    if (maxPairs <= 0) {
+      maxPairs = Long.MAX_VALUE;
+    }
+  }
+
+  @Override
+  public void finish() {
+    columns.release();
+  }
+
+  @Override
+  public List<String> getCacheFiles() {
+    return columns.getCacheFiles();
+  }
+
+  /**
+   * Entry point for UDF
+   *
+   * @param input bag containing tuples of rows to rank
+   * @return bag of (item_i, item_j, delta) tuples
+   */
+
+  @Override
+  public DataBag exec(Tuple input) throws IOException {
+
+    if (input == null || input.size() != 1) {
+      throw new ExecException(
+        "Expecting a single bag, but found "
+        + input.toString());
+    }
+
+    try {
+
+      DataBag bag = (DataBag)input.get(0);
+      if(bag==null)
+        return null;
+
+      if (!columns.extract(bag, this.getClass().getSimpleName())) {
+        return null;
+      }
+
+      DataBag result = bagFactory.newDefaultBag();
+
+      columns.applyGain(gain);
+      double maxDCG = columns.getMaxDCG(0, cutoff, discount);
+      if (maxDCG == 0.0) {
+        return result;
+      }
+
+      ranking = columns.newRanking(0);
+      ranking.rank();
+
+      int size = ranking.size();
+      double[] targets = new double[size];
+      Object[] items = new Object[size];
+      for (int i = 0; i < size; i++) {
+        targets[i] = ranking.getTarget(i);
+        Tuple row = columns.rows[ranking.getPosition(i)];
+        items[i] = idField >= 0 ? row.get(idField) : row;
+      }
+      int top = Math.min(size, cutoff);
+      double[] weights = getWeights(discount, top);
+
+      long numPairs = 0;
+      for (int i = 0; i < top && numPairs < maxPairs; i++) {
+        for (int j = i + 1; j < size && numPairs < maxPairs; j++) {
+          double diff = targets[i] - targets[j];
+          if (diff == 0.0) {
+            continue;
+          }
+          double weight = j < top ? weights[j] : 0.0;
+          Tuple t = tupleFactory.newTuple(3);
+          t.set(0, items[i]);
+          t.set(1, items[j]);
+          t.set(2, Math.abs(diff * (weights[i] - weight)) / maxDCG);
+          result.add(t);
+          numPairs++;
+        }
+      }
+
+      return result;
+
+    } catch (NumberFormatException nfe) {
+      System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
+      return null;
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  /**
+   * @return discount factors of the first n ranks
+   */
+  static double[] getWeights(Discount discount, int n) {
+    double[] weights = discount.getWeights(n);
+    if (weights.length >= n) {
+      return weights;
+    }
+    // beyond the shared table
+    double[] extended = new double[n];
+    System.arraycopy(weights, 0, extended, 0, weights.length);
+    for (int i = weights.length; i < n; i++) {
+      extended[i] = discount.getWeight(i);
+    }
+    return extended;
+  }
+
+  /**
+   * also called on the backend, where the declared score types select
+   * the off-heap storage.
+   */
+  @Override
+  public void setInputSchema(Schema input) {
+    super.setInputSchema(input);
+    columns.setInputSchema(input);
+  }
+
+  @Override
+  public Schema outputSchema(Schema input) {
+
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+        throw new IllegalArgumentException("Expected a bag as argument; found: " + DataType.findTypeName(input.getField(0).type));
+      }
+
+      Schema bagSchema = input.getField(0).schema;
+      Schema tupleSchema = bagSchema.getField(0).schema;
+
+      columns.checkSchema(tupleSchema);
+
+      String resultName = "delta_ndcg";
+      if (cutoff < Integer.MAX_VALUE) {
+        resultName += "_" + cutoff;
+      }
+
+      // Construct our output schema: a bag of (item_i, item_j, delta) tuples,
+      // with items of the type of the id column, or input rows
+      Schema pairSchema = new Schema();
+      if (idField >= 0) {
+        byte idType = tupleSchema.getField(idField).type;
+        pairSchema.add(new FieldSchema("id_i", idType));
+        pairSchema.add(new FieldSchema("id_j", idType));
+      } else {
+        pairSchema.add(new FieldSchema("row_i", tupleSchema, DataType.TUPLE));
+        pairSchema.add(new FieldSchema("row_j", tupleSchema, DataType.TUPLE));
+      }
+      pairSchema.add(new FieldSchema(resultName, DataType.DOUBLE));
+
+      Schema resultSchema = new Schema(new FieldSchema("pair", pairSchema, DataType.TUPLE));
+      return new Schema(new FieldSchema("pairs", resultSchema, DataType.BAG));
+
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+
+  };
+};
@@ -0,0 +1,162 @@
+package pigrank;
+
+import java.util.Arrays;
+
+/**
+ * position discount of DCG, i.e. the weight of the item at each
+ * (zero-based) rank i:
+ * <ul>
+ * <li>log: log(2) / log(2 + i), the default
+ * <li>reciprocal: 1 / (1 + i)
+ * <li>a list of weights of the top ranks, e.g. "1,0.5,0.25"; ranks beyond
+ *   the list have weight zero
+ * </ul>
+ * The weights are kept in a table, which the DCG kernels read in place of
+ * their logarithms, so all discounts run the same loop (see Kernels).
+ * Weights must not increase with the rank, so that sorting the targets
+ * gives the ideal DCG.
+ */
+
+public class Discount {
+
+  public static final Discount LOG = new Discount("log", null);
+
+  public static final Discount RECIPROCAL = new Discount("reciprocal", null);
+
+  private final String name;
+
+  /** weights of the top ranks, or null for a discount function */
+  private final double[] fixed;
+
+  /** weights of the first positions, grown on demand */
+  private volatile double[] table = new double[0];
+
+  private Discount(String name, double[] fixed) {
+    this.name = name;
+    this.fixed = fixed;
+  }
+
+  /**
+   * @param weights non-negative, non-increasing weights of the top ranks
+   * @return discount with the given weights, and zero beyond them
+   */
+  public static Discount weights(double... weights) throws IllegalArgumentException {
+    for (int i = 0; i < weights.length; i++) {
+      if (!(weights[i] >= 0.0) || (i > 0 && weights[i] > weights[i - 1])) {
+        throw new IllegalArgumentException("expected non-negative, non-increasing weights, found " + Arrays.toString(weights));
+      }
+    }
+    StringBuilder name = new StringBuilder();
+    for (double weight : weights) {
+      name.append(name.length() > 0 ? "," : "").append(weight);
+    }
+    return new Discount(name.toString(), Arrays.copyOf(weights, weights.length));
+  }
+
+  /**
+   * @param s "log", "reciprocal", or a comma-separated list of weights
+   * @return discount
+   */
+  public static Discount parse(String s) throws IllegalArgumentException {
+    s = s.trim().toLowerCase();
+    if (s.equals("log")) {
+      return LOG;
+    }
+    if (s.equals("reciprocal")) {
+      return RECIPROCAL;
+    }
+    String[] fields = s.split(",");
+    double[] weights = new double[fields.length];
+    try {
+      for (int i = 0; i < fields.length; i++) {
+        weights[i] = Double.parseDouble(fields[i].trim());
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("unknown discount '" + s + "', expected 'log', 'reciprocal', or a list of weights");
+    }
+    return weights(weights);
+  }
+
+  /**
+   * @return true for the default discount log(2) / log(2 + i)
+   */
+  public boolean isLog() {
+    return this == LOG;
+  }
+
+  /**
+   * @param i rank (zero-based)
+   * @return weight of the rank
+   */
+  public double getWeight(int i) {
+    if (fixed != null) {
+      return i < fixed.length ? fixed[i] : 0.0;
+    }
+    return (this == LOG) ? Ranking.LOG2 / Math.log(2.0 + i) : 1.0 / (1.0 + i);
+  }
+
+  /**
+   * @param n number of positions
+   * @return weights of at least n positions; for the log discount, of at
+   *   least min(n, Kernels.MAX_TABLE_SIZE), as the kernels compute the log
+   *   discount beyond their table
+   */
+  double[] getWeights(int n) {
+    if (this == LOG) {
+      return Kernels.getWeights(n);
+    }
+    double[] current = table;
+    if (current.length >= n) {
+      return current;
+    }
+    int length = Math.max(n, Math.max(64, 2 * current.length));
+    if (fixed != null) {
+      // the weights are zero beyond the list
+      length = Math.max(n, fixed.length);
+    }
+    double[] grown = new double[length];
+    for (int i = 0; i < length; i++) {
+      grown[i] = getWeight(i);
+    }
+    table = grown;
+    return grown;
+  }
+
+  /**
+   * sum of the weights of a range of ranks, where rank i covers the interval
+   * [i, i + 1) and partly covered ranks count in proportion, e.g. for the
+   * ranks that an item of a sample stands for. Beyond the first 16 ranks,
+   * the weight functions are summed in runs of 1/16 of the rank, each
+   * taken at its midpoint.
+   *
+   * @param from start of the range, inclusive
+   * @param to end of the range, exclusive
+   * @return sum of weights
+   */
+  double getWeightSum(double from, double to) {
+    if (fixed != null) {
+      to = Math.min(to, fixed.length);
+    }
+    double sum = 0.0;
+    double x = Math.max(from, 0.0);
+    while (x < to) {
+      double rank = Math.floor(x);
+      if (fixed != null || rank < 16.0) {
+        double end = Math.min(to, rank + 1.0);
+        sum += (end - x) * getWeight((int)rank);
+        x = end;
+      } else {
+        double end = Math.min(to, x + Math.floor(rank / 16.0));
+        double mid = 0.5 * (x + end) - 0.5;
+        sum += (end - x) * ((this == LOG) ? Ranking.LOG2 / Math.log(2.0 + mid) : 1.0 / (1.0 + mid));
+        x = end;
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+};
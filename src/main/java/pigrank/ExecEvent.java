@@ -0,0 +1,59 @@
+package pigrank;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event for one call of a ranking UDF, see
+ * ExecRecorder. Only calls longer than the threshold are recorded; the
+ * default of 20 ms can be changed in the recording settings, e.g.
+ * -XX:StartFlightRecording:settings=pigrank.jfc with an entry for
+ * pigrank.UDFExec.
+ */
+
+@Name("pigrank.UDFExec")
+@Label("Pigrank UDF Execution")
+@Description("A call of a pigrank UDF on one bag")
+@Category({ "pigrank" })
+@Threshold("20 ms")
+@StackTrace(false)
+class ExecEvent extends jdk.jfr.Event {
+
+  @Label("UDF")
+  String udf;
+
+  @Label("Bag Size")
+  @Description("Number of rows in the input bags")
+  long bagSize;
+
+  @Label("Distinct Scores")
+  @Description("Number of distinct ranking scores among the evaluated rows")
+  long distinctScores;
+
+  @Label("Extract Time")
+  @Description("Time spent reading the bags")
+  @Timespan(Timespan.NANOSECONDS)
+  long extractTime;
+
+  @Label("Sort Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long sortTime;
+
+  @Label("Kernel Time")
+  @Description("Time spent computing the measures on the sorted rows")
+  @Timespan(Timespan.NANOSECONDS)
+  long kernelTime;
+
+  @Label("Path")
+  @Description("Storage and algorithm used, e.g. 'heap,sort' or 'offheap,sort,sampled'")
+  String path;
+
+  @Label("Dropped Rows")
+  @Description("Rows not evaluated because of the work budget")
+  long droppedRows;
+};
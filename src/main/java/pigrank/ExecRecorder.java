@@ -0,0 +1,77 @@
+package pigrank;
+
+/**
+ * records the calls of a UDF as Java Flight Recorder events (ExecEvent).
+ *
+ * The UDFs only see this class, which does nothing; the recording
+ * subclass JfrExecRecorder is loaded by name, so that the UDFs also run on
+ * JVMs without the jdk.jfr module. Without a running recording, a call
+ * costs a few no-op method calls and one check of the event type.
+ *
+ * usage within exec():
+ * <pre>
+ * recorder.begin();
+ * ... read the bag ...
+ * recorder.endExtract();
+ * recorder.beginSort(); ranking.rank(); recorder.endSort();
+ * ... compute measures ...
+ * if (recorder.end()) {
+ *   recorder.commit(bag.size(), ranking.getNumDistinctScores(), "heap,sort", 0);
+ * }
+ * </pre>
+ */
+
+class ExecRecorder {
+
+  /**
+   * @param udfName name of the UDF, recorded with each event
+   * @return a recorder of JFR events if the JVM supports them, or one
+   *   that does nothing
+   */
+  static ExecRecorder create(String udfName) {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      return (ExecRecorder)Class.forName("pigrank.JfrExecRecorder").getDeclaredConstructor(String.class).newInstance(udfName);
+    } catch (Throwable t) {
+      return new ExecRecorder();
+    }
+  }
+
+  /** start of a call */
+  void begin() {
+  }
+
+  /** end of reading the input bags */
+  void endExtract() {
+  }
+
+  /** start of a sort */
+  void beginSort() {
+  }
+
+  /** end of a sort; sort times of a call are summed */
+  void endSort() {
+  }
+
+  /**
+   * end of a call.
+   *
+   * @return true if the call is recorded, i.e., a recording is running
+   *   and the call took longer than the event threshold; then commit()
+   *   must be called
+   */
+  boolean end() {
+    return false;
+  }
+
+  /**
+   * record the call.
+   *
+   * @param bagSize number of rows in the input bags
+   * @param distinctScores number of distinct ranking scores
+   * @param path storage and algorithm used
+   * @param droppedRows rows not evaluated because of the work budget
+   */
+  void commit(long bagSize, long distinctScores, String path, long droppedRows) {
+  }
+};
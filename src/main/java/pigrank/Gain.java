@@ -0,0 +1,92 @@
+package pigrank;
+
+/**
+ * gain of DCG as a function of the target (relevance grade):
+ * <ul>
+ * <li>linear: the target itself, the default
+ * <li>exponential: 2^target - 1
+ * </ul>
+ * Gains are applied once to the target column, before the items are
+ * ranked; the DCG kernels then sum gains instead of targets. For integer
+ * grades up to MAX_GRADE, the exponential gain is looked up in a table
+ * rather than computed with Math.pow().
+ */
+
+public class Gain {
+
+  public static final Gain LINEAR = new Gain("linear");
+
+  public static final Gain EXPONENTIAL = new Gain("exponential");
+
+  /** largest grade in the table of exponential gains */
+  static final int MAX_GRADE = 62;
+
+  /** 2^g - 1 for integer grades g */
+  private static final double[] EXP_TABLE = new double[MAX_GRADE + 1];
+
+  static {
+    for (int g = 0; g <= MAX_GRADE; g++) {
+      EXP_TABLE[g] = (double)((1L << g) - 1L);
+    }
+  }
+
+  private final String name;
+
+  private Gain(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param s "linear" or "exponential"
+   * @return gain
+   */
+  public static Gain parse(String s) throws IllegalArgumentException {
+    s = s.trim().toLowerCase();
+    if (s.equals("linear")) {
+      return LINEAR;
+    }
+    if (s.equals("exponential")) {
+      return EXPONENTIAL;
+    }
+    throw new IllegalArgumentException("unknown gain '" + s + "', expected 'linear' or 'exponential'");
+  }
+
+  /**
+   * @return true if gains are the targets themselves
+   */
+  public boolean isLinear() {
+    return this == LINEAR;
+  }
+
+  /**
+   * @param target target value
+   * @return gain of the target
+   */
+  public double apply(double target) {
+    if (this == LINEAR) {
+      return target;
+    }
+    int grade = (int)target;
+    if (grade == target && grade >= 0 && grade <= MAX_GRADE) {
+      return EXP_TABLE[grade];
+    }
+    return Math.pow(2.0, target) - 1.0;
+  }
+
+  /**
+   * replace the first size values by their gains.
+   */
+  public void apply(double[] values, int size) {
+    if (this == LINEAR) {
+      return;
+    }
+    for (int i = 0; i < size; i++) {
+      values[i] = apply(values[i]);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+};
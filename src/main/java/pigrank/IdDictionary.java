@@ -0,0 +1,43 @@
+package pigrank;
+
+import java.util.HashMap;
+
+/**
+ * dictionary that maps item identifiers to dense integer codes.
+ *
+ * codes are assigned in order of first insertion, starting at zero. Sharing
+ * one dictionary between several rankings allows to compare items by code
+ * instead of by string, and to use arrays indexed by code instead of hash sets.
+ */
+
+public class IdDictionary {
+
+  private HashMap<String, Integer> codes;
+
+  /**
+   * @param size expected number of distinct identifiers
+   */
+  public IdDictionary(int size) {
+    codes = new HashMap<String, Integer>(2 * size);
+  }
+
+  /**
+   * @param id item identifier
+   * @return code of id; a new code is assigned if id has not been seen before
+   */
+  public int encode(String id) {
+    Integer code = codes.get(id);
+    if (code == null) {
+      code = codes.size();
+      codes.put(id, code);
+    }
+    return code;
+  }
+
+  /**
+   * @return number of distinct identifiers encoded so far
+   */
+  public int size() {
+    return codes.size();
+  }
+};
@@ -0,0 +1,15 @@
+package pigrank;
+
+/**
+ * supplies item identifiers on demand, so that a Ranking only needs to
+ * convert the ids of items that a measure actually looks at.
+ */
+
+public interface IdSource {
+
+  /**
+   * @param position index at which the item was added to the ranking
+   * @return unique identifier of the item
+   */
+  String getID(int position);
+};
@@ -0,0 +1,366 @@
+package pigrank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * evaluation of pigrank binary files (see RankStorage) that only
+ * recomputes the queries whose rows changed since the last run.
+ *
+ * The results of each query are kept in a manifest, together with a
+ * content hash of its rows (ids, scores and targets, see ContentHash). On
+ * the next run, a query with the same hash reuses its results; others are
+ * ranked and evaluated. Files with the same length and modification time
+ * as in the manifest are not read at all. The output has one line per
+ * query, (query, measure values...), in file order.
+ *
+ * usage:
+ * <pre>
+ * java -cp pigrank.jar pigrank.IncrementalEval manifest.tsv output.tsv input.prk... [key=value ...]
+ * </pre>
+ * where an input can also be a directory of .prk files, and the options are
+ * <ul>
+ * <li>measures: comma-separated list of dcg, ndcg, wtd_avg, mrr (default ndcg)
+ * <li>cutoff: rank cutoff; zero or less for none (default 0)
+ * <li>score: name of the score column (default: the first column)
+ * <li>target: name of the target column (default: the second column)
+ * <li>quickcheck: skip files by length and modification time (default true)
+ * </ul>
+ * A manifest written with other measures, cutoff or columns is ignored.
+ */
+
+public class IncrementalEval {
+
+  static final String[] KEYS = { "measures", "cutoff", "score", "target", "quickcheck" };
+
+  static final String HEADER = "# pigrank incremental evaluation manifest";
+
+  private String[] measures;
+  private int cutoff;
+  private String scoreName;
+  private String targetName;
+  private boolean quickCheck = true;
+
+  // statistics of the last run
+  int numQueries;
+  int numReused;
+  int numComputed;
+  int numRemoved;
+  int numSkippedFiles;
+
+  /** results of a query in the manifest */
+  private static class Entry {
+    String query;
+    long hash;
+    String values;
+  };
+
+  /** file in the manifest, with the entries of its queries */
+  private static class FileEntry {
+    long length;
+    long lastModified;
+    List<Entry> entries = new ArrayList<Entry>();
+  };
+
+  // previous manifest
+  private HashMap<String, Entry> oldQueries = new HashMap<String, Entry>();
+  private HashMap<String, FileEntry> oldFiles = new HashMap<String, FileEntry>();
+
+  // reused buffers
+  private double[] scores = new double[1024];
+  private double[] targets = new double[1024];
+  private ContentHash hash = new ContentHash();
+  private StringBuilder line = new StringBuilder();
+
+  /**
+   * @param measures names of the measures, see KEYS
+   * @param cutoff rank cutoff; zero or less for none
+   * @param scoreName name of the score column, or null for the first one
+   * @param targetName name of the target column, or null for the second one
+   */
+  public IncrementalEval(String[] measures, int cutoff, String scoreName, String targetName) throws IllegalArgumentException {
+    for (String measure : measures) {
+      if (!Arrays.asList("dcg", "ndcg", "wtd_avg", "mrr").contains(measure)) {
+        throw new IllegalArgumentException("unknown measure '" + measure + "', expected one of 'dcg', 'ndcg', 'wtd_avg', 'mrr'");
+      }
+    }
+    this.measures = measures;
+    this.cutoff = cutoff <= 0 ? Integer.MAX_VALUE : cutoff;
+    this.scoreName = scoreName;
+    this.targetName = targetName;
+  }
+
+  public void setQuickCheck(boolean quickCheck) {
+    this.quickCheck = quickCheck;
+  }
+
+  /**
+   * @return the parameters that determine the results
+   */
+  private String getParams() {
+    return "P\tmeasures=" + join(measures) + "\tcutoff=" + (cutoff == Integer.MAX_VALUE ? 0 : cutoff)
+      + "\tscore=" + (scoreName == null ? "" : scoreName) + "\ttarget=" + (targetName == null ? "" : targetName);
+  }
+
+  private static String join(String[] values) {
+    StringBuilder result = new StringBuilder();
+    for (String value : values) {
+      result.append(result.length() > 0 ? "," : "").append(value);
+    }
+    return result.toString();
+  }
+
+  /**
+   * evaluate the queries of all inputs.
+   *
+   * @param inputs pigrank files, or directories of them
+   * @param manifest manifest of the last run, which is replaced; need not exist
+   * @param output output file
+   */
+  public void run(List<File> inputs, File manifest, File output) throws IOException {
+    numQueries = numReused = numComputed = numRemoved = numSkippedFiles = 0;
+    readManifest(manifest);
+
+    File newManifest = new File(manifest.getPath() + ".tmp");
+    PrintWriter manifestOut = new PrintWriter(new OutputStreamWriter(new FileOutputStream(newManifest), QrelsIndex.UTF8));
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), QrelsIndex.UTF8));
+    int numMatched = 0;
+    try {
+      manifestOut.println(HEADER);
+      manifestOut.println(getParams());
+      for (File file : expand(inputs)) {
+        String path = file.getAbsolutePath();
+        manifestOut.println("F\t" + escape(path) + "\t" + file.length() + "\t" + file.lastModified());
+
+        FileEntry old = oldFiles.get(path);
+        if (quickCheck && old != null && old.length == file.length() && old.lastModified == file.lastModified()) {
+          for (Entry entry : old.entries) {
+            write(out, manifestOut, entry.query, entry.hash, entry.values);
+            numReused++;
+            numMatched++;
+          }
+          numSkippedFiles++;
+          continue;
+        }
+
+        RankFile rankFile = new RankFile(file);
+        try {
+          int[] columns = { getColumn(rankFile, scoreName, 0), getColumn(rankFile, targetName, 1) };
+          for (int b = 0; b < rankFile.getNumBlocks(); b++) {
+            RankBlock block = rankFile.getBlock(b);
+            for (int q = 0; q < block.getNumQueries(); q++) {
+              String query = block.getQuery(q);
+              long queryHash = block.hashRows(q, columns, hash);
+              Entry entry = oldQueries.get(query);
+              String values;
+              if (entry != null) {
+                numMatched++;
+              }
+              if (entry != null && entry.hash == queryHash) {
+                values = entry.values;
+                numReused++;
+              } else {
+                values = evaluate(block, q, columns);
+                numComputed++;
+              }
+              write(out, manifestOut, query, queryHash, values);
+            }
+          }
+        } finally {
+          rankFile.close();
+        }
+      }
+    } finally {
+      out.close();
+      manifestOut.close();
+    }
+    numRemoved = oldQueries.size() - numMatched;
+    if (manifest.exists() && !manifest.delete()) {
+      throw new IOException("could not replace " + manifest);
+    }
+    if (!newManifest.renameTo(manifest)) {
+      throw new IOException("could not rename " + newManifest + " to " + manifest);
+    }
+  }
+
+  private void write(PrintWriter out, PrintWriter manifestOut, String query, long queryHash, String values) {
+    String escaped = escape(query);
+    manifestOut.println("Q\t" + escaped + "\t" + Long.toHexString(queryHash) + "\t" + values);
+    out.println(escaped + "\t" + values);
+    numQueries++;
+  }
+
+  /**
+   * @return measures of a query, separated by tabs
+   */
+  private String evaluate(RankBlock block, int q, int[] columns) {
+    int first = block.getFirstRow(q);
+    int n = block.getNumRows(q);
+    if (n > scores.length) {
+      scores = new double[Math.max(n, 2 * scores.length)];
+      targets = new double[scores.length];
+    }
+    block.getValues(columns[0], first, scores, n);
+    block.getValues(columns[1], first, targets, n);
+
+    // the ideal DCG needs all targets, before rank() drops those below the cutoff
+    double maxDCG = Ranking.getMaxDCG(targets, n, cutoff);
+    Ranking ranking = new Ranking(null, scores, targets, n);
+    ranking.rank(cutoff);
+
+    line.setLength(0);
+    for (String measure : measures) {
+      double value;
+      if (measure.equals("dcg")) {
+        value = ranking.getDCG(cutoff, false);
+      } else if (measure.equals("ndcg")) {
+        value = ranking.getNDCG(cutoff, maxDCG);
+      } else if (measure.equals("wtd_avg")) {
+        value = ranking.getDCG(cutoff, true);
+      } else {
+        value = ranking.getMRR(cutoff);
+      }
+      line.append(line.length() > 0 ? "\t" : "").append(value);
+    }
+    return line.toString();
+  }
+
+  private static int getColumn(RankFile file, String name, int defaultColumn) throws IOException {
+    String[] names = file.getColumnNames();
+    if (name == null) {
+      if (defaultColumn >= names.length) {
+        throw new IOException("expected at least " + (defaultColumn + 1) + " value columns, found " + Arrays.toString(names));
+      }
+      return defaultColumn;
+    }
+    int column = Arrays.asList(names).indexOf(name);
+    if (column < 0) {
+      throw new IOException("no column '" + name + "', found " + Arrays.toString(names));
+    }
+    return column;
+  }
+
+  /**
+   * @return files, with directories replaced by their .prk files in name order
+   */
+  private static List<File> expand(List<File> inputs) {
+    List<File> files = new ArrayList<File>();
+    for (File input : inputs) {
+      if (input.isDirectory()) {
+        File[] children = input.listFiles();
+        Arrays.sort(children);
+        for (File child : children) {
+          if (child.getName().endsWith(".prk")) {
+            files.add(child);
+          }
+        }
+      } else {
+        files.add(input);
+      }
+    }
+    return files;
+  }
+
+  private void readManifest(File manifest) throws IOException {
+    oldQueries.clear();
+    oldFiles.clear();
+    if (!manifest.exists()) {
+      return;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), QrelsIndex.UTF8));
+    try {
+      String params = null;
+      FileEntry file = null;
+      String text;
+      while ((text = reader.readLine()) != null) {
+        if (text.startsWith("P\t")) {
+          params = text;
+          if (!params.equals(getParams())) {
+            System.err.println("IncrementalEval: manifest " + manifest + " has other parameters, recomputing all queries");
+            return;
+          }
+        } else if (text.startsWith("F\t") && params != null) {
+          String[] fields = text.split("\t");
+          file = new FileEntry();
+          file.length = Long.parseLong(fields[2]);
+          file.lastModified = Long.parseLong(fields[3]);
+          oldFiles.put(unescape(fields[1]), file);
+        } else if (text.startsWith("Q\t") && file != null) {
+          String[] fields = text.split("\t", 4);
+          Entry entry = new Entry();
+          entry.query = unescape(fields[1]);
+          entry.hash = Long.parseUnsignedLong(fields[2], 16);
+          entry.values = fields[3];
+          file.entries.add(entry);
+          oldQueries.put(entry.query, entry);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * escape tabs, line breaks and backslashes in a field.
+   */
+  static String escape(String s) {
+    if (s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0 && s.indexOf('\\') < 0) {
+      return s;
+    }
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  static String unescape(String s) {
+    if (s.indexOf('\\') < 0) {
+      return s;
+    }
+    StringBuilder result = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        char next = s.charAt(++i);
+        result.append(next == 't' ? '\t' : (next == 'n' ? '\n' : (next == 'r' ? '\r' : next)));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  public static void main(String[] args) throws IOException {
+    int numPositional = 0;
+    while (numPositional < args.length && args[numPositional].indexOf('=') < 0) {
+      numPositional++;
+    }
+    if (numPositional < 3) {
+      System.err.println("usage: IncrementalEval manifest.tsv output.tsv input.prk... [key=value ...]");
+      System.exit(1);
+    }
+    UDFOptions options = new UDFOptions(args, numPositional, KEYS);
+    IncrementalEval eval = new IncrementalEval(options.getString("measures", "ndcg").split(","),
+                                               options.getInt("cutoff", 0),
+                                               options.getString("score", null),
+                                               options.getString("target", null));
+    eval.setQuickCheck(Boolean.parseBoolean(options.getString("quickcheck", "true")));
+    List<File> inputs = new ArrayList<File>();
+    for (int i = 2; i < numPositional; i++) {
+      inputs.add(new File(args[i]));
+    }
+
+    long start = System.nanoTime();
+    eval.run(inputs, new File(args[0]), new File(args[1]));
+    System.err.println(eval.numQueries + " queries: " + eval.numReused + " reused, " + eval.numComputed + " computed, "
+                       + eval.numRemoved + " removed; " + eval.numSkippedFiles + " unchanged files skipped; "
+                       + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+};
@@ -0,0 +1,93 @@
+package pigrank;
+
+import jdk.jfr.EventType;
+
+/**
+ * ExecRecorder that emits an ExecEvent for each call, while a recording
+ * with the event enabled is running.
+ */
+
+class JfrExecRecorder extends ExecRecorder {
+
+  private static final EventType TYPE = EventType.getEventType(ExecEvent.class);
+
+  private String udfName;
+
+  /** event of the current call, or null if it is not recorded */
+  private ExecEvent event;
+
+  private long start;
+  private long extractNanos;
+  private long sortStart;
+  private long sortNanos;
+  private long kernelNanos;
+
+  JfrExecRecorder(String udfName) {
+    this.udfName = udfName;
+  }
+
+  @Override
+  void begin() {
+    if (!TYPE.isEnabled()) {
+      event = null;
+      return;
+    }
+    event = new ExecEvent();
+    event.begin();
+    start = System.nanoTime();
+    extractNanos = 0;
+    sortNanos = 0;
+  }
+
+  @Override
+  void endExtract() {
+    if (event != null) {
+      extractNanos = System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  void beginSort() {
+    if (event != null) {
+      sortStart = System.nanoTime();
+    }
+  }
+
+  @Override
+  void endSort() {
+    if (event != null) {
+      sortNanos += System.nanoTime() - sortStart;
+    }
+  }
+
+  @Override
+  boolean end() {
+    if (event == null) {
+      return false;
+    }
+    event.end();
+    if (!event.shouldCommit()) {
+      event = null;
+      return false;
+    }
+    kernelNanos = Math.max(0, System.nanoTime() - start - extractNanos - sortNanos);
+    return true;
+  }
+
+  @Override
+  void commit(long bagSize, long distinctScores, String path, long droppedRows) {
+    if (event == null) {
+      return;
+    }
+    event.udf = udfName;
+    event.bagSize = bagSize;
+    event.distinctScores = distinctScores;
+    event.extractTime = extractNanos;
+    event.sortTime = sortNanos;
+    event.kernelTime = kernelNanos;
+    event.path = path;
+    event.droppedRows = droppedRows;
+    event.commit();
+    event = null;
+  }
+};
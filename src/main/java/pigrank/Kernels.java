@@ -0,0 +1,197 @@
+package pigrank;
+
+/**
+ * arithmetic kernels of the DCG measures over ranked columns.
+ *
+ * This class is the scalar implementation; its results are identical to
+ * the loops it replaced in Ranking. The subclass VectorKernels, which
+ * uses the Java Vector API, is only compiled for Java 17 and shipped in
+ * META-INF/versions/17 of the (multi-release) jar. It is loaded by name,
+ * and only used if the JVM runs with --add-modules jdk.incubator.vector;
+ * otherwise, and on older JVMs, the scalar kernels are used. Setting the
+ * system property pigrank.kernels=scalar disables the vector kernels.
+ *
+ * The kernels take the discount factors as a table, so that other
+ * discounts (see Discount) run the same code; gains are applied to the
+ * targets beforehand (see Gain).
+ *
+ * The vector kernels sum in a different order, so results may differ
+ * from the scalar ones by rounding; the relative difference is below
+ * TOLERANCE.
+ */
+
+class Kernels {
+
+  static final String KERNELS_PROPERTY = "pigrank.kernels";
+
+  /** bound on the relative difference between vector and scalar results */
+  static final double TOLERANCE = 1e-12;
+
+  /** largest number of positions with precomputed logarithms */
+  static final int MAX_TABLE_SIZE = 1 << 16;
+
+  private static final Kernels instance = create();
+
+  /** log(2 + i) and the discount factor log(2) / log(2 + i) of position i */
+  private static volatile double[][] tables = { new double[0], new double[0] };
+
+  static Kernels get() {
+    return instance;
+  }
+
+  private static Kernels create() {
+    if (!"scalar".equals(System.getProperty(KERNELS_PROPERTY))) {
+      try {
+        return (Kernels)Class.forName("pigrank.VectorKernels").getDeclaredConstructor().newInstance();
+      } catch (Throwable t) {
+        // no Java 17 classes, or the vector module is not enabled
+      }
+    }
+    return new Kernels();
+  }
+
+  /**
+   * @return name of the implementation, e.g. for benchmarks
+   */
+  String getName() {
+    return "scalar";
+  }
+
+  /**
+   * @param n number of positions
+   * @return logarithms log(2 + i) of at least min(n, MAX_TABLE_SIZE) positions
+   */
+  static double[] getLogs(int n) {
+    return getTables(n)[0];
+  }
+
+  /**
+   * @param n number of positions
+   * @return discount factors log(2) / log(2 + i) of at least
+   *   min(n, MAX_TABLE_SIZE) positions
+   */
+  static double[] getWeights(int n) {
+    return getTables(n)[1];
+  }
+
+  private static double[][] getTables(int n) {
+    double[][] current = tables;
+    n = Math.min(n, MAX_TABLE_SIZE);
+    if (current[0].length >= n) {
+      return current;
+    }
+    int length = Math.min(MAX_TABLE_SIZE, Math.max(n, Math.max(64, 2 * current[0].length)));
+    double[] logs = new double[length];
+    double[] weights = new double[length];
+    for (int i = 0; i < length; i++) {
+      logs[i] = Math.log(2.0 + i);
+      weights[i] = Ranking.LOG2 / logs[i];
+    }
+    double[][] grown = { logs, weights };
+    tables = grown;
+    return grown;
+  }
+
+  /**
+   * discounted cumulative gain of ranked columns, see Ranking.getDCG().
+   *
+   * @param scores scores in rank order
+   * @param targets targets in rank order
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @param normalized if true, divide by total position weight
+   * @return DCG value
+   */
+  double dcg(double[] scores, double[] targets, int size, int cutoff, boolean normalized) {
+    return dcg(scores, targets, size, cutoff, normalized, getWeights(Math.min(size, cutoff)));
+  }
+
+  /**
+   * discounted cumulative gain with other discount factors, see Discount.
+   *
+   * @param weights discount factors of at least min(size, cutoff)
+   *   positions; positions beyond the table have the log discount
+   */
+  double dcg(double[] scores, double[] targets, int size, int cutoff, boolean normalized, double[] weights) {
+
+    double sum = 0.0;        // discounted sum of target values
+    double sumWeight = 0.0;  // sum of discount factors
+
+    int tiedCount = 0;       // number of items with same score as current one
+    double tiedWeight = 0.0; // sum of discount factors for items with the current item's score
+    double tiedSum = 0;      // sum of targets with the current item's score
+    double lastScore = (size > 0) ? scores[0] : 0.0;
+
+    for (int i = 0; i < size; i++) {
+
+      double score = scores[i];
+      if (score != lastScore && tiedWeight > 0.0) {
+
+        // expected DCG for a set of tied items is just
+        // (mean of targets) x (sum of the discount factors)
+        sumWeight += tiedWeight;
+        sum += tiedWeight * tiedSum / tiedCount;
+
+        // reset tie counters
+        tiedCount = 0;
+        tiedWeight = 0;
+        tiedSum = 0.0;
+        lastScore = score;
+
+        if (i >= cutoff) {
+          break;
+        }
+      }
+
+      tiedCount++;
+      if (i < cutoff) {
+        // record all targets for tied items, but only record discount
+        // factors for top min(size, cutoff) positions
+        tiedWeight += (i < weights.length) ? weights[i] : Ranking.LOG2 / Math.log(2.0 + i);
+      }
+      tiedSum += targets[i];
+    }
+
+    // last group of ties
+    if (tiedWeight > 0.0) {
+      sumWeight += tiedWeight;
+      sum += tiedWeight * tiedSum / tiedCount;
+    }
+
+    return normalized ? sum / sumWeight : sum;
+  }
+
+  /**
+   * best possible DCG, see Ranking.getMaxDCG().
+   *
+   * @param sorted target values in ascending order
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @return ideal DCG value
+   */
+  double maxDCG(double[] sorted, int size, int cutoff) {
+    int n = Math.min(size, cutoff);
+    double[] logs = getLogs(n);
+    double sum = 0.0;
+    for (int i = 0; i < n; i++) {
+      sum += sorted[size - 1 - i] / ((i < logs.length) ? logs[i] : Math.log(2.0 + i));
+    }
+    return sum * Ranking.LOG2;
+  }
+
+  /**
+   * best possible DCG with other discount factors, see Discount.
+   *
+   * @param weights non-increasing discount factors of at least
+   *   min(size, cutoff) positions; positions beyond the table have the log
+   *   discount
+   */
+  double maxDCG(double[] sorted, int size, int cutoff, double[] weights) {
+    int n = Math.min(size, cutoff);
+    double sum = 0.0;
+    for (int i = 0; i < n; i++) {
+      sum += sorted[size - 1 - i] * ((i < weights.length) ? weights[i] : Ranking.LOG2 / Math.log(2.0 + i));
+    }
+    return sum;
+  }
+};
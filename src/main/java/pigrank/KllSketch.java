@@ -0,0 +1,321 @@
+package pigrank;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+
+/**
+ * mergeable quantile sketch of a stream of doubles, after Karnin, Lang and
+ * Liberty, "Optimal Quantile Approximation in Streams" (KLL).
+ *
+ * Items are kept in levels; an item at level h stands for 2^h items of the
+ * stream. When a level exceeds its capacity, it is sorted and every other
+ * item is promoted to the next level. Capacities decrease geometrically
+ * (by a factor of 2/3) from the top level down, so memory is O(k) and the
+ * normalized rank error is about 1.7/k, independent of the stream length.
+ *
+ * Compactions choose odd or even items with a pseudo-random sequence of a
+ * fixed seed, so that sketches are reproducible.
+ */
+
+public class KllSketch {
+
+  static final int MAGIC = 0x50475153;
+  static final int VERSION = 1;
+  static final int DEFAULT_K = 200;
+  static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+  /** capacity of the top level */
+  private int k;
+
+  /** number of items in the stream */
+  private long count;
+
+  private double min = Double.NaN;
+  private double max = Double.NaN;
+
+  /** items of each level, and their number */
+  private double[][] levels;
+  private int[] levelSizes;
+  private int numLevels;
+
+  /** capacity of each level, and their sum, for the current number of levels */
+  private int[] capacities = new int[0];
+  private int totalCapacity;
+
+  /** state of the compaction coin */
+  private long coin = 0x9e3779b97f4a7c15L;
+
+  public KllSketch() {
+    this(DEFAULT_K);
+  }
+
+  /**
+   * @param k capacity of the top level; determines accuracy and memory
+   */
+  public KllSketch(int k) {
+    if (k < 8) {
+      throw new IllegalArgumentException("expected sketch parameter k of at least 8, found " + k);
+    }
+    this.k = k;
+    levels = new double[4][];
+    levelSizes = new int[4];
+    levels[0] = new double[k];
+    numLevels = 1;
+  }
+
+  public int getK() {
+    return k;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * add an item of the stream; NaN values are ignored.
+   */
+  public void update(double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    if (count == 0) {
+      min = value;
+      max = value;
+    } else {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+    count++;
+    append(0, value);
+    compress();
+  }
+
+  /**
+   * add all items summarized by another sketch.
+   */
+  public void merge(KllSketch other) {
+    if (other.count == 0) {
+      return;
+    }
+    if (count == 0) {
+      min = other.min;
+      max = other.max;
+    } else {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+    count += other.count;
+    for (int h = 0; h < other.numLevels; h++) {
+      for (int i = 0; i < other.levelSizes[h]; i++) {
+        append(h, other.levels[h][i]);
+      }
+    }
+    compress();
+  }
+
+  /**
+   * @param q quantile between 0 and 1
+   * @return smallest retained item whose estimated rank is at least q times
+   *   the number of items; NaN if the sketch is empty
+   */
+  public double getQuantile(double q) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (q <= 0.0) {
+      return min;
+    }
+    if (q >= 1.0) {
+      return max;
+    }
+
+    // items sorted by value, with their weights
+    int size = 0;
+    for (int h = 0; h < numLevels; h++) {
+      size += levelSizes[h];
+    }
+    double[] values = new double[size];
+    long[] weights = new long[size];
+    int n = 0;
+    for (int h = 0; h < numLevels; h++) {
+      for (int i = 0; i < levelSizes[h]; i++) {
+        values[n] = levels[h][i];
+        weights[n] = 1L << h;
+        n++;
+      }
+    }
+    int[] order = Ranking.sortOrder(values, size);
+
+    long total = 0;
+    for (long w : weights) {
+      total += w;
+    }
+    double target = q * total;
+    long cumulative = 0;
+    for (int i = size - 1; i >= 0; i--) {
+      // sortOrder() is descending
+      cumulative += weights[order[i]];
+      if (cumulative >= target) {
+        return values[order[i]];
+      }
+    }
+    return max;
+  }
+
+  private int capacity(int level) {
+    if (capacities.length != numLevels) {
+      updateCapacities();
+    }
+    return capacities[level];
+  }
+
+  /**
+   * recompute the level capacities, which change only with the number of levels.
+   */
+  private void updateCapacities() {
+    capacities = new int[numLevels];
+    totalCapacity = 0;
+    for (int h = 0; h < numLevels; h++) {
+      capacities[h] = Math.max(2, (int)Math.ceil(k * Math.pow(CAPACITY_DECAY, numLevels - 1 - h)));
+      totalCapacity += capacities[h];
+    }
+  }
+
+  private void append(int level, double value) {
+    while (level >= numLevels) {
+      addLevel();
+    }
+    double[] items = levels[level];
+    if (levelSizes[level] == items.length) {
+      levels[level] = items = Arrays.copyOf(items, Math.max(2, 2 * items.length));
+    }
+    items[levelSizes[level]++] = value;
+  }
+
+  private void addLevel() {
+    if (numLevels == levels.length) {
+      levels = Arrays.copyOf(levels, 2 * numLevels);
+      levelSizes = Arrays.copyOf(levelSizes, 2 * numLevels);
+    }
+    levels[numLevels] = new double[capacity(0)];
+    levelSizes[numLevels] = 0;
+    numLevels++;
+  }
+
+  /**
+   * compact levels until the number of retained items is within the total capacity.
+   */
+  private void compress() {
+    while (true) {
+      if (capacities.length != numLevels) {
+        updateCapacities();
+      }
+      int size = 0;
+      for (int h = 0; h < numLevels; h++) {
+        size += levelSizes[h];
+      }
+      if (size <= totalCapacity) {
+        return;
+      }
+      for (int h = 0; h < numLevels; h++) {
+        if (levelSizes[h] >= capacity(h)) {
+          compact(h);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * promote every other item of a level to the next level. With an odd
+   * number of items, the smallest one stays behind.
+   */
+  private void compact(int level) {
+    if (level + 1 >= numLevels) {
+      addLevel();
+    }
+    double[] items = levels[level];
+    int size = levelSizes[level];
+    Arrays.sort(items, 0, size);
+    int start = size % 2;
+    int offset = nextCoin() ? 1 : 0;
+    for (int i = start + offset; i < size; i += 2) {
+      append(level + 1, items[i]);
+    }
+    levelSizes[level] = start;
+  }
+
+  private boolean nextCoin() {
+    coin ^= coin << 13;
+    coin ^= coin >>> 7;
+    coin ^= coin << 17;
+    return (coin & 1L) != 0;
+  }
+
+  /**
+   * @return serialized sketch
+   */
+  public byte[] toBytes() {
+    int size = 0;
+    for (int h = 0; h < numLevels; h++) {
+      size += levelSizes[h];
+    }
+    ByteBuffer buf = ByteBuffer.allocate(40 + 4 * numLevels + 8 * size);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putInt(k);
+    buf.putLong(count);
+    buf.putDouble(min);
+    buf.putDouble(max);
+    buf.putInt(numLevels);
+    for (int h = 0; h < numLevels; h++) {
+      buf.putInt(levelSizes[h]);
+      for (int i = 0; i < levelSizes[h]; i++) {
+        buf.putDouble(levels[h][i]);
+      }
+    }
+    return Arrays.copyOf(buf.array(), buf.position());
+  }
+
+  /**
+   * @return true if the bytes start like a serialized sketch
+   */
+  public static boolean isSketch(byte[] bytes) {
+    return bytes.length >= 8 && ByteBuffer.wrap(bytes).getInt(0) == MAGIC;
+  }
+
+  /**
+   * @param bytes sketch serialized by toBytes()
+   */
+  public static KllSketch fromBytes(byte[] bytes) throws IllegalArgumentException {
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(bytes);
+      if (buf.getInt() != MAGIC) {
+        throw new IllegalArgumentException("not a serialized quantile sketch");
+      }
+      int version = buf.getInt();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("unsupported quantile sketch version " + version);
+      }
+      KllSketch sketch = new KllSketch(buf.getInt());
+      sketch.count = buf.getLong();
+      sketch.min = buf.getDouble();
+      sketch.max = buf.getDouble();
+      int numLevels = buf.getInt();
+      for (int h = 0; h < numLevels; h++) {
+        int size = buf.getInt();
+        for (int i = 0; i < size; i++) {
+          sketch.append(h, buf.getDouble());
+        }
+      }
+      return sketch;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("truncated quantile sketch", e);
+    }
+  }
+};
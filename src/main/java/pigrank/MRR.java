@@ -1,15 +1,16 @@
 package pigrank;
 
 import java.io.IOException;
-
-import java.util.Iterator;
+import java.util.List;
 
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
@@ -41,40 +42,89 @@ import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
  * store eval into 'output';
  * </pre>
  *
+ * Score and target columns can also be given as comma-separated lists, e.g.
+ * pigrank.MRR('1,2,3', '4,5'); the result is then a tuple with one value for
+ * each (score, target) pair, in score-major order. The items are sorted only
+ * once per score column.
+ *
+ * As for DCG, the target column can be replaced by a lookup in relevance
+ * judgments, e.g. pigrank.MRR('2', 'qrels', 'qrels=/data/judgments.idx', 'query=0', 'id=1').
+ * The options 'offheap=&lt;rows&gt;', 'compact=false', 'maxrows=&lt;rows&gt;',
+ * 'maxtime=&lt;milliseconds&gt;' and 'cache=&lt;megabytes&gt;' also apply as
+ * for DCG, and slow calls are recorded as Java Flight Recorder events.
+ * With 'cutoff=&lt;k&gt;', positive targets below rank k count as none;
+ * beyond the work budget, MRR with a cutoff of at most maxrows is then
+ * exact, as for DCG.
  */
 
-public class MRR extends EvalFunc<Double> {
+public class MRR extends EvalFunc<Object> {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
 
-  int predictorField;
-  int targetField;
-  int minCols;
-  Ranking ranking;
+  RankColumns columns;
+  ExecRecorder recorder = ExecRecorder.create(getClass().getSimpleName());
+  ResultCache cache;
+  int cutoff;
+  AbstractRanking ranking;
 
   /**
    * Constructor for MRR function
    *
    * @param strPredictorField zero-based column index of ranking score,
-   *            as a string.
-   * @param strTargetField zero-based column index of ranking score,
-   *            as a string.
+   *            as a string; or a comma-separated list of column indices.
+   * @param strTargetField zero-based column index of target,
+   *            as a string; or a comma-separated list of column indices.
    */
 
   public MRR(String strPredictorField, String strTargetField) {
+    this(new String[] { strPredictorField, strTargetField });
+  }
+
+  /**
+   * Constructor for MRR function with options
+   *
+   * @param args score and target columns as above, followed by options of
+   *   the form "key=value". With the target column 'qrels', targets are
+   *   looked up in an index of relevance judgments, see DCG.
+   */
+
+  public MRR(String... args) throws IllegalArgumentException {
+
+    if (args.length < 2) {
+      throw new IllegalArgumentException("expected score and target column, found " + args.length + " arguments");
+    }
+    columns = new RankColumns(args[0], args[1]);
+    UDFOptions options = new UDFOptions(args, 2, "qrels", "query", "id", "unjudged", "offheap", "compact", "maxrows", "maxtime", "cache", "cutoff");
+    cutoff = options.getInt("cutoff", 0);
+    if (cutoff <= 0) {
+      cutoff = Integer.MAX_VALUE;
+    }
+    columns.setQrelsOptions(options);
+    columns.setOffHeapOptions(options);
+    columns.setBudgetOptions(options, cutoff);
+    cache = ResultCache.create(options, getClass().getSimpleName(), args);
+  }
+
+  @Override
+  public void finish() {
+    columns.release();
+  }
 
-    predictorField = Integer.parseInt(strPredictorField);
-    targetField = Integer.parseInt(strTargetField);
-    minCols = 1 + Math.max(predictorField, targetField);
+  @Override
+  public List<String> getCacheFiles() {
+    return columns.getCacheFiles();
   }
 
   /**
    * Entry point for UDF
    *
    * @param input bag containing tuples of rows to rank
-   * @return Double MRR value
+   * @return Double MRR value, or a tuple of MRR values if several
+   *   score or target columns are given, or a work budget is set
    */
 
   @Override
-  public Double exec(Tuple input) throws IOException {
+  public Object exec(Tuple input) throws IOException {
 
     if (input == null || input.size() != 1) {
       throw new ExecException(
@@ -88,29 +138,76 @@ public class MRR extends EvalFunc<Double> {
       if(bag==null)
         return null;
 
-      Iterator it = bag.iterator();
-
-      ranking = new Ranking((int)bag.size());
-
-      while (it.hasNext()){
-
-        Tuple t = (Tuple)it.next();
-
-        if (t == null || t.size() < minCols) {
-          System.err.println(this.getClass().getSimpleName() + " expected tuple with at least " + minCols + "columns, got  " + t);
-          return null;
-        };
+      recorder.begin();
+      if (!columns.extract(bag, this.getClass().getSimpleName())) {
+        return null;
+      }
+      recorder.endExtract();
+
+      // identical rankings, e.g. of other treatments, were evaluated before
+      long key = 0L;
+      if (cache != null) {
+        key = columns.hash(cache.start());
+        Object cached = cache.get(key);
+        if (cached != null) {
+          return cached;
+        }
+      }
 
-        if (t.get(predictorField) != null && t.get(targetField) != null) {
-          Double pred   = DataType.toDouble(t.get(predictorField));
-          Double target = DataType.toDouble(t.get(targetField));
-          ranking.addItem(null, pred, target);
+      int numPredictors = columns.predictorFields.length;
+      int numTargets = columns.numTargets();
+
+      int numValues = numPredictors * numTargets;
+      boolean isBudgeted = columns.budget.isLimited();
+      boolean isSampled = columns.isSampled();
+      Tuple result = tupleFactory.newTuple(numValues + (isBudgeted ? 1 + numValues : 0));
+
+      for (int j = 0; j < numPredictors; j++) {
+
+        ranking = columns.newRanking(j);
+        recorder.beginSort();
+        ranking.rank();
+        recorder.endSort();
+
+        for (int k = 0; k < numTargets; k++) {
+          // rows with a null in this pair of columns are left out
+          AbstractRanking pair = ranking;
+          if (columns.hasNulls(j, k)) {
+            pair = columns.newRanking(j, k);
+            pair.rank();
+          } else if (k > 0) {
+            columns.setTargets(ranking, k);
+          }
+          if (isSampled) {
+            SampleEstimate sample = new SampleEstimate(pair, columns.getPopulation(j, k));
+            double[] estimates = new double[1 + SampleEstimate.NUM_GROUPS];
+            for (int g = -1; g < SampleEstimate.NUM_GROUPS; g++) {
+              estimates[g + 1] = sample.getMRR(cutoff, g);
+            }
+            result.set(j * numTargets + k, estimates[0]);
+            result.set(numValues + 1 + j * numTargets + k, columns.getStandardError(estimates));
+          } else {
+            result.set(j * numTargets + k, pair.getMRR(cutoff));
+            if (isBudgeted) {
+              result.set(numValues + 1 + j * numTargets + k, columns.getStandardError());
+            }
+          }
         }
       }
 
-      ranking.rank();
-      
-      return ranking.getMRR(Integer.MAX_VALUE);
+      if (recorder.end()) {
+        recorder.commit(bag.size(), ranking.getNumDistinctScores(), columns.getPath(ranking), columns.budget.dropped);
+      }
+
+      Object value = columns.isMultiple() ? result : result.get(0);
+      if (isBudgeted) {
+        result.set(numValues, columns.getCoverage());
+        value = result;
+      }
+      if (cache != null) {
+        cache.put(key, value);
+      }
+      return value;
 
     } catch (NumberFormatException nfe) {
       System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
@@ -120,6 +217,16 @@ public class MRR extends EvalFunc<Double> {
     }
   };
 
+  /**
+   * also called on the backend, where the declared score types select
+   * the off-heap storage.
+   */
+  @Override
+  public void setInputSchema(Schema input) {
+    super.setInputSchema(input);
+    columns.setInputSchema(input);
+  }
+
   @Override
   public Schema outputSchema(Schema input) {
 
@@ -131,27 +238,44 @@ public class MRR extends EvalFunc<Double> {
       Schema bagSchema = input.getField(0).schema;
       Schema tupleSchema = bagSchema.getField(0).schema;
 
-      if (tupleSchema.size() < minCols) {
-        throw new IllegalArgumentException("The tuple must contain at least " + minCols + " columns");
-      }
+      columns.checkSchema(tupleSchema);
 
-      if (!DataType.isNumberType(tupleSchema.getField(predictorField).type)) {
-        throw new IllegalArgumentException("Expected numeric input type for predictor, but received schema of type " + DataType.findTypeName(tupleSchema.getField(predictorField).type));
+      // Construct our output schema consisting of a Double field,
+      // or a tuple of Double fields for multiple columns
+      boolean isBudgeted = columns.budget.isLimited();
+      if (!columns.isMultiple() && !isBudgeted) {
+        return new Schema(new FieldSchema(getFieldName(tupleSchema, 0, 0), DataType.DOUBLE));
       }
 
-      if (!DataType.isNumberType(tupleSchema.getField(targetField).type)) {
-        throw new IllegalArgumentException("Expected numeric input type for target, but received schema of type " + DataType.findTypeName(tupleSchema.getField(targetField).type));
+      Schema resultSchema = new Schema();
+      for (int j = 0; j < columns.predictorFields.length; j++) {
+        for (int k = 0; k < columns.numTargets(); k++) {
+          resultSchema.add(new FieldSchema(getFieldName(tupleSchema, j, k), DataType.DOUBLE));
+        }
       }
-
-      String resultName = "mrr_" + input.getField(0).schema.getField(0).schema.getField(targetField).alias;
-      resultName += "_by_" + input.getField(0).schema.getField(0).schema.getField(predictorField).alias;
-
-      // Construct our output schema consisting of a Double field
-      return new Schema(new FieldSchema(resultName, DataType.DOUBLE));
+      if (isBudgeted) {
+        resultSchema.add(new FieldSchema(getFieldName(tupleSchema, 0, 0) + "_coverage", DataType.DOUBLE));
+        for (int j = 0; j < columns.predictorFields.length; j++) {
+          for (int k = 0; k < columns.numTargets(); k++) {
+            resultSchema.add(new FieldSchema(getFieldName(tupleSchema, j, k) + "_stderr", DataType.DOUBLE));
+          }
+        }
+      }
+      return new Schema(new FieldSchema(getResultName(), resultSchema, DataType.TUPLE));
 
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
 
   };
+
+  private String getResultName() {
+    return (cutoff < Integer.MAX_VALUE) ? "mrr_" + cutoff : "mrr";
+  }
+
+  private String getFieldName(Schema tupleSchema, int predictor, int target) throws FrontendException {
+    String resultName = getResultName() + "_" + columns.getTargetName(tupleSchema, target);
+    resultName += "_by_" + tupleSchema.getField(columns.predictorFields[predictor]).alias;
+    return resultName;
+  }
 };
@@ -0,0 +1,220 @@
+package pigrank;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * columns of doubles, floats, ints and bytes in a single direct (off-heap)
+ * buffer, for large rankings that should not put pressure on the garbage
+ * collector.
+ *
+ * The buffer is kept across calls and only reallocated if a larger one is
+ * needed; release() frees it, e.g., in EvalFunc.finish().
+ */
+
+class OffHeapColumns {
+
+  private ByteBuffer buffer;
+
+  private int rows;
+
+  private DoubleBuffer[] doubleColumns = new DoubleBuffer[0];
+  private FloatBuffer[] floatColumns = new FloatBuffer[0];
+  private IntBuffer[] intColumns = new IntBuffer[0];
+  private ByteBuffer[] byteColumns = new ByteBuffer[0];
+
+  /**
+   * provide room for the given columns and rows. If the buffer needs to
+   * grow, the first preserveRows rows of all columns are copied.
+   *
+   * @param numDoubleColumns number of double columns
+   * @param numIntColumns number of int columns
+   * @param rows number of rows
+   * @param preserveRows number of rows to keep
+   */
+  void reserve(int numDoubleColumns, int numIntColumns, int rows, int preserveRows) {
+    reserve(numDoubleColumns, 0, numIntColumns, 0, rows, preserveRows);
+  }
+
+  /**
+   * provide room for columns of all types, see above.
+   *
+   * @param numDoubleColumns number of double columns
+   * @param numFloatColumns number of float columns
+   * @param numIntColumns number of int columns
+   * @param numByteColumns number of byte columns
+   * @param rows number of rows
+   * @param preserveRows number of rows to keep
+   */
+  void reserve(int numDoubleColumns, int numFloatColumns, int numIntColumns, int numByteColumns, int rows, int preserveRows) {
+    rows = Math.max(rows, 1);
+    long bytes = (8L * numDoubleColumns + 4L * numFloatColumns + 4L * numIntColumns + numByteColumns) * rows;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("off-heap columns of " + bytes + " bytes exceed the maximum buffer size");
+    }
+
+    DoubleBuffer[] oldDoubles = doubleColumns;
+    FloatBuffer[] oldFloats = floatColumns;
+    IntBuffer[] oldInts = intColumns;
+    ByteBuffer[] oldBytes = byteColumns;
+    ByteBuffer old = buffer;
+    if (buffer == null || buffer.capacity() < bytes) {
+      // grow geometrically, to reallocate rarely
+      long capacity = Math.max(bytes, buffer == null ? 0 : Math.min(Integer.MAX_VALUE, 2L * buffer.capacity()));
+      buffer = ByteBuffer.allocateDirect((int)capacity).order(ByteOrder.nativeOrder());
+    }
+
+    this.rows = rows;
+    doubleColumns = new DoubleBuffer[numDoubleColumns];
+    floatColumns = new FloatBuffer[numFloatColumns];
+    intColumns = new IntBuffer[numIntColumns];
+    byteColumns = new ByteBuffer[numByteColumns];
+    // widest columns first, so that all columns are aligned
+    int offset = 0;
+    for (int c = 0; c < numDoubleColumns; c++) {
+      doubleColumns[c] = slice(offset, 8 * rows).asDoubleBuffer();
+      offset += 8 * rows;
+    }
+    for (int c = 0; c < numFloatColumns; c++) {
+      floatColumns[c] = slice(offset, 4 * rows).asFloatBuffer();
+      offset += 4 * rows;
+    }
+    for (int c = 0; c < numIntColumns; c++) {
+      intColumns[c] = slice(offset, 4 * rows).asIntBuffer();
+      offset += 4 * rows;
+    }
+    for (int c = 0; c < numByteColumns; c++) {
+      byteColumns[c] = slice(offset, rows);
+      offset += rows;
+    }
+
+    if (preserveRows > 0) {
+      for (int c = 0; c < Math.min(oldDoubles.length, numDoubleColumns); c++) {
+        for (int i = 0; i < preserveRows; i++) {
+          doubleColumns[c].put(i, oldDoubles[c].get(i));
+        }
+      }
+      for (int c = 0; c < Math.min(oldFloats.length, numFloatColumns); c++) {
+        for (int i = 0; i < preserveRows; i++) {
+          floatColumns[c].put(i, oldFloats[c].get(i));
+        }
+      }
+      for (int c = 0; c < Math.min(oldInts.length, numIntColumns); c++) {
+        for (int i = 0; i < preserveRows; i++) {
+          intColumns[c].put(i, oldInts[c].get(i));
+        }
+      }
+      for (int c = 0; c < Math.min(oldBytes.length, numByteColumns); c++) {
+        for (int i = 0; i < preserveRows; i++) {
+          byteColumns[c].put(i, oldBytes[c].get(i));
+        }
+      }
+    }
+    if (old != null && old != buffer) {
+      free(old);
+    }
+  }
+
+  private ByteBuffer slice(int offset, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return view.slice().order(ByteOrder.nativeOrder());
+  }
+
+  int getRows() {
+    return rows;
+  }
+
+  DoubleBuffer getDoubles(int column) {
+    return doubleColumns[column];
+  }
+
+  FloatBuffer getFloats(int column) {
+    return floatColumns[column];
+  }
+
+  IntBuffer getInts(int column) {
+    return intColumns[column];
+  }
+
+  ByteBuffer getBytes(int column) {
+    return byteColumns[column];
+  }
+
+  /**
+   * @return size of the off-heap buffer in bytes
+   */
+  long getAllocatedBytes() {
+    return buffer == null ? 0 : buffer.capacity();
+  }
+
+  /**
+   * free the off-heap memory; the columns can be reserved again afterwards.
+   */
+  void release() {
+    if (buffer != null) {
+      doubleColumns = new DoubleBuffer[0];
+      floatColumns = new FloatBuffer[0];
+      intColumns = new IntBuffer[0];
+      byteColumns = new ByteBuffer[0];
+      free(buffer);
+      buffer = null;
+    }
+  }
+
+  /** sun.misc.Unsafe and its invokeCleaner(ByteBuffer) method (Java 9+), or null */
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (Exception e) {
+      // Java 8: see free()
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  /**
+   * free a direct buffer right away, instead of waiting for the garbage
+   * collector: with Unsafe.invokeCleaner() on Java 9 and later, and with
+   * the buffer's cleaner on Java 8. Where neither is accessible, the
+   * buffer is only dereferenced.
+   *
+   * @return true if the memory was freed
+   */
+  static boolean free(ByteBuffer buf) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buf);
+        return true;
+      }
+      Method cleanerMethod = buf.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buf);
+      if (cleaner != null) {
+        Method cleanMethod = cleaner.getClass().getMethod("clean");
+        cleanMethod.setAccessible(true);
+        cleanMethod.invoke(cleaner);
+        return true;
+      }
+    } catch (Exception e) {
+      // left to the garbage collector
+    }
+    return false;
+  }
+};
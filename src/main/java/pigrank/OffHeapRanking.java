@@ -0,0 +1,340 @@
+package pigrank;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * ranking over off-heap columns (see OffHeapColumns), for large query
+ * groups. The columns stay in insertion order; rank() sorts an off-heap
+ * index column, and the measures read scores and targets through it.
+ * The items are filled in by RankColumns, and have no ids.
+ *
+ * In compact form, scores are floats and targets are bytes, which are
+ * mapped to their values (e.g. gains) through a table of 256 entries; the
+ * measures still accumulate in double precision. Sorting and the measures
+ * then read a half and an eighth of the bytes, and the ideal DCG is found
+ * by counting the targets instead of sorting them.
+ */
+
+class OffHeapRanking extends AbstractRanking {
+
+  private DoubleBuffer scoreColumn;
+  private DoubleBuffer targetColumn;
+
+  /** compact columns, or null */
+  private FloatBuffer floatScores;
+  private ByteBuffer byteTargets;
+
+  /** value of each byte target t, at index t &amp; 0xff */
+  private double[] targetValues;
+
+  /** item indices in rank order */
+  private IntBuffer order;
+
+  /** scratch space for merging */
+  private IntBuffer mergeBuffer;
+
+  /** scratch space for the order of targets in getMaxDCG() */
+  private IntBuffer targetOrder;
+
+  /**
+   * @param scores rank scores, in insertion order
+   * @param targets target values, in insertion order
+   * @param order off-heap space for the rank order
+   * @param mergeBuffer off-heap scratch space for sorting
+   * @param targetOrder off-heap scratch space for the ideal order
+   * @param size number of items
+   */
+  OffHeapRanking(DoubleBuffer scores, DoubleBuffer targets, IntBuffer order, IntBuffer mergeBuffer, IntBuffer targetOrder, int size) {
+    scoreColumn = scores;
+    targetColumn = targets;
+    this.order = order;
+    this.mergeBuffer = mergeBuffer;
+    this.targetOrder = targetOrder;
+    this.size = size;
+    for (int i = 0; i < size; i++) {
+      order.put(i, i);
+    }
+  }
+
+  /**
+   * compact ranking.
+   *
+   * @param scores rank scores, in insertion order
+   * @param targets target values, in insertion order
+   * @param targetValues value of each target t at index t &amp; 0xff,
+   *   non-decreasing in t
+   * @param order off-heap space for the rank order
+   * @param mergeBuffer off-heap scratch space for sorting
+   * @param targetOrder off-heap scratch space for the ideal order
+   * @param size number of items
+   */
+  OffHeapRanking(FloatBuffer scores, ByteBuffer targets, double[] targetValues, IntBuffer order, IntBuffer mergeBuffer, IntBuffer targetOrder, int size) {
+    this(null, null, order, mergeBuffer, targetOrder, size);
+    floatScores = scores;
+    byteTargets = targets;
+    this.targetValues = targetValues;
+  }
+
+  @Override
+  public void rank() {
+    if (floatScores != null) {
+      sortIndices(floatScores, order, mergeBuffer, size);
+    } else {
+      sortIndices(scoreColumn, order, mergeBuffer, size);
+    }
+  }
+
+  @Override
+  public void rank(int cutoff) {
+    rank();
+  }
+
+  @Override
+  public void rankTop(int k) {
+    rank();
+    size = Math.min(size, k);
+  }
+
+  /**
+   * replace the target column, without copying.
+   *
+   * @param targets target values, in insertion order
+   */
+  void setTargets(DoubleBuffer targets) {
+    targetColumn = targets;
+  }
+
+  /**
+   * replace the compact target column, without copying.
+   *
+   * @param targets target values, in insertion order
+   */
+  void setTargets(ByteBuffer targets) {
+    byteTargets = targets;
+  }
+
+  @Override
+  public double getScore(int i) {
+    return (floatScores != null) ? floatScores.get(order.get(i)) : scoreColumn.get(order.get(i));
+  }
+
+  @Override
+  public double getTarget(int i) {
+    return (byteTargets != null) ? targetValues[byteTargets.get(order.get(i)) & 0xff] : targetColumn.get(order.get(i));
+  }
+
+  @Override
+  public int getPosition(int i) {
+    return order.get(i);
+  }
+
+  @Override
+  public double getMaxDCG(int cutoff) {
+    return getMaxDCG(cutoff, Discount.LOG);
+  }
+
+  @Override
+  public double getMaxDCG(int cutoff, Discount discount) {
+    if (byteTargets != null) {
+      return getMaxDCG(byteTargets, targetValues, size, cutoff, discount);
+    }
+    return getMaxDCG(targetColumn, targetOrder, mergeBuffer, size, cutoff, discount);
+  }
+
+  /**
+   * best possible DCG under perfect ranking, see Ranking.getMaxDCG().
+   *
+   * @param targets target values
+   * @param order off-heap scratch space for the order of targets
+   * @param mergeBuffer off-heap scratch space for sorting
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @return ideal DCG value
+   */
+  static double getMaxDCG(DoubleBuffer targets, IntBuffer order, IntBuffer mergeBuffer, int size, int cutoff) {
+    for (int i = 0; i < size; i++) {
+      order.put(i, i);
+    }
+    sortIndices(targets, order, mergeBuffer, size);
+
+    double sum = 0.0;
+    for (int i = 0; i < Math.min(size, cutoff); i++) {
+      sum += targets.get(order.get(i)) / Math.log(2.0 + i);
+    }
+    return sum * LOG2;
+  }
+
+  /**
+   * best possible DCG with another position discount.
+   */
+  static double getMaxDCG(DoubleBuffer targets, IntBuffer order, IntBuffer mergeBuffer, int size, int cutoff, Discount discount) {
+    if (discount.isLog()) {
+      return getMaxDCG(targets, order, mergeBuffer, size, cutoff);
+    }
+    for (int i = 0; i < size; i++) {
+      order.put(i, i);
+    }
+    sortIndices(targets, order, mergeBuffer, size);
+
+    int n = Math.min(size, cutoff);
+    double[] weights = discount.getWeights(n);
+    double sum = 0.0;
+    for (int i = 0; i < n; i++) {
+      sum += targets.get(order.get(i)) * ((i < weights.length) ? weights[i] : LOG2 / Math.log(2.0 + i));
+    }
+    return sum;
+  }
+
+  /**
+   * best possible DCG of compact targets, by counting the targets of each
+   * value; the same as for the targets as doubles.
+   *
+   * @param targets target values
+   * @param values value of each target t at index t &amp; 0xff, non-decreasing in t
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @param discount position discount
+   * @return ideal DCG value
+   */
+  static double getMaxDCG(ByteBuffer targets, double[] values, int size, int cutoff, Discount discount) {
+    int[] counts = new int[256];
+    for (int i = 0; i < size; i++) {
+      counts[targets.get(i) & 0xff]++;
+    }
+
+    int n = Math.min(size, cutoff);
+    double[] weights = discount.isLog() ? null : discount.getWeights(n);
+    double sum = 0.0;
+    int i = 0;
+    for (int t = Byte.MAX_VALUE; t >= Byte.MIN_VALUE && i < n; t--) {
+      double value = values[t & 0xff];
+      for (int c = counts[t & 0xff]; c > 0 && i < n; c--, i++) {
+        if (weights == null) {
+          sum += value / Math.log(2.0 + i);
+        } else {
+          sum += value * ((i < weights.length) ? weights[i] : LOG2 / Math.log(2.0 + i));
+        }
+      }
+    }
+    return (weights == null) ? sum * LOG2 : sum;
+  }
+
+  /**
+   * stable sort of item indices in decreasing order of score, as
+   * Ranking.sortIndices(), on off-heap columns.
+   *
+   * @param scores rank scores
+   * @param order item indices to sort
+   * @param buf scratch space of the same size
+   * @param size number of indices
+   */
+  static void sortIndices(DoubleBuffer scores, IntBuffer order, IntBuffer buf, int size) {
+
+    // insertion sort of short runs
+    for (int lo = 0; lo < size; lo += INSERTION_SORT_RUN) {
+      int hi = Math.min(lo + INSERTION_SORT_RUN, size);
+      for (int i = lo + 1; i < hi; i++) {
+        int item = order.get(i);
+        double score = scores.get(item);
+        int j = i;
+        while (j > lo && score > scores.get(order.get(j - 1))) {
+          order.put(j, order.get(j - 1));
+          j--;
+        }
+        order.put(j, item);
+      }
+    }
+
+    // bottom-up merge of runs, keeping ties in order
+    for (int width = INSERTION_SORT_RUN; width < size; width *= 2) {
+      for (int lo = 0; lo < size - width; lo += 2 * width) {
+        int mid = lo + width;
+        int hi = Math.min(lo + 2 * width, size);
+        if (!(scores.get(order.get(mid)) > scores.get(order.get(mid - 1)))) {
+          continue; // runs already in order
+        }
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+          int a = order.get(i);
+          int b = order.get(j);
+          if (scores.get(b) > scores.get(a)) {
+            buf.put(k++, b);
+            j++;
+          } else {
+            buf.put(k++, a);
+            i++;
+          }
+        }
+        while (i < mid) {
+          buf.put(k++, order.get(i++));
+        }
+        while (j < hi) {
+          buf.put(k++, order.get(j++));
+        }
+        for (int m = lo; m < hi; m++) {
+          order.put(m, buf.get(m));
+        }
+      }
+    }
+  }
+
+  /**
+   * the same sort on compact scores.
+   */
+  static void sortIndices(FloatBuffer scores, IntBuffer order, IntBuffer buf, int size) {
+
+    // insertion sort of short runs
+    for (int lo = 0; lo < size; lo += INSERTION_SORT_RUN) {
+      int hi = Math.min(lo + INSERTION_SORT_RUN, size);
+      for (int i = lo + 1; i < hi; i++) {
+        int item = order.get(i);
+        float score = scores.get(item);
+        int j = i;
+        while (j > lo && score > scores.get(order.get(j - 1))) {
+          order.put(j, order.get(j - 1));
+          j--;
+        }
+        order.put(j, item);
+      }
+    }
+
+    // bottom-up merge of runs, keeping ties in order
+    for (int width = INSERTION_SORT_RUN; width < size; width *= 2) {
+      for (int lo = 0; lo < size - width; lo += 2 * width) {
+        int mid = lo + width;
+        int hi = Math.min(lo + 2 * width, size);
+        if (!(scores.get(order.get(mid)) > scores.get(order.get(mid - 1)))) {
+          continue; // runs already in order
+        }
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+          int a = order.get(i);
+          int b = order.get(j);
+          if (scores.get(b) > scores.get(a)) {
+            buf.put(k++, b);
+            j++;
+          } else {
+            buf.put(k++, a);
+            i++;
+          }
+        }
+        while (i < mid) {
+          buf.put(k++, order.get(i++));
+        }
+        while (j < hi) {
+          buf.put(k++, order.get(j++));
+        }
+        for (int m = lo; m < hi; m++) {
+          order.put(m, buf.get(m));
+        }
+      }
+    }
+  }
+};
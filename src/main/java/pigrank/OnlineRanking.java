@@ -0,0 +1,489 @@
+package pigrank;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ranking that is updated item by item, e.g. to monitor live rankings as
+ * items are inserted, re-scored, or receive late labels, without sorting
+ * again for every change.
+ *
+ * Items are kept in a treap (a randomized balanced search tree) in rank
+ * order: decreasing score, with ties in insertion order, like
+ * Ranking.rank(). Each node counts the items and positive targets of its
+ * subtree; each distinct score keeps the number of its items, of their
+ * positive targets, and the sum of their targets, and the multiset of
+ * targets is kept for the ideal DCG.
+ * An update takes O(log n) expected time; DCG and ideal DCG take O(k +
+ * log n) for cutoff k, and MRR O(log n). The measures are the same as
+ * those of a Ranking with the items in insertion order (see toRanking()),
+ * including the expectation over tied items; the target sums of the tie
+ * groups are updated incrementally, so non-integer targets may differ by
+ * rounding.
+ *
+ * <pre>
+ * OnlineRanking ranking = new OnlineRanking();
+ * ranking.put("a", 0.9, 0.0);
+ * ranking.put("b", 0.7, 0.0);
+ * ranking.setTarget("b", 1.0);   // late click
+ * ranking.setScore("a", 0.5);
+ * double ndcg = ranking.getNDCG(10);
+ * </pre>
+ *
+ * Not thread-safe.
+ */
+
+public class OnlineRanking {
+
+  private static class Node {
+    String id;
+    double score;
+    double target;
+    long seq;
+    int priority;
+    Node left;
+    Node right;
+
+    /** number of items in the subtree */
+    int size;
+
+    /** number of positive targets in the subtree */
+    int positives;
+  };
+
+  /** items with the same score */
+  private static class Group {
+    int count;
+    int positives;
+    double sumTargets;
+  };
+
+  private Node root;
+  private HashMap<String, Node> nodes = new HashMap<String, Node>();
+  private HashMap<Double, Group> groups = new HashMap<Double, Group>();
+
+  /** number of items of each target value */
+  private TreeMap<Double, Integer> targetCounts = new TreeMap<Double, Integer>();
+
+  private long nextSeq;
+  private long randomState = 0x9e3779b97f4a7c15L;
+
+  /** results of split() */
+  private Node splitLeft;
+  private Node splitRight;
+
+  /** stack for in-order traversals */
+  private Node[] stack = new Node[64];
+
+  public int size() {
+    return root == null ? 0 : root.size;
+  }
+
+  /**
+   * @return true if an item with this id exists
+   */
+  public boolean contains(String id) {
+    return nodes.containsKey(id);
+  }
+
+  /**
+   * insert an item, or update the score and target of an existing one;
+   * an updated item keeps its place among tied items.
+   *
+   * @param id item identifier
+   * @param score rank score, not NaN
+   * @param target target value
+   */
+  public void put(String id, double score, double target) throws IllegalArgumentException {
+    if (id == null) {
+      throw new IllegalArgumentException("expected an item id, found null");
+    }
+    if (Double.isNaN(score)) {
+      throw new IllegalArgumentException("expected a score for item '" + id + "', found NaN");
+    }
+    Node node = nodes.get(id);
+    if (node == null) {
+      node = new Node();
+      node.id = id;
+      node.seq = nextSeq++;
+      node.priority = nextPriority();
+      nodes.put(id, node);
+    } else {
+      detach(node);
+    }
+    // adding 0.0 maps -0.0 to 0.0, which are tied
+    node.score = score + 0.0;
+    node.target = target;
+    attach(node);
+  }
+
+  /**
+   * @return false if there is no item with this id
+   */
+  public boolean setScore(String id, double score) {
+    Node node = nodes.get(id);
+    if (node == null) {
+      return false;
+    }
+    put(id, score, node.target);
+    return true;
+  }
+
+  /**
+   * @return false if there is no item with this id
+   */
+  public boolean setTarget(String id, double target) {
+    Node node = nodes.get(id);
+    if (node == null) {
+      return false;
+    }
+    put(id, node.score, target);
+    return true;
+  }
+
+  /**
+   * @return false if there is no item with this id
+   */
+  public boolean remove(String id) {
+    Node node = nodes.remove(id);
+    if (node == null) {
+      return false;
+    }
+    detach(node);
+    return true;
+  }
+
+  /**
+   * @return score of an item, or NaN if there is no item with this id
+   */
+  public double getScore(String id) {
+    Node node = nodes.get(id);
+    return node == null ? Double.NaN : node.score;
+  }
+
+  /**
+   * @return target of an item, or NaN if there is no item with this id
+   */
+  public double getTarget(String id) {
+    Node node = nodes.get(id);
+    return node == null ? Double.NaN : node.target;
+  }
+
+  /**
+   * @return rank (zero-based) of an item, or -1 if there is no item with this id
+   */
+  public int getRank(String id) {
+    Node node = nodes.get(id);
+    if (node == null) {
+      return -1;
+    }
+    int rank = 0;
+    Node t = root;
+    while (t != node) {
+      if (before(node, t)) {
+        t = t.left;
+      } else {
+        rank += size(t.left) + 1;
+        t = t.right;
+      }
+    }
+    return rank + size(node.left);
+  }
+
+  /**
+   * @return snapshot of the items as a Ranking, in insertion order and not ranked yet
+   */
+  public Ranking toRanking() {
+    Node[] items = new Node[size()];
+    int n = 0;
+    for (Node node : nodes.values()) {
+      items[n++] = node;
+    }
+    Arrays.sort(items, new Comparator<Node>() {
+      public int compare(Node a, Node b) {
+        return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+      }
+    });
+    Ranking ranking = new Ranking(n);
+    for (Node node : items) {
+      ranking.addItem(node.id, node.score, node.target);
+    }
+    return ranking;
+  }
+
+  /**
+   * discounted cumulative gain, see Ranking.getDCG().
+   *
+   * @param cutoff ranks greater than this are ignored
+   * @param normalized if true, divide by total position weight
+   * @return DCG value
+   */
+  public double getDCG(int cutoff, boolean normalized) {
+    int n = Math.min(size(), cutoff);
+    double[] weights = Kernels.getWeights(n);
+
+    double sum = 0.0;        // discounted sum of target values
+    double sumWeight = 0.0;  // sum of discount factors
+    double tiedWeight = 0.0; // sum of discount factors of the current group above the cutoff
+    double lastScore = 0.0;
+    Group group = null;
+
+    // in-order traversal of the top n items
+    int depth = 0;
+    Node node = root;
+    for (int i = 0; i < n; i++) {
+      while (node != null) {
+        push(depth++, node);
+        node = node.left;
+      }
+      node = stack[--depth];
+      if (group == null || node.score != lastScore) {
+        if (group != null) {
+          // expected DCG for a set of tied items is just
+          // (mean of targets) x (sum of the discount factors)
+          sumWeight += tiedWeight;
+          sum += tiedWeight * group.sumTargets / group.count;
+        }
+        group = groups.get(node.score);
+        lastScore = node.score;
+        tiedWeight = 0.0;
+      }
+      tiedWeight += (i < weights.length) ? weights[i] : Ranking.LOG2 / Math.log(2.0 + i);
+      node = node.right;
+    }
+
+    // last group, which may extend beyond the cutoff
+    if (group != null) {
+      sumWeight += tiedWeight;
+      sum += tiedWeight * group.sumTargets / group.count;
+    }
+
+    return normalized ? sum / sumWeight : sum;
+  }
+
+  /**
+   * best possible DCG under perfect ranking, see Ranking.getMaxDCG().
+   *
+   * @param cutoff ranks greater than this are ignored
+   * @return ideal DCG value
+   */
+  public double getMaxDCG(int cutoff) {
+    int n = Math.min(size(), cutoff);
+    double[] logs = Kernels.getLogs(n);
+    double sum = 0.0;
+    int i = 0;
+    for (Map.Entry<Double, Integer> entry : targetCounts.descendingMap().entrySet()) {
+      double target = entry.getKey();
+      for (int j = entry.getValue(); j > 0 && i < n; j--, i++) {
+        sum += target / ((i < logs.length) ? logs[i] : Math.log(2.0 + i));
+      }
+      if (i >= n) {
+        break;
+      }
+    }
+    return sum * Ranking.LOG2;
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored
+   * @return normalized DCG value
+   */
+  public double getNDCG(int cutoff) {
+    double maxDCG = getMaxDCG(cutoff);
+    if (maxDCG == 0.0) {
+      return 0.0;
+    }
+    return getDCG(cutoff, false) / maxDCG;
+  }
+
+  /**
+   * mean reciprocal rank, see Ranking.getMRR().
+   *
+   * @param cutoff ranks greater than this are ignored
+   * @return mrr value
+   */
+  public double getMRR(int cutoff) {
+    if (root == null || root.positives == 0) {
+      return 0.0;
+    }
+
+    // rank of the first item with a positive target
+    Node node = root;
+    int rank = 0;
+    while (true) {
+      if (node.left != null && node.left.positives > 0) {
+        node = node.left;
+      } else if (node.target > 0.0) {
+        rank += size(node.left);
+        break;
+      } else {
+        rank += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    if (rank >= cutoff) {
+      return 0.0;
+    }
+
+    // expectation over the item's group of ties
+    Group group = groups.get(node.score);
+    return Ranking.getExpectedReciprocalRank(countAbove(node.score), group.count, group.positives);
+  }
+
+  private void push(int depth, Node node) {
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, 2 * depth);
+    }
+    stack[depth] = node;
+  }
+
+  /**
+   * @return number of items with a score greater than the given one
+   */
+  private int countAbove(double score) {
+    int count = 0;
+    Node t = root;
+    while (t != null) {
+      if (t.score > score) {
+        count += size(t.left) + 1;
+        t = t.right;
+      } else {
+        t = t.left;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * add a node to the tree and the aggregates.
+   */
+  private void attach(Node node) {
+    node.left = null;
+    node.right = null;
+    update(node);
+    split(root, node);
+    root = merge(merge(splitLeft, node), splitRight);
+
+    Group group = groups.get(node.score);
+    if (group == null) {
+      group = new Group();
+      groups.put(node.score, group);
+    }
+    group.count++;
+    group.positives += (node.target > 0.0) ? 1 : 0;
+    group.sumTargets += node.target;
+
+    Integer count = targetCounts.get(node.target);
+    targetCounts.put(node.target, count == null ? 1 : count + 1);
+  }
+
+  /**
+   * remove a node from the tree and the aggregates.
+   */
+  private void detach(Node node) {
+    root = remove(root, node);
+
+    Group group = groups.get(node.score);
+    if (--group.count == 0) {
+      groups.remove(node.score);
+    } else {
+      group.positives -= (node.target > 0.0) ? 1 : 0;
+      group.sumTargets -= node.target;
+    }
+
+    int count = targetCounts.get(node.target);
+    if (count == 1) {
+      targetCounts.remove(node.target);
+    } else {
+      targetCounts.put(node.target, count - 1);
+    }
+  }
+
+  /**
+   * @return true if node a is ranked before node b
+   */
+  private static boolean before(Node a, Node b) {
+    return a.score > b.score || (a.score == b.score && a.seq < b.seq);
+  }
+
+  /**
+   * split a tree into the nodes ranked before a key node (splitLeft) and
+   * the others (splitRight).
+   */
+  private void split(Node t, Node key) {
+    if (t == null) {
+      splitLeft = null;
+      splitRight = null;
+    } else if (before(t, key)) {
+      split(t.right, key);
+      t.right = splitLeft;
+      update(t);
+      splitLeft = t;
+    } else {
+      split(t.left, key);
+      t.left = splitRight;
+      update(t);
+      splitRight = t;
+    }
+  }
+
+  /**
+   * @return union of two trees, where all nodes of a are ranked before those of b
+   */
+  private static Node merge(Node a, Node b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      update(a);
+      return a;
+    }
+    b.left = merge(a, b.left);
+    update(b);
+    return b;
+  }
+
+  /**
+   * @return tree without the node
+   */
+  private static Node remove(Node t, Node node) {
+    if (t == node) {
+      return merge(t.left, t.right);
+    }
+    if (before(node, t)) {
+      t.left = remove(t.left, node);
+    } else {
+      t.right = remove(t.right, node);
+    }
+    update(t);
+    return t;
+  }
+
+  private static void update(Node t) {
+    t.size = size(t.left) + size(t.right) + 1;
+    t.positives = positives(t.left) + positives(t.right) + (t.target > 0.0 ? 1 : 0);
+  }
+
+  private static int size(Node t) {
+    return t == null ? 0 : t.size;
+  }
+
+  private static int positives(Node t) {
+    return t == null ? 0 : t.positives;
+  }
+
+  private int nextPriority() {
+    // splitmix64
+    long z = (randomState += 0x9e3779b97f4a7c15L);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return (int)(z ^ (z >>> 31));
+  }
+};
@@ -0,0 +1,178 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF for a paired permutation test of the difference of a metric
+ * between two rankers, see PermutationTest.
+ *
+ * Called with a bag of tuples containing the metric values of both rankers
+ * for one query each, e.g. grouped by market; returns a tuple (n,
+ * mean_diff, effect_size, p_value, p_value_greater), where the differences
+ * are A - B.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * -- 10000 permutations; the second and third columns contain the metric of A and B
+ * define PERMUTATION_TEST pigrank.PairedPermutationTest('10000', '1', '2', 'seed=1');
+ *
+ * metrics = load 'input' using PigStorage('\t') as (
+ *         query:chararray,
+ *         ndcg_a:double,
+ *         ndcg_b:double,
+ *         market:chararray
+ * );
+ *
+ * metrics_gr = group metrics by market;
+ *
+ * eval = foreach metrics_gr
+ * generate
+ *         group as market,
+ *         flatten(PERMUTATION_TEST(metrics))
+ * ;
+ *
+ * store eval into 'output';
+ * </pre>
+ *
+ * Options: seed=&lt;seed&gt; of the random streams (default 0), and
+ * threads=&lt;number&gt; of threads (default 1), in a pool that is kept for
+ * all calls of a task.
+ */
+
+public class PairedPermutationTest extends EvalFunc<Tuple> {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  /** metric of first ranker (column index) */
+  int fieldA;
+
+  /** metric of second ranker (column index) */
+  int fieldB;
+
+  PermutationTest test;
+
+  /**
+   * Constructor for PairedPermutationTest function
+   *
+   * @param args number of permutations, zero-based column indices of the
+   *   metric of A and B, followed by options of the form "key=value".
+   */
+
+  public PairedPermutationTest(String... args) throws IllegalArgumentException {
+    if (args.length < 3) {
+      throw new IllegalArgumentException("expected number of permutations and two metric columns, found " + args.length + " arguments");
+    }
+    fieldA = Integer.parseInt(args[1]);
+    fieldB = Integer.parseInt(args[2]);
+    UDFOptions options = new UDFOptions(args, 3, "seed", "threads");
+    test = new PermutationTest(Integer.parseInt(args[0]), options.getLong("seed", 0L), options.getInt("threads", 1));
+  }
+
+  @Override
+  public void finish() {
+    test.close();
+  }
+
+  /**
+   * Entry point for UDF
+   *
+   * @param input bag containing tuples with metric values
+   * @return tuple (n, mean_diff, effect_size, p_value, p_value_greater)
+   */
+
+  @Override
+  public Tuple exec(Tuple input) throws IOException {
+
+    if (input == null || input.size() != 1) {
+      throw new ExecException(
+        "Expecting a single bag, but found "
+        + input);
+    }
+
+    try {
+
+      DataBag bag = (DataBag)input.get(0);
+      if (bag == null)
+        return null;
+
+      int minCols = 1 + Math.max(fieldA, fieldB);
+      double[] diffs = new double[Math.max(1, (int)bag.size())];
+      int n = 0;
+      Iterator<Tuple> it = bag.iterator();
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        if (t == null || t.size() < minCols) {
+          System.err.println(this.getClass().getSimpleName() + " expected tuple with at least " + minCols + " columns, got  " + t);
+          return null;
+        }
+        if (t.get(fieldA) == null || t.get(fieldB) == null) {
+          continue;
+        }
+        if (n == diffs.length) {
+          diffs = Arrays.copyOf(diffs, 2 * n);
+        }
+        diffs[n++] = DataType.toDouble(t.get(fieldA)) - DataType.toDouble(t.get(fieldB));
+      }
+
+      PermutationTest.Result result = test.test(diffs, n);
+
+      Tuple t = tupleFactory.newTuple(5);
+      t.set(0, result.n);
+      t.set(1, Double.isNaN(result.meanDiff) ? null : result.meanDiff);
+      t.set(2, Double.isNaN(result.effectSize) ? null : result.effectSize);
+      t.set(3, result.pValue);
+      t.set(4, result.pValueGreater);
+      return t;
+
+    } catch (NumberFormatException nfe) {
+      System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
+      return null;
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  @Override
+  public Schema outputSchema(Schema input) {
+
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+        throw new IllegalArgumentException("Expected a bag as argument; found: " + input);
+      }
+
+      Schema tupleSchema = input.getField(0).schema.getField(0).schema;
+      if (tupleSchema.size() < 1 + Math.max(fieldA, fieldB)) {
+        throw new IllegalArgumentException("The tuple must contain at least " + (1 + Math.max(fieldA, fieldB)) + " columns");
+      }
+      for (int field : new int[] { fieldA, fieldB }) {
+        if (!DataType.isNumberType(tupleSchema.getField(field).type)) {
+          throw new IllegalArgumentException("Expected numeric input type for metric, but received schema of type " + DataType.findTypeName(tupleSchema.getField(field).type));
+        }
+      }
+
+      Schema resultSchema = new Schema();
+      resultSchema.add(new FieldSchema("n", DataType.INTEGER));
+      resultSchema.add(new FieldSchema("mean_diff", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("effect_size", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("p_value", DataType.DOUBLE));
+      resultSchema.add(new FieldSchema("p_value_greater", DataType.DOUBLE));
+      return new Schema(new FieldSchema("permutation_test", resultSchema, DataType.TUPLE));
+
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+  };
+};
@@ -0,0 +1,214 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF to compute pairwise accuracy, i.e., the fraction of item pairs
+ * with different targets that are ranked in the order of their targets.
+ * For binary targets, this is the area under the ROC curve (AUC).
+ *
+ * Called with an (unordered) bag. Pairs of items with tied scores count
+ * 1/2, the expectation over both of their orders. The pairs are counted in
+ * O(n log n). Returns null if all targets of the bag are equal. <p>
+ * Example use in a pig script:
+ * <pre>
+ *
+ * -- the second column contains ranking scores, the third one the target
+ * define ACCURACY pigrank.PairwiseAccuracy('1', '2');
+ *
+ * data = load 'input' using PigStorage('\t') as (
+ *    query:chararray,
+ *    score:double,
+ *    target:double
+ * );
+ *
+ * data_gr = group data by query;
+ *
+ * eval = foreach data_gr
+ * generate
+ *    flatten(group) as query,
+ *    ACCURACY(data) as accuracy
+ *;
+ *
+ * store eval into 'output';
+ * </pre>
+ *
+ * Score and target columns can also be given as comma-separated lists, e.g.
+ * pigrank.PairwiseAccuracy('1,2,3', '4,5'); the result is then a tuple with one value for
+ * each (score, target) pair, in score-major order. The items are sorted only
+ * once per score column.
+ *
+ * The options for relevance judgments and off-heap columns are the same as for MRR.
+ */
+
+public class PairwiseAccuracy extends EvalFunc<Object> {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  RankColumns columns;
+  AbstractRanking ranking;
+
+  /**
+   * Constructor for PairwiseAccuracy function
+   *
+   * @param strPredictorField zero-based column index of ranking score,
+   *            as a string; or a comma-separated list of column indices.
+   * @param strTargetField zero-based column index of target,
+   *            as a string; or a comma-separated list of column indices.
+   */
+
+  public PairwiseAccuracy(String strPredictorField, String strTargetField) {
+    this(new String[] { strPredictorField, strTargetField });
+  }
+
+  /**
+   * Constructor for PairwiseAccuracy function with options
+   *
+   * @param args score and target columns as above, followed by options of
+   *   the form "key=value". With the target column 'qrels', targets are
+   *   looked up in an index of relevance judgments, see DCG.
+   */
+
+  public PairwiseAccuracy(String... args) throws IllegalArgumentException {
+
+    if (args.length < 2) {
+      throw new IllegalArgumentException("expected score and target column, found " + args.length + " arguments");
+    }
+    columns = new RankColumns(args[0], args[1]);
+    UDFOptions options = new UDFOptions(args, 2, "qrels", "query", "id", "unjudged", "offheap", "compact");
+    columns.setQrelsOptions(options);
+    columns.setOffHeapOptions(options);
+  }
+
+  @Override
+  public void finish() {
+    columns.release();
+  }
+
+  @Override
+  public List<String> getCacheFiles() {
+    return columns.getCacheFiles();
+  }
+
+  /**
+   * Entry point for UDF
+   *
+   * @param input bag containing tuples of rows to rank
+   * @return Double accuracy, or a tuple of accuracies if several
+   *   score or target columns are given
+   */
+
+  @Override
+  public Object exec(Tuple input) throws IOException {
+
+    if (input == null || input.size() != 1) {
+      throw new ExecException(
+        "Expecting a single bag, but found "
+        + input.toString());
+    }
+
+    try {
+
+      DataBag bag = (DataBag)input.get(0);
+      if(bag==null)
+        return null;
+
+      if (!columns.extract(bag, this.getClass().getSimpleName())) {
+        return null;
+      }
+
+      int numPredictors = columns.predictorFields.length;
+      int numTargets = columns.numTargets();
+
+      Tuple result = tupleFactory.newTuple(numPredictors * numTargets);
+
+      for (int j = 0; j < numPredictors; j++) {
+
+        ranking = columns.newRanking(j);
+        ranking.rank();
+
+        for (int k = 0; k < numTargets; k++) {
+          // rows with a null in this pair of columns are left out
+          AbstractRanking pair = ranking;
+          if (columns.hasNulls(j, k)) {
+            pair = columns.newRanking(j, k);
+            pair.rank();
+          } else if (k > 0) {
+            columns.setTargets(ranking, k);
+          }
+          double accuracy = pair.getPairwiseAccuracy();
+          result.set(j * numTargets + k, Double.isNaN(accuracy) ? null : accuracy);
+        }
+      }
+
+      return columns.isMultiple() ? result : result.get(0);
+
+    } catch (NumberFormatException nfe) {
+      System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
+      return null;
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  /**
+   * also called on the backend, where the declared score types select
+   * the off-heap storage.
+   */
+  @Override
+  public void setInputSchema(Schema input) {
+    super.setInputSchema(input);
+    columns.setInputSchema(input);
+  }
+
+  @Override
+  public Schema outputSchema(Schema input) {
+
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+        throw new IllegalArgumentException("Expected a bag as argument; found: " + DataType.findTypeName(input.getField(0).type));
+      }
+
+      Schema bagSchema = input.getField(0).schema;
+      Schema tupleSchema = bagSchema.getField(0).schema;
+
+      columns.checkSchema(tupleSchema);
+
+      // Construct our output schema consisting of a Double field,
+      // or a tuple of Double fields for multiple columns
+      if (!columns.isMultiple()) {
+        return new Schema(new FieldSchema(getFieldName(tupleSchema, 0, 0), DataType.DOUBLE));
+      }
+
+      Schema resultSchema = new Schema();
+      for (int j = 0; j < columns.predictorFields.length; j++) {
+        for (int k = 0; k < columns.numTargets(); k++) {
+          resultSchema.add(new FieldSchema(getFieldName(tupleSchema, j, k), DataType.DOUBLE));
+        }
+      }
+      return new Schema(new FieldSchema("pairwise_acc", resultSchema, DataType.TUPLE));
+
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+
+  };
+
+  private String getFieldName(Schema tupleSchema, int predictor, int target) throws FrontendException {
+    String resultName = "pairwise_acc_" + columns.getTargetName(tupleSchema, target);
+    resultName += "_by_" + tupleSchema.getField(columns.predictorFields[predictor]).alias;
+    return resultName;
+  }
+};
@@ -0,0 +1,281 @@
+package pigrank;
+
+import java.io.IOException;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF to compute the similarity scores of all pairs out of K rankings.
+ *
+ * Called with K unordered bags, returns a bag of tuples (i, j, value) for
+ * each pair of argument positions i &lt; j (zero-based). Supports jaccard,
+ * cosine and rbo as in Similarity, and Kendall's tau ("kendall") over the
+ * items that both top lists share, with a cutoff as parameter; tau is NaN
+ * if fewer than two items are shared. Each ranking is sorted and its
+ * identifiers are encoded only once, instead of once for each pair it
+ * takes part in.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * define ALL_RBO pigrank.PairwiseSimilarity('rbo', '0.9', '2', '3');
+ *
+ * data = load 'input' using PigStorage('\t') as (
+ *         query:chararray,
+ *         treatment:chararray,
+ *         asin:chararray,
+ *         score:double
+ * );
+ *
+ * data_gr = group data by (query, treatment);
+ *
+ * data_gr = foreach data_gr
+ * generate
+ *         flatten(group) as (query, treatment),
+ *         data
+ * ;
+ *
+ * split data_gr into data1 if treatment=='t1', data2 if treatment=='t2', data3 otherwise;
+ *
+ * side_by_side = cogroup data1 by query, data2 by query, data3 by query;
+ *
+ * eval = foreach side_by_side
+ * generate
+ *         flatten(group) as query,
+ *         flatten(data1.data) as group_t1,
+ *         flatten(data2.data) as group_t2,
+ *         flatten(data3.data) as group_t3
+ * ;
+ *
+ * eval = foreach eval
+ * generate
+ *         query,
+ *         flatten(ALL_RBO(group_t1, group_t2, group_t3))
+ * ;
+ *
+ * store eval into 'output';
+ * </pre>
+ *
+ */
+
+public class PairwiseSimilarity extends EvalFunc<DataBag> {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+  private static final BagFactory bagFactory = BagFactory.getInstance();
+
+  /** type of similarity algorithm */
+  Similarity.SimType simType;
+
+  /** unique item identifiers (column index) */
+  int idField;
+
+  /** ranking scores (column index) */
+  int predictorField;
+
+  /** minimum number of columns expected in data tuples */
+  int minCols;
+
+  /** rank cutoff for jaccard, cosine and kendall similarity */
+  int cutoff;
+
+  /** persistence probability for rbo similarity */
+  double persistence;
+
+  /**
+   * Constructor for PairwiseSimilarity function
+   *
+   * @param strSimType type of similarity function, one of "jaccard", "cosine", "rbo", or "kendall".
+   * @param strParam parameter for similarity function, see Similarity.
+   * @param strIDField unique identifier for items, used to test for equality
+   *        with items in the other bags (zero-based column index).
+   * @param strPredictorField zero-based column index of ranking score.
+   */
+
+  public PairwiseSimilarity(String strSimType, String strParam,
+                            String strIDField, String strPredictorField) throws IllegalArgumentException {
+
+    strSimType = strSimType.toLowerCase();
+    if (strSimType.equals("jaccard")) {
+      simType = Similarity.SimType.SIM_JACCARD;
+    } else if (strSimType.equals("cosine")) {
+      simType = Similarity.SimType.SIM_COSINE;
+    } else if (strSimType.equals("rbo")) {
+      simType = Similarity.SimType.SIM_RBO;
+    } else if (strSimType.equals("kendall")) {
+      simType = Similarity.SimType.SIM_KENDALL;
+    } else {
+      throw new IllegalArgumentException("unknown similarity type '" + strSimType + "', expected one of 'jaccard', 'cosine', 'rbo', or 'kendall'");
+    }
+
+    cutoff = Integer.MAX_VALUE;
+    if (simType != Similarity.SimType.SIM_RBO) {
+      cutoff = Integer.parseInt(strParam);
+      if (cutoff <= 0) {
+        cutoff = Integer.MAX_VALUE;
+      }
+    } else {
+      persistence = Double.parseDouble(strParam);
+    }
+
+    idField = Integer.parseInt(strIDField);
+    predictorField = Integer.parseInt(strPredictorField);
+    minCols = 1 + Math.max(idField, predictorField);
+  }
+
+  /**
+   * Entry point for UDF
+   *
+   * @param input tuple of K bags containing rows to rank
+   * @return bag of (i, j, similarity) tuples
+   */
+
+  @Override
+  public DataBag exec(Tuple input) throws IOException {
+
+    if (input == null || input.size() < 2) {
+      throw new ExecException(
+        "Expecting at least two bags, but found "
+        + input);
+    }
+
+    int numBags = input.size();
+
+    try {
+
+      // sort and encode each ranked list once
+      IdDictionary dict = new IdDictionary(16);
+      int[][] codes = new int[numBags][];
+
+      for (int k = 0; k < numBags; k++) {
+        DataBag bag = (DataBag)input.get(k);
+        if (bag == null)
+          return null;
+
+        Ranking ranking = Similarity.readRanking(bag, idField, predictorField, minCols, this.getClass().getSimpleName());
+        if (ranking == null) {
+          return null;
+        }
+
+        if (cutoff < Integer.MAX_VALUE) {
+          // only the top items are compared
+          ranking.rankTop(cutoff);
+        } else {
+          ranking.rank();
+        }
+        codes[k] = ranking.encodeIDs(dict);
+      }
+
+      int[][] pos = new int[numBags][];
+      for (int k = 0; k < numBags; k++) {
+        pos[k] = Ranking.getPositions(codes[k], dict.size());
+      }
+
+      DataBag result = bagFactory.newDefaultBag();
+
+      for (int i = 0; i < numBags; i++) {
+        for (int j = i + 1; j < numBags; j++) {
+          double value;
+          switch(simType) {
+          case SIM_JACCARD:
+            value = Ranking.jaccardSimilarity(codes[i], pos[i], codes[j], pos[j], cutoff);
+            break;
+          case SIM_COSINE:
+            value = Ranking.cosineSimilarity(codes[i], pos[i], codes[j], pos[j], cutoff);
+            break;
+          case SIM_KENDALL:
+            value = Ranking.kendallSimilarity(codes[i], pos[i], codes[j], pos[j], cutoff);
+            break;
+          default:
+            value = Ranking.rboSimilarity(codes[i], pos[i], codes[j], pos[j], persistence);
+            break;
+          }
+
+          Tuple t = tupleFactory.newTuple(3);
+          t.set(0, i);
+          t.set(1, j);
+          t.set(2, value);
+          result.add(t);
+        }
+      }
+
+      return result;
+
+    } catch (NumberFormatException nfe) {
+      System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
+      return null;
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  @Override
+  public Schema outputSchema(Schema input) {
+
+    try {
+      if (input == null || input.size() < 2) {
+        throw new IllegalArgumentException("Expected at least two bags as argument; found: " + input);
+      }
+
+      for (int i = 0; i < input.size(); i++) {
+
+        if (input.getField(i).type != DataType.BAG) {
+          throw new IllegalArgumentException("Expected a bag, found: " + DataType.findTypeName(input.getField(i).type));
+        }
+
+        Schema bagSchema = input.getField(i).schema;
+        Schema tupleSchema = bagSchema.getField(0).schema;
+
+        if (tupleSchema.size() < minCols) {
+          throw new IllegalArgumentException("The tuple must contain at least " + minCols + " columns");
+        }
+
+        if (!DataType.isNumberType(tupleSchema.getField(predictorField).type)) {
+          throw new IllegalArgumentException("Expected numeric input type for predictor, but received schema of type " + DataType.findTypeName(tupleSchema.getField(predictorField).type));
+        }
+      }
+
+      // construct output field name
+      String resultName = "";
+      switch(simType) {
+      case SIM_JACCARD:
+        resultName = "jaccard_sim";
+        break;
+      case SIM_COSINE:
+        resultName = "cosine_sim";
+        break;
+      default:
+        resultName = "rbo_sim";
+        break;
+      }
+      if (simType != Similarity.SimType.SIM_RBO) {
+        if (cutoff <  Integer.MAX_VALUE) {
+          resultName += "_" + cutoff;
+        }
+      } else {
+        resultName += "_" + persistence;
+      }
+
+      // Construct our output schema: a bag of (i, j, similarity) tuples
+      Schema tupleSchema = new Schema();
+      tupleSchema.add(new FieldSchema("i", DataType.INTEGER));
+      tupleSchema.add(new FieldSchema("j", DataType.INTEGER));
+      tupleSchema.add(new FieldSchema(resultName, DataType.DOUBLE));
+
+      Schema bagSchema = new Schema(new FieldSchema("pair", tupleSchema, DataType.TUPLE));
+      return new Schema(new FieldSchema("pairs", bagSchema, DataType.BAG));
+
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+
+  };
+};
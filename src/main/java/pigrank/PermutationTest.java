@@ -0,0 +1,287 @@
+package pigrank;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * paired permutation (randomization) test for the difference of a metric
+ * between two rankers, e.g. of per-query DCG values.
+ *
+ * Under the null hypothesis, the sign of each per-query difference is
+ * arbitrary; the p-value is the fraction of random sign flips whose mean
+ * difference is at least as extreme as the observed one. The permutations
+ * are split into fixed blocks, each with its own stream of a
+ * SplittableRandom, and the blocks are run on a fork-join pool; the result
+ * only depends on the seed, not on the number of threads. The pool is
+ * created on the first parallel test and kept until close().
+ *
+ * usage:
+ * <pre>
+ * java -cp pigrank.jar pigrank.PermutationTest metrics.tsv [numPermutations [seed [threads]]]
+ * </pre>
+ * each input line contains (query, metric of A, metric of B), separated by
+ * tabs; lines with two fields contain only the metrics.
+ */
+
+public class PermutationTest {
+
+  /** number of permutations per random stream and task */
+  static final int BLOCK_SIZE = 256;
+
+  private int numPermutations;
+  private long seed;
+  private int numThreads;
+
+  /** pool for parallel tests, created on demand */
+  private ForkJoinPool pool;
+
+  /**
+   * result of a test; all statistics refer to the differences a - b.
+   */
+  public static class Result {
+
+    /** number of pairs */
+    public int n;
+
+    /** mean difference */
+    public double meanDiff;
+
+    /** standardized effect size: mean difference over its standard deviation (Cohen's d_z) */
+    public double effectSize;
+
+    /** two-sided p-value */
+    public double pValue;
+
+    /** one-sided p-value for a mean difference greater than zero */
+    public double pValueGreater;
+
+    public String toString() {
+      return "n=" + n + "\tmean_diff=" + meanDiff + "\teffect_size=" + effectSize
+        + "\tp_value=" + pValue + "\tp_value_greater=" + pValueGreater;
+    }
+  };
+
+  /**
+   * @param numPermutations number of random sign flips
+   * @param seed seed of the random streams
+   * @param numThreads parallelism of the fork-join pool
+   */
+  public PermutationTest(int numPermutations, long seed, int numThreads) {
+    if (numPermutations < 1) {
+      throw new IllegalArgumentException("expected at least one permutation, found " + numPermutations);
+    }
+    this.numPermutations = numPermutations;
+    this.seed = seed;
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  /**
+   * @param a metric values of the first ranker
+   * @param b metric values of the second ranker, paired with a
+   * @param n number of pairs
+   */
+  public Result test(double[] a, double[] b, int n) {
+    double[] diffs = new double[n];
+    for (int i = 0; i < n; i++) {
+      diffs[i] = a[i] - b[i];
+    }
+    return test(diffs, n);
+  }
+
+  /**
+   * @param diffs paired differences
+   * @param n number of differences
+   */
+  public Result test(double[] diffs, int n) {
+    Result result = new Result();
+    result.n = n;
+    if (n == 0) {
+      result.meanDiff = Double.NaN;
+      result.effectSize = Double.NaN;
+      result.pValue = 1.0;
+      result.pValueGreater = 1.0;
+      return result;
+    }
+
+    double sum = 0.0;
+    double sumAbs = 0.0;
+    for (int i = 0; i < n; i++) {
+      sum += diffs[i];
+      sumAbs += Math.abs(diffs[i]);
+    }
+    result.meanDiff = sum / n;
+    double ss = 0.0;
+    for (int i = 0; i < n; i++) {
+      ss += (diffs[i] - result.meanDiff) * (diffs[i] - result.meanDiff);
+    }
+    double sd = n > 1 ? Math.sqrt(ss / (n - 1)) : 0.0;
+    result.effectSize = sd > 0.0 ? result.meanDiff / sd : Double.NaN;
+
+    // the permuted sums are computed in a different order than the observed
+    // one, so equality is decided up to rounding
+    double tolerance = 1e-12 * sumAbs;
+
+    // the streams are derived in a fixed order, independent of the threads
+    int numBlocks = (numPermutations + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    SplittableRandom root = new SplittableRandom(seed);
+    SplittableRandom[] streams = new SplittableRandom[numBlocks];
+    for (int k = 0; k < numBlocks; k++) {
+      streams[k] = root.split();
+    }
+
+    long[] diffBits = new long[n];
+    for (int i = 0; i < n; i++) {
+      diffBits[i] = Double.doubleToRawLongBits(diffs[i]);
+    }
+
+    Blocks task = new Blocks(diffBits, n, streams, 0, numBlocks, sum, tolerance);
+    long[] counts;
+    if (numThreads == 1 || numBlocks == 1) {
+      counts = task.compute();
+    } else {
+      if (pool == null) {
+        pool = new ForkJoinPool(numThreads);
+      }
+      counts = pool.invoke(task);
+    }
+
+    // the observed assignment counts as one of the permutations
+    result.pValue = (1.0 + counts[0]) / (1.0 + numPermutations);
+    result.pValueGreater = (1.0 + counts[1]) / (1.0 + numPermutations);
+    return result;
+  }
+
+  /**
+   * shut down the thread pool, e.g. at the end of a task.
+   */
+  public void close() {
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+
+  /**
+   * permutations of a range of blocks; returns the number of permuted sums
+   * at least as extreme as the observed one (two-sided, and greater).
+   */
+  private class Blocks extends RecursiveTask<long[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private long[] diffBits;
+    private int n;
+    private SplittableRandom[] streams;
+    private int from;
+    private int to;
+    private double observed;
+    private double tolerance;
+
+    Blocks(long[] diffBits, int n, SplittableRandom[] streams, int from, int to, double observed, double tolerance) {
+      this.diffBits = diffBits;
+      this.n = n;
+      this.streams = streams;
+      this.from = from;
+      this.to = to;
+      this.observed = observed;
+      this.tolerance = tolerance;
+    }
+
+    @Override
+    protected long[] compute() {
+      if (to - from > 1) {
+        int mid = (from + to) >>> 1;
+        Blocks left = new Blocks(diffBits, n, streams, from, mid, observed, tolerance);
+        Blocks right = new Blocks(diffBits, n, streams, mid, to, observed, tolerance);
+        if (getPool() != null) {
+          left.fork();
+          long[] r = right.compute();
+          long[] l = left.join();
+          return new long[] { l[0] + r[0], l[1] + r[1] };
+        }
+        long[] l = left.compute();
+        long[] r = right.compute();
+        return new long[] { l[0] + r[0], l[1] + r[1] };
+      }
+
+      SplittableRandom random = streams[from];
+      int count = Math.min(BLOCK_SIZE, numPermutations - from * BLOCK_SIZE);
+      double absObserved = Math.abs(observed) - tolerance;
+      double greaterObserved = observed - tolerance;
+      long extreme = 0;
+      long greater = 0;
+      for (int p = 0; p < count; p++) {
+        double sum = flippedSum(random);
+        if (Math.abs(sum) >= absObserved) {
+          extreme++;
+        }
+        if (sum >= greaterObserved) {
+          greater++;
+        }
+      }
+      return new long[] { extreme, greater };
+    }
+
+    /**
+     * sum of the differences with random signs: each random bit is moved
+     * into the sign bit of a difference, without branches.
+     */
+    private double flippedSum(SplittableRandom random) {
+      double sum = 0.0;
+      for (int i = 0; i < n; i += 64) {
+        long bits = random.nextLong();
+        int end = Math.min(i + 64, n);
+        for (int j = i; j < end; j++) {
+          sum += Double.longBitsToDouble(diffBits[j] ^ ((bits >>> (j - i)) << 63));
+        }
+      }
+      return sum;
+    }
+  };
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: PermutationTest metrics.tsv [numPermutations [seed [threads]]]");
+      System.exit(1);
+    }
+    int numPermutations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+    int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+    double[] diffs = new double[1024];
+    int n = 0;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), QrelsIndex.UTF8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        int first = fields.length >= 3 ? 1 : 0;
+        if (fields.length < 2) {
+          throw new IOException("expected (query,) metric A and metric B, found '" + line + "'");
+        }
+        if (n == diffs.length) {
+          diffs = Arrays.copyOf(diffs, 2 * n);
+        }
+        diffs[n++] = Double.parseDouble(fields[first]) - Double.parseDouble(fields[first + 1]);
+      }
+    } finally {
+      reader.close();
+    }
+
+    PermutationTest test = new PermutationTest(numPermutations, seed, numThreads);
+    try {
+      System.out.println(test.test(diffs, n));
+    } finally {
+      test.close();
+    }
+  }
+};
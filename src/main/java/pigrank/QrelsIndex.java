@@ -0,0 +1,198 @@
+package pigrank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * memory-mapped index of relevance judgments (qrels), i.e., of
+ * (query, id) -&gt; grade triples, as written by QrelsIndexBuilder.
+ *
+ * File layout (all integers big-endian):
+ * <pre>
+ * int    magic ('PGQR')
+ * int    version
+ * int    numQueries
+ * int    numIds
+ * int    numJudgments
+ * int[numQueries + 1]  offsets of query strings in query blob
+ * int[numQueries + 1]  offsets of each query's judgments
+ * int[numIds + 1]      offsets of id strings in id blob
+ * int[numJudgments]    id codes of judgments
+ * float[numJudgments]  grades of judgments
+ * byte[]               query blob (UTF-8)
+ * byte[]               id blob (UTF-8)
+ * </pre>
+ * Queries and ids are sorted by their UTF-8 bytes, and ids are dictionary
+ * encoded: every distinct id is stored once, and judgments refer to it by
+ * code. The judgments of a query are sorted by code, so that a lookup is a
+ * binary search within the query's judgments.
+ */
+
+public class QrelsIndex {
+
+  static final int MAGIC = 0x50475152;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 20;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** indexes opened in this JVM, shared by all UDF instances of a task */
+  private static final HashMap<String, QrelsIndex> openIndexes = new HashMap<String, QrelsIndex>();
+
+  private ByteBuffer buf;
+
+  private int numQueries;
+  private int numIds;
+  private int numJudgments;
+
+  // absolute offsets of sections
+  private int queryOffsets;
+  private int judgmentOffsets;
+  private int idOffsets;
+  private int codes;
+  private int grades;
+  private int queryBlob;
+  private int idBlob;
+
+  /**
+   * map an index file into memory.
+   *
+   * @param file index file
+   */
+  public QrelsIndex(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      init(mapped);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * map an index file into memory, or return the index if the file has
+   * already been mapped in this JVM.
+   *
+   * @param file index file
+   */
+  public static synchronized QrelsIndex open(File file) throws IOException {
+    String key = file.getCanonicalPath();
+    QrelsIndex index = openIndexes.get(key);
+    if (index == null) {
+      index = new QrelsIndex(file);
+      openIndexes.put(key, index);
+    }
+    return index;
+  }
+
+  /**
+   * @param buf index contents
+   */
+  public QrelsIndex(ByteBuffer buf) throws IOException {
+    init(buf);
+  }
+
+  private void init(ByteBuffer buf) throws IOException {
+    this.buf = buf;
+    if (buf.getInt(0) != MAGIC) {
+      throw new IOException("not a qrels index file");
+    }
+    if (buf.getInt(4) != VERSION) {
+      throw new IOException("unsupported qrels index version " + buf.getInt(4));
+    }
+    numQueries = buf.getInt(8);
+    numIds = buf.getInt(12);
+    numJudgments = buf.getInt(16);
+
+    queryOffsets = HEADER_SIZE;
+    judgmentOffsets = queryOffsets + 4 * (numQueries + 1);
+    idOffsets = judgmentOffsets + 4 * (numQueries + 1);
+    codes = idOffsets + 4 * (numIds + 1);
+    grades = codes + 4 * numJudgments;
+    queryBlob = grades + 4 * numJudgments;
+    idBlob = queryBlob + buf.getInt(queryOffsets + 4 * numQueries);
+  }
+
+  public int getNumQueries() {
+    return numQueries;
+  }
+
+  public int getNumJudgments() {
+    return numJudgments;
+  }
+
+  /**
+   * @param query query key
+   * @return index of query, or -1 if there are no judgments for it
+   */
+  public int findQuery(String query) {
+    byte[] key = query.getBytes(UTF8);
+    int lo = 0;
+    int hi = numQueries - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = buf.getInt(queryOffsets + 4 * mid);
+      int end = buf.getInt(queryOffsets + 4 * (mid + 1));
+      int cmp = compare(queryBlob + start, end - start, key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param query index of query, as returned by findQuery()
+   * @param id item identifier
+   * @param unjudged value returned if there is no judgment for the item
+   * @return grade of item for the query
+   */
+  public double getGrade(int query, String id, double unjudged) {
+    if (query < 0) {
+      return unjudged;
+    }
+    byte[] key = id.getBytes(UTF8);
+    int lo = buf.getInt(judgmentOffsets + 4 * query);
+    int hi = buf.getInt(judgmentOffsets + 4 * (query + 1)) - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int code = buf.getInt(codes + 4 * mid);
+      int start = buf.getInt(idOffsets + 4 * code);
+      int end = buf.getInt(idOffsets + 4 * (code + 1));
+      int cmp = compare(idBlob + start, end - start, key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return buf.getFloat(grades + 4 * mid);
+      }
+    }
+    return unjudged;
+  }
+
+  /**
+   * unsigned lexicographic comparison of a byte range in the index with a key.
+   */
+  private int compare(int offset, int length, byte[] key) {
+    int n = Math.min(length, key.length);
+    for (int i = 0; i < n; i++) {
+      int a = buf.get(offset + i) & 0xff;
+      int b = key[i] & 0xff;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return length - key.length;
+  }
+};
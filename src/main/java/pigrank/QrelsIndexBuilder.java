@@ -0,0 +1,188 @@
+package pigrank;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * builds a QrelsIndex file from relevance judgments.
+ *
+ * usage:
+ * <pre>
+ * java -cp pigrank.jar pigrank.QrelsIndexBuilder judgments.tsv [more.tsv ...] judgments.idx
+ * </pre>
+ * each input line contains query, item id and grade, separated by tabs.
+ * If an item is judged more than once for a query, the last grade wins.
+ */
+
+public class QrelsIndexBuilder {
+
+  /** query -&gt; (id -&gt; grade) */
+  private HashMap<String, HashMap<String, Float>> judgments = new HashMap<String, HashMap<String, Float>>();
+
+  /**
+   * @param query query key
+   * @param id item identifier
+   * @param grade relevance grade
+   */
+  public void add(String query, String id, float grade) {
+    HashMap<String, Float> grades = judgments.get(query);
+    if (grades == null) {
+      grades = new HashMap<String, Float>();
+      judgments.put(query, grades);
+    }
+    grades.put(id, grade);
+  }
+
+  /**
+   * read tab-separated (query, id, grade) lines.
+   *
+   * @param file input file
+   */
+  public void read(File file) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), QrelsIndex.UTF8));
+    try {
+      String line;
+      int lineNo = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNo++;
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        if (fields.length < 3) {
+          throw new IOException(file + ":" + lineNo + ": expected query, id and grade, found '" + line + "'");
+        }
+        add(fields[0], fields[1], Float.parseFloat(fields[2]));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * write the index file.
+   *
+   * @param file output file
+   */
+  public void write(File file) throws IOException {
+
+    // dictionary of ids, sorted by UTF-8 bytes
+    HashMap<String, byte[]> idBytes = new HashMap<String, byte[]>();
+    int numJudgments = 0;
+    for (HashMap<String, Float> grades : judgments.values()) {
+      for (String id : grades.keySet()) {
+        if (!idBytes.containsKey(id)) {
+          idBytes.put(id, id.getBytes(QrelsIndex.UTF8));
+        }
+      }
+      numJudgments += grades.size();
+    }
+    byte[][] ids = idBytes.values().toArray(new byte[0][]);
+    Arrays.sort(ids, BYTES_ORDER);
+    HashMap<String, Integer> idCodes = new HashMap<String, Integer>(2 * ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      idCodes.put(new String(ids[i], QrelsIndex.UTF8), i);
+    }
+
+    byte[][] queries = new byte[judgments.size()][];
+    int q = 0;
+    for (String query : judgments.keySet()) {
+      queries[q++] = query.getBytes(QrelsIndex.UTF8);
+    }
+    Arrays.sort(queries, BYTES_ORDER);
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(QrelsIndex.MAGIC);
+      out.writeInt(QrelsIndex.VERSION);
+      out.writeInt(queries.length);
+      out.writeInt(ids.length);
+      out.writeInt(numJudgments);
+
+      writeOffsets(out, queries);
+
+      int offset = 0;
+      out.writeInt(offset);
+      for (byte[] query : queries) {
+        offset += judgments.get(new String(query, QrelsIndex.UTF8)).size();
+        out.writeInt(offset);
+      }
+
+      writeOffsets(out, ids);
+
+      // judgments of each query, sorted by id code
+      float[] allGrades = new float[numJudgments];
+      int j = 0;
+      for (byte[] query : queries) {
+        HashMap<String, Float> grades = judgments.get(new String(query, QrelsIndex.UTF8));
+        int[] codes = new int[grades.size()];
+        int k = 0;
+        for (String id : grades.keySet()) {
+          codes[k++] = idCodes.get(id);
+        }
+        Arrays.sort(codes);
+        for (int code : codes) {
+          out.writeInt(code);
+          allGrades[j++] = grades.get(new String(ids[code], QrelsIndex.UTF8));
+        }
+      }
+      for (float grade : allGrades) {
+        out.writeFloat(grade);
+      }
+
+      for (byte[] query : queries) {
+        out.write(query);
+      }
+      for (byte[] id : ids) {
+        out.write(id);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeOffsets(DataOutputStream out, byte[][] strings) throws IOException {
+    int offset = 0;
+    out.writeInt(offset);
+    for (byte[] s : strings) {
+      offset += s.length;
+      out.writeInt(offset);
+    }
+  }
+
+  /** unsigned lexicographic order of byte arrays, as used for lookups */
+  static final Comparator<byte[]> BYTES_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; i++) {
+        int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return a.length - b.length;
+    }
+  };
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: QrelsIndexBuilder input.tsv [input.tsv ...] output.idx");
+      System.exit(1);
+    }
+    QrelsIndexBuilder builder = new QrelsIndexBuilder();
+    for (int i = 0; i < args.length - 1; i++) {
+      builder.read(new File(args[i]));
+    }
+    builder.write(new File(args[args.length - 1]));
+  }
+};
@@ -0,0 +1,219 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF to summarize the distribution of a metric across queries in a
+ * serialized, mergeable quantile sketch (see KllSketch).
+ *
+ * Called with a bag whose first column contains either metric values, or
+ * sketches serialized by this function; so sketches of several days can
+ * later be merged without re-reading the data. Quantiles are read from a
+ * sketch, or a bag of sketches, with pigrank.Quantiles. The function is
+ * Algebraic; its memory is bounded by the sketch parameter k.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * define SKETCH pigrank.QuantileSketch('200');
+ *
+ * -- eval contains (query, ndcg), as in the DCG example
+ * eval_all = group eval all;
+ *
+ * daily = foreach eval_all
+ * generate
+ *         '2016-01-01' as day,
+ *         SKETCH(eval.ndcg) as sketch
+ * ;
+ *
+ * -- sketches are binary; store them with BinStorage
+ * store daily into 'sketches/2016-01-01' using BinStorage();
+ * </pre>
+ */
+
+public class QuantileSketch extends EvalFunc<DataByteArray> implements Algebraic {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  /** capacity parameter of sketch */
+  int k;
+
+  public QuantileSketch() {
+    this(new String[0]);
+  }
+
+  /**
+   * Constructor for QuantileSketch function
+   *
+   * @param args sketch parameter k (default 200), as a string. The
+   *   normalized rank error is about 1.7/k.
+   */
+
+  public QuantileSketch(String... args) throws IllegalArgumentException {
+    k = parseK(args);
+  }
+
+  static int parseK(String[] args) {
+    return args.length > 0 ? Integer.parseInt(args[0]) : KllSketch.DEFAULT_K;
+  }
+
+  /**
+   * Entry point for UDF, if the combiner is not used
+   *
+   * @param input bag containing values or serialized sketches in the first column
+   * @return serialized sketch
+   */
+
+  @Override
+  public DataByteArray exec(Tuple input) throws IOException {
+    try {
+      return new DataByteArray(accumulate(input, k).toBytes());
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  /**
+   * sketch of all values and sketches in the first column of the bag in
+   * the first field of input.
+   */
+  static KllSketch accumulate(Tuple input, int k) throws ExecException {
+    KllSketch sketch = new KllSketch(k);
+    if (input == null || input.size() == 0 || input.get(0) == null) {
+      return sketch;
+    }
+    Iterator<Tuple> it = ((DataBag)input.get(0)).iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      if (t == null || t.size() == 0 || t.get(0) == null) {
+        continue;
+      }
+      Object value = t.get(0);
+      if (value instanceof DataByteArray && KllSketch.isSketch(((DataByteArray)value).get())) {
+        sketch.merge(KllSketch.fromBytes(((DataByteArray)value).get()));
+      } else {
+        sketch.update(DataType.toDouble(value));
+      }
+    }
+    return sketch;
+  }
+
+  static Tuple toTuple(KllSketch sketch) {
+    return tupleFactory.newTuple(new DataByteArray(sketch.toBytes()));
+  }
+
+  @Override
+  public String getInitial() {
+    return Initial.class.getName();
+  }
+
+  @Override
+  public String getIntermed() {
+    return Intermed.class.getName();
+  }
+
+  @Override
+  public String getFinal() {
+    return Final.class.getName();
+  }
+
+  /**
+   * sketch of the rows of a single map input tuple; also used by Quantiles.
+   */
+  public static class Initial extends EvalFunc<Tuple> {
+
+    private int k;
+
+    public Initial() {
+      this(new String[0]);
+    }
+
+    public Initial(String... args) {
+      k = parseK(args);
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+      try {
+        return toTuple(accumulate(input, k));
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  /**
+   * merge of partial sketches; also used by Quantiles.
+   */
+  public static class Intermed extends EvalFunc<Tuple> {
+
+    private int k;
+
+    public Intermed() {
+      this(new String[0]);
+    }
+
+    public Intermed(String... args) {
+      k = parseK(args);
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+      try {
+        return toTuple(accumulate(input, k));
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  /**
+   * merge of partial sketches into the serialized result
+   */
+  public static class Final extends EvalFunc<DataByteArray> {
+
+    private int k;
+
+    public Final() {
+      this(new String[0]);
+    }
+
+    public Final(String... args) {
+      k = parseK(args);
+    }
+
+    @Override
+    public DataByteArray exec(Tuple input) throws IOException {
+      try {
+        return new DataByteArray(accumulate(input, k).toBytes());
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  @Override
+  public Schema outputSchema(Schema input) {
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+        throw new IllegalArgumentException("Expected a bag as argument; found: " + input);
+      }
+      return new Schema(new FieldSchema("sketch", DataType.BYTEARRAY));
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+  };
+};
@@ -0,0 +1,186 @@
+package pigrank;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig UDF to compute approximate quantiles of a metric across queries,
+ * without ordering the metric relation.
+ *
+ * Called with a bag whose first column contains either metric values, or
+ * sketches serialized by pigrank.QuantileSketch; returns a tuple with one
+ * value for each requested quantile, named p5, p25, etc. The function is
+ * Algebraic; its memory is bounded by the sketch parameter k, and the
+ * normalized rank error is about 1.7/k.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * define QUANTILES pigrank.Quantiles('200', '0.05,0.25,0.5');
+ *
+ * -- eval contains (query, ndcg), as in the DCG example
+ * eval_all = group eval all;
+ *
+ * summary = foreach eval_all
+ * generate
+ *         flatten(QUANTILES(eval.ndcg))
+ * ;
+ *
+ * -- merging daily sketches
+ * daily = load 'sketches/*' using BinStorage() as (day:chararray, sketch:bytearray);
+ * daily_all = group daily all;
+ * summary = foreach daily_all generate flatten(QUANTILES(daily.sketch));
+ * </pre>
+ */
+
+public class Quantiles extends EvalFunc<Tuple> implements Algebraic {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  /** capacity parameter of sketch */
+  int k;
+
+  /** quantiles to compute */
+  double[] quantiles;
+
+  public Quantiles() {
+    this(new String[0]);
+  }
+
+  /**
+   * Constructor for Quantiles function
+   *
+   * @param args sketch parameter k (default 200), and a comma-separated
+   *   list of quantiles between 0 and 1 (default "0.05,0.25,0.5,0.75,0.95").
+   */
+
+  public Quantiles(String... args) throws IllegalArgumentException {
+    k = QuantileSketch.parseK(args);
+    quantiles = parseQuantiles(args);
+  }
+
+  static double[] parseQuantiles(String[] args) throws IllegalArgumentException {
+    String[] parts = (args.length > 1 ? args[1] : "0.05,0.25,0.5,0.75,0.95").split(",");
+    double[] quantiles = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      quantiles[i] = Double.parseDouble(parts[i].trim());
+      if (quantiles[i] < 0.0 || quantiles[i] > 1.0) {
+        throw new IllegalArgumentException("expected quantiles between 0 and 1, found " + quantiles[i]);
+      }
+    }
+    return quantiles;
+  }
+
+  /**
+   * Entry point for UDF, if the combiner is not used
+   *
+   * @param input bag containing values or serialized sketches in the first column
+   * @return tuple of quantiles
+   */
+
+  @Override
+  public Tuple exec(Tuple input) throws IOException {
+    try {
+      return getQuantiles(QuantileSketch.accumulate(input, k), quantiles);
+    } catch (Exception e) {
+      throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+    }
+  };
+
+  /**
+   * @return tuple of quantiles of the sketch, or of nulls if it is empty
+   */
+  static Tuple getQuantiles(KllSketch sketch, double[] quantiles) throws ExecException {
+    Tuple result = tupleFactory.newTuple(quantiles.length);
+    if (!sketch.isEmpty()) {
+      for (int i = 0; i < quantiles.length; i++) {
+        result.set(i, sketch.getQuantile(quantiles[i]));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String getInitial() {
+    return QuantileSketch.Initial.class.getName();
+  }
+
+  @Override
+  public String getIntermed() {
+    return QuantileSketch.Intermed.class.getName();
+  }
+
+  @Override
+  public String getFinal() {
+    return Final.class.getName();
+  }
+
+  /**
+   * merge of partial sketches, and quantiles of the result
+   */
+  public static class Final extends EvalFunc<Tuple> {
+
+    private int k;
+    private double[] quantiles;
+
+    public Final() {
+      this(new String[0]);
+    }
+
+    public Final(String... args) {
+      k = QuantileSketch.parseK(args);
+      quantiles = parseQuantiles(args);
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+      try {
+        return getQuantiles(QuantileSketch.accumulate(input, k), quantiles);
+      } catch (Exception e) {
+        throw WrappedIOException.wrap("Caught exception in class " + this.getClass().getSimpleName() + " while processing input row ", e);
+      }
+    };
+  };
+
+  @Override
+  public Schema outputSchema(Schema input) {
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+        throw new IllegalArgumentException("Expected a bag as argument; found: " + input);
+      }
+
+      Schema tupleSchema = input.getField(0).schema.getField(0).schema;
+      byte type = tupleSchema.getField(0).type;
+      if (!DataType.isNumberType(type) && type != DataType.BYTEARRAY) {
+        throw new IllegalArgumentException("Expected numeric values or serialized sketches, but received schema of type " + DataType.findTypeName(type));
+      }
+
+      Schema resultSchema = new Schema();
+      for (double q : quantiles) {
+        resultSchema.add(new FieldSchema(getFieldName(q), DataType.DOUBLE));
+      }
+      return new Schema(new FieldSchema("quantiles", resultSchema, DataType.TUPLE));
+
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+  };
+
+  /**
+   * @return field name of a quantile as a percentage, e.g. p5 or p99_9
+   */
+  static String getFieldName(double q) {
+    String percent = new BigDecimal(Double.toString(q)).movePointRight(2).stripTrailingZeros().toPlainString();
+    return "p" + percent.replace('.', '_');
+  }
+};
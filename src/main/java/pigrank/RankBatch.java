@@ -0,0 +1,331 @@
+package pigrank;
+
+import java.util.Arrays;
+
+/**
+ * rank measures for many queries at once, independent of Pig.
+ *
+ * The rows of all queries are packed in compressed sparse row (CSR)
+ * layout: the rows of query q are offsets[q] (inclusive) to offsets[q + 1]
+ * (exclusive) of the score, target, and id arrays. Each measure returns
+ * one value per query, and the same values as the Pig UDFs (DCG, MRR,
+ * PairwiseAccuracy, Similarity) for the same rows.
+ *
+ * <pre>
+ * // two queries with three and two items
+ * RankBatch batch = new RankBatch(new double[] { 0.9, 0.5, 0.7, 0.2, 0.4 },
+ *                                 new double[] { 3, 0, 1, 0, 1 },
+ *                                 null,
+ *                                 new int[] { 0, 3, 5 });
+ * double[] ndcg = batch.getNDCG(10);
+ * </pre>
+ *
+ * The queries are sorted one after the other in buffers that are reused
+ * across queries, so there is no object per query or row, except for the
+ * similarity measures, which encode the ids of each query. The arrays are
+ * not copied; they must not change while the batch is evaluated. A batch
+ * can be evaluated by several threads at once.
+ */
+
+public class RankBatch {
+
+  private double[] scores;
+  private double[] targets;
+  private long[] ids;
+  private int[] offsets;
+  private int numQueries;
+  private int maxQuerySize;
+  private Gain gain = Gain.LINEAR;
+  private Discount discount = Discount.LOG;
+
+  private enum Measure { DCG, NDCG, RANK_WTD_AVG, MRR, PAIRWISE_ACCURACY }
+
+  /**
+   * @param scores rank scores of all rows
+   * @param targets targets of all rows, or null if only similarities are evaluated
+   * @param ids item identifiers of all rows, or null if no similarities are evaluated
+   * @param offsets first row of each query, followed by the end of the last
+   *   query; numQueries + 1 non-decreasing values
+   */
+  public RankBatch(double[] scores, double[] targets, long[] ids, int[] offsets) throws IllegalArgumentException {
+    if (scores == null || offsets == null || offsets.length == 0) {
+      throw new IllegalArgumentException("expected scores and at least one query offset");
+    }
+    numQueries = offsets.length - 1;
+    if (offsets[0] < 0) {
+      throw new IllegalArgumentException("negative query offset " + offsets[0]);
+    }
+    for (int q = 0; q < numQueries; q++) {
+      if (offsets[q + 1] < offsets[q]) {
+        throw new IllegalArgumentException("query offsets must not decrease, found " + offsets[q] + " before " + offsets[q + 1]);
+      }
+      maxQuerySize = Math.max(maxQuerySize, offsets[q + 1] - offsets[q]);
+    }
+    int numRows = offsets[numQueries];
+    if (scores.length < numRows) {
+      throw new IllegalArgumentException("expected " + numRows + " scores, found " + scores.length);
+    }
+    if (targets != null && targets.length < numRows) {
+      throw new IllegalArgumentException("expected " + numRows + " targets, found " + targets.length);
+    }
+    if (ids != null && ids.length < numRows) {
+      throw new IllegalArgumentException("expected " + numRows + " ids, found " + ids.length);
+    }
+    this.scores = scores;
+    this.targets = targets;
+    this.ids = ids;
+    this.offsets = offsets;
+  }
+
+  public int getNumQueries() {
+    return numQueries;
+  }
+
+  /**
+   * @return number of rows of a query
+   */
+  public int getQuerySize(int query) {
+    return offsets[query + 1] - offsets[query];
+  }
+
+  /**
+   * set the gain of the DCG measures; the default is Gain.LINEAR.
+   */
+  public void setGain(Gain gain) {
+    this.gain = gain;
+  }
+
+  /**
+   * set the position discount of the DCG measures; the default is Discount.LOG.
+   */
+  public void setDiscount(Discount discount) {
+    this.discount = discount;
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored; zero or less for no cutoff
+   * @return discounted cumulative gain of each query
+   */
+  public double[] getDCG(int cutoff) {
+    return evaluate(Measure.DCG, cutoff);
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored; zero or less for no cutoff
+   * @return normalized discounted cumulative gain of each query
+   */
+  public double[] getNDCG(int cutoff) {
+    return evaluate(Measure.NDCG, cutoff);
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored; zero or less for no cutoff
+   * @return DCG divided by the sum of the discount factors, for each query
+   */
+  public double[] getRankWeightedAverage(int cutoff) {
+    return evaluate(Measure.RANK_WTD_AVG, cutoff);
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored; zero or less for no cutoff
+   * @return mean reciprocal rank of each query
+   */
+  public double[] getMRR(int cutoff) {
+    return evaluate(Measure.MRR, cutoff);
+  }
+
+  /**
+   * @return pairwise accuracy of each query; NaN if all targets of a query are equal
+   */
+  public double[] getPairwiseAccuracy() {
+    return evaluate(Measure.PAIRWISE_ACCURACY, 0);
+  }
+
+  private double[] evaluate(Measure measure, int cutoff) {
+    if (targets == null) {
+      throw new IllegalStateException("rank measures require targets");
+    }
+    if (cutoff <= 0) {
+      cutoff = Integer.MAX_VALUE;
+    }
+    Workspace work = new Workspace(maxQuerySize);
+    double[] result = new double[numQueries];
+    for (int q = 0; q < numQueries; q++) {
+      Ranking ranking = work.load(this, q);
+      if (measure == Measure.DCG || measure == Measure.NDCG || measure == Measure.RANK_WTD_AVG) {
+        gain.apply(ranking.targets, ranking.size);
+      }
+      switch (measure) {
+      case DCG:
+        result[q] = ranking.getDCG(cutoff, false, discount);
+        break;
+      case NDCG:
+        result[q] = ranking.getNDCG(cutoff, work.getMaxDCG(cutoff, discount), discount);
+        break;
+      case RANK_WTD_AVG:
+        result[q] = ranking.getDCG(cutoff, true, discount);
+        break;
+      case MRR:
+        result[q] = ranking.getMRR(cutoff);
+        break;
+      default:
+        result[q] = ranking.getPairwiseAccuracy();
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param other batch with the same number of queries
+   * @param cutoff maximum number of top items to compare; zero or less for no cutoff
+   * @return jaccard coefficient of the rankings of each query in both batches
+   */
+  public double[] getJaccardSimilarity(RankBatch other, int cutoff) {
+    return compare(other, false, cutoff <= 0 ? Integer.MAX_VALUE : cutoff, 0.0);
+  }
+
+  /**
+   * @param other batch with the same number of queries
+   * @param p persistence probability
+   * @return rank-biased overlap of the rankings of each query in both batches
+   */
+  public double[] getRBOSimilarity(RankBatch other, double p) {
+    return compare(other, true, 0, p);
+  }
+
+  private double[] compare(RankBatch other, boolean isRBO, int cutoff, double p) {
+    if (ids == null || other.ids == null) {
+      throw new IllegalStateException("similarity measures require ids");
+    }
+    if (other.numQueries != numQueries) {
+      throw new IllegalArgumentException("expected batches with the same number of queries, found " + numQueries + " and " + other.numQueries);
+    }
+    Workspace work1 = new Workspace(maxQuerySize);
+    Workspace work2 = new Workspace(other.maxQuerySize);
+    LongCodes dict = new LongCodes(maxQuerySize + other.maxQuerySize);
+    double[] result = new double[numQueries];
+    for (int q = 0; q < numQueries; q++) {
+      work1.load(this, q);
+      work2.load(other, q);
+      dict.clear();
+      int[] codes1 = work1.encodeIDs(this, q, dict);
+      int[] codes2 = work2.encodeIDs(other, q, dict);
+      int[] pos1 = Ranking.getPositions(codes1, dict.size());
+      int[] pos2 = Ranking.getPositions(codes2, dict.size());
+      result[q] = isRBO ? Ranking.rboSimilarity(codes1, pos1, codes2, pos2, p)
+        : Ranking.jaccardSimilarity(codes1, pos1, codes2, pos2, cutoff);
+    }
+    return result;
+  }
+
+  /**
+   * buffers for ranking one query at a time.
+   */
+  private static class Workspace {
+
+    private Ranking ranking;
+    private int[] order;
+    private int[] buf;
+    private double[] scratch;
+    private int size;
+
+    Workspace(int capacity) {
+      capacity = Math.max(1, capacity);
+      ranking = new Ranking(capacity);
+      order = new int[capacity];
+      buf = new int[capacity];
+      scratch = new double[capacity];
+    }
+
+    /**
+     * sort the rows of a query into the ranking.
+     */
+    Ranking load(RankBatch batch, int query) {
+      int from = batch.offsets[query];
+      size = batch.offsets[query + 1] - from;
+      System.arraycopy(batch.scores, from, scratch, 0, size);
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      if (size <= Ranking.INSERTION_SORT_RUN) {
+        SortDispatcher.insertionSort(scratch, order, size);
+      } else {
+        Ranking.sortIndices(scratch, order, buf, size);
+      }
+      for (int i = 0; i < size; i++) {
+        ranking.scores[i] = scratch[order[i]];
+        ranking.targets[i] = (batch.targets == null) ? 0.0 : batch.targets[from + order[i]];
+      }
+      ranking.size = size;
+      return ranking;
+    }
+
+    /**
+     * @return ideal DCG of the loaded query
+     */
+    double getMaxDCG(int cutoff, Discount discount) {
+      System.arraycopy(ranking.targets, 0, scratch, 0, size);
+      Arrays.sort(scratch, 0, size);
+      return Ranking.getMaxDCGOfSorted(scratch, size, cutoff, discount);
+    }
+
+    /**
+     * @return codes of the ids of the loaded query, in rank order
+     */
+    int[] encodeIDs(RankBatch batch, int query, LongCodes dict) {
+      int from = batch.offsets[query];
+      int[] codes = new int[size];
+      for (int i = 0; i < size; i++) {
+        codes[i] = dict.encode(batch.ids[from + order[i]]);
+      }
+      return codes;
+    }
+  };
+
+  /**
+   * dictionary of long ids, like IdDictionary, that is cleared in time
+   * proportional to its size.
+   */
+  private static class LongCodes {
+
+    private long[] keys;
+    private int[] codes;
+    private int[] used;
+    private int size;
+
+    LongCodes(int capacity) {
+      int tableSize = Integer.highestOneBit(Math.max(2, 2 * capacity - 1)) << 1;
+      keys = new long[tableSize];
+      codes = new int[tableSize];
+      used = new int[capacity];
+      Arrays.fill(codes, -1);
+    }
+
+    void clear() {
+      for (int i = 0; i < size; i++) {
+        codes[used[i]] = -1;
+      }
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int encode(long id) {
+      int mask = keys.length - 1;
+      int slot = (int)((id * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+      while (codes[slot] >= 0) {
+        if (keys[slot] == id) {
+          return codes[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = id;
+      codes[slot] = size;
+      used[size] = slot;
+      return size++;
+    }
+  };
+};
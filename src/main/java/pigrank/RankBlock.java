@@ -0,0 +1,190 @@
+package pigrank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * read access to one block of a pigrank binary file (see RankFileWriter),
+ * directly on its bytes; the buffer may be on the heap or memory-mapped.
+ *
+ * Block layout (all integers big-endian):
+ * <pre>
+ * int    numQueries
+ * int    numRows
+ * int    numIds
+ * int    numColumns
+ * int[numQueries + 1]  first row of each query
+ * int[numQueries + 1]  offsets of query keys in query blob
+ * int[numIds + 1]      offsets of ids in id blob
+ * int[numRows]         id code of each row, or -1 for null
+ * double[numColumns][numRows]  value columns
+ * byte[]               query blob (UTF-8)
+ * byte[]               id blob (UTF-8)
+ * </pre>
+ * The rows of a query are contiguous, and ids are dictionary encoded
+ * within the block.
+ */
+
+public class RankBlock {
+
+  private ByteBuffer buf;
+
+  private int numQueries;
+  private int numRows;
+  private int numIds;
+  private int numColumns;
+
+  // absolute offsets of sections
+  private int rowOffsets;
+  private int queryOffsets;
+  private int idOffsets;
+  private int codes;
+  private int columns;
+  private int queryBlob;
+  private int idBlob;
+
+  /**
+   * @param buf block body; its position marks the start of the block
+   */
+  public RankBlock(ByteBuffer buf) throws IOException {
+    this.buf = buf.slice();
+    if (this.buf.remaining() < 16) {
+      throw new IOException("truncated pigrank block");
+    }
+    numQueries = this.buf.getInt(0);
+    numRows = this.buf.getInt(4);
+    numIds = this.buf.getInt(8);
+    numColumns = this.buf.getInt(12);
+
+    rowOffsets = 16;
+    queryOffsets = rowOffsets + 4 * (numQueries + 1);
+    idOffsets = queryOffsets + 4 * (numQueries + 1);
+    codes = idOffsets + 4 * (numIds + 1);
+    columns = codes + 4 * numRows;
+    queryBlob = columns + 8 * numColumns * numRows;
+    idBlob = queryBlob + this.buf.getInt(queryOffsets + 4 * numQueries);
+  }
+
+  public int getNumQueries() {
+    return numQueries;
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  public int getNumColumns() {
+    return numColumns;
+  }
+
+  /**
+   * @param query index of query within the block
+   * @return query key
+   */
+  public String getQuery(int query) {
+    int start = buf.getInt(queryOffsets + 4 * query);
+    int end = buf.getInt(queryOffsets + 4 * (query + 1));
+    return getString(queryBlob + start, end - start);
+  }
+
+  /**
+   * @param query index of query within the block
+   * @return index of the first row of the query
+   */
+  public int getFirstRow(int query) {
+    return buf.getInt(rowOffsets + 4 * query);
+  }
+
+  /**
+   * @param query index of query within the block
+   * @return number of rows of the query
+   */
+  public int getNumRows(int query) {
+    return buf.getInt(rowOffsets + 4 * (query + 1)) - buf.getInt(rowOffsets + 4 * query);
+  }
+
+  /**
+   * @param row index of row within the block
+   * @return dictionary code of the row's id, or -1 for null
+   */
+  public int getIdCode(int row) {
+    return buf.getInt(codes + 4 * row);
+  }
+
+  /**
+   * @param row index of row within the block
+   * @return item id, or null
+   */
+  public String getId(int row) {
+    int code = getIdCode(row);
+    if (code < 0) {
+      return null;
+    }
+    int start = buf.getInt(idOffsets + 4 * code);
+    int end = buf.getInt(idOffsets + 4 * (code + 1));
+    return getString(idBlob + start, end - start);
+  }
+
+  /**
+   * @param column index of value column
+   * @param row index of row within the block
+   * @return value; NaN stands for null
+   */
+  public double getValue(int column, int row) {
+    return buf.getDouble(columns + 8 * (column * numRows + row));
+  }
+
+  /**
+   * copy a range of a value column, e.g. the scores of one query.
+   *
+   * @param column index of value column
+   * @param firstRow index of first row within the block
+   * @param dest destination array
+   * @param length number of rows
+   */
+  public void getValues(int column, int firstRow, double[] dest, int length) {
+    int offset = columns + 8 * (column * numRows + firstRow);
+    for (int i = 0; i < length; i++) {
+      dest[i] = buf.getDouble(offset + 8 * i);
+    }
+  }
+
+  /**
+   * hash of the rows of a query: their ids and values, in row order.
+   *
+   * @param query index of query within the block
+   * @param valueColumns indices of the value columns to include
+   * @param hash hash state, which is reset
+   * @return hash value
+   */
+  long hashRows(int query, int[] valueColumns, ContentHash hash) {
+    int first = getFirstRow(query);
+    int n = getNumRows(query);
+    hash.reset().add((long)n);
+    for (int row = first; row < first + n; row++) {
+      int code = getIdCode(row);
+      if (code < 0) {
+        hash.add(-1L);
+      } else {
+        int start = buf.getInt(idOffsets + 4 * code);
+        int end = buf.getInt(idOffsets + 4 * (code + 1));
+        hash.add(buf, idBlob + start, end - start);
+      }
+    }
+    for (int column : valueColumns) {
+      int offset = columns + 8 * (column * numRows + first);
+      for (int i = 0; i < n; i++) {
+        hash.add(buf.getDouble(offset + 8 * i));
+      }
+    }
+    return hash.get();
+  }
+
+  private String getString(int offset, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buf.get(offset + i);
+    }
+    return new String(bytes, QrelsIndex.UTF8);
+  }
+};
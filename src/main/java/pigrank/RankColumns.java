@@ -0,0 +1,895 @@
+package pigrank;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * column indices of ranking scores and targets, and their extraction
+ * from a bag into primitive arrays.
+ *
+ * score and target columns can each be given as a comma-separated list of
+ * column indices, e.g. "1,3,4", to evaluate several models against several
+ * targets with a single pass over the bag. A null value excludes the row
+ * only from the pairs of score and target columns that contain it; rows
+ * without any score or without any target are skipped.
+ *
+ * Instead of a target column, the keyword "qrels" selects a lookup of the
+ * targets in a QrelsIndex of relevance judgments, by query and item id.
+ *
+ * Bags with at least offHeapThreshold rows are extracted into off-heap
+ * columns instead of arrays, and ranked with OffHeapRanking. The off-heap
+ * buffer is reused across calls until release().
+ *
+ * Off-heap columns are compact by default: scores are stored as floats and
+ * targets as bytes, as long as every value of the bag fits exactly, e.g.
+ * float scores and integer grades from -128 to 127; the first value that
+ * does not fit widens all columns to doubles. Compact columns hold the
+ * same values, so the measures are unchanged. Once a bag has been widened,
+ * or if the input schema declares double scores, later bags are stored as
+ * doubles right away.
+ *
+ * With a WorkBudget, bags with more valid rows than the budget are reduced
+ * during extraction: for measures with a cutoff within the budget and a
+ * single score column, to the top rows by score, while the top targets of
+ * all rows are kept for the ideal DCG; otherwise, to a uniform sample of
+ * the rows, see SampleEstimate. With the top rows, a target column with
+ * nulls is ranked by the kept rows that have a target, which may be fewer
+ * than the cutoff.
+ */
+
+class RankColumns {
+
+  /** ranking scores (column indices) */
+  int[] predictorFields;
+
+  /** targets (column indices) */
+  int[] targetFields;
+
+  /** minimum number of columns expected in data tuples */
+  int minCols;
+
+  /** extracted ranking scores, one array per predictor column */
+  double[][] scores;
+
+  /** extracted targets, one array per target column */
+  double[][] targets;
+
+  /** number of extracted rows */
+  int size;
+
+  /** if true, extract() also keeps the rows of the extracted items */
+  boolean keepRows;
+
+  /** input rows in extraction order, i.e. by ranking position; null unless keepRows is set */
+  Tuple[] rows;
+
+  /** path of relevance judgments index, if targets are looked up instead of read */
+  String qrelsPath;
+
+  /** query key (column index), for judgment lookup */
+  int queryField;
+
+  /** unique item identifiers (column index), for judgment lookup */
+  int idField;
+
+  /** target of items without judgment */
+  double unjudged;
+
+  /** if true, items without judgment are left out of the ranking */
+  boolean skipUnjudged;
+
+  private QrelsIndex qrels;
+
+  /** default minimum number of rows for off-heap columns */
+  static final int DEFAULT_OFF_HEAP_THRESHOLD = 1 << 20;
+
+  /** minimum number of rows for off-heap columns */
+  int offHeapThreshold = DEFAULT_OFF_HEAP_THRESHOLD;
+
+  /** true if the last bag was extracted into off-heap columns */
+  boolean isOffHeap;
+
+  private OffHeapColumns offHeap;
+
+  /** if false, off-heap columns are always doubles */
+  boolean allowCompact = true;
+
+  /** true if the off-heap columns of the last bag are compact */
+  boolean isCompact;
+
+  /** false once a bag did not fit compact columns, or for double scores in the input schema */
+  private boolean compactFits = true;
+
+  /** value of each compact target t, at index t &amp; 0xff; gains after applyGain() */
+  private final double[] targetValues = new double[256];
+
+  /** limit on the rows and time per bag */
+  WorkBudget budget = new WorkBudget();
+
+  /** maximum rank of the measures, for the work budget */
+  int cutoff = Integer.MAX_VALUE;
+
+  /** top targets of all valid rows of the last bag, one min-heap per target column; null unless the top rows are kept */
+  private double[][] topTargets;
+
+  /** number of values in each heap of topTargets */
+  private int[] numTopTargets;
+
+  /** rows with a null value, one set per score column and then per target column; null for columns without nulls */
+  private BitSet[] nullRows;
+
+  /**
+   * @param strPredictorFields zero-based column indices of ranking scores,
+   *   as a comma-separated string.
+   * @param strTargetFields zero-based column indices of targets,
+   *   as a comma-separated string.
+   */
+  RankColumns(String strPredictorFields, String strTargetFields) {
+    predictorFields = parseFields(strPredictorFields);
+    targetFields = strTargetFields.trim().equalsIgnoreCase("qrels") ? new int[0] : parseFields(strTargetFields);
+    minCols = 1;
+    for (int field : predictorFields) {
+      minCols = Math.max(minCols, field + 1);
+    }
+    for (int field : targetFields) {
+      minCols = Math.max(minCols, field + 1);
+    }
+  }
+
+  static int[] parseFields(String strFields) {
+    String[] parts = strFields.split(",");
+    int[] fields = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      fields[i] = Integer.parseInt(parts[i].trim());
+    }
+    return fields;
+  }
+
+  /**
+   * read options for looking up targets in relevance judgments:
+   * qrels=&lt;index file&gt;, query=&lt;column&gt;, id=&lt;column&gt;, and
+   * unjudged=&lt;value or 'skip'&gt; (default 0).
+   *
+   * @param options UDF options
+   */
+  void setQrelsOptions(UDFOptions options) throws IllegalArgumentException {
+    if (!isQrels()) {
+      if (options.has("qrels")) {
+        throw new IllegalArgumentException("option 'qrels' requires 'qrels' as target column");
+      }
+      return;
+    }
+    if (!options.has("qrels") || !options.has("query") || !options.has("id")) {
+      throw new IllegalArgumentException("'qrels' target requires options 'qrels', 'query', and 'id'");
+    }
+    qrelsPath = options.getString("qrels", null);
+    queryField = options.getInt("query", 0);
+    idField = options.getInt("id", 0);
+    String strUnjudged = options.getString("unjudged", "0");
+    skipUnjudged = strUnjudged.equalsIgnoreCase("skip");
+    unjudged = skipUnjudged ? 0.0 : Double.parseDouble(strUnjudged);
+    minCols = Math.max(minCols, 1 + Math.max(queryField, idField));
+  }
+
+  /**
+   * read the option offheap=&lt;rows&gt;, the minimum number of rows of a bag
+   * for extraction into off-heap columns, and compact=false to always
+   * store off-heap columns as doubles.
+   *
+   * @param options UDF options
+   */
+  void setOffHeapOptions(UDFOptions options) throws IllegalArgumentException {
+    offHeapThreshold = options.getInt("offheap", DEFAULT_OFF_HEAP_THRESHOLD);
+    if (offHeapThreshold <= 0) {
+      offHeapThreshold = Integer.MAX_VALUE;
+    }
+    allowCompact = Boolean.parseBoolean(options.getString("compact", "true"));
+  }
+
+  /**
+   * read the options maxrows=&lt;rows&gt; and maxtime=&lt;milliseconds&gt;,
+   * see WorkBudget.
+   *
+   * @param options UDF options
+   * @param cutoff maximum rank of the measures, or Integer.MAX_VALUE
+   */
+  void setBudgetOptions(UDFOptions options, int cutoff) throws IllegalArgumentException {
+    budget.setOptions(options);
+    this.cutoff = cutoff;
+  }
+
+  /**
+   * @return true if the top rows by score are kept beyond the budget,
+   *   rather than a uniform sample
+   */
+  boolean keepsTopRows() {
+    return cutoff < Integer.MAX_VALUE && cutoff <= budget.maxRows && budget.maxRows < Long.MAX_VALUE && predictorFields.length == 1;
+  }
+
+  /**
+   * @return true if the last bag was reduced to a uniform sample, so that
+   *   the measures must be estimated with SampleEstimate
+   */
+  boolean isSampled() {
+    return budget.isDegraded() && topTargets == null;
+  }
+
+  /**
+   * @return number of rows that the last bag was reduced from
+   */
+  long getPopulation() {
+    return size + budget.dropped;
+  }
+
+  /**
+   * @return standard error of the measures of the last bag, unless
+   *   isSampled(): zero if they are exact, NaN if the top rows were kept
+   *   but not all rows were read
+   */
+  double getStandardError() {
+    return budget.unread > 0 ? Double.NaN : 0.0;
+  }
+
+  /**
+   * @param estimates estimates of a sample, see SampleEstimate.getStandardError()
+   * @return jackknife standard error, or NaN if not all rows were read:
+   *   the rows read within the time are a prefix of the bag, not a uniform
+   *   sample
+   */
+  double getStandardError(double[] estimates) {
+    return budget.unread > 0 ? Double.NaN : SampleEstimate.getStandardError(estimates);
+  }
+
+  /**
+   * @return true if targets are looked up in relevance judgments
+   */
+  boolean isQrels() {
+    return targetFields.length == 0;
+  }
+
+  /**
+   * @return number of targets per row
+   */
+  int numTargets() {
+    return isQrels() ? 1 : targetFields.length;
+  }
+
+  /**
+   * @return true if more than one score or target column is evaluated
+   */
+  boolean isMultiple() {
+    return predictorFields.length > 1 || targetFields.length > 1;
+  }
+
+  /**
+   * @return files to ship to the distributed cache, or null
+   */
+  List<String> getCacheFiles() {
+    if (qrelsPath == null) {
+      return null;
+    }
+    return Collections.singletonList(qrelsPath + "#" + new File(qrelsPath).getName());
+  }
+
+  /**
+   * map the judgment index, once per task. On the cluster, the index is
+   * found in the working directory under its cache file name; in local
+   * mode, it is read from the original path.
+   */
+  private QrelsIndex getQrels() throws IOException {
+    if (qrels == null) {
+      if (qrelsPath == null) {
+        throw new IllegalArgumentException("'qrels' target requires options 'qrels', 'query', and 'id'");
+      }
+      File file = new File(new File(qrelsPath).getName());
+      if (!file.exists()) {
+        file = new File(qrelsPath);
+      }
+      qrels = QrelsIndex.open(file);
+    }
+    return qrels;
+  }
+
+  /**
+   * read all score and target columns of a bag. Rows with a null value
+   * in any of the columns are skipped. If the bag exceeds the work budget,
+   * the top rows by score or a uniform sample of its rows are read, see
+   * WorkBudget.
+   *
+   * @param bag rows of one query
+   * @param udfName name of calling UDF, for error messages
+   * @return false if a tuple with too few columns was found
+   */
+  boolean extract(DataBag bag, String udfName) throws IOException {
+
+    budget.start();
+    int capacity = budget.getCapacity(bag.size());
+    isOffHeap = capacity >= offHeapThreshold;
+    if (isOffHeap) {
+      if (offHeap == null) {
+        offHeap = new OffHeapColumns();
+      }
+      isCompact = allowCompact && compactFits;
+      reserve(offHeap, capacity, 0);
+      for (int t = 0; t < targetValues.length; t++) {
+        targetValues[t] = (byte)t;
+      }
+      scores = null;
+      targets = null;
+    } else {
+      scores = new double[predictorFields.length][capacity];
+      targets = new double[numTargets()][capacity];
+    }
+    rows = keepRows ? new Tuple[capacity] : null;
+    topTargets = keepsTopRows() ? new double[numTargets()][Math.min(cutoff, capacity)] : null;
+    numTopTargets = new int[numTargets()];
+    nullRows = new BitSet[predictorFields.length + numTargets()];
+    size = 0;
+
+    QrelsIndex index = isQrels() ? getQrels() : null;
+    int query = -2;
+
+    Iterator it = bag.iterator();
+
+    long numValid = 0;
+
+    while (it.hasNext()){
+
+      if (budget.isExpired()) {
+        budget.skipRemaining(bag.size());
+        break;
+      }
+
+      Tuple t = (Tuple)it.next();
+
+      if (t == null || t.size() < minCols) {
+        System.err.println(udfName + " expected tuple with at least " + minCols + "columns, got  " + t);
+        return false;
+      };
+
+      if (allNull(t, predictorFields) || allNull(t, targetFields)) {
+        continue;
+      }
+
+      double judgment = 0.0;
+      if (index != null) {
+        if (t.get(idField) == null) {
+          continue;
+        }
+        if (query == -2) {
+          // all rows of the bag belong to the same query
+          Object key = t.get(queryField);
+          query = key == null ? -1 : index.findQuery(DataType.toString(key));
+        }
+        judgment = index.getGrade(query, DataType.toString(t.get(idField)), Double.NaN);
+        if (Double.isNaN(judgment)) {
+          if (skipUnjudged) {
+            continue;
+          }
+          judgment = unjudged;
+        }
+      }
+
+      int row;
+      if (topTargets != null) {
+        for (int k = 0; k < topTargets.length; k++) {
+          Double target = (index != null) ? judgment : DataType.toDouble(t.get(targetFields[k]));
+          if (target != null) {
+            addTopTarget(topTargets[k], numTopTargets[k], target);
+            numTopTargets[k] = Math.min(numTopTargets[k] + 1, topTargets[k].length);
+          }
+        }
+        row = (int)budget.getTopSlot(DataType.toDouble(t.get(predictorFields[0])));
+      } else {
+        row = (int)budget.getSampleSlot(numValid++);
+      }
+      if (row < 0) {
+        continue;
+      }
+
+      if (row == capacity) {
+        capacity = (int)Math.min(2L * capacity, budget.maxRows);
+        if (isOffHeap) {
+          reserve(offHeap, capacity, size);
+        } else {
+          for (int k = 0; k < scores.length; k++) {
+            scores[k] = Arrays.copyOf(scores[k], capacity);
+          }
+          for (int k = 0; k < targets.length; k++) {
+            targets[k] = Arrays.copyOf(targets[k], capacity);
+          }
+        }
+        if (rows != null) {
+          rows = Arrays.copyOf(rows, capacity);
+        }
+      }
+
+      for (int k = 0; k < predictorFields.length; k++) {
+        Double score = DataType.toDouble(t.get(predictorFields[k]));
+        setNull(k, row, score == null);
+        setScore(k, row, score == null ? 0.0 : score);
+      }
+      for (int k = 0; k < targetFields.length; k++) {
+        Double target = DataType.toDouble(t.get(targetFields[k]));
+        setNull(predictorFields.length + k, row, target == null);
+        setTarget(k, row, target == null ? 0.0 : target);
+      }
+      if (index != null) {
+        setTarget(0, row, judgment);
+      }
+      if (rows != null) {
+        rows[row] = t;
+      }
+      if (row == size) {
+        size++;
+      }
+    }
+
+    budget.report();
+
+    return true;
+  }
+
+  /**
+   * add a value to a min-heap of the largest values.
+   *
+   * @param heap min-heap
+   * @param n number of values in the heap
+   */
+  private static void addTopTarget(double[] heap, int n, double value) {
+    int pos;
+    if (n < heap.length) {
+      // sift up
+      pos = n;
+      while (pos > 0 && heap[(pos - 1) / 2] > value) {
+        heap[pos] = heap[(pos - 1) / 2];
+        pos = (pos - 1) / 2;
+      }
+    } else if (value > heap[0]) {
+      // sift down
+      pos = 0;
+      while (2 * pos + 1 < n) {
+        int child = 2 * pos + 1;
+        if (child + 1 < n && heap[child + 1] < heap[child]) {
+          child++;
+        }
+        if (heap[child] >= value) {
+          break;
+        }
+        heap[pos] = heap[child];
+        pos = child;
+      }
+    } else {
+      return;
+    }
+    heap[pos] = value;
+  }
+
+  /**
+   * @param column score column, or number of score columns plus target column
+   * @param row row being written, which may replace a sampled row
+   */
+  private void setNull(int column, int row, boolean isNull) {
+    if (isNull && nullRows[column] == null) {
+      nullRows[column] = new BitSet();
+    }
+    if (nullRows[column] != null) {
+      nullRows[column].set(row, isNull);
+    }
+  }
+
+  private void setScore(int predictor, int row, double value) {
+    if (isCompact && !((float)value == value || Double.isNaN(value))) {
+      widen(row);
+    }
+    if (isCompact) {
+      offHeap.getFloats(predictor).put(row, (float)value);
+    } else if (isOffHeap) {
+      offHeap.getDoubles(predictor).put(row, value);
+    } else {
+      scores[predictor][row] = value;
+    }
+  }
+
+  private void setTarget(int target, int row, double value) {
+    if (isCompact && (byte)value != value) {
+      widen(row);
+    }
+    if (isCompact) {
+      offHeap.getBytes(target).put(row, (byte)value);
+    } else if (isOffHeap) {
+      offHeap.getDoubles(predictorFields.length + target).put(row, value);
+    } else {
+      targets[target][row] = value;
+    }
+  }
+
+  /**
+   * lay out off-heap columns for the current storage.
+   */
+  private void reserve(OffHeapColumns columns, int capacity, int preserveRows) {
+    if (isCompact) {
+      columns.reserve(0, predictorFields.length, NUM_INT_COLUMNS, numTargets(), capacity, preserveRows);
+    } else {
+      columns.reserve(predictorFields.length + numTargets(), NUM_INT_COLUMNS, capacity, preserveRows);
+    }
+  }
+
+  /**
+   * switch the compact columns of the current bag to doubles, for a value
+   * that does not fit. Later bags start with doubles, so that the columns
+   * are reallocated at most once per instance.
+   *
+   * @param row row being written, which may lie beyond the extracted rows
+   */
+  private void widen(int row) {
+    int rows = Math.max(size, row + 1);
+    OffHeapColumns wide = new OffHeapColumns();
+    wide.reserve(predictorFields.length + numTargets(), NUM_INT_COLUMNS, offHeap.getRows(), 0);
+    for (int k = 0; k < predictorFields.length; k++) {
+      FloatBuffer from = offHeap.getFloats(k);
+      DoubleBuffer to = wide.getDoubles(k);
+      for (int i = 0; i < rows; i++) {
+        to.put(i, from.get(i));
+      }
+    }
+    for (int k = 0; k < numTargets(); k++) {
+      ByteBuffer from = offHeap.getBytes(k);
+      DoubleBuffer to = wide.getDoubles(predictorFields.length + k);
+      for (int i = 0; i < rows; i++) {
+        to.put(i, targetValues[from.get(i) & 0xff]);
+      }
+    }
+    offHeap.release();
+    offHeap = wide;
+    isCompact = false;
+    compactFits = false;
+  }
+
+  /**
+   * @param ranking last ranking of the bag
+   * @return storage and algorithm used for the last bag, for ExecRecorder
+   */
+  String getPath(AbstractRanking ranking) {
+    return (isOffHeap ? (isCompact ? "offheap,compact," : "offheap,") : "heap,") + ranking.getSortPath() + (budget.isDegraded() ? ",sampled" : "");
+  }
+
+  /**
+   * content hash of the extracted score and target columns of the last
+   * bag, in row order, e.g. as key of a ResultCache. Beyond the work
+   * budget, the dropped rows and the top targets also enter the estimates
+   * and the coverage, so they are hashed too.
+   *
+   * @param hash hash state, e.g. seeded with the UDF arguments
+   * @return hash value
+   */
+  long hash(ContentHash hash) {
+    hash.add((long)size).add(budget.dropped).add(budget.unread);
+    if (topTargets != null) {
+      for (int k = 0; k < topTargets.length; k++) {
+        hash.add((long)numTopTargets[k]);
+        for (int i = 0; i < numTopTargets[k]; i++) {
+          hash.add(topTargets[k][i]);
+        }
+      }
+    }
+    for (int k = 0; k < predictorFields.length + numTargets(); k++) {
+      // compact values hash like the same values as doubles
+      if (isCompact && k < predictorFields.length) {
+        FloatBuffer column = offHeap.getFloats(k);
+        for (int i = 0; i < size; i++) {
+          hash.add((double)column.get(i));
+        }
+      } else if (isCompact) {
+        ByteBuffer column = offHeap.getBytes(k - predictorFields.length);
+        for (int i = 0; i < size; i++) {
+          hash.add(targetValues[column.get(i) & 0xff]);
+        }
+      } else if (isOffHeap) {
+        DoubleBuffer column = offHeap.getDoubles(k);
+        for (int i = 0; i < size; i++) {
+          hash.add(column.get(i));
+        }
+      } else {
+        double[] column = (k < predictorFields.length) ? scores[k] : targets[k - predictorFields.length];
+        for (int i = 0; i < size; i++) {
+          hash.add(column[i]);
+        }
+      }
+      // nulls are stored as zeros
+      BitSet nulls = nullRows[k];
+      hash.add(nulls == null ? 0L : (long)nulls.cardinality());
+      for (int i = (nulls == null) ? -1 : nulls.nextSetBit(0); i >= 0; i = nulls.nextSetBit(i + 1)) {
+        hash.add((long)i);
+      }
+    }
+    return hash.get();
+  }
+
+  /**
+   * @return fraction of the valid rows of the last bag that were extracted
+   */
+  double getCoverage() {
+    return budget.getCoverage(size);
+  }
+
+  // off-heap int columns: rank order, merge buffer, ideal order
+  private static final int NUM_INT_COLUMNS = 3;
+
+  /**
+   * @param predictor index of score column
+   * @return unsorted ranking of the extracted rows by a score column, with
+   *   the first target column
+   */
+  AbstractRanking newRanking(int predictor) {
+    if (isCompact) {
+      return new OffHeapRanking(offHeap.getFloats(predictor), offHeap.getBytes(0), targetValues,
+                                offHeap.getInts(0), offHeap.getInts(1), offHeap.getInts(2), size);
+    }
+    if (isOffHeap) {
+      return new OffHeapRanking(offHeap.getDoubles(predictor), offHeap.getDoubles(predictorFields.length),
+                                offHeap.getInts(0), offHeap.getInts(1), offHeap.getInts(2), size);
+    }
+    return new Ranking(null, scores[predictor], targets[0], size);
+  }
+
+  /**
+   * evaluate a ranking from newRanking() against another target column.
+   */
+  void setTargets(AbstractRanking ranking, int target) {
+    if (isCompact) {
+      ((OffHeapRanking)ranking).setTargets(offHeap.getBytes(target));
+    } else if (isOffHeap) {
+      ((OffHeapRanking)ranking).setTargets(offHeap.getDoubles(predictorFields.length + target));
+    } else {
+      ((Ranking)ranking).setTargets(targets[target]);
+    }
+  }
+
+  /**
+   * @return true if some extracted rows have a null score or target in
+   *   the given columns; these pairs are evaluated with newRanking(int, int)
+   */
+  boolean hasNulls(int predictor, int target) {
+    return nullRows[predictor] != null || nullRows[predictorFields.length + target] != null;
+  }
+
+  /**
+   * @return rows with a null score or target in the given columns
+   */
+  private BitSet getNullRows(int predictor, int target) {
+    BitSet nulls = new BitSet();
+    if (nullRows[predictor] != null) {
+      nulls.or(nullRows[predictor]);
+    }
+    if (nullRows[predictorFields.length + target] != null) {
+      nulls.or(nullRows[predictorFields.length + target]);
+    }
+    return nulls;
+  }
+
+  /**
+   * @return extracted value of a score column, or of number of score
+   *   columns plus a target column
+   */
+  private double getValue(int column, int row) {
+    if (isCompact && column < predictorFields.length) {
+      return offHeap.getFloats(column).get(row);
+    }
+    if (isCompact) {
+      return targetValues[offHeap.getBytes(column - predictorFields.length).get(row) & 0xff];
+    }
+    if (isOffHeap) {
+      return offHeap.getDoubles(column).get(row);
+    }
+    return (column < predictorFields.length) ? scores[column][row] : targets[column - predictorFields.length][row];
+  }
+
+  /**
+   * @return unsorted ranking of the extracted rows without nulls in the
+   *   given columns, on the heap; positions index these rows only
+   */
+  AbstractRanking newRanking(int predictor, int target) {
+    BitSet nulls = getNullRows(predictor, target);
+    double[] pairTargets = getValues(predictorFields.length + target, nulls);
+    return new Ranking(null, getValues(predictor, nulls), pairTargets, pairTargets.length);
+  }
+
+  /**
+   * @return extracted values of a column in the rows not in nulls
+   */
+  private double[] getValues(int column, BitSet nulls) {
+    double[] values = new double[size - nulls.cardinality()];
+    int i = 0;
+    for (int row = nulls.nextClearBit(0); row < size; row = nulls.nextClearBit(row + 1)) {
+      values[i++] = getValue(column, row);
+    }
+    return values;
+  }
+
+  /**
+   * @return number of valid rows of the last bag without nulls in the given
+   *   columns; for a sample, estimated from the share of such rows in it
+   */
+  long getPopulation(int predictor, int target) {
+    if (size == 0) {
+      return getPopulation();
+    }
+    int n = size - getNullRows(predictor, target).cardinality();
+    return Math.round((double)getPopulation() * n / size);
+  }
+
+  /**
+   * @return ideal DCG of the rows without nulls in the given columns
+   */
+  double getMaxDCG(int predictor, int target, int cutoff, Discount discount) {
+    if (!hasNulls(predictor, target) || (topTargets != null && budget.isDegraded())) {
+      // the top targets skip null targets, and the single score column is never null
+      return getMaxDCG(target, cutoff, discount);
+    }
+    double[] pairTargets = getValues(predictorFields.length + target, getNullRows(predictor, target));
+    return Ranking.getMaxDCG(pairTargets, pairTargets.length, cutoff, discount);
+  }
+
+  /**
+   * @return ideal DCG of a target column; if the top rows were kept, of
+   *   the top targets of all rows
+   */
+  double getMaxDCG(int target, int cutoff) {
+    if (topTargets != null && budget.isDegraded()) {
+      return Ranking.getMaxDCG(topTargets[target], numTopTargets[target], cutoff);
+    }
+    if (isCompact) {
+      return OffHeapRanking.getMaxDCG(offHeap.getBytes(target), targetValues, size, cutoff, Discount.LOG);
+    }
+    if (isOffHeap) {
+      return OffHeapRanking.getMaxDCG(offHeap.getDoubles(predictorFields.length + target),
+                                      offHeap.getInts(2), offHeap.getInts(1), size, cutoff);
+    }
+    return Ranking.getMaxDCG(targets[target], size, cutoff);
+  }
+
+  /**
+   * @return ideal DCG of a target column with another position discount
+   */
+  double getMaxDCG(int target, int cutoff, Discount discount) {
+    if (topTargets != null && budget.isDegraded()) {
+      return Ranking.getMaxDCG(topTargets[target], numTopTargets[target], cutoff, discount);
+    }
+    if (isCompact) {
+      return OffHeapRanking.getMaxDCG(offHeap.getBytes(target), targetValues, size, cutoff, discount);
+    }
+    if (isOffHeap) {
+      return OffHeapRanking.getMaxDCG(offHeap.getDoubles(predictorFields.length + target),
+                                      offHeap.getInts(2), offHeap.getInts(1), size, cutoff, discount);
+    }
+    return Ranking.getMaxDCG(targets[target], size, cutoff, discount);
+  }
+
+  /**
+   * replace the extracted targets of the last bag by their gains.
+   */
+  void applyGain(Gain gain) {
+    if (gain.isLinear()) {
+      return;
+    }
+    if (topTargets != null) {
+      // gains are monotonic, so the heaps stay ordered
+      for (int k = 0; k < topTargets.length; k++) {
+        gain.apply(topTargets[k], numTopTargets[k]);
+      }
+    }
+    if (isCompact) {
+      // gains are monotonic, so the table stays ordered
+      for (int t = 0; t < targetValues.length; t++) {
+        targetValues[t] = gain.apply(targetValues[t]);
+      }
+      return;
+    }
+    for (int k = 0; k < numTargets(); k++) {
+      if (isOffHeap) {
+        DoubleBuffer column = offHeap.getDoubles(predictorFields.length + k);
+        for (int i = 0; i < size; i++) {
+          column.put(i, gain.apply(column.get(i)));
+        }
+      } else {
+        gain.apply(targets[k], size);
+      }
+    }
+  }
+
+  /**
+   * free off-heap columns, e.g. at the end of a task.
+   */
+  void release() {
+    if (offHeap != null) {
+      offHeap.release();
+      offHeap = null;
+    }
+  }
+
+  private static boolean allNull(Tuple t, int[] fields) throws ExecException {
+    for (int field : fields) {
+      if (t.get(field) != null) {
+        return false;
+      }
+    }
+    return fields.length > 0;
+  }
+
+  /**
+   * @return name of a target, for output field names
+   */
+  String getTargetName(Schema tupleSchema, int target) throws FrontendException {
+    if (isQrels()) {
+      return skipUnjudged ? "qrels_judged" : "qrels";
+    }
+    return tupleSchema.getField(targetFields[target]).alias;
+  }
+
+  /**
+   * choose the off-heap storage from the declared score types: double scores
+   * rarely fit floats, so they are stored as doubles from the first bag.
+   * Unknown types, e.g. bytearray, are checked value by value.
+   *
+   * @param input schema of the UDF arguments, or null if unknown
+   */
+  void setInputSchema(Schema input) {
+    try {
+      if (input == null || input.size() != 1 || input.getField(0).schema == null) {
+        return;
+      }
+      Schema bagSchema = input.getField(0).schema;
+      Schema tupleSchema = bagSchema.getField(0).schema;
+      if (tupleSchema == null) {
+        return;
+      }
+      for (int field : predictorFields) {
+        if (field < tupleSchema.size() && tupleSchema.getField(field).type == DataType.DOUBLE) {
+          compactFits = false;
+        }
+      }
+    } catch (FrontendException e) {
+      // keep checking the values
+    }
+  }
+
+  /**
+   * check that the tuples of the input bag contain numeric score and target columns.
+   *
+   * @param tupleSchema schema of the tuples in the input bag
+   */
+  void checkSchema(Schema tupleSchema) throws FrontendException {
+
+    if (tupleSchema.size() < minCols) {
+      throw new IllegalArgumentException("The tuple must contain at least " + minCols + " columns");
+    }
+
+    for (int field : predictorFields) {
+      if (!DataType.isNumberType(tupleSchema.getField(field).type)) {
+        throw new IllegalArgumentException("Expected numeric input type for predictor, but received schema of type " + DataType.findTypeName(tupleSchema.getField(field).type));
+      }
+    }
+
+    for (int field : targetFields) {
+      if (!DataType.isNumberType(tupleSchema.getField(field).type)) {
+        throw new IllegalArgumentException("Expected numeric input type for target, but received schema of type " + DataType.findTypeName(tupleSchema.getField(field).type));
+      }
+    }
+  }
+};
@@ -0,0 +1,192 @@
+package pigrank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * memory-mapped random access to a pigrank binary file (see
+ * RankFileWriter), for local tools. A query is found through an index
+ * of all query keys, which is built when the file is opened, so all blocks
+ * are mapped by then. Null query keys are stored as the empty
+ * string (see RankFileWriter), and each key may occur only once in a file.
+ *
+ * usage:
+ * <pre>
+ * java -cp pigrank.jar pigrank.RankFile part-r-00000.prk [query ...]
+ * </pre>
+ * prints the column names and number of queries, and the rows of the
+ * given queries.
+ */
+
+public class RankFile {
+
+  private RandomAccessFile raf;
+  private FileChannel channel;
+
+  private String[] columnNames;
+  private long[] blockOffsets;
+  private RankBlock[] blocks;
+
+  /** query key -&gt; block index (high int) and query index within block (low int) */
+  private HashMap<String, Long> queryIndex = new HashMap<String, Long>();
+
+  /**
+   * @param file pigrank binary file
+   * @throws IOException if the file is invalid or contains a query key twice
+   */
+  public RankFile(File file) throws IOException {
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    try {
+      if (raf.readInt() != RankFileWriter.MAGIC) {
+        throw new IOException(file + " is not a pigrank file");
+      }
+      int version = raf.readInt();
+      if (version != RankFileWriter.VERSION) {
+        throw new IOException("unsupported pigrank file version " + version);
+      }
+      columnNames = new String[raf.readInt()];
+      for (int c = 0; c < columnNames.length; c++) {
+        columnNames[c] = raf.readUTF();
+      }
+
+      long length = channel.size();
+      if (length < raf.getFilePointer() + 12) {
+        throw new IOException(file + " is truncated");
+      }
+      ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length - 12, 12);
+      long footerOffset = trailer.getLong(0);
+      if (trailer.getInt(8) != RankFileWriter.MAGIC) {
+        throw new IOException(file + " is truncated");
+      }
+      if (footerOffset < raf.getFilePointer() || footerOffset + 8 > length - 12) {
+        throw new IOException(file + " has no valid footer");
+      }
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, length - 12 - footerOffset);
+      if (footer.getInt(0) != RankFileWriter.FOOTER_MAGIC) {
+        throw new IOException(file + " has no valid footer");
+      }
+      blockOffsets = new long[footer.getInt(4)];
+      for (int b = 0; b < blockOffsets.length; b++) {
+        blockOffsets[b] = footer.getLong(8 + 8 * b);
+      }
+      blocks = new RankBlock[blockOffsets.length];
+
+      for (int b = 0; b < blocks.length; b++) {
+        RankBlock block = getBlock(b);
+        for (int q = 0; q < block.getNumQueries(); q++) {
+          String query = block.getQuery(q);
+          if (queryIndex.put(query, ((long)b << 32) | q) != null) {
+            throw new IOException(file + " contains query '" + query + "' more than once");
+          }
+        }
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  public String[] getColumnNames() {
+    return columnNames;
+  }
+
+  public int getNumBlocks() {
+    return blocks.length;
+  }
+
+  public int getNumQueries() {
+    return queryIndex.size();
+  }
+
+  /**
+   * @param b block index
+   * @return block, mapped into memory on first access
+   */
+  public RankBlock getBlock(int b) throws IOException {
+    if (blocks[b] == null) {
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[b], 8);
+      if (header.getInt(0) != RankFileWriter.BLOCK_MAGIC) {
+        throw new IOException("invalid block at offset " + blockOffsets[b]);
+      }
+      int length = header.getInt(4);
+      blocks[b] = new RankBlock(channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[b] + 8, length));
+    }
+    return blocks[b];
+  }
+
+  /**
+   * @param query query key
+   * @return block index (high int) and query index within the block (low
+   *   int), or -1 if the query is not in the file
+   */
+  public long findQuery(String query) {
+    Long location = queryIndex.get(query);
+    return location == null ? -1L : location;
+  }
+
+  /**
+   * @param query query key
+   * @return ranking of the rows of the query by a score column, or null
+   *   if the query is not in the file
+   */
+  public Ranking getRanking(String query, int scoreColumn, int targetColumn) throws IOException {
+    long location = findQuery(query);
+    if (location < 0) {
+      return null;
+    }
+    RankBlock block = getBlock((int)(location >>> 32));
+    int q = (int)location;
+    int first = block.getFirstRow(q);
+    int n = block.getNumRows(q);
+    String[] ids = new String[n];
+    double[] scores = new double[n];
+    double[] targets = new double[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = block.getId(first + i);
+    }
+    block.getValues(scoreColumn, first, scores, n);
+    block.getValues(targetColumn, first, targets, n);
+    return new Ranking(ids, scores, targets, n);
+  }
+
+  public void close() throws IOException {
+    raf.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: RankFile file.prk [query ...]");
+      System.exit(1);
+    }
+    RankFile file = new RankFile(new File(args[0]));
+    try {
+      System.out.println("columns: " + Arrays.toString(file.getColumnNames()));
+      System.out.println("blocks: " + file.getNumBlocks() + ", queries: " + file.getNumQueries());
+      for (int i = 1; i < args.length; i++) {
+        long location = file.findQuery(args[i]);
+        if (location < 0) {
+          System.out.println(args[i] + ": not found");
+          continue;
+        }
+        RankBlock block = file.getBlock((int)(location >>> 32));
+        int q = (int)location;
+        for (int row = block.getFirstRow(q); row < block.getFirstRow(q) + block.getNumRows(q); row++) {
+          StringBuilder line = new StringBuilder(args[i]).append('\t').append(block.getId(row));
+          for (int c = 0; c < block.getNumColumns(); c++) {
+            line.append('\t').append(block.getValue(c, row));
+          }
+          System.out.println(line);
+        }
+      }
+    } finally {
+      file.close();
+    }
+  }
+};
@@ -0,0 +1,247 @@
+package pigrank;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * writes ranking data grouped by query in the pigrank binary format.
+ *
+ * File layout:
+ * <pre>
+ * int    magic ('PGRK')
+ * int    version
+ * int    numColumns
+ * UTF    column names (DataOutput.writeUTF), one per column
+ * blocks, each:
+ *   int  block magic
+ *   int  length of block body
+ *   body (see RankBlock)
+ * footer:
+ *   int  footer magic
+ *   int  numBlocks
+ *   long[numBlocks]  file offsets of blocks
+ *   long file offset of footer
+ *   int  magic
+ * </pre>
+ * Each block holds complete queries, and about blockRows rows; a larger
+ * query gets a block of its own. Null values are stored as NaN.
+ *
+ * usage: for each query, call startQuery(), then addRow() for each of its
+ * rows; finally, close().
+ */
+
+public class RankFileWriter {
+
+  static final int MAGIC = 0x5047524b;
+  static final int VERSION = 1;
+  static final int BLOCK_MAGIC = 0x50474b42;
+  static final int FOOTER_MAGIC = 0x5047464f;
+  static final int DEFAULT_BLOCK_ROWS = 1 << 16;
+
+  private DataOutputStream out;
+  private CountingOutputStream counter;
+  private int numColumns;
+  private int blockRows;
+
+  private ArrayList<Long> blockOffsets = new ArrayList<Long>();
+
+  // current block
+  private ArrayList<byte[]> queries = new ArrayList<byte[]>();
+  private int[] queryRows = new int[16];
+  private HashMap<String, Integer> idCodes = new HashMap<String, Integer>();
+  private ArrayList<byte[]> ids = new ArrayList<byte[]>();
+  private int[] codes = new int[1024];
+  private double[][] values;
+  private int numRows;
+
+  /** first row of the current query */
+  private int queryStart = -1;
+
+  /**
+   * @param stream output stream; closed by close()
+   * @param columnNames names of the value columns
+   */
+  public RankFileWriter(OutputStream stream, String[] columnNames) throws IOException {
+    this(stream, columnNames, DEFAULT_BLOCK_ROWS);
+  }
+
+  /**
+   * @param stream output stream; closed by close()
+   * @param columnNames names of the value columns
+   * @param blockRows number of rows after which a block is completed
+   */
+  public RankFileWriter(OutputStream stream, String[] columnNames, int blockRows) throws IOException {
+    counter = new CountingOutputStream(stream);
+    out = new DataOutputStream(counter);
+    numColumns = columnNames.length;
+    this.blockRows = Math.max(1, blockRows);
+    values = new double[numColumns][1024];
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(numColumns);
+    for (String name : columnNames) {
+      out.writeUTF(name);
+    }
+  }
+
+  /**
+   * start the rows of a new query; the rows of a query must be added
+   * contiguously, and RankFile rejects files with a query key twice.
+   *
+   * @param query query key; null is stored as the empty string
+   */
+  public void startQuery(String query) throws IOException {
+    if (queryStart >= 0 && numRows >= blockRows) {
+      writeBlock();
+    }
+    queries.add((query == null ? "" : query).getBytes(QrelsIndex.UTF8));
+    if (queries.size() == queryRows.length) {
+      queryRows = Arrays.copyOf(queryRows, 2 * queryRows.length);
+    }
+    queryRows[queries.size() - 1] = numRows;
+    queryStart = numRows;
+  }
+
+  /**
+   * @param id item id, or null
+   * @param rowValues one value per column; NaN for null
+   */
+  public void addRow(String id, double[] rowValues) {
+    if (queryStart < 0) {
+      throw new IllegalStateException("addRow() called before startQuery()");
+    }
+    if (numRows == codes.length) {
+      int capacity = 2 * numRows;
+      codes = Arrays.copyOf(codes, capacity);
+      for (int c = 0; c < numColumns; c++) {
+        values[c] = Arrays.copyOf(values[c], capacity);
+      }
+    }
+    int code = -1;
+    if (id != null) {
+      Integer existing = idCodes.get(id);
+      if (existing == null) {
+        existing = ids.size();
+        idCodes.put(id, existing);
+        ids.add(id.getBytes(QrelsIndex.UTF8));
+      }
+      code = existing;
+    }
+    codes[numRows] = code;
+    for (int c = 0; c < numColumns; c++) {
+      values[c][numRows] = rowValues[c];
+    }
+    numRows++;
+  }
+
+  private void writeBlock() throws IOException {
+    int numQueries = queries.size();
+    if (numQueries == 0) {
+      return;
+    }
+    int queryBlobSize = 0;
+    for (byte[] q : queries) {
+      queryBlobSize += q.length;
+    }
+    int idBlobSize = 0;
+    for (byte[] id : ids) {
+      idBlobSize += id.length;
+    }
+    int length = 16 + 4 * (numQueries + 1) * 2 + 4 * (ids.size() + 1) + 4 * numRows
+      + 8 * numColumns * numRows + queryBlobSize + idBlobSize;
+
+    ByteBuffer body = ByteBuffer.allocate(length);
+    body.putInt(numQueries);
+    body.putInt(numRows);
+    body.putInt(ids.size());
+    body.putInt(numColumns);
+    for (int q = 0; q < numQueries; q++) {
+      body.putInt(queryRows[q]);
+    }
+    body.putInt(numRows);
+    int offset = 0;
+    body.putInt(offset);
+    for (byte[] q : queries) {
+      offset += q.length;
+      body.putInt(offset);
+    }
+    offset = 0;
+    body.putInt(offset);
+    for (byte[] id : ids) {
+      offset += id.length;
+      body.putInt(offset);
+    }
+    for (int i = 0; i < numRows; i++) {
+      body.putInt(codes[i]);
+    }
+    for (int c = 0; c < numColumns; c++) {
+      for (int i = 0; i < numRows; i++) {
+        body.putDouble(values[c][i]);
+      }
+    }
+    for (byte[] q : queries) {
+      body.put(q);
+    }
+    for (byte[] id : ids) {
+      body.put(id);
+    }
+
+    blockOffsets.add(counter.count);
+    out.writeInt(BLOCK_MAGIC);
+    out.writeInt(length);
+    out.write(body.array());
+
+    queries.clear();
+    idCodes.clear();
+    ids.clear();
+    numRows = 0;
+    queryStart = -1;
+  }
+
+  /**
+   * write the last block and the footer, and close the stream.
+   */
+  public void close() throws IOException {
+    writeBlock();
+    long footerOffset = counter.count;
+    out.writeInt(FOOTER_MAGIC);
+    out.writeInt(blockOffsets.size());
+    for (long offset : blockOffsets) {
+      out.writeLong(offset);
+    }
+    out.writeLong(footerOffset);
+    out.writeInt(MAGIC);
+    out.close();
+  }
+
+  /**
+   * counts the bytes written, as DataOutputStream.size() stops at 2^31 - 1.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  };
+};
@@ -0,0 +1,301 @@
+package pigrank;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.Expression;
+import org.apache.pig.FileInputLoadFunc;
+import org.apache.pig.LoadMetadata;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceStatistics;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Pig LoadFunc for files in the pigrank binary format, as written by
+ * RankStorage. Returns one tuple (query, rows) per query, where rows is a
+ * bag of (id, column1, column2, ...) tuples; the value columns are doubles,
+ * and NaN values are returned as null. The query groups need no shuffle,
+ * and the values no parsing.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * -- rows contain (id, score, target)
+ * define NDCG pigrank.DCG('normalized', '10', '1', '2');
+ *
+ * data = load 'ranked' using pigrank.RankLoader();
+ *
+ * eval = foreach data
+ * generate
+ *         query,
+ *         NDCG(rows) as ndcg
+ * ;
+ * </pre>
+ *
+ * Files are not split; each one is read by a single map task.
+ */
+
+public class RankLoader extends FileInputLoadFunc implements LoadMetadata {
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+  private static final BagFactory bagFactory = BagFactory.getInstance();
+
+  private RecordReader<NullWritable, Tuple> reader;
+
+  @Override
+  public InputFormat<NullWritable, Tuple> getInputFormat() throws IOException {
+    return new RankInputFormat();
+  }
+
+  @Override
+  public void setLocation(String location, Job job) throws IOException {
+    FileInputFormat.setInputPaths(job, location);
+  }
+
+  @Override
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
+    // the raw type is fixed by LoadFunc; the reader comes from RankInputFormat
+    this.reader = reader;
+  }
+
+  @Override
+  public Tuple getNext() throws IOException {
+    try {
+      return reader.nextKeyValue() ? reader.getCurrentValue() : null;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public ResourceSchema getSchema(String location, Job job) throws IOException {
+    Path file = findFile(location, job.getConfiguration());
+    if (file == null) {
+      return null;
+    }
+    FSDataInputStream in = file.getFileSystem(job.getConfiguration()).open(file);
+    try {
+      return new ResourceSchema(getSchema(readColumnNames(in)));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return schema of the loaded tuples: (query, rows: {(id, columns...)})
+   */
+  static Schema getSchema(String[] columnNames) throws IOException {
+    Schema rowSchema = new Schema();
+    rowSchema.add(new FieldSchema("id", DataType.CHARARRAY));
+    for (String name : columnNames) {
+      rowSchema.add(new FieldSchema(name, DataType.DOUBLE));
+    }
+    Schema bagSchema = new Schema(new FieldSchema("row", rowSchema, DataType.TUPLE));
+    Schema schema = new Schema();
+    schema.add(new FieldSchema("query", DataType.CHARARRAY));
+    schema.add(new FieldSchema("rows", bagSchema, DataType.BAG));
+    return schema;
+  }
+
+  /**
+   * @return first data file of a location, skipping hidden files
+   */
+  private static Path findFile(String location, Configuration conf) throws IOException {
+    Path path = new Path(location);
+    FileSystem fs = path.getFileSystem(conf);
+    FileStatus[] matches = fs.globStatus(path);
+    if (matches == null) {
+      return null;
+    }
+    ArrayList<FileStatus> candidates = new ArrayList<FileStatus>();
+    for (FileStatus status : matches) {
+      if (status.isDirectory()) {
+        for (FileStatus child : fs.listStatus(status.getPath())) {
+          candidates.add(child);
+        }
+      } else {
+        candidates.add(status);
+      }
+    }
+    for (FileStatus status : candidates) {
+      String name = status.getPath().getName();
+      if (!status.isDirectory() && !name.startsWith("_") && !name.startsWith(".")) {
+        return status.getPath();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * read the file header, up to the first block.
+   */
+  static String[] readColumnNames(DataInputStream in) throws IOException {
+    if (in.readInt() != RankFileWriter.MAGIC) {
+      throw new IOException("not a pigrank file");
+    }
+    int version = in.readInt();
+    if (version != RankFileWriter.VERSION) {
+      throw new IOException("unsupported pigrank file version " + version);
+    }
+    String[] columnNames = new String[in.readInt()];
+    for (int c = 0; c < columnNames.length; c++) {
+      columnNames[c] = in.readUTF();
+    }
+    return columnNames;
+  }
+
+  @Override
+  public ResourceStatistics getStatistics(String location, Job job) throws IOException {
+    return null;
+  }
+
+  @Override
+  public String[] getPartitionKeys(String location, Job job) throws IOException {
+    return null;
+  }
+
+  @Override
+  public void setPartitionFilter(Expression partitionFilter) throws IOException {
+  }
+
+  /**
+   * input format reading whole files, block by block.
+   */
+  public static class RankInputFormat extends FileInputFormat<NullWritable, Tuple> {
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+      return false;
+    }
+
+    @Override
+    public RecordReader<NullWritable, Tuple> createRecordReader(InputSplit split, TaskAttemptContext context) {
+      return new RankRecordReader();
+    }
+  };
+
+  /**
+   * reads one block at a time, and returns its queries as (query, rows) tuples.
+   */
+  static class RankRecordReader extends RecordReader<NullWritable, Tuple> {
+
+    private FSDataInputStream in;
+    private long length;
+    private RankBlock block;
+    private int query;
+    private boolean done;
+    private Tuple current;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+      Path file = ((FileSplit)split).getPath();
+      FileSystem fs = file.getFileSystem(context.getConfiguration());
+      length = fs.getFileStatus(file).getLen();
+      in = fs.open(file);
+      readColumnNames(in);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      while (block == null || query == block.getNumQueries()) {
+        if (done || !nextBlock()) {
+          done = true;
+          current = null;
+          return false;
+        }
+      }
+      current = getGroup(block, query++);
+      return true;
+    }
+
+    private boolean nextBlock() throws IOException {
+      int magic;
+      try {
+        magic = in.readInt();
+      } catch (EOFException e) {
+        throw new IOException("pigrank file is truncated", e);
+      }
+      if (magic == RankFileWriter.FOOTER_MAGIC) {
+        return false;
+      }
+      if (magic != RankFileWriter.BLOCK_MAGIC) {
+        throw new IOException("invalid block at offset " + (in.getPos() - 4));
+      }
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      block = new RankBlock(ByteBuffer.wrap(body));
+      query = 0;
+      return true;
+    }
+
+    @Override
+    public NullWritable getCurrentKey() {
+      return NullWritable.get();
+    }
+
+    @Override
+    public Tuple getCurrentValue() {
+      return current;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      return done || length == 0 ? 1.0f : (float)in.getPos() / length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+    }
+  };
+
+  /**
+   * @return tuple (query, rows) of a query in a block
+   */
+  static Tuple getGroup(RankBlock block, int query) throws IOException {
+    int first = block.getFirstRow(query);
+    int n = block.getNumRows(query);
+    int numColumns = block.getNumColumns();
+    DataBag rows = bagFactory.newDefaultBag();
+    for (int row = first; row < first + n; row++) {
+      Tuple t = tupleFactory.newTuple(1 + numColumns);
+      t.set(0, block.getId(row));
+      for (int c = 0; c < numColumns; c++) {
+        double value = block.getValue(c, row);
+        t.set(1 + c, Double.isNaN(value) ? null : value);
+      }
+      rows.add(t);
+    }
+    Tuple group = tupleFactory.newTuple(2);
+    group.set(0, block.getQuery(query));
+    group.set(1, rows);
+    return group;
+  }
+};
@@ -0,0 +1,191 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceSchema.ResourceFieldSchema;
+import org.apache.pig.StoreFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.util.UDFContext;
+
+/**
+ * Pig StoreFunc for the pigrank binary format (see RankFileWriter):
+ * query-clustered blocks of primitive value columns, with dictionary
+ * encoded ids and a per-block query index. Read it with RankLoader, or
+ * with RankFile for local random access.
+ *
+ * Stores tuples (query, rows), where rows is a bag of (id, value1,
+ * value2, ...) tuples with numeric values, e.g. the result of grouping
+ * by query. The column names are taken from the schema of the rows.
+ *
+ * <pre>
+ * Example use in a pig script:
+ *
+ * data = load 'input' using PigStorage('\t') as (
+ *         query:chararray,
+ *         id:chararray,
+ *         score:double,
+ *         target:double
+ * );
+ *
+ * data_gr = group data by query;
+ *
+ * ranked = foreach data_gr
+ * generate
+ *         group as query,
+ *         data.(id, score, target) as rows
+ * ;
+ *
+ * store ranked into 'ranked' using pigrank.RankStorage();
+ * </pre>
+ */
+
+public class RankStorage extends StoreFunc {
+
+  private static final String COLUMNS_PROPERTY = "pigrank.rankstorage.columns";
+
+  private String signature;
+  private RankRecordWriter writer;
+
+  @Override
+  public OutputFormat<NullWritable, Tuple> getOutputFormat() throws IOException {
+    return new RankOutputFormat();
+  }
+
+  @Override
+  public void setStoreLocation(String location, Job job) throws IOException {
+    FileOutputFormat.setOutputPath(job, new Path(location));
+  }
+
+  @Override
+  public void setStoreFuncUDFContextSignature(String signature) {
+    this.signature = signature;
+  }
+
+  private Properties getProperties() {
+    return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { signature });
+  }
+
+  @Override
+  public void checkSchema(ResourceSchema schema) throws IOException {
+    ResourceFieldSchema[] fields = schema.getFields();
+    if (fields.length != 2 || fields[1].getType() != DataType.BAG) {
+      throw new IOException("RankStorage expects tuples (query, rows), where rows is a bag; found " + schema);
+    }
+    ResourceFieldSchema[] rowFields = fields[1].getSchema().getFields()[0].getSchema().getFields();
+    StringBuilder names = new StringBuilder();
+    for (int c = 1; c < rowFields.length; c++) {
+      if (!DataType.isNumberType(rowFields[c].getType()) && rowFields[c].getType() != DataType.BYTEARRAY) {
+        throw new IOException("RankStorage expects numeric value columns, found " + DataType.findTypeName(rowFields[c].getType()));
+      }
+      if (c > 1) {
+        names.append(',');
+      }
+      names.append(rowFields[c].getName() == null ? "c" + (c - 1) : rowFields[c].getName());
+    }
+    getProperties().setProperty(COLUMNS_PROPERTY, names.toString());
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void prepareToWrite(RecordWriter writer) throws IOException {
+    // the raw type is fixed by StoreFunc; the writer comes from RankOutputFormat
+    this.writer = (RankRecordWriter)writer;
+    String names = getProperties().getProperty(COLUMNS_PROPERTY);
+    if (names != null) {
+      this.writer.columnNames = names.isEmpty() ? new String[0] : names.split(",");
+    }
+  }
+
+  @Override
+  public void putNext(Tuple t) throws IOException {
+    writer.write(NullWritable.get(), t);
+  }
+
+  /**
+   * output format writing one pigrank file per task.
+   */
+  public static class RankOutputFormat extends FileOutputFormat<NullWritable, Tuple> {
+
+    @Override
+    public RecordWriter<NullWritable, Tuple> getRecordWriter(TaskAttemptContext context) throws IOException {
+      Path file = getDefaultWorkFile(context, ".prk");
+      return new RankRecordWriter(file.getFileSystem(context.getConfiguration()).create(file, false));
+    }
+  };
+
+  static class RankRecordWriter extends RecordWriter<NullWritable, Tuple> {
+
+    private FSDataOutputStream out;
+    private RankFileWriter writer;
+    private double[] values;
+
+    /** names of value columns; if unknown, c0, c1, ... */
+    String[] columnNames;
+
+    RankRecordWriter(FSDataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(NullWritable key, Tuple t) throws IOException {
+      if (t == null || t.size() < 2) {
+        throw new IOException("RankStorage expects tuples (query, rows), found " + t);
+      }
+      DataBag rows = (DataBag)t.get(1);
+      if (writer == null) {
+        open(rows);
+      }
+      Object query = t.get(0);
+      writer.startQuery(query == null ? null : DataType.toString(query));
+      if (rows == null) {
+        return;
+      }
+      Iterator<Tuple> it = rows.iterator();
+      while (it.hasNext()) {
+        Tuple row = it.next();
+        Object id = row.get(0);
+        for (int c = 0; c < values.length; c++) {
+          Object value = 1 + c < row.size() ? row.get(1 + c) : null;
+          values[c] = value == null ? Double.NaN : DataType.toDouble(value);
+        }
+        writer.addRow(id == null ? null : DataType.toString(id), values);
+      }
+    }
+
+    private void open(DataBag rows) throws IOException {
+      if (columnNames == null) {
+        int numColumns = 0;
+        if (rows != null && rows.size() > 0) {
+          numColumns = rows.iterator().next().size() - 1;
+        }
+        columnNames = new String[numColumns];
+        for (int c = 0; c < numColumns; c++) {
+          columnNames[c] = "c" + c;
+        }
+      }
+      values = new double[columnNames.length];
+      writer = new RankFileWriter(out, columnNames);
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException {
+      if (writer == null) {
+        writer = new RankFileWriter(out, columnNames == null ? new String[0] : columnNames);
+      }
+      writer.close();
+    }
+  };
+};
@@ -1,42 +1,7 @@
 package pigrank;
 
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.HashMap;
-
-/** auxiliary class to represent one row in a ranked list. */
-class RankItem implements Comparable<RankItem> {
-
-  /**
-   * @param id unique identifier for item; used for comparison with other ranking
-   * @param score rank score
-   * @param target target value
-   */
-  public RankItem(String id, double score, double target) {
-    this.id = id;
-    this.score = score;
-    this.target = target;
-  };
-
-  /** order descending by first element **/
-  @Override
-  public int compareTo(RankItem o2) {
-    double diff = ((RankItem) o2).score - this.score;
-    return (diff < 0 ? -1 : (diff > 0 ? 1 : 0));
-  };
-
-  /** unique identifier used for similarity measures */
-  public String id;
-
-  /** score used for ranking */
-  public double score;
-
-  /** target used for ranking quality measures */
-  public double target;
-};
-
+import java.util.Arrays;
 
 /**
  * class to compute rank measures.
@@ -56,41 +21,204 @@ class RankItem implements Comparable<RankItem> {
  * the tied items. <p>
  * if there are items with the same score on either side of the
  * rank cutoff, we consider all items with this score. Therefore
- * items ranked greater than max_rank aren't strictly ignored.
+ * items ranked greater than max_rank aren't strictly ignored. <p>
+ * items are stored column-wise in primitive arrays; the id column is
+ * only allocated once a non-null id is added.
  */
 
-public class Ranking extends ArrayList<RankItem> {
+public class Ranking extends AbstractRanking {
+
+  /** unique identifiers used for similarity measures; null if no ids were added */
+  protected String[] ids;
+
+  /** scores used for ranking */
+  protected double[] scores;
+
+  /** targets used for ranking quality measures */
+  protected double[] targets;
 
-  protected static final double LOG2 = Math.log(2.0);
+  /** insertion index of each item; in rank order after rank() */
+  protected int[] positions;
+
+  /** supplies identifiers on first access; null if all ids were added */
+  protected IdSource idSource;
 
   /**
    * @param size initial memory capacity allocated
    */
   public Ranking(int size) {
-    ensureCapacity(size);
+    size = Math.max(size, 1);
+    scores = new double[size];
+    targets = new double[size];
+    this.size = 0;
+  }
+
+  /**
+   * create a ranking from columns of equal length; the arrays are copied.
+   *
+   * @param ids item identifiers, or null if not needed
+   * @param scores rank scores
+   * @param targets target values, or null if not needed
+   * @param size number of items
+   */
+  public Ranking(String[] ids, double[] scores, double[] targets, int size) {
+    this.ids = (ids == null) ? null : Arrays.copyOf(ids, Math.max(size, 1));
+    this.scores = Arrays.copyOf(scores, Math.max(size, 1));
+    this.targets = (targets == null) ? new double[Math.max(size, 1)] : Arrays.copyOf(targets, Math.max(size, 1));
+    this.size = size;
+  }
+
+  /**
+   * materialize identifiers lazily: the id of an item is only requested
+   * from the source when it is accessed for the first time, e.g., only for
+   * the top items if a measure uses a cutoff.
+   *
+   * @param source supplies the id of an item by its insertion index
+   */
+  public void setIdSource(IdSource source) {
+    idSource = source;
   }
 
   public void addItem(String id, double score, double target) {
-    add(new RankItem(id, score, target));
+    if (size == scores.length) {
+      int capacity = 2 * size;
+      scores = Arrays.copyOf(scores, capacity);
+      targets = Arrays.copyOf(targets, capacity);
+      if (ids != null) {
+        ids = Arrays.copyOf(ids, capacity);
+      }
+    }
+    if (id != null && ids == null) {
+      ids = new String[scores.length];
+    }
+    if (ids != null) {
+      ids[size] = id;
+    }
+    scores[size] = score;
+    targets[size] = target;
+    size++;
+  }
+
+  /**
+   * Sort items in decreasing order of rank score, for measures down to a
+   * rank cutoff. Items below the cutoff may be dropped, except those tied
+   * with the item at the cutoff, so that DCG and MRR with this cutoff are
+   * the same as after rank(). The algorithm is chosen by SortDispatcher.
+   *
+   * @param cutoff maximum rank of the measures, or Integer.MAX_VALUE
+   */
+  public void rank(int cutoff) {
+    SortDispatcher dispatcher = SortDispatcher.getDefault();
+    sortPath = dispatcher.choose(scores, size, cutoff);
+    positions = (sortPath == SortDispatcher.Path.TOP)
+      ? dispatcher.sortTop(scores, size, cutoff)
+      : SortDispatcher.sortOrder(scores, size, sortPath);
+    if (positions == null) {
+      sortPath = SortDispatcher.Path.MERGE;
+      positions = SortDispatcher.sortOrder(scores, size, sortPath);
+    }
+    size = positions.length;
+    reorder();
+  }
+
+  /**
+   * Sort only the top k items in decreasing order of rank score, and drop
+   * all others. The result is the same as the first k items after rank(),
+   * but it takes linear time to select them, plus O(k log k) to sort them.
+   *
+   * @param k number of top items to keep
+   */
+  public void rankTop(int k) {
+    if (k >= size) {
+      rank();
+      return;
+    }
+
+    double[] copy = Arrays.copyOf(scores, size);
+    for (int i = 0; i < size; i++) {
+      if (Double.isNaN(copy[i])) {
+        // no total order, keep the behavior of a full sort
+        rank();
+        size = k;
+        return;
+      }
+    }
+    double threshold = selectLargest(copy, size, k);
+
+    // items above the threshold, plus the first tied ones in insertion order
+    int[] top = new int[k];
+    int numAbove = 0;
+    for (int i = 0; i < size; i++) {
+      if (scores[i] > threshold) {
+        top[numAbove++] = i;
+      }
+    }
+    int n = numAbove;
+    for (int i = 0; i < size && n < k; i++) {
+      if (scores[i] == threshold) {
+        top[n++] = i;
+      }
+    }
+
+    sortIndices(scores, top, k);
+    positions = top;
+    size = k;
+    reorder();
+  }
+
+  /**
+   * arrange the columns in the order given by positions.
+   */
+  private void reorder() {
+    scores = gather(scores, positions);
+    targets = gather(targets, positions);
+    if (ids != null) {
+      String[] sortedIds = new String[scores.length];
+      for (int i = 0; i < size; i++) {
+        sortedIds[i] = ids[positions[i]];
+      }
+      ids = sortedIds;
+    }
   }
 
   /**
-   * Sort items in decreasing order of rank score
+   * replace the target column, e.g. to evaluate the same ranking against
+   * several targets without sorting again.
+   *
+   * @param values new target values, in insertion order
    */
-  public void rank() {
-    Collections.sort(this);
+  public void setTargets(double[] values) {
+    for (int i = 0; i < size; i++) {
+      targets[i] = values[positions == null ? i : positions[i]];
+    }
   }
 
   public double getTarget(int i) {
-    return get(i).target;
+    return targets[i];
   }
 
   public double getScore(int i) {
-    return get(i).score;
+    return scores[i];
   }
 
   public String getID(int i) {
-    return get(i).id;
+    if (idSource != null) {
+      if (ids == null) {
+        ids = new String[scores.length];
+      }
+      if (ids[i] == null) {
+        ids[i] = idSource.getID(getPosition(i));
+      }
+    }
+    return ids == null ? null : ids[i];
+  }
+
+  /**
+   * @param i rank (zero-based)
+   * @return index at which the item with rank i was inserted
+   */
+  public int getPosition(int i) {
+    return positions == null ? i : positions[i];
   }
 
   public String toString() {
@@ -102,54 +230,133 @@ public class Ranking extends ArrayList<RankItem> {
   }
 
   /**
-   * mean reciprocal rank
-   * @param cutoff ranks greater than this are ignored
-   * @return mrr value
+   * stable sort in decreasing order of score, without boxing, by the
+   * algorithm that SortDispatcher chooses for the size and ties.
+   *
+   * @param scores rank scores
+   * @param size number of items
+   * @return item indices in rank order
    */
-  public double getMRR(int cutoff) {
-    int maxIter = Math.min(size(), cutoff);
-    int tiedCount = 0;        // number of items with same score as current one
-    int tiedTargetCount = 0;  // number of positive targets with same score as current one
-    double lastScore = Double.POSITIVE_INFINITY;
-    int tiedTopRank = 0;
-    for (int i = 0; i < maxIter || (i < size() && tiedTargetCount > 0); i++) {
-      double score = getScore(i);
-      if (score != lastScore) {
-        if (tiedTargetCount > 0) {
-          // positive target found, lower items are irrelevant
-          break;
-        }
+  static int[] sortOrder(double[] scores, int size) {
+    return SortDispatcher.getDefault().sortOrder(scores, size);
+  }
 
-        // reset tie counters
-        tiedTopRank = i;
-        tiedCount = 1;
-        tiedTargetCount = (getTarget(i) > 0.0) ? 1 : 0;
-        lastScore = score;
+  /**
+   * stable sort of item indices in decreasing order of score.
+   *
+   * @param scores rank scores
+   * @param order item indices to sort
+   * @param size number of indices
+   */
+  static void sortIndices(double[] scores, int[] order, int size) {
+    sortIndices(scores, order, new int[size], size);
+  }
 
-      } else {
-        // score == lastScore
-        tiedCount++;
-        if (getTarget(i) > 0.0) {
-          tiedTargetCount++;
+  /**
+   * stable sort of item indices in decreasing order of score, with a
+   * merge buffer supplied by the caller, e.g. to reuse it across queries.
+   *
+   * @param scores rank scores
+   * @param order item indices to sort
+   * @param buf merge buffer of at least size elements
+   * @param size number of indices
+   */
+  static void sortIndices(double[] scores, int[] order, int[] buf, int size) {
+
+    // insertion sort of short runs
+    for (int lo = 0; lo < size; lo += INSERTION_SORT_RUN) {
+      int hi = Math.min(lo + INSERTION_SORT_RUN, size);
+      for (int i = lo + 1; i < hi; i++) {
+        int item = order[i];
+        double score = scores[item];
+        int j = i;
+        while (j > lo && score > scores[order[j - 1]]) {
+          order[j] = order[j - 1];
+          j--;
         }
+        order[j] = item;
       }
     }
 
-    if (tiedTargetCount > 0) {
-      // we iterate over each position and determine the probability that the *first*
-      // non-zero target is in that position
-      double expMrr = 0.0;
-      double pNoPos = 1.0; // P(t[0:i-1]=0) - probability that we haven't seen a positive yet
-      for (int j = 0; j < tiedCount - tiedTargetCount + 1; j++) {
-        double pPos = ((double) tiedTargetCount) / (tiedCount - j); // P(t[j]=1|t[0:j-1]=0)
-        expMrr += pNoPos * pPos / (tiedTopRank + j + 1);
-        pNoPos *= (1.0 - pPos);
+    // bottom-up merge of runs; an item of the right run is only taken
+    // first if its score is strictly greater, which keeps ties in order
+    for (int width = INSERTION_SORT_RUN; width < size; width *= 2) {
+      for (int lo = 0; lo < size - width; lo += 2 * width) {
+        int mid = lo + width;
+        int hi = Math.min(lo + 2 * width, size);
+        if (!(scores[order[mid]] > scores[order[mid - 1]])) {
+          continue; // runs already in order
+        }
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+          buf[k++] = (scores[order[j]] > scores[order[i]]) ? order[j++] : order[i++];
+        }
+        while (i < mid) {
+          buf[k++] = order[i++];
+        }
+        while (j < hi) {
+          buf[k++] = order[j++];
+        }
+        System.arraycopy(buf, lo, order, lo, hi - lo);
       }
-      return expMrr;
     }
+  }
 
+  /**
+   * quickselect of the k-th largest value; the array is partially reordered.
+   *
+   * @param values values without NaN
+   * @param size number of values
+   * @param k rank of the value to select (one-based)
+   * @return k-th largest value
+   */
+  static double selectLargest(double[] values, int size, int k) {
+    int lo = 0;
+    int hi = size - 1;
+    int target = k - 1;
+    while (lo < hi) {
+      // median of three as pivot
+      int mid = (lo + hi) >>> 1;
+      double a = values[lo];
+      double b = values[mid];
+      double c = values[hi];
+      double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+      // partition into (> pivot), (== pivot), (< pivot)
+      int lt = lo;
+      int gt = hi;
+      int i = lo;
+      while (i <= gt) {
+        double v = values[i];
+        if (v > pivot) {
+          values[i++] = values[lt];
+          values[lt++] = v;
+        } else if (v < pivot) {
+          values[i] = values[gt];
+          values[gt--] = v;
+        } else {
+          i++;
+        }
+      }
+      if (target < lt) {
+        hi = lt - 1;
+      } else if (target > gt) {
+        lo = gt + 1;
+      } else {
+        return pivot;
+      }
+    }
+    return values[lo];
+  }
 
-    return 0.0;
+  private static double[] gather(double[] values, int[] order) {
+    double[] result = new double[values.length];
+    for (int i = 0; i < order.length; i++) {
+      result[i] = values[order[i]];
+    }
+    return result;
   }
 
   /**
@@ -159,78 +366,107 @@ public class Ranking extends ArrayList<RankItem> {
    * @return DCG value
    */
   public double getDCG(int cutoff, boolean normalized) {
+    return Kernels.get().dcg(scores, targets, size, cutoff, normalized);
+  }
 
-    double sum = 0.0;        // discounted sum of target values
-    double sumWeight = 0.0;  // sum of discount factors
-
-    int tiedCount = 0;       // number of items with same score as current one
-    double tiedWeight = 0.0; // sum of discount factors for items with the current item's score
-    double tiedSum = 0;      // sum of targets with the current item's score
-    double lastScore = Double.POSITIVE_INFINITY;
+  /**
+   * discounted cumulative gain with another position discount; for
+   * another gain, apply it to the targets before adding them.
+   *
+   * @param cutoff ranks greater than this are ignored
+   * @param normalized if true, divide by total position weight
+   * @param discount position discount
+   * @return DCG value
+   */
+  public double getDCG(int cutoff, boolean normalized, Discount discount) {
+    return Kernels.get().dcg(scores, targets, size, cutoff, normalized, discount.getWeights(Math.min(size, cutoff)));
+  }
 
-    for (int i = 0; i < size(); i++) {
+  // best possible DCG under perfect ranking
+  public double getMaxDCG(int cutoff) {
+    return getMaxDCG(targets, size, cutoff);
+  }
 
-      double weight = LOG2 / Math.log(2.0 + i);
-      double score = getScore(i);
-      if (score != lastScore && tiedWeight > 0.0) {
+  // best possible DCG under perfect ranking, with another position discount
+  public double getMaxDCG(int cutoff, Discount discount) {
+    return getMaxDCG(targets, size, cutoff, discount);
+  }
 
-        // expected DCG for a set of tied items is just
-        // (mean of targets) x (sum of the discount factors)
-        sumWeight += tiedWeight;
-        sum += tiedWeight * tiedSum / tiedCount;
+  /**
+   * best possible DCG under perfect ranking; only depends on the targets,
+   * not on their order.
+   *
+   * @param targets target values
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @return ideal DCG value
+   */
+  public static double getMaxDCG(double[] targets, int size, int cutoff) {
+    double[] sorted = Arrays.copyOf(targets, size);
+    Arrays.sort(sorted);
+    return getMaxDCGOfSorted(sorted, size, cutoff);
+  }
 
-        // reset tie counters
-        tiedCount = 0;
-        tiedWeight = 0;
-        tiedSum = 0.0;
-        lastScore = score;
+  /**
+   * @param sorted target values in ascending order
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @return ideal DCG value
+   */
+  static double getMaxDCGOfSorted(double[] sorted, int size, int cutoff) {
 
-        if (i >= cutoff) {
-          break;
-        }
-      }
+    return Kernels.get().maxDCG(sorted, size, cutoff);
+  }
 
-      tiedCount++;
-      if (i < cutoff) {
-        // record all targets for tied ASINs, but only record discount
-        // factors for top min(size(), cutoff) positions
-        tiedWeight += weight;
-      }
-      tiedSum += getTarget(i);
-    }
+  /**
+   * best possible DCG with another position discount.
+   *
+   * @param targets target values, or their gains
+   * @param size number of items
+   * @param cutoff ranks greater than this are ignored
+   * @param discount position discount
+   * @return ideal DCG value
+   */
+  public static double getMaxDCG(double[] targets, int size, int cutoff, Discount discount) {
+    double[] sorted = Arrays.copyOf(targets, size);
+    Arrays.sort(sorted);
+    return getMaxDCGOfSorted(sorted, size, cutoff, discount);
+  }
 
-    // last group of ties
-    if (tiedWeight > 0.0) {
-      sumWeight += tiedWeight;
-      sum += tiedWeight * tiedSum / tiedCount;
+  static double getMaxDCGOfSorted(double[] sorted, int size, int cutoff, Discount discount) {
+    if (discount.isLog()) {
+      return getMaxDCGOfSorted(sorted, size, cutoff);
     }
-
-    return normalized ? sum / sumWeight : sum;
+    return Kernels.get().maxDCG(sorted, size, cutoff, discount.getWeights(Math.min(size, cutoff)));
   }
 
-  // best possible DCG under perfect ranking
-  public double getMaxDCG(int cutoff) {
-    ArrayList<Double> targets = new ArrayList<Double>(size());
+  /**
+   * encode the identifiers of all items, in rank order.
+   *
+   * @param dict dictionary shared by all rankings to be compared
+   * @return array of item codes
+   */
+  public int[] encodeIDs(IdDictionary dict) {
+    int[] codes = new int[size()];
     for (int i = 0; i < size(); i++) {
-      targets.add(getTarget(i));
-    }
-    Collections.sort(targets, Collections.reverseOrder());
-
-    double sum = 0.0;
-
-    for (int i = 0; i < Math.min(size(), cutoff); i++) {
-      sum += targets.get(i) / Math.log(2.0 + i);
+      codes[i] = dict.encode(getID(i));
     }
-
-    return sum * LOG2;
+    return codes;
   }
 
-  public double getNDCG(int cutoff) {
-    double maxDCG = getMaxDCG(cutoff);
-    if (maxDCG == 0.0) {
-      return 0.0;
+  /**
+   * @param codes item codes in rank order, as returned by encodeIDs()
+   * @param numCodes number of distinct codes in the dictionary
+   * @return array mapping each code to the (zero-based) rank of its first
+   *   occurrence, or Integer.MAX_VALUE if it does not occur
+   */
+  public static int[] getPositions(int[] codes, int numCodes) {
+    int[] pos = new int[numCodes];
+    Arrays.fill(pos, Integer.MAX_VALUE);
+    for (int i = codes.length - 1; i >= 0; i--) {
+      pos[codes[i]] = i;
     }
-    return getDCG(cutoff, false) / maxDCG;
+    return pos;
   }
 
   /** set-based similarity: cardinality of intersection, divided by
@@ -241,28 +477,54 @@ public class Ranking extends ArrayList<RankItem> {
    * @return jaccard coefficient [0-1]
    */
   public double jaccardSimilarity(Ranking other, int cutoff) {
+    IdDictionary dict = new IdDictionary(size() + other.size());
+    int[] codes1 = encodeIDs(dict);
+    int[] codes2 = other.encodeIDs(dict);
+    return jaccardSimilarity(codes1, getPositions(codes1, dict.size()),
+                             codes2, getPositions(codes2, dict.size()), cutoff);
+  }
 
-    HashSet<String> ids = new HashSet<String>(2*size());
-    for (int i = 0; i < Math.min(size(), cutoff); i++) {
-      ids.add(getID(i));
-    }
+  /**
+   * jaccard coefficient of two encoded rankings.
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param cutoff maximum number of top items to include in comparison
+   * @return jaccard coefficient [0-1]
+   */
+  public static double jaccardSimilarity(int[] codes1, int[] pos1, int[] codes2, int[] pos2, int cutoff) {
 
-    HashSet<String> idsOther = new HashSet<String>(2*other.size());
-    for (int i = 0; i < Math.min(other.size(), cutoff); i++) {
-      idsOther.add(other.getID(i));
+    int s1 = Math.min(codes1.length, cutoff);
+    int s2 = Math.min(codes2.length, cutoff);
+
+    // each item is counted only at its first occurrence
+    int count1 = 0;       // number of distinct items in first ranking
+    int intersection = 0; // number of distinct items in both rankings
+    for (int i = 0; i < s1; i++) {
+      int code = codes1[i];
+      if (pos1[code] == i) {
+        count1++;
+        if (pos2[code] < s2) {
+          intersection++;
+        }
+      }
     }
 
-    HashSet<String> union = new HashSet<String>(ids);
-    union.addAll(idsOther);
+    int count2 = 0;       // number of distinct items in second ranking
+    for (int i = 0; i < s2; i++) {
+      if (pos2[codes2[i]] == i) {
+        count2++;
+      }
+    }
 
-    if (union.size() == 0) {
+    int union = count1 + count2 - intersection;
+    if (union == 0) {
       return 0.0;
     }
 
-    HashSet<String> intersection = new HashSet<String>(ids);
-    intersection.retainAll(idsOther);
-
-    return (double)intersection.size() / union.size();
+    return (double)intersection / union;
   }
 
   /**
@@ -275,40 +537,49 @@ public class Ranking extends ArrayList<RankItem> {
    * @return cosine similarity value [0-1]
    */
   public double cosineSimilarity(Ranking other, int cutoff) {
+    IdDictionary dict = new IdDictionary(size() + other.size());
+    int[] codes1 = encodeIDs(dict);
+    int[] codes2 = other.encodeIDs(dict);
+    return cosineSimilarity(codes1, getPositions(codes1, dict.size()),
+                            codes2, getPositions(codes2, dict.size()), cutoff);
+  }
+
+  /**
+   * cosine similarity of two encoded rankings.
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param cutoff maximum number of top items to include in comparison
+   * @return cosine similarity value [0-1]
+   */
+  public static double cosineSimilarity(int[] codes1, int[] pos1, int[] codes2, int[] pos2, int cutoff) {
 
-    // swap such that r1 is the shorter ranking
-    Ranking r1;
-    Ranking r2;
-    if (size() > other.size()) {
-      r1 = other;
-      r2 = this;
-    } else {
-      r1 = this;
-      r2 = other;
+    // swap such that the first ranking is the shorter one
+    if (codes1.length > codes2.length) {
+      return cosineSimilarity(codes2, pos2, codes1, pos1, cutoff);
     }
 
-    int s1 = Math.min(r1.size(), cutoff);
-    int s2 = Math.min(r2.size(), cutoff);
+    int s1 = Math.min(codes1.length, cutoff);
+    int s2 = Math.min(codes2.length, cutoff);
 
     if (s1 == 0 || s2 == 0) {
       return 0.0;
     }
 
-    // build hash item -> weight
-    HashMap<String, Double> idWeight = new HashMap<String, Double>(2*r1.size());
     double sumWtWt = 0.0; // sum of squared weights
     for (int i = 0; i < s1; i++) {
       double wt = 1.0 / (i + 1.0);
       sumWtWt += wt * wt;
-      idWeight.put(r1.getID(i), wt);
     }
 
     double prod = 0.0; // scalar product of vectors
 
     for (int i = 0; i < s2; i++) {
-      String id = r2.getID(i);
-      if (idWeight.containsKey(id)) {
-        prod += idWeight.get(id) / (i + 1.0);
+      int j = pos1[codes2[i]];
+      if (j < s1) {
+        prod += (1.0 / (j + 1.0)) / (i + 1.0);
       }
     }
 
@@ -330,82 +601,392 @@ public class Ranking extends ArrayList<RankItem> {
    * @return rank-based overlap score [0-1]
    */
   public double rboSimilarity(Ranking other, double p) {
+    IdDictionary dict = new IdDictionary(size() + other.size());
+    int[] codes1 = encodeIDs(dict);
+    int[] codes2 = other.encodeIDs(dict);
+    return rboSimilarity(codes1, getPositions(codes1, dict.size()),
+                         codes2, getPositions(codes2, dict.size()), p);
+  }
 
-    // swap such that r1 is the shorter ranking
-    Ranking r1;
-    Ranking r2;
-    if (size() > other.size()) {
-      r1 = other;
-      r2 = this;
-    } else {
-      r1 = this;
-      r2 = other;
+  /**
+   * rank-biased overlap of two encoded rankings.
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param p probability of scanning the next result in the list
+   * @return rank-based overlap score [0-1]
+   */
+  public static double rboSimilarity(int[] codes1, int[] pos1, int[] codes2, int[] pos2, double p) {
+
+    // swap such that the first ranking is the shorter one
+    if (codes1.length > codes2.length) {
+      return rboSimilarity(codes2, pos2, codes1, pos1, p);
     }
 
-    int s1 = r1.size();
-    int s2 = r2.size();
+    int s1 = codes1.length;
+    int s2 = codes2.length;
 
     if (s1 == 0 || s2 == 0) {
       return 0.0;
     }
 
-    // set of items seen in first list, up to current rank
-    HashSet<String> ids1 = new HashSet<String>(2*s1);
-    // set of items seen in second list, up to current rank
-    HashSet<String> ids2 = new HashSet<String>(2*s2);
-
-    double sum1 = 0.0; // prefix score up to current rank
-    double[] overlap = new double[s2+1]; // size of intersection, for each (1-based) rank
-    overlap[0] = 0;
+    double sum1 = 0.0;    // prefix score up to current rank
+    double overlap = 0.0; // size of intersection at current rank
     for (int i = 0; i < s1; i++) {
       int d = i + 1;
-      String id1 = r1.getID(i);
-      String id2 = r2.getID(i);
-      overlap[d] = overlap[i];
-      if (id1.equals(id2)) {
-        if (!(ids1.contains(id1) && ids2.contains(id2))) {
-          overlap[d] += 1.0;
-        }
-      } else {
-        // id1 != id2
-        if (ids2.contains(id1) && (!ids1.contains(id1))) {
-          overlap[d] += 1.0;
-        }
-        if (ids1.contains(id2) && (!ids2.contains(id2))) {
-          overlap[d] += 1.0;
-        }
+      int code1 = codes1[i];
+      int code2 = codes2[i];
+      // an item enters the intersection at its first occurrence in one list,
+      // if it has already been seen in the other one
+      if (pos1[code1] == i && pos2[code1] <= i) {
+        overlap += 1.0;
+      }
+      if (pos2[code2] == i && pos1[code2] < i) {
+        overlap += 1.0;
       }
 
-      ids1.add(id1);
-      ids2.add(id2);
-
-      sum1 += overlap[d]/d * Math.pow(p, d);
+      sum1 += overlap/d * Math.pow(p, d);
     }
 
+    double overlap1 = overlap; // size of intersection at rank s1
+
     // continue with rest of longer list
     for (int i = s1; i < s2; i++) {
       int d = i + 1;
-      String id2 = r2.getID(i);
-      overlap[d] = overlap[i];
-      if (!ids2.contains(id2)) {
-        if (ids1.contains(id2)) {
-          overlap[d] += 1;
-        }
-        ids2.add(id2);
+      int code2 = codes2[i];
+      if (pos2[code2] == i && pos1[code2] < s1) {
+        overlap += 1.0;
       }
-      sum1 += overlap[d]/d * Math.pow(p, d);
+      sum1 += overlap/d * Math.pow(p, d);
     }
 
     double sum2 = 0.0;
     for (int i = s1; i < s2; i++) {
       int d = i + 1;
-      sum2 += overlap[s1] * (d-s1) / (d*s1) * Math.pow(p,d);
+      sum2 += overlap1 * (d-s1) / (d*s1) * Math.pow(p,d);
     }
 
-    double sum3 = ((overlap[s2]-overlap[s1])/s2 +overlap[s1]/s1) * Math.pow(p, s2);
+    double sum3 = ((overlap-overlap1)/s2 +overlap1/s1) * Math.pow(p, s2);
 
     // eq. 32 in the paper
     return (1.0 - p)/p * (sum1 + sum2) + sum3;
   }
 
+  /**
+   * Kendall's tau of two encoded rankings, over the items in both top
+   * lists: (concordant - discordant pairs) / all pairs of these items. The
+   * discordant pairs are counted as inversions by a merge sort, in
+   * O(n log n).
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param cutoff maximum number of top items to include in comparison
+   * @return Kendall's tau [-1, 1], or NaN if fewer than two items are shared
+   */
+  public static double kendallSimilarity(int[] codes1, int[] pos1, int[] codes2, int[] pos2, int cutoff) {
+
+    int s1 = Math.min(codes1.length, cutoff);
+    int s2 = Math.min(codes2.length, cutoff);
+
+    // positions in the second ranking of the shared items, in the order of the first
+    int[] order = new int[s1];
+    int n = 0;
+    for (int i = 0; i < s1; i++) {
+      int code = codes1[i];
+      if (pos1[code] == i && pos2[code] < s2) {
+        order[n++] = pos2[code];
+      }
+    }
+    if (n < 2) {
+      return Double.NaN;
+    }
+
+    long numPairs = (long)n * (n - 1) / 2;
+    long discordant = countInversions(order, new int[n], 0, n);
+    return (double)(numPairs - 2 * discordant) / numPairs;
+  }
+
+  /**
+   * sort a range of distinct values in increasing order.
+   *
+   * @return number of pairs out of order before sorting
+   */
+  private static long countInversions(int[] values, int[] buf, int lo, int hi) {
+    if (hi - lo < 2) {
+      return 0;
+    }
+    int mid = (lo + hi) >>> 1;
+    long count = countInversions(values, buf, lo, mid) + countInversions(values, buf, mid, hi);
+    int i = lo;
+    int j = mid;
+    int k = lo;
+    while (i < mid && j < hi) {
+      if (values[j] < values[i]) {
+        // values[j] precedes all remaining values of the left half
+        count += mid - i;
+        buf[k++] = values[j++];
+      } else {
+        buf[k++] = values[i++];
+      }
+    }
+    while (i < mid) {
+      buf[k++] = values[i++];
+    }
+    while (j < hi) {
+      buf[k++] = values[j++];
+    }
+    System.arraycopy(buf, lo, values, lo, hi - lo);
+    return count;
+  }
+
+  /**
+   * jaccard coefficients at all cutoffs 1..maxCutoff, computed in a single
+   * pass over both encoded rankings by maintaining the set sizes and the
+   * size of the intersection incrementally.
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param maxCutoff largest cutoff; the curve ends at the length of the longer ranking
+   * @return array of jaccard coefficients; element k-1 holds the value for cutoff k
+   */
+  public static double[] jaccardCurve(int[] codes1, int[] pos1, int[] codes2, int[] pos2, int maxCutoff) {
+
+    int n = Math.min(Math.max(codes1.length, codes2.length), maxCutoff);
+    double[] curve = new double[n];
+
+    int count1 = 0;       // number of distinct items in first ranking
+    int count2 = 0;       // number of distinct items in second ranking
+    int intersection = 0; // number of distinct items in both rankings
+
+    for (int i = 0; i < n; i++) {
+      if (i < codes1.length) {
+        int code = codes1[i];
+        if (pos1[code] == i) {
+          count1++;
+          if (pos2[code] <= i) {
+            intersection++;
+          }
+        }
+      }
+      if (i < codes2.length) {
+        int code = codes2[i];
+        if (pos2[code] == i) {
+          count2++;
+          if (pos1[code] < i) {
+            intersection++;
+          }
+        }
+      }
+      curve[i] = (double)intersection / (count1 + count2 - intersection);
+    }
+
+    return curve;
+  }
+
+  /**
+   * cosine similarities at all cutoffs 1..maxCutoff, computed in a single
+   * pass over both encoded rankings by maintaining the scalar product and
+   * the vector norms incrementally.
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param maxCutoff largest cutoff; the curve ends at the length of the longer ranking
+   * @return array of cosine similarities; element k-1 holds the value for cutoff k
+   */
+  public static double[] cosineCurve(int[] codes1, int[] pos1, int[] codes2, int[] pos2, int maxCutoff) {
+
+    int n = Math.min(Math.max(codes1.length, codes2.length), maxCutoff);
+    double[] curve = new double[n];
+
+    if (codes1.length == 0 || codes2.length == 0) {
+      return curve;
+    }
+
+    double prod = 0.0;    // scalar product of vectors
+    double sumWtWt1 = 0.0; // sum of squared weights of first vector
+    double sumWtWt2 = 0.0; // sum of squared weights of second vector
+
+    for (int i = 0; i < n; i++) {
+      double wt = 1.0 / (i + 1.0);
+      if (i < codes1.length) {
+        sumWtWt1 += wt * wt;
+        int code = codes1[i];
+        int j = pos2[code];
+        if (pos1[code] == i && j <= i) {
+          prod += wt / (j + 1.0);
+        }
+      }
+      if (i < codes2.length) {
+        sumWtWt2 += wt * wt;
+        int j = pos1[codes2[i]];
+        if (j < i) {
+          prod += wt / (j + 1.0);
+        }
+      }
+      curve[i] = prod / Math.sqrt(sumWtWt1 * sumWtWt2);
+    }
+
+    return curve;
+  }
+
+  /**
+   * rank-biased overlap for several persistence probabilities, computed
+   * in a single pass over both encoded rankings.
+   *
+   * @param codes1 item codes of first ranking, in rank order
+   * @param pos1 first positions of codes in first ranking, see getPositions()
+   * @param codes2 item codes of second ranking, in rank order
+   * @param pos2 first positions of codes in second ranking
+   * @param p probabilities of scanning the next result in the list
+   * @return array of rank-based overlap scores, one for each element of p
+   */
+  public static double[] rboCurve(int[] codes1, int[] pos1, int[] codes2, int[] pos2, double[] p) {
+
+    // swap such that the first ranking is the shorter one
+    if (codes1.length > codes2.length) {
+      return rboCurve(codes2, pos2, codes1, pos1, p);
+    }
+
+    int s1 = codes1.length;
+    int s2 = codes2.length;
+    int numP = p.length;
+
+    double[] curve = new double[numP];
+    if (s1 == 0 || s2 == 0) {
+      return curve;
+    }
+
+    double[] weight = new double[numP]; // p^d, updated incrementally
+    double[] sum1 = new double[numP];   // prefix scores
+    double[] sum2 = new double[numP];   // extrapolation beyond shorter list
+    Arrays.fill(weight, 1.0);
+
+    double overlap = 0.0;  // size of intersection at current rank
+    double overlap1 = 0.0; // size of intersection at rank s1
+
+    for (int i = 0; i < s2; i++) {
+      int d = i + 1;
+      int code2 = codes2[i];
+      if (i < s1) {
+        int code1 = codes1[i];
+        if (pos1[code1] == i && pos2[code1] <= i) {
+          overlap += 1.0;
+        }
+        if (pos2[code2] == i && pos1[code2] < i) {
+          overlap += 1.0;
+        }
+        overlap1 = overlap;
+      } else if (pos2[code2] == i && pos1[code2] < s1) {
+        overlap += 1.0;
+      }
+
+      for (int k = 0; k < numP; k++) {
+        weight[k] *= p[k];
+        sum1[k] += overlap/d * weight[k];
+        if (i >= s1) {
+          sum2[k] += overlap1 * (d-s1) / (d*s1) * weight[k];
+        }
+      }
+    }
+
+    for (int k = 0; k < numP; k++) {
+      double sum3 = ((overlap-overlap1)/s2 +overlap1/s1) * weight[k];
+      // eq. 32 in the paper
+      curve[k] = (1.0 - p[k])/p[k] * (sum1[k] + sum2[k]) + sum3;
+    }
+
+    return curve;
+  }
+
+  /**
+   * rank-biased overlap, evaluated down to a common depth, together with
+   * bounds on the value for the full (indefinite) rankings. Evaluation stops
+   * as soon as the bounds are closer than epsilon, when maxDepth is reached,
+   * or at the end of the shorter ranking. The cost is proportional to the
+   * evaluation depth, not to the length of the rankings.
+   *
+   * @see <a href="http://www.umiacs.umd.edu/~wew/papers/wmz10_tois.pdf">Webber et al (2010), A Similarity Measure for Indefinite Ranking</a>
+   *
+   * @param other another ranking to compare this one with
+   * @param p probability of scanning the next result in the list
+   * @param epsilon stop when the difference between upper and lower bound
+   *   is smaller than this; values of zero or less disable early termination
+   * @param maxDepth maximum evaluation depth
+   * @return array of extrapolated RBO (eq. 30 in the paper), minimum (eq. 11),
+   *   maximum (minimum plus residual, eq. 12), and evaluation depth
+   */
+  public double[] rboBounds(Ranking other, double p, double epsilon, int maxDepth) {
+
+    int maxIter = Math.min(Math.min(size(), other.size()), maxDepth);
+
+    // ids are encoded on the fly, so that no work is spent below the evaluation depth
+    IdDictionary dict = new IdDictionary(2 * Math.min(maxIter, 1024));
+    byte[] seen = new byte[64]; // bit 1: seen in this ranking, bit 2: seen in other ranking
+
+    double c = (1.0 - p) / p;
+    double weight = 1.0;             // p^d
+    double tail = -Math.log(1.0 - p); // sum of p^j/j for j > d
+    double sum = 0.0;                // sum of overlap(j)/j p^j for j <= d
+    int overlap = 0;                 // size of intersection at depth d
+    int d = 0;
+
+    while (d < maxIter) {
+      int code1 = dict.encode(getID(d));
+      int code2 = dict.encode(other.getID(d));
+      if (dict.size() > seen.length) {
+        seen = Arrays.copyOf(seen, 2 * dict.size());
+      }
+      if ((seen[code1] & 1) == 0) {
+        seen[code1] |= 1;
+        if ((seen[code1] & 2) != 0) {
+          overlap++;
+        }
+      }
+      if ((seen[code2] & 2) == 0) {
+        seen[code2] |= 2;
+        if ((seen[code2] & 1) != 0) {
+          overlap++;
+        }
+      }
+
+      d++;
+      weight *= p;
+      tail = Math.max(0.0, tail - weight / d);
+      sum += (double) overlap / d * weight;
+
+      // cheap upper bound on the residual, assuming all items agree beyond d
+      if (weight - c * overlap * tail < epsilon) {
+        break;
+      }
+    }
+
+    if (d == 0) {
+      return new double[] { 0.0, 0.0, 0.0, 0.0 };
+    }
+
+    double rboMin = c * (sum + overlap * tail);
+    double rboExt = (double) overlap / d * weight + c * sum;
+
+    // tight residual: beyond depth d, the overlap can grow by at most two per
+    // rank until depth f, when both rankings can be identical
+    int f = 2 * d - overlap;
+    double weightF = weight;
+    double tailF = tail;
+    for (int j = d + 1; j <= f; j++) {
+      weightF *= p;
+      tailF = Math.max(0.0, tailF - weightF / j);
+    }
+    double residual = 2.0 * weight - weightF - c * (2.0 * d * (tail - tailF) + overlap * tailF);
+
+    return new double[] { rboExt, rboMin, rboMin + residual, d };
+  }
+
 };
@@ -0,0 +1,162 @@
+package pigrank;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/**
+ * per-task cache of UDF results, keyed by a content hash of the extracted
+ * columns, so that identical rankings, e.g. of several treatments that
+ * return the same list for a query, are sorted and evaluated only once.
+ *
+ * The option cache=&lt;megabytes&gt; enables the cache with a limit on the
+ * estimated memory of its entries; beyond it, the least recently used
+ * entries are evicted. The key is seeded with the UDF name and arguments,
+ * and includes the row order, since ties are broken by it. Hits and misses
+ * are counted in the Hadoop counters CACHE_HITS and CACHE_MISSES of group
+ * "pigrank".
+ *
+ * Keys are 64-bit hashes (see ContentHash) and are not verified against
+ * the content; different rankings collide with probability about 2^-64.
+ */
+
+class ResultCache {
+
+  /** estimated memory of an entry without its value: map node, key, list links */
+  static final long ENTRY_BYTES = 80;
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  private final long maxBytes;
+  private long bytes;
+  private final long seed;
+  private final ContentHash hash = new ContentHash();
+
+  /** cached result and its estimated memory */
+  private static class Entry {
+    Object value;
+    long size;
+  };
+
+  /** entries in access order */
+  private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+
+  long numHits;
+  long numMisses;
+
+  /**
+   * @param maxBytes limit on the estimated memory of the entries
+   * @param udfName name of the UDF
+   * @param args UDF arguments, which determine the result together with the content
+   */
+  ResultCache(long maxBytes, String udfName, String[] args) {
+    this.maxBytes = maxBytes;
+    hash.reset().add(udfName);
+    for (String arg : args) {
+      hash.add(arg);
+    }
+    seed = hash.get();
+  }
+
+  /**
+   * read the option cache=&lt;megabytes&gt;.
+   *
+   * @return a cache, or null if the option is missing or at most zero
+   */
+  static ResultCache create(UDFOptions options, String udfName, String[] args) {
+    double megabytes = options.getDouble("cache", 0.0);
+    if (megabytes <= 0.0) {
+      return null;
+    }
+    return new ResultCache((long)(megabytes * (1 << 20)), udfName, args);
+  }
+
+  /**
+   * @return hash state for the key of a call, seeded with the UDF arguments
+   */
+  ContentHash start() {
+    return hash.reset().add(seed);
+  }
+
+  /**
+   * @param key content hash, see start()
+   * @return the cached result, or null; tuples are copied
+   */
+  Object get(long key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      numMisses++;
+      report("CACHE_MISSES");
+      return null;
+    }
+    numHits++;
+    report("CACHE_HITS");
+    return (entry.value instanceof Tuple) ? tupleFactory.newTuple(((Tuple)entry.value).getAll()) : entry.value;
+  }
+
+  /**
+   * @param key content hash, see start()
+   * @param value result of the call; null values are not cached
+   */
+  void put(long key, Object value) {
+    if (value == null) {
+      return;
+    }
+    long size = ENTRY_BYTES + getMemorySize(value);
+    if (size > maxBytes) {
+      return;
+    }
+    Entry entry = new Entry();
+    // the returned tuple belongs to the caller
+    entry.value = (value instanceof Tuple) ? tupleFactory.newTuple(((Tuple)value).getAll()) : value;
+    entry.size = size;
+    Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      bytes -= previous.size;
+    }
+    bytes += size;
+
+    // evict least recently used entries
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().size;
+      it.remove();
+    }
+  }
+
+  /**
+   * @return number of cached results
+   */
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return estimated memory of the cached results
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  private static long getMemorySize(Object value) {
+    if (value instanceof Tuple) {
+      return ((Tuple)value).getMemorySize();
+    }
+    if (value instanceof DataBag) {
+      return ((DataBag)value).getMemorySize();
+    }
+    // boxed number
+    return 16;
+  }
+
+  private static void report(String counter) {
+    PigStatusReporter reporter = PigStatusReporter.getInstance();
+    if (reporter != null) {
+      reporter.incrCounter(WorkBudget.COUNTER_GROUP, counter, 1L);
+    }
+  }
+};
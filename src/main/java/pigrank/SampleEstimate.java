@@ -0,0 +1,193 @@
+package pigrank;
+
+/**
+ * estimates of DCG and MRR of a full list from a uniform sample of its
+ * items, with standard errors; used beyond the work budget, see WorkBudget.
+ *
+ * With f = population / sample size, the sampled item at rank s stands for
+ * the items at the ranks [s * f, (s + 1) * f) of the full list, so its gain
+ * is weighted with the sum of the discounts of these ranks. Tied items share
+ * the discounts of their ranks, as in DCG. The ideal DCG is estimated in the
+ * same way from the sample sorted by gain, and normalized values are ratios
+ * of the estimates. For MRR, see getMRR().
+ *
+ * The standard error is a delete-a-group jackknife: the sample is split
+ * into NUM_GROUPS groups by a hash of the row, and each estimate is
+ * repeated with one group left out.
+ */
+
+class SampleEstimate {
+
+  /** number of jackknife groups */
+  static final int NUM_GROUPS = 10;
+
+  private final int size;
+  private final long population;
+
+  /** scores and gains of the sample in rank order, and the group of each item */
+  private final double[] scores;
+  private final double[] gains;
+  private final int[] groups;
+
+  /** item indices in decreasing order of gain */
+  private final int[] ideal;
+
+  /** number of items in each group */
+  private final int[] groupSizes = new int[NUM_GROUPS];
+
+  /**
+   * @param ranking sorted sample, with gains as targets
+   * @param population number of items the sample was drawn from
+   */
+  SampleEstimate(AbstractRanking ranking, long population) {
+    this.size = ranking.size();
+    this.population = Math.max(population, size);
+    scores = new double[size];
+    gains = new double[size];
+    groups = new int[size];
+    ideal = new int[size];
+    for (int i = 0; i < size; i++) {
+      scores[i] = ranking.getScore(i);
+      gains[i] = ranking.getTarget(i);
+      groups[i] = getGroup(ranking.getPosition(i));
+      groupSizes[groups[i]]++;
+      ideal[i] = i;
+    }
+    Ranking.sortIndices(gains, ideal, size);
+  }
+
+  /**
+   * the row slots of a reservoir sample follow the bag order, so they are
+   * hashed rather than taken modulo NUM_GROUPS.
+   */
+  private static int getGroup(int position) {
+    return (int)(((position * 0x9e3779b97f4a7c15L) >>> 32) % NUM_GROUPS);
+  }
+
+  /**
+   * @param excluded group left out, or -1 for the whole sample
+   * @return number of full-list ranks per sampled item
+   */
+  private double getScale(int excluded) {
+    int n = size - (excluded < 0 ? 0 : groupSizes[excluded]);
+    return n == 0 ? 0.0 : (double)population / n;
+  }
+
+  /**
+   * @param cutoff ranks greater than this are ignored
+   * @param discount position discount
+   * @param excluded group left out, or -1 for the whole sample
+   * @return estimated DCG of the full list
+   */
+  double getDCG(int cutoff, Discount discount, int excluded) {
+    double scale = getScale(excluded);
+    double sum = 0.0;
+    int rank = 0;
+    int i = 0;
+    while (i < size && rank * scale < cutoff) {
+      // tied items share the discounts of their ranks
+      double tiedSum = 0.0;
+      int tiedCount = 0;
+      int j = i;
+      do {
+        if (groups[j] != excluded) {
+          tiedSum += gains[j];
+          tiedCount++;
+        }
+        j++;
+      } while (j < size && scores[j] == scores[i]);
+      if (tiedCount > 0) {
+        double weight = discount.getWeightSum(rank * scale, Math.min((rank + tiedCount) * scale, cutoff));
+        sum += weight * tiedSum / tiedCount;
+        rank += tiedCount;
+      }
+      i = j;
+    }
+    return sum;
+  }
+
+  /**
+   * @return estimated ideal DCG of the full list
+   */
+  double getMaxDCG(int cutoff, Discount discount, int excluded) {
+    double scale = getScale(excluded);
+    double sum = 0.0;
+    int rank = 0;
+    for (int i = 0; i < size && rank * scale < cutoff; i++) {
+      int item = ideal[i];
+      if (groups[item] != excluded) {
+        sum += gains[item] * discount.getWeightSum(rank * scale, Math.min((rank + 1) * scale, cutoff));
+        rank++;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @return sum of the discounts of the full list, for the weighted average
+   */
+  double getWeightSum(int cutoff, Discount discount) {
+    return discount.getWeightSum(0.0, Math.min((double)population, cutoff));
+  }
+
+  /**
+   * the first positive target of the full list is mostly not in the sample,
+   * so the rate of positive targets at each rank is smoothed over a window
+   * of about the square root of the sample size, and MRR is the expected
+   * reciprocal rank of the first positive for these rates.
+   *
+   * @return estimated reciprocal rank of the first positive target
+   */
+  double getMRR(int cutoff, int excluded) {
+    double scale = getScale(excluded);
+    int n = size - (excluded < 0 ? 0 : groupSizes[excluded]);
+    // number of positive targets among the first included items
+    int[] positives = new int[n + 1];
+    n = 0;
+    for (int i = 0; i < size; i++) {
+      if (groups[i] != excluded) {
+        positives[n + 1] = positives[n] + (gains[i] > 0.0 ? 1 : 0);
+        n++;
+      }
+    }
+    int window = (int)Math.ceil(Math.sqrt(n));
+
+    double expMrr = 0.0;
+    double pNoPos = 1.0;   // probability of no positive target above the current rank
+    for (int s = 0; s < n && s * scale < cutoff && pNoPos > 1e-12; s++) {
+      int lo = Math.max(0, s - window / 2);
+      int hi = Math.min(n, lo + window);
+      double rate = (double)(positives[hi] - positives[lo]) / (hi - lo);
+      if (rate == 0.0) {
+        continue;
+      }
+      // ranks of the full list that the sampled item stands for
+      long from = (long)Math.ceil(s * scale);
+      long to = Math.min((long)Math.ceil((s + 1) * scale), cutoff);
+      for (long r = from; r < to && pNoPos > 1e-12; r++) {
+        expMrr += pNoPos * rate / (r + 1);
+        pNoPos *= 1.0 - rate;
+      }
+    }
+    return expMrr;
+  }
+
+  /**
+   * @param estimates estimate of the whole sample, followed by the
+   *   estimates with each group left out
+   * @return jackknife standard error
+   */
+  static double getStandardError(double[] estimates) {
+    int n = estimates.length - 1;
+    double mean = 0.0;
+    for (int g = 1; g <= n; g++) {
+      mean += estimates[g];
+    }
+    mean /= n;
+    double sum = 0.0;
+    for (int g = 1; g <= n; g++) {
+      sum += (estimates[g] - mean) * (estimates[g] - mean);
+    }
+    return Math.sqrt((n - 1.0) / n * sum);
+  }
+};
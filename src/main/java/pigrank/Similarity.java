@@ -2,14 +2,18 @@ package pigrank;
 
 import java.io.IOException;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.impl.util.WrappedIOException;
+import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
@@ -27,6 +31,13 @@ import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
  *     exponential user top-down exploration. RBO accounts for uneven list size across
  *   rankings and queries. See <a href="http://www.umiacs.umd.edu/~wew/papers/wmz10_tois.pdf">this paper</a>
  *   for details.
+ * <li>RBO with bounds: RBO evaluated only down to the depth where its
+ *   lower and upper bound for the full rankings are closer than a given
+ *   epsilon; returns a tuple (rbo_ext, rbo_min, rbo_max, rbo_depth).
+ * <li>Similarity curves: jaccard or cosine similarity at every cutoff
+ *   k = 1..param, returned as a bag of (k, value) tuples; or rbo for several
+ *   persistence probabilities, returned as a bag of (p, value) tuples. The
+ *   whole curve is computed in a single pass over both rankings.
  * </ul>
  * <pre>
  * Example use in a pig script:
@@ -76,11 +87,29 @@ import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
  * store eval into 'output';
  * </pre>
  *
+ * To bound the work per call, the options 'maxrows=&lt;rows&gt;' and
+ * 'maxtime=&lt;milliseconds&gt;' can follow the six arguments, e.g.
+ * pigrank.Similarity('jaccard', '10', '2', '3', '2', '3', 'maxrows=100000').
+ * Beyond the budget, only the top rows by score are kept (see WorkBudget),
+ * so that measures down to a depth of maxrows remain exact up to ties. The
+ * result is then a tuple (similarity, coverage), where coverage is the
+ * smaller fraction of rows evaluated of the two bags (1.0 if exact).
+ *
+ * The option 'cache=&lt;megabytes&gt;' keeps the results of a task by a hash
+ * of the ids and scores of both bags (see ResultCache); a repeated pair of
+ * rankings is then neither sorted nor compared again. Hashing converts all
+ * ids, also those below the cutoff.
+ *
+ * Slow calls are recorded as Java Flight Recorder events, see ExecRecorder.
  */
 
-public class Similarity extends EvalFunc<Double> {
+public class Similarity extends EvalFunc<Object> {
 
-  public enum SimType { SIM_JACCARD, SIM_COSINE, SIM_RBO }
+  public enum SimType { SIM_JACCARD, SIM_COSINE, SIM_RBO, SIM_RBO_BOUNDS,
+                        SIM_JACCARD_CURVE, SIM_COSINE_CURVE, SIM_RBO_CURVE, SIM_KENDALL }
+
+  private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+  private static final BagFactory bagFactory = BagFactory.getInstance();
 
   /** type of similarity algorithm */
   SimType simType;
@@ -100,16 +129,41 @@ public class Similarity extends EvalFunc<Double> {
   /** persistence probability for rbo similarity */
   double persistence;
 
+  /** persistence probabilities for rbo curve */
+  double[] persistences;
+
+  /** maximum difference between rbo bounds for early termination */
+  double epsilon;
+
+  /** maximum evaluation depth for rbo bounds */
+  int maxDepth;
+
+  /** limit on the rows and time per bag */
+  WorkBudget budget = new WorkBudget();
+
+  ExecRecorder recorder = ExecRecorder.create(getClass().getSimpleName());
+
+  /** results of previous calls by content, if enabled */
+  ResultCache cache;
+
   /**
    * Constructor for Similarity function
    *
-   * @param strSimType type of similarity function, one of "jaccard", "cosine", or "rbo".
+   * @param strSimType type of similarity function, one of "jaccard", "cosine", "rbo",
+   *        "rbo_bounds", "jaccard_curve", "cosine_curve", or "rbo_curve".
    * @param strParam parameter for similarity function.
    *        - for "jaccard" or "cosine", the maximum rank to include (cutoff).
    *          Values less than one are interpreted as 'no cutoff'.
    *        - for "rbo", the "persistence" probability that the user will look
    *          at the next rank. Typical values: 0.9 (resp. 0.98) means that the
    *          first 10 (resp. 50) ranks have 86% of the weight if the evaluation.
+   *        - for "rbo_bounds", a comma-separated list "persistence,epsilon,maxDepth".
+   *          Evaluation stops when the bounds are closer than epsilon, or at
+   *          maxDepth. Epsilon and maxDepth are optional; values of zero or
+   *          less are interpreted as 'no limit'.
+   *        - for "jaccard_curve" or "cosine_curve", the maximum cutoff of the curve.
+   *          Values less than one are interpreted as 'up to the longer ranking'.
+   *        - for "rbo_curve", a comma-separated list of persistence probabilities.
    * @param strIDField1 unique identifier for items in the first bag, used to test
    *        for equality with items in the second bag (zero-based column index).
    * @param strPredictorField1 zero-based column index of ranking score for the
@@ -121,49 +175,96 @@ public class Similarity extends EvalFunc<Double> {
   public Similarity(String strSimType, String strParam,
                     String strIDField1, String strPredictorField1,
                     String strIDField2, String strPredictorField2) throws IllegalArgumentException {
+    this(new String[] { strSimType, strParam, strIDField1, strPredictorField1, strIDField2, strPredictorField2 });
+  }
 
-    strSimType = strSimType.toLowerCase();
+  /**
+   * Constructor for Similarity function with options
+   *
+   * @param args the six arguments as above, followed by options of the
+   *   form "key=value": maxrows=&lt;rows&gt;, maxtime=&lt;milliseconds&gt;
+   *   and cache=&lt;megabytes&gt;.
+   */
+
+  public Similarity(String... args) throws IllegalArgumentException {
+
+    if (args.length < 6) {
+      throw new IllegalArgumentException("expected similarity type, parameter, and id and score columns of both bags, found " + args.length + " arguments");
+    }
+    String strSimType = args[0].toLowerCase();
+    String strParam = args[1];
     if (strSimType.equals("jaccard")) {
       simType = SimType.SIM_JACCARD;
     } else if (strSimType.equals("cosine")) {
       simType = SimType.SIM_COSINE;
     } else if (strSimType.equals("rbo")) {
       simType = SimType.SIM_RBO;
+    } else if (strSimType.equals("rbo_bounds")) {
+      simType = SimType.SIM_RBO_BOUNDS;
+    } else if (strSimType.equals("jaccard_curve")) {
+      simType = SimType.SIM_JACCARD_CURVE;
+    } else if (strSimType.equals("cosine_curve")) {
+      simType = SimType.SIM_COSINE_CURVE;
+    } else if (strSimType.equals("rbo_curve")) {
+      simType = SimType.SIM_RBO_CURVE;
     } else {
-      throw new IllegalArgumentException("unknown similiarity type '" + strSimType + "', expected one of 'jaccard', 'cosine', or 'rbo'");
+      throw new IllegalArgumentException("unknown similiarity type '" + strSimType + "', expected one of 'jaccard', 'cosine', 'rbo', 'rbo_bounds', 'jaccard_curve', 'cosine_curve', or 'rbo_curve'");
     }
 
-    if (simType == SimType.SIM_JACCARD || simType == SimType.SIM_COSINE) {
+    cutoff = Integer.MAX_VALUE;
+    if (simType == SimType.SIM_JACCARD || simType == SimType.SIM_COSINE
+        || simType == SimType.SIM_JACCARD_CURVE || simType == SimType.SIM_COSINE_CURVE) {
       cutoff = Integer.parseInt(strParam);
       if (cutoff <= 0) {
         cutoff = Integer.MAX_VALUE;
       }
-    } else {
+    } else if (simType == SimType.SIM_RBO) {
       persistence = Double.parseDouble(strParam);
+    } else if (simType == SimType.SIM_RBO_CURVE) {
+      String[] params = strParam.split(",");
+      persistences = new double[params.length];
+      for (int i = 0; i < params.length; i++) {
+        persistences[i] = Double.parseDouble(params[i].trim());
+      }
+    } else {
+      String[] params = strParam.split(",");
+      persistence = Double.parseDouble(params[0].trim());
+      epsilon = (params.length > 1) ? Double.parseDouble(params[1].trim()) : 0.0;
+      maxDepth = (params.length > 2) ? Integer.parseInt(params[2].trim()) : 0;
+      if (maxDepth <= 0) {
+        maxDepth = Integer.MAX_VALUE;
+      }
     }
 
     idField = new int[2];
     predictorField = new int[2];
     minCols = new int[2];
 
-    idField[0] = Integer.parseInt(strIDField1);
-    predictorField[0] = Integer.parseInt(strPredictorField1);
+    idField[0] = Integer.parseInt(args[2]);
+    predictorField[0] = Integer.parseInt(args[3]);
     minCols[0] = 1 + Math.max(idField[0], predictorField[0]);
 
-    idField[1] = Integer.parseInt(strIDField2);
-    predictorField[1] = Integer.parseInt(strPredictorField2);
+    idField[1] = Integer.parseInt(args[4]);
+    predictorField[1] = Integer.parseInt(args[5]);
     minCols[1] = 1 + Math.max(idField[1], predictorField[1]);
+
+    UDFOptions options = new UDFOptions(args, 6, "maxrows", "maxtime", "cache");
+    budget.setOptions(options);
+    cache = ResultCache.create(options, getClass().getSimpleName(), args);
   }
 
   /**
    * Entry point for UDF
    *
    * @param input tuple of 2 bags containing rows to rank
-   * @return Double similarity value
+   * @return Double similarity value, a tuple of rbo value, bounds,
+   *   and evaluation depth for "rbo_bounds", or a bag of (k, value) or
+   *   (p, value) tuples for curves; with a work budget, a tuple of this
+   *   result and its coverage
    */
 
   @Override
-  public Double exec(Tuple input) throws IOException {
+  public Object exec(Tuple input) throws IOException {
 
     if (input == null || input.size() != 2) {
       throw new ExecException(
@@ -172,44 +273,72 @@ public class Similarity extends EvalFunc<Double> {
     }
 
     Ranking[] ranking = new Ranking[2];
+    double coverage = 1.0;
+    long bagSize = 0;
+    long dropped = 0;
+    long[] droppedRows = new long[2];
 
     try {
 
+      recorder.begin();
+
       // iterate over the two ranked lists
       for (int i = 0; i < 2; i++) {
         DataBag bag = (DataBag)input.get(i);
         if(bag == null)
           return null;
 
-        ranking[i] = new Ranking((int)bag.size());
-
-        Iterator it = bag.iterator();
-        while (it.hasNext()){
-          Tuple t = (Tuple)it.next();
-
-          if (t == null || t.size() < minCols[i]) {
-            System.err.println(this.getClass().getSimpleName() + " expected tuple with at least " + minCols[i] + "columns, got  " + t);
-            return null;
-          };
+        ranking[i] = readRanking(bag, idField[i], predictorField[i], minCols[i], this.getClass().getSimpleName(), budget);
+        if (ranking[i] == null) {
+          return null;
+        }
+        coverage = Math.min(coverage, budget.getCoverage(ranking[i].size()));
+        bagSize += bag.size();
+        droppedRows[i] = budget.dropped;
+        dropped += budget.dropped;
+      }
+      recorder.endExtract();
+
+      // identical pairs of rankings were compared before
+      long key = 0L;
+      if (cache != null) {
+        key = hash(ranking, droppedRows, cache.start());
+        Object cached = cache.get(key);
+        if (cached != null) {
+          return cached;
+        }
+      }
 
-          if (t.get(idField[i]) != null && t.get(predictorField[i]) != null) {
-            String id = DataType.toString(t.get(idField[i]));
-            Double pred = DataType.toDouble(t.get(predictorField[i]));
-            ranking[i].addItem(id, pred, 0.0);
-          }
+      // only the top items are compared, or evaluated for the rbo bounds
+      int depth = (simType == SimType.SIM_RBO_BOUNDS) ? maxDepth : cutoff;
+      recorder.beginSort();
+      for (int i = 0; i < 2; i++) {
+        if (depth < Integer.MAX_VALUE) {
+          ranking[i].rankTop(depth);
+        } else {
+          ranking[i].rank();
         }
+      }
+      recorder.endSort();
 
-        ranking[i].rank();
+      Object value = getSimilarity(ranking[0], ranking[1]);
+
+      if (recorder.end()) {
+        String path = "heap," + (depth < Integer.MAX_VALUE ? "select" : ranking[0].getSortPath()) + (dropped > 0 ? ",top" : "");
+        recorder.commit(bagSize, ranking[0].getNumDistinctScores() + ranking[1].getNumDistinctScores(), path, dropped);
       }
 
-      switch(simType) {
-      case SIM_JACCARD:
-        return ranking[0].jaccardSimilarity(ranking[1], cutoff);
-      case SIM_COSINE:
-        return ranking[0].cosineSimilarity(ranking[1], cutoff);
-      default:
-        return ranking[0].rboSimilarity(ranking[1], persistence);
+      if (budget.isLimited()) {
+        Tuple result = tupleFactory.newTuple(2);
+        result.set(0, value);
+        result.set(1, coverage);
+        value = result;
+      }
+      if (cache != null) {
+        cache.put(key, value);
       }
+      return value;
+
     } catch (NumberFormatException nfe) {
       System.err.println("Failed to process input in class " + this.getClass().getSimpleName() + "; error - " + nfe.getMessage());
       return null;
@@ -218,6 +347,147 @@ public class Similarity extends EvalFunc<Double> {
     }
   };
 
+  /**
+   * content hash of the ids and scores of unsorted rankings, in row order.
+   * Ids read from bag rows are hashed unconverted, so that they stay lazy.
+   * The rows dropped by the work budget enter the coverage, so they are
+   * hashed too.
+   *
+   * @param dropped number of rows dropped from each ranking
+   */
+  static long hash(Ranking[] rankings, long[] dropped, ContentHash hash) throws ExecException {
+    for (int r = 0; r < rankings.length; r++) {
+      Ranking ranking = rankings[r];
+      hash.add((long)ranking.size()).add(dropped[r]);
+      for (int i = 0; i < ranking.size(); i++) {
+        if (ranking.idSource instanceof TupleIdSource) {
+          hash.addValue(((TupleIdSource)ranking.idSource).getValue(ranking.getPosition(i)));
+        } else {
+          hash.add(ranking.getID(i));
+        }
+        hash.add(ranking.getScore(i));
+      }
+    }
+    return hash.get();
+  }
+
+  private Object getSimilarity(Ranking ranking1, Ranking ranking2) throws ExecException {
+    switch(simType) {
+    case SIM_JACCARD:
+      return ranking1.jaccardSimilarity(ranking2, cutoff);
+    case SIM_COSINE:
+      return ranking1.cosineSimilarity(ranking2, cutoff);
+    case SIM_RBO:
+      return ranking1.rboSimilarity(ranking2, persistence);
+    case SIM_JACCARD_CURVE:
+    case SIM_COSINE_CURVE:
+    case SIM_RBO_CURVE:
+      return getCurve(ranking1, ranking2);
+    default:
+      double[] bounds = ranking1.rboBounds(ranking2, persistence, epsilon, maxDepth);
+      Tuple result = tupleFactory.newTuple(4);
+      result.set(0, bounds[0]);
+      result.set(1, bounds[1]);
+      result.set(2, bounds[2]);
+      result.set(3, (int) bounds[3]);
+      return result;
+    }
+  }
+
+  static Ranking readRanking(DataBag bag, int idField, int predictorField, int minCols, String udfName) throws ExecException {
+    return readRanking(bag, idField, predictorField, minCols, udfName, new WorkBudget());
+  }
+
+  /**
+   * read a bag in two phases: first, only the ranking scores are converted
+   * and the rows are kept; ids are converted later, and only for the items
+   * that a measure actually accesses.
+   *
+   * Beyond the work budget, only the top rows by score are kept, see
+   * WorkBudget.getTopSlot().
+   *
+   * @return unsorted ranking, or null if a tuple with too few columns was found
+   */
+  static Ranking readRanking(DataBag bag, int idField, int predictorField, int minCols, String udfName, WorkBudget budget) throws ExecException {
+
+    budget.start();
+    int capacity = budget.getCapacity(bag.size());
+    Tuple[] rows = new Tuple[capacity];
+    double[] scores = new double[capacity];
+    int size = 0;
+
+    Iterator it = bag.iterator();
+    while (it.hasNext()){
+      if (budget.isExpired()) {
+        budget.skipRemaining(bag.size());
+        break;
+      }
+
+      Tuple t = (Tuple)it.next();
+
+      if (t == null || t.size() < minCols) {
+        System.err.println(udfName + " expected tuple with at least " + minCols + "columns, got  " + t);
+        return null;
+      };
+
+      if (t.get(idField) != null && t.get(predictorField) != null) {
+        double score = DataType.toDouble(t.get(predictorField));
+        int row = (int)budget.getTopSlot(score);
+        if (row < 0) {
+          continue;
+        }
+        if (row == capacity) {
+          capacity = (int)Math.min(2L * capacity, budget.maxRows);
+          rows = Arrays.copyOf(rows, capacity);
+          scores = Arrays.copyOf(scores, capacity);
+        }
+        rows[row] = t;
+        scores[row] = score;
+        if (row == size) {
+          size++;
+        }
+      }
+    }
+    budget.report();
+
+    Ranking ranking = new Ranking(null, scores, null, size);
+    ranking.setIdSource(new TupleIdSource(rows, idField));
+    return ranking;
+  }
+
+  private DataBag getCurve(Ranking ranking1, Ranking ranking2) throws ExecException {
+
+    IdDictionary dict = new IdDictionary(ranking1.size() + ranking2.size());
+    int[] codes1 = ranking1.encodeIDs(dict);
+    int[] codes2 = ranking2.encodeIDs(dict);
+    int[] pos1 = Ranking.getPositions(codes1, dict.size());
+    int[] pos2 = Ranking.getPositions(codes2, dict.size());
+
+    DataBag curve = bagFactory.newDefaultBag();
+
+    if (simType == SimType.SIM_RBO_CURVE) {
+      double[] values = Ranking.rboCurve(codes1, pos1, codes2, pos2, persistences);
+      for (int i = 0; i < values.length; i++) {
+        Tuple t = tupleFactory.newTuple(2);
+        t.set(0, persistences[i]);
+        t.set(1, values[i]);
+        curve.add(t);
+      }
+      return curve;
+    }
+
+    double[] values = (simType == SimType.SIM_JACCARD_CURVE)
+      ? Ranking.jaccardCurve(codes1, pos1, codes2, pos2, cutoff)
+      : Ranking.cosineCurve(codes1, pos1, codes2, pos2, cutoff);
+    for (int i = 0; i < values.length; i++) {
+      Tuple t = tupleFactory.newTuple(2);
+      t.set(0, i + 1);
+      t.set(1, values[i]);
+      curve.add(t);
+    }
+    return curve;
+  }
+
   @Override
   public Schema outputSchema(Schema input) {
 
@@ -253,17 +523,38 @@ public class Similarity extends EvalFunc<Double> {
       case SIM_COSINE:
         resultName = "cosine_sim";
         break;
-      default:
+      case SIM_RBO:
         resultName = "rbo_sim";
         break;
+      case SIM_JACCARD_CURVE:
+        resultName = "jaccard_curve";
+        break;
+      case SIM_COSINE_CURVE:
+        resultName = "cosine_curve";
+        break;
+      case SIM_RBO_CURVE:
+        resultName = "rbo_curve";
+        break;
+      default:
+        resultName = "rbo_bounds";
+        break;
       }
-      if (simType != SimType.SIM_RBO) {
+      if (simType == SimType.SIM_JACCARD || simType == SimType.SIM_COSINE
+          || simType == SimType.SIM_JACCARD_CURVE || simType == SimType.SIM_COSINE_CURVE) {
         if (cutoff <  Integer.MAX_VALUE) {
           resultName += "_" + cutoff;
         }
-      } else {
+      } else if (simType != SimType.SIM_RBO_CURVE) {
         resultName += "_" + persistence;
       }
+      if (simType == SimType.SIM_RBO_BOUNDS) {
+        if (epsilon > 0.0) {
+          resultName += "_" + epsilon;
+        }
+        if (maxDepth < Integer.MAX_VALUE) {
+          resultName += "_" + maxDepth;
+        }
+      }
 
       // if the two ranking score names are different, add to name
       String predField1 = input.getField(0).schema.getField(0).schema.getField(predictorField[0]).alias;
@@ -272,12 +563,47 @@ public class Similarity extends EvalFunc<Double> {
         resultName += "_" + predField1 + "_" + predField2;
       }
 
-      // Construct our output schema consisting of a Double field
-      return new Schema(new FieldSchema(resultName, DataType.DOUBLE));
+      FieldSchema valueSchema = getValueSchema(resultName);
+      if (!budget.isLimited()) {
+        return new Schema(valueSchema);
+      }
+      Schema budgetedSchema = new Schema();
+      budgetedSchema.add(valueSchema);
+      budgetedSchema.add(new FieldSchema(resultName + "_coverage", DataType.DOUBLE));
+      return new Schema(new FieldSchema(resultName + "_budgeted", budgetedSchema, DataType.TUPLE));
 
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
 
   };
+
+  private FieldSchema getValueSchema(String resultName) throws FrontendException {
+
+    if (simType == SimType.SIM_RBO_BOUNDS) {
+      Schema boundsSchema = new Schema();
+      boundsSchema.add(new FieldSchema("rbo_ext", DataType.DOUBLE));
+      boundsSchema.add(new FieldSchema("rbo_min", DataType.DOUBLE));
+      boundsSchema.add(new FieldSchema("rbo_max", DataType.DOUBLE));
+      boundsSchema.add(new FieldSchema("rbo_depth", DataType.INTEGER));
+      return new FieldSchema(resultName, boundsSchema, DataType.TUPLE);
+    }
+
+    if (simType == SimType.SIM_JACCARD_CURVE || simType == SimType.SIM_COSINE_CURVE
+        || simType == SimType.SIM_RBO_CURVE) {
+      Schema pointSchema = new Schema();
+      if (simType == SimType.SIM_RBO_CURVE) {
+        pointSchema.add(new FieldSchema("p", DataType.DOUBLE));
+        pointSchema.add(new FieldSchema("rbo_sim", DataType.DOUBLE));
+      } else {
+        pointSchema.add(new FieldSchema("k", DataType.INTEGER));
+        pointSchema.add(new FieldSchema(simType == SimType.SIM_JACCARD_CURVE ? "jaccard_sim" : "cosine_sim", DataType.DOUBLE));
+      }
+      Schema bagSchema = new Schema(new FieldSchema("point", pointSchema, DataType.TUPLE));
+      return new FieldSchema(resultName, bagSchema, DataType.BAG);
+    }
+
+    // a Double field
+    return new FieldSchema(resultName, DataType.DOUBLE);
+  }
 };
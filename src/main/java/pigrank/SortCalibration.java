@@ -0,0 +1,197 @@
+package pigrank;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * benchmark that measures the sort algorithms of SortDispatcher on
+ * synthetic scores, and writes the thresholds for this machine.
+ *
+ * usage:
+ * <pre>
+ * java -cp pigrank.jar pigrank.SortCalibration [sort.properties]
+ * </pre>
+ * Without an output file, the thresholds are printed. To use them, either
+ * replace src/main/resources/pigrank/sort.properties before building, or
+ * pass -Dpigrank.sort.properties=&lt;file&gt; to the task JVMs (e.g. through
+ * mapreduce.map.java.opts).
+ */
+
+public class SortCalibration {
+
+  /** minimum time per measurement, in nanoseconds */
+  static final long MIN_TIME = 20000000L;
+
+  private Random random = new Random(1);
+  private SortDispatcher dispatcher = new SortDispatcher();
+
+  /**
+   * @param numDistinct number of distinct scores, or zero for continuous scores
+   */
+  private double[] scores(int size, int numDistinct) {
+    double[] values = new double[Math.max(1, numDistinct)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextDouble();
+    }
+    double[] scores = new double[size];
+    for (int i = 0; i < size; i++) {
+      scores[i] = (numDistinct > 0) ? values[random.nextInt(numDistinct)] : random.nextDouble();
+    }
+    return scores;
+  }
+
+  /**
+   * @return best time per sort of a path, in nanoseconds; a cutoff of
+   *   Integer.MAX_VALUE sorts all items
+   */
+  private double time(SortDispatcher.Path path, int size, int numDistinct, int cutoff) {
+    double[][] inputs = new double[4][];
+    for (int k = 0; k < inputs.length; k++) {
+      inputs[k] = scores(size, numDistinct);
+    }
+    double best = Double.MAX_VALUE;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      long calls = 0;
+      long checksum = 0;
+      while (System.nanoTime() - start < MIN_TIME) {
+        double[] input = inputs[(int)(calls % inputs.length)];
+        int[] order = (path == SortDispatcher.Path.TOP)
+          ? dispatcher.sortTop(input, size, cutoff)
+          : SortDispatcher.sortOrder(input, size, path);
+        checksum += (order != null) ? order[0] : 0;
+        calls++;
+      }
+      best = Math.min(best, (double)(System.nanoTime() - start) / calls);
+      if (checksum < 0) {
+        System.err.println(checksum);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @return path of a full sort without the groups and top paths
+   */
+  private SortDispatcher.Path fullSortPath(int size) {
+    if (size <= dispatcher.insertionMax) {
+      return SortDispatcher.Path.INSERTION;
+    }
+    return size >= dispatcher.radixMin ? SortDispatcher.Path.RADIX : SortDispatcher.Path.MERGE;
+  }
+
+  private void log(String message) {
+    System.err.println(message);
+  }
+
+  /**
+   * measure all paths and set the thresholds of the dispatcher.
+   */
+  SortDispatcher calibrate() {
+
+    // compile all paths before measuring
+    for (int size = 16; size <= (1 << 16); size *= 4) {
+      for (SortDispatcher.Path path : SortDispatcher.Path.values()) {
+        time(path, size, (size % 3 == 0) ? 8 : 0, Math.max(1, size / 100));
+      }
+    }
+
+    // insertion sort, up to the largest size where it is faster than merge sort
+    int[] smallSizes = { 8, 16, 24, 32, 48, 64, 96, 128 };
+    dispatcher.insertionMax = 0;
+    for (int size : smallSizes) {
+      double insertion = time(SortDispatcher.Path.INSERTION, size, 0, Integer.MAX_VALUE);
+      double merge = time(SortDispatcher.Path.MERGE, size, 0, Integer.MAX_VALUE);
+      log("size " + size + ": insertion " + (long)insertion + " ns, merge " + (long)merge + " ns");
+      if (insertion <= merge) {
+        dispatcher.insertionMax = size;
+      }
+    }
+
+    // radix sort, from the first size where it is faster than merge sort
+    dispatcher.radixMin = Integer.MAX_VALUE;
+    for (int size = 256; size <= (1 << 20); size *= 2) {
+      double merge = time(SortDispatcher.Path.MERGE, size, 0, Integer.MAX_VALUE);
+      double radix = time(SortDispatcher.Path.RADIX, size, 0, Integer.MAX_VALUE);
+      log("size " + size + ": merge " + (long)merge + " ns, radix " + (long)radix + " ns");
+      if (radix < merge) {
+        dispatcher.radixMin = size;
+        break;
+      }
+    }
+
+    // groups, up to the largest number of distinct scores where they are faster
+    int groupsSize = 1 << 16;
+    int maxDistinct = 0;
+    for (int numDistinct = 2; numDistinct <= 4096; numDistinct *= 2) {
+      double groups = time(SortDispatcher.Path.GROUPS, groupsSize, numDistinct, Integer.MAX_VALUE);
+      double other = time(fullSortPath(groupsSize), groupsSize, numDistinct, Integer.MAX_VALUE);
+      log(numDistinct + " distinct: groups " + (long)groups + " ns, other " + (long)other + " ns");
+      if (groups < other) {
+        maxDistinct = numDistinct;
+      }
+    }
+    dispatcher.groupsMaxSampleDistinct = 0;
+    if (maxDistinct > 0) {
+      for (int k = 0; k < 20; k++) {
+        dispatcher.groupsMaxSampleDistinct = Math.max(dispatcher.groupsMaxSampleDistinct,
+          SortDispatcher.countSampleDistinct(scores(groupsSize, maxDistinct), groupsSize));
+      }
+      // a sample with mostly distinct scores does not indicate ties
+      dispatcher.groupsMaxSampleDistinct = Math.min(dispatcher.groupsMaxSampleDistinct, SortDispatcher.TIE_SAMPLE_SIZE / 2);
+    }
+    dispatcher.groupsMin = Integer.MAX_VALUE;
+    for (int size = 256; size <= groupsSize; size *= 2) {
+      double groups = time(SortDispatcher.Path.GROUPS, size, 8, Integer.MAX_VALUE);
+      double other = time(fullSortPath(size), size, 8, Integer.MAX_VALUE);
+      log("size " + size + ", 8 distinct: groups " + (long)groups + " ns, other " + (long)other + " ns");
+      if (groups < other) {
+        dispatcher.groupsMin = size;
+        break;
+      }
+    }
+
+    // selection of the top items, up to the largest cutoff fraction where it is faster
+    int topSize = 1 << 16;
+    double full = time(fullSortPath(topSize), topSize, 0, Integer.MAX_VALUE);
+    double[] fractions = { 0.001, 0.003, 0.01, 0.03, 0.1, 0.3 };
+    dispatcher.topMaxFraction = 0.0;
+    for (double fraction : fractions) {
+      double top = time(SortDispatcher.Path.TOP, topSize, 0, (int)(fraction * topSize));
+      log("cutoff fraction " + fraction + ": top " + (long)top + " ns, full " + (long)full + " ns");
+      if (top < full) {
+        dispatcher.topMaxFraction = fraction;
+      }
+    }
+    dispatcher.topMin = Integer.MAX_VALUE;
+    for (int size = 64; size <= topSize; size *= 2) {
+      double top = time(SortDispatcher.Path.TOP, size, 0, 10);
+      double other = time(fullSortPath(size), size, 0, Integer.MAX_VALUE);
+      log("size " + size + ", cutoff 10: top " + (long)top + " ns, full " + (long)other + " ns");
+      if (top < other) {
+        dispatcher.topMin = size;
+        break;
+      }
+    }
+
+    return dispatcher;
+  }
+
+  public static void main(String[] args) throws IOException {
+    SortDispatcher dispatcher = new SortCalibration().calibrate();
+    String comment = "pigrank sort thresholds, generated by SortCalibration on "
+      + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() + " cores, java "
+      + System.getProperty("java.version");
+    OutputStream out = (args.length > 0) ? new FileOutputStream(args[0]) : System.out;
+    try {
+      dispatcher.toProperties().store(out, comment);
+    } finally {
+      out.flush();
+      if (args.length > 0) {
+        out.close();
+      }
+    }
+  }
+};
@@ -0,0 +1,367 @@
+package pigrank;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * choice of the sort algorithm for a ranking, per call, from the number of
+ * items, the rank cutoff, and an estimate of the fraction of tied scores.
+ *
+ * All paths produce the same order as Ranking.sortIndices(): decreasing
+ * score, with ties in insertion order.
+ * <ul>
+ * <li>insertion: insertion sort, for small bags, without a merge buffer.
+ * <li>merge: insertion sort of short runs and bottom-up merge.
+ * <li>radix: LSD radix sort of the score bits, for large bags.
+ * <li>groups: hashing of the distinct scores, sort of the distinct scores,
+ *   and a counting sort of the items, for bags with few distinct scores.
+ * <li>top: selection of the items down to the rank cutoff (and their ties),
+ *   followed by one of the above, if the cutoff is small relative to the bag.
+ * </ul>
+ * The thresholds are read from the resource pigrank/sort.properties, which
+ * can be regenerated for a machine with SortCalibration; a file given by the
+ * system property pigrank.sort.properties takes precedence.
+ */
+
+class SortDispatcher {
+
+  public enum Path { INSERTION, MERGE, RADIX, GROUPS, TOP }
+
+  static final String RESOURCE = "pigrank/sort.properties";
+  static final String FILE_PROPERTY = "pigrank.sort.properties";
+
+  /** number of scores sampled to estimate ties */
+  static final int TIE_SAMPLE_SIZE = 64;
+
+  /** bits per radix digit */
+  static final int RADIX_BITS = 11;
+
+  private static SortDispatcher defaultDispatcher;
+
+  /** largest bag sorted by insertion sort */
+  int insertionMax = 32;
+
+  /** smallest bag sorted by radix sort */
+  int radixMin = 8192;
+
+  /** smallest bag for which ties are estimated */
+  int groupsMin = 2048;
+
+  /** largest number of distinct scores in the sample for the groups path */
+  int groupsMaxSampleDistinct = 16;
+
+  /** smallest bag for the top path */
+  int topMin = 1024;
+
+  /** largest ratio of cutoff to bag size for the top path */
+  double topMaxFraction = 0.1;
+
+  SortDispatcher() {
+  }
+
+  /**
+   * @param props thresholds; missing ones keep their defaults
+   */
+  SortDispatcher(Properties props) {
+    insertionMax = getInt(props, "insertion.max", insertionMax);
+    radixMin = getInt(props, "radix.min", radixMin);
+    groupsMin = getInt(props, "groups.min", groupsMin);
+    groupsMaxSampleDistinct = getInt(props, "groups.maxSampleDistinct", groupsMaxSampleDistinct);
+    topMin = getInt(props, "top.min", topMin);
+    topMaxFraction = Double.parseDouble(props.getProperty("top.maxFraction", Double.toString(topMaxFraction)).trim());
+  }
+
+  private static int getInt(Properties props, String key, int defaultValue) {
+    String value = props.getProperty(key);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+  /**
+   * @return thresholds as properties, e.g. for SortCalibration
+   */
+  Properties toProperties() {
+    Properties props = new Properties();
+    props.setProperty("insertion.max", Integer.toString(insertionMax));
+    props.setProperty("radix.min", Integer.toString(radixMin));
+    props.setProperty("groups.min", Integer.toString(groupsMin));
+    props.setProperty("groups.maxSampleDistinct", Integer.toString(groupsMaxSampleDistinct));
+    props.setProperty("top.min", Integer.toString(topMin));
+    props.setProperty("top.maxFraction", Double.toString(topMaxFraction));
+    return props;
+  }
+
+  /**
+   * @return dispatcher with the thresholds of this JVM, loaded once
+   */
+  static synchronized SortDispatcher getDefault() {
+    if (defaultDispatcher == null) {
+      Properties props = new Properties();
+      try {
+        String path = System.getProperty(FILE_PROPERTY);
+        InputStream in = (path != null) ? new FileInputStream(new File(path))
+          : SortDispatcher.class.getClassLoader().getResourceAsStream(RESOURCE);
+        if (in != null) {
+          try {
+            props.load(in);
+          } finally {
+            in.close();
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("SortDispatcher could not read thresholds, using defaults; error - " + e.getMessage());
+      }
+      defaultDispatcher = new SortDispatcher(props);
+    }
+    return defaultDispatcher;
+  }
+
+  /**
+   * @param scores rank scores
+   * @param size number of items
+   * @param cutoff rank cutoff of the measures, or Integer.MAX_VALUE
+   * @return path for the ranking
+   */
+  Path choose(double[] scores, int size, int cutoff) {
+    if (size <= insertionMax) {
+      return Path.INSERTION;
+    }
+    if (size >= topMin && cutoff >= 1 && cutoff < size * topMaxFraction) {
+      return Path.TOP;
+    }
+    if (size >= groupsMin && countSampleDistinct(scores, size) <= groupsMaxSampleDistinct) {
+      return Path.GROUPS;
+    }
+    return size >= radixMin ? Path.RADIX : Path.MERGE;
+  }
+
+  /**
+   * number of distinct values among evenly spaced scores, as an estimate
+   * of the fraction of ties.
+   */
+  static int countSampleDistinct(double[] scores, int size) {
+    int n = Math.min(TIE_SAMPLE_SIZE, size);
+    double[] sample = new double[n];
+    for (int i = 0; i < n; i++) {
+      sample[i] = scores[(int)((long)i * size / n)];
+    }
+    Arrays.sort(sample);
+    int distinct = 1;
+    for (int i = 1; i < n; i++) {
+      if (sample[i] != sample[i - 1]) {
+        distinct++;
+      }
+    }
+    return distinct;
+  }
+
+  /**
+   * stable sort in decreasing order of score.
+   *
+   * @param scores rank scores
+   * @param size number of items
+   * @return item indices in rank order
+   */
+  int[] sortOrder(double[] scores, int size) {
+    int[] order = sortOrder(scores, size, choose(scores, size, Integer.MAX_VALUE));
+    return order != null ? order : sortOrder(scores, size, Path.MERGE);
+  }
+
+  /**
+   * stable sort in decreasing order of score along a given path.
+   *
+   * @return item indices in rank order, or null if the path does not
+   *   apply: radix and groups for NaN scores, groups for many distinct
+   *   scores, and top in any case (see sortTop()). Merge always applies.
+   */
+  static int[] sortOrder(double[] scores, int size, Path path) {
+    int[] order;
+    switch (path) {
+    case INSERTION:
+      order = identity(size);
+      insertionSort(scores, order, size);
+      return order;
+    case MERGE:
+      order = identity(size);
+      Ranking.sortIndices(scores, order, size);
+      return order;
+    case RADIX:
+      return radixSort(scores, size);
+    case GROUPS:
+      return groupSort(scores, size);
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * indices of the items down to a rank cutoff, including all items tied
+   * with the item at the cutoff, in rank order; the items further down do
+   * not affect measures with this cutoff.
+   *
+   * @return item indices in rank order, or null if the scores contain NaN
+   */
+  int[] sortTop(double[] scores, int size, int cutoff) {
+    double[] copy = Arrays.copyOf(scores, size);
+    for (int i = 0; i < size; i++) {
+      if (Double.isNaN(copy[i])) {
+        return null;
+      }
+    }
+    double threshold = Ranking.selectLargest(copy, size, cutoff);
+
+    // reuse the copy for the kept scores, in insertion order
+    int[] top = new int[size];
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      if (scores[i] >= threshold) {
+        copy[n] = scores[i];
+        top[n++] = i;
+      }
+    }
+    int[] order = sortOrder(copy, n);
+    for (int i = 0; i < n; i++) {
+      order[i] = top[order[i]];
+    }
+    return order;
+  }
+
+  private static int[] identity(int size) {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    return order;
+  }
+
+  static void insertionSort(double[] scores, int[] order, int size) {
+    for (int i = 1; i < size; i++) {
+      int item = order[i];
+      double score = scores[item];
+      int j = i;
+      while (j > 0 && score > scores[order[j - 1]]) {
+        order[j] = order[j - 1];
+        j--;
+      }
+      order[j] = item;
+    }
+  }
+
+  /**
+   * LSD radix sort of keys that order the scores decreasingly; digits
+   * that are equal for all keys are skipped.
+   *
+   * @return item indices in rank order, or null if the scores contain NaN
+   */
+  static int[] radixSort(double[] scores, int size) {
+    long[] keys = new long[size];
+    long orBits = 0L;
+    long andBits = -1L;
+    for (int i = 0; i < size; i++) {
+      double score = scores[i];
+      if (score != score) {
+        return null;
+      }
+      // adding 0.0 maps -0.0 to 0.0, which are tied for the comparisons
+      long bits = Double.doubleToRawLongBits(score + 0.0);
+      // ascending unsigned order of the scores, inverted for descending order
+      long key = ~(bits ^ ((bits >> 63) | Long.MIN_VALUE));
+      keys[i] = key;
+      orBits |= key;
+      andBits &= key;
+    }
+
+    int[] order = identity(size);
+    long[] keyBuf = new long[size];
+    int[] orderBuf = new int[size];
+    int radix = 1 << RADIX_BITS;
+    int[] counts = new int[radix];
+    for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+      if ((((orBits ^ andBits) >>> shift) & (radix - 1)) == 0) {
+        continue;
+      }
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < size; i++) {
+        counts[(int)((keys[i] >>> shift) & (radix - 1))]++;
+      }
+      int sum = 0;
+      for (int d = 0; d < radix; d++) {
+        int count = counts[d];
+        counts[d] = sum;
+        sum += count;
+      }
+      for (int i = 0; i < size; i++) {
+        int pos = counts[(int)((keys[i] >>> shift) & (radix - 1))]++;
+        keyBuf[pos] = keys[i];
+        orderBuf[pos] = order[i];
+      }
+      long[] tmpKeys = keys;
+      keys = keyBuf;
+      keyBuf = tmpKeys;
+      int[] tmpOrder = order;
+      order = orderBuf;
+      orderBuf = tmpOrder;
+    }
+    return order;
+  }
+
+  /**
+   * counting sort by the rank of each item's distinct score.
+   *
+   * @return item indices in rank order, or null if the scores contain NaN,
+   *   or more than a quarter of them are distinct
+   */
+  static int[] groupSort(double[] scores, int size) {
+    int maxGroups = Math.max(16, size / 4);
+    int tableSize = Integer.highestOneBit(2 * maxGroups - 1) << 1;
+    long[] table = new long[tableSize];
+    int[] tableGroups = new int[tableSize];
+    Arrays.fill(tableGroups, -1);
+    double[] values = new double[maxGroups];
+    int[] groups = new int[size];
+    int numGroups = 0;
+
+    for (int i = 0; i < size; i++) {
+      double score = scores[i];
+      if (score != score) {
+        return null;
+      }
+      long bits = Double.doubleToRawLongBits(score + 0.0);
+      int slot = (int)((bits * 0x9e3779b97f4a7c15L) >>> 40) & (tableSize - 1);
+      while (tableGroups[slot] >= 0 && table[slot] != bits) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+      if (tableGroups[slot] < 0) {
+        if (numGroups == maxGroups) {
+          return null;
+        }
+        table[slot] = bits;
+        tableGroups[slot] = numGroups;
+        values[numGroups++] = score + 0.0;
+      }
+      groups[i] = tableGroups[slot];
+    }
+
+    // rank of each group, and counting sort of the items
+    int[] groupOrder = sortOrder(values, numGroups, numGroups <= 32 ? Path.INSERTION : Path.MERGE);
+    int[] counts = new int[numGroups];
+    for (int i = 0; i < size; i++) {
+      counts[groups[i]]++;
+    }
+    int[] offsets = new int[numGroups];
+    int sum = 0;
+    for (int r = 0; r < numGroups; r++) {
+      int g = groupOrder[r];
+      offsets[g] = sum;
+      sum += counts[g];
+    }
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[offsets[groups[i]]++] = i;
+    }
+    return order;
+  }
+};
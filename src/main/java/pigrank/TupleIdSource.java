@@ -0,0 +1,40 @@
+package pigrank;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+
+/**
+ * converts the identifier column of bag rows to strings on demand.
+ */
+
+class TupleIdSource implements IdSource {
+
+  private Tuple[] rows;
+  private int idField;
+
+  /**
+   * @param rows rows of the bag, in the order they were added to the ranking
+   * @param idField column index of the identifier
+   */
+  TupleIdSource(Tuple[] rows, int idField) {
+    this.rows = rows;
+    this.idField = idField;
+  }
+
+  @Override
+  public String getID(int position) {
+    try {
+      return DataType.toString(rows[position].get(idField));
+    } catch (ExecException e) {
+      throw new IllegalStateException("cannot read id column " + idField + " of " + rows[position], e);
+    }
+  }
+
+  /**
+   * @return unconverted identifier, e.g. for a ContentHash
+   */
+  Object getValue(int position) throws ExecException {
+    return rows[position].get(idField);
+  }
+};
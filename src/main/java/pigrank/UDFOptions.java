@@ -0,0 +1,63 @@
+package pigrank;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * optional UDF arguments of the form "key=value", following the
+ * positional constructor arguments.
+ *
+ * Pig calls a constructor with a String[] argument if there is none with
+ * the exact number of String arguments, so UDFs accept options through a
+ * varargs constructor.
+ */
+
+class UDFOptions {
+
+  private HashMap<String, String> values = new HashMap<String, String>();
+
+  /**
+   * @param args all constructor arguments
+   * @param numPositional number of positional arguments preceding the options
+   * @param allowedKeys valid option names
+   */
+  UDFOptions(String[] args, int numPositional, String... allowedKeys) throws IllegalArgumentException {
+    HashSet<String> allowed = new HashSet<String>(Arrays.asList(allowedKeys));
+    for (int i = numPositional; i < args.length; i++) {
+      int sep = args[i].indexOf('=');
+      if (sep <= 0) {
+        throw new IllegalArgumentException("expected option of the form 'key=value', found '" + args[i] + "'");
+      }
+      String key = args[i].substring(0, sep).trim().toLowerCase();
+      if (!allowed.contains(key)) {
+        throw new IllegalArgumentException("unknown option '" + key + "', expected one of " + allowed);
+      }
+      values.put(key, args[i].substring(sep + 1).trim());
+    }
+  }
+
+  boolean has(String key) {
+    return values.containsKey(key);
+  }
+
+  String getString(String key, String defaultValue) {
+    String value = values.get(key);
+    return value == null ? defaultValue : value;
+  }
+
+  int getInt(String key, int defaultValue) {
+    String value = values.get(key);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  long getLong(String key, long defaultValue) {
+    String value = values.get(key);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  double getDouble(String key, double defaultValue) {
+    String value = values.get(key);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+};
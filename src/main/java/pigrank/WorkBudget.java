@@ -0,0 +1,233 @@
+package pigrank;
+
+import java.util.Arrays;
+
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/**
+ * per-call limit on the work of a UDF, so that a single pathological bag
+ * (e.g., all rows of a null query key) cannot stall a task.
+ *
+ * The options maxrows=&lt;rows&gt; and maxtime=&lt;milliseconds&gt; bound the
+ * number of rows evaluated, and the time spent reading the bag. Beyond
+ * the budget, the UDF evaluates a subset of the rows instead: the top rows
+ * by score, which give the exact value of measures down to a depth within
+ * the budget (up to ties with the lowest kept row), or else a uniform
+ * reservoir sample, from which the measure is estimated (see
+ * SampleEstimate). Bags within the budget are evaluated exactly.
+ *
+ * The fraction of rows that were evaluated is returned as the
+ * coverage of the result, and degraded calls and dropped rows are counted
+ * in the Hadoop counters DEGRADED_CALLS and DROPPED_ROWS of group "pigrank".
+ */
+
+class WorkBudget {
+
+  static final String COUNTER_GROUP = "pigrank";
+
+  /** rows between two checks of the clock */
+  static final int CLOCK_INTERVAL = 1024;
+
+  /** maximum number of rows evaluated per bag */
+  long maxRows = Long.MAX_VALUE;
+
+  /** maximum time for reading a bag, in nanoseconds */
+  long maxNanos = Long.MAX_VALUE;
+
+  private long deadline;
+  private long numRead;
+  private long random;
+
+  /** rows that were not evaluated in the current call */
+  long dropped;
+
+  /** rows that were not read in the current call, as the time was up */
+  long unread;
+
+  /** slots of the kept rows and their scores, a min-heap once the budget is full */
+  private int[] heapRows = new int[0];
+  private double[] heapScores = new double[0];
+  private int numKept;
+
+  /**
+   * read the options maxrows=&lt;rows&gt; and maxtime=&lt;milliseconds&gt;;
+   * values of zero or less mean 'no limit'.
+   *
+   * @param options UDF options
+   */
+  void setOptions(UDFOptions options) throws IllegalArgumentException {
+    long rows = options.getLong("maxrows", 0L);
+    maxRows = rows > 0 ? rows : Long.MAX_VALUE;
+    long millis = options.getLong("maxtime", 0L);
+    maxNanos = millis > 0 ? millis * 1000000L : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return true if a limit is set
+   */
+  boolean isLimited() {
+    return maxRows < Long.MAX_VALUE || maxNanos < Long.MAX_VALUE;
+  }
+
+  /**
+   * start a new call; samples are reproducible for the same bag order.
+   */
+  void start() {
+    deadline = maxNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + maxNanos;
+    numRead = 0;
+    dropped = 0;
+    unread = 0;
+    numKept = 0;
+    random = 0x9e3779b97f4a7c15L;
+  }
+
+  /**
+   * @return initial capacity of arrays for a bag of the given size
+   */
+  int getCapacity(long bagSize) {
+    return (int)Math.max(1, Math.min(bagSize, Math.min(maxRows, Integer.MAX_VALUE)));
+  }
+
+  /**
+   * to be called for every tuple read from the bag.
+   *
+   * @return true if the time is up; the remaining rows are not read
+   */
+  boolean isExpired() {
+    if (deadline != Long.MAX_VALUE && numRead > 0 && numRead % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline) {
+      return true;
+    }
+    numRead++;
+    return false;
+  }
+
+  /**
+   * count the rows of a bag that were not read, after isExpired().
+   */
+  void skipRemaining(long bagSize) {
+    unread = Math.max(0, bagSize - numRead);
+    dropped += unread;
+  }
+
+  /**
+   * reservoir sampling (algorithm R): decide where to store the next valid row.
+   *
+   * @param numValid number of valid rows seen before this one
+   * @return index at which to store the row (numValid, for appending, while
+   *   the reservoir is not full), or -1 if the row is dropped
+   */
+  long getSampleSlot(long numValid) {
+    if (numValid < maxRows) {
+      return numValid;
+    }
+    dropped++;
+    long slot = nextLong(numValid + 1);
+    if (slot < maxRows) {
+      return slot;
+    }
+    return -1;
+  }
+
+  /**
+   * keep the top rows by score: decide where to store the next valid row.
+   *
+   * @param score ranking score of the row
+   * @return index at which to store the row (the number of kept rows, for
+   *   appending, while the budget is not full), the index of the lowest
+   *   kept row that it replaces, or -1 if the row is dropped
+   */
+  long getTopSlot(double score) {
+    if (maxRows == Long.MAX_VALUE) {
+      // without a row limit, no row is ever replaced
+      return numKept++;
+    }
+    if (numKept < maxRows) {
+      if (numKept == heapRows.length) {
+        int capacity = (int)Math.min(Math.max(16, 2L * numKept), maxRows);
+        heapRows = Arrays.copyOf(heapRows, capacity);
+        heapScores = Arrays.copyOf(heapScores, capacity);
+      }
+      heapRows[numKept] = numKept;
+      heapScores[numKept] = score;
+      return numKept++;
+    }
+    if (dropped == 0) {
+      // first dropped row
+      for (int i = numKept / 2 - 1; i >= 0; i--) {
+        siftDown(i);
+      }
+    }
+    dropped++;
+    if (!(score > heapScores[0])) {
+      return -1;
+    }
+    heapScores[0] = score;
+    int slot = heapRows[0];
+    siftDown(0);
+    return slot;
+  }
+
+  /**
+   * restore the min-heap property of the kept scores below a position.
+   */
+  private void siftDown(int pos) {
+    int row = heapRows[pos];
+    double score = heapScores[pos];
+    while (2 * pos + 1 < numKept) {
+      int child = 2 * pos + 1;
+      if (child + 1 < numKept && heapScores[child + 1] < heapScores[child]) {
+        child++;
+      }
+      if (heapScores[child] >= score) {
+        break;
+      }
+      heapRows[pos] = heapRows[child];
+      heapScores[pos] = heapScores[child];
+      pos = child;
+    }
+    heapRows[pos] = row;
+    heapScores[pos] = score;
+  }
+
+  /**
+   * @return true if rows were dropped in the current call
+   */
+  boolean isDegraded() {
+    return dropped > 0;
+  }
+
+  /**
+   * @param numUsed number of rows evaluated
+   * @return fraction of rows that were evaluated
+   */
+  double getCoverage(long numUsed) {
+    return dropped == 0 ? 1.0 : (double)numUsed / (numUsed + dropped);
+  }
+
+  /**
+   * update the counters at the end of a degraded call.
+   */
+  void report() {
+    if (!isDegraded()) {
+      return;
+    }
+    PigStatusReporter reporter = PigStatusReporter.getInstance();
+    if (reporter != null) {
+      reporter.incrCounter(COUNTER_GROUP, "DEGRADED_CALLS", 1L);
+      reporter.incrCounter(COUNTER_GROUP, "DROPPED_ROWS", dropped);
+    }
+  }
+
+  /**
+   * @return pseudo-random number between 0 (inclusive) and bound (exclusive)
+   */
+  private long nextLong(long bound) {
+    // splitmix64
+    random += 0x9e3779b97f4a7c15L;
+    long z = random;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    z = z ^ (z >>> 31);
+    return (z >>> 1) % bound;
+  }
+};
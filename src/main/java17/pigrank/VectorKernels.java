@@ -0,0 +1,142 @@
+package pigrank;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * DCG kernels on the Java Vector API, see Kernels.
+ *
+ * Runs of items without tied scores are summed in vector lanes; the
+ * boundaries of the runs are found by comparing neighboring scores in
+ * lanes, and groups of tied items are summed as in the scalar code.
+ * Rankings with more positions before the cutoff than the table of
+ * discount factors use the scalar kernels.
+ *
+ * Requires Java 17 with --add-modules jdk.incubator.vector; the class is
+ * compiled separately into META-INF/versions/17 of the jar.
+ */
+
+class VectorKernels extends Kernels {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  private static final int LANES = SPECIES.length();
+
+  /** reverses the lanes of a vector */
+  private static final VectorShuffle<Double> REVERSE = VectorShuffle.iota(SPECIES, LANES - 1, -1, true);
+
+  @Override
+  String getName() {
+    return "vector" + SPECIES.vectorBitSize();
+  }
+
+  @Override
+  double dcg(double[] scores, double[] targets, int size, int cutoff, boolean normalized, double[] weights) {
+    int limit = Math.min(size, cutoff);
+    if (limit > weights.length) {
+      return super.dcg(scores, targets, size, cutoff, normalized, weights);
+    }
+
+    double sum = 0.0;        // discounted sum of target values
+    double sumWeight = 0.0;  // sum of discount factors
+
+    int i = 0;
+    while (i < limit) {
+
+      // each item of [i, end) is the only one with its score
+      int end = findTie(scores, size, i, limit);
+      if (end > i) {
+        DoubleVector vecSum = DoubleVector.zero(SPECIES);
+        DoubleVector vecWeight = DoubleVector.zero(SPECIES);
+        int k = i;
+        for (; k + LANES <= end; k += LANES) {
+          DoubleVector w = DoubleVector.fromArray(SPECIES, weights, k);
+          vecSum = DoubleVector.fromArray(SPECIES, targets, k).mul(w).add(vecSum);
+          vecWeight = vecWeight.add(w);
+        }
+        double runSum = vecSum.reduceLanes(VectorOperators.ADD);
+        double runWeight = vecWeight.reduceLanes(VectorOperators.ADD);
+        for (; k < end; k++) {
+          runSum += targets[k] * weights[k];
+          runWeight += weights[k];
+        }
+        sum += runSum;
+        sumWeight += runWeight;
+      }
+      if (end == limit) {
+        break;
+      }
+
+      // group of tied items from end, which may extend beyond the cutoff
+      double score = scores[end];
+      int next = end + 1;
+      while (next < size && scores[next] == score) {
+        next++;
+      }
+      double tiedWeight = 0.0;
+      double tiedSum = 0.0;
+      for (int k = end; k < next; k++) {
+        if (k < cutoff) {
+          tiedWeight += weights[k];
+        }
+        tiedSum += targets[k];
+      }
+      sumWeight += tiedWeight;
+      sum += tiedWeight * tiedSum / (next - end);
+      i = next;
+    }
+
+    return normalized ? sum / sumWeight : sum;
+  }
+
+  /**
+   * @return first position in [from, limit) whose item has the same score
+   *   as the next one, i.e., starts a group of ties; limit if there is none
+   */
+  private static int findTie(double[] scores, int size, int from, int limit) {
+    int k = from;
+    int bound = Math.min(limit, size - 1);
+    for (; k + LANES <= bound; k += LANES) {
+      VectorMask<Double> tied = DoubleVector.fromArray(SPECIES, scores, k)
+        .compare(VectorOperators.EQ, DoubleVector.fromArray(SPECIES, scores, k + 1));
+      if (tied.anyTrue()) {
+        return k + tied.firstTrue();
+      }
+    }
+    for (; k < bound; k++) {
+      if (scores[k] == scores[k + 1]) {
+        return k;
+      }
+    }
+    return limit;
+  }
+
+  @Override
+  double maxDCG(double[] sorted, int size, int cutoff) {
+    return maxDCG(sorted, size, cutoff, getWeights(Math.min(size, cutoff)));
+  }
+
+  @Override
+  double maxDCG(double[] sorted, int size, int cutoff, double[] weights) {
+    int n = Math.min(size, cutoff);
+    if (n > weights.length) {
+      return super.maxDCG(sorted, size, cutoff, weights);
+    }
+
+    // the largest targets are at the end of the sorted array
+    DoubleVector vecSum = DoubleVector.zero(SPECIES);
+    int i = 0;
+    for (; i + LANES <= n; i += LANES) {
+      DoubleVector gains = DoubleVector.fromArray(SPECIES, sorted, size - i - LANES).rearrange(REVERSE);
+      vecSum = gains.mul(DoubleVector.fromArray(SPECIES, weights, i)).add(vecSum);
+    }
+    double sum = vecSum.reduceLanes(VectorOperators.ADD);
+    for (; i < n; i++) {
+      sum += sorted[size - 1 - i] * weights[i];
+    }
+    return sum;
+  }
+};
@@ -0,0 +1,61 @@
+package pigrank;
+
+import java.util.*;
+
+import java.io.IOException;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.pigunit.PigTest;
+import org.apache.pig.tools.parameters.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class BootstrapMeanTest {
+
+  final static String[] pigScript = {
+    " define BOOTSTRAP pigrank.BootstrapMean('200', '0.9');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         ndcg:double",
+    " );",
+    " ",
+    " data_all = group data all;",
+    " ",
+    " eval = foreach data_all",
+    " generate",
+    "         flatten(BOOTSTRAP(data))",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+  final static String[] input = { "q1\t0.5", "q2\t0.25", "q3\t1.0", "q4\t0.75", "q5\t0.0",
+                                  "q6\t0.5", "q7\t0.125", "q8\t1.0", "q9\t0.625", "q10\t0.375" };
+
+  @Test
+  public void testBootstrapMean() throws IOException, ParseException {
+
+    // values with exact binary representation, so that partial sums
+    // merged in the combiner equal the sums over the whole bag
+    TupleFactory tf = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    for (String line : input) {
+      String[] fields = line.split("\t");
+      bag.add(tf.newTuple(Arrays.<Object>asList(fields[0], Double.parseDouble(fields[1]))));
+    }
+    Tuple summary = new BootstrapMean("200", "0.9").exec(tf.newTuple(bag));
+
+    assertEquals(0.5125, (Double)summary.get(0), 1e-12);
+    assertTrue((Double)summary.get(1) > 0.0);
+    assertTrue((Double)summary.get(2) < 0.5125 && (Double)summary.get(3) > 0.5125);
+    assertEquals(10L, summary.get(4));
+
+    PigTest test = new PigTest(pigScript);
+    test.assertOutput("data", input, "eval", new String[] { summary.toString() });
+  };
+};
@@ -2,12 +2,20 @@ package pigrank;
 
 import java.util.*;
 
+import java.io.File;
 import java.io.IOException;
 
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.Utils;
 import org.apache.pig.pigunit.PigTest;
 import org.apache.pig.tools.parameters.ParseException;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 
 public class DCGTest {
 
@@ -53,4 +61,396 @@ public class DCGTest {
 
     test.assertOutput("data", input, "eval", expected);
   };
+
+  @Test
+  public void testDCGOffHeap() throws IOException, ParseException {
+
+    // every bag is extracted into off-heap columns
+    String[] script = pigScript.clone();
+    for (int i = 0; i < 4; i++) {
+      script[i] = script[i].replace("');", "', 'offheap=1');");
+    }
+
+    String[] input = { "q1\t1.0\t5", "q1\t2.0\t0", "q1\t3.0\t2", "q1\t4.0\t0", "q1\t5.0\t0",
+                       "q2\t2.1\t0", "q2\t2.0\t0",
+                       "q3\t5\t10",
+                       "q4\t5.0\t0", "q4\t3.0\t0", "q4\t4.0\t0", "q4\t2.0\t1.5", "q4\t4.0\t0.5", "q4\t1.0\t0", "q4\t4.0\t1" };
+    String[] expected = {
+      "(q1,2.934264036172708,1.0,0.4685930805099648,0.9951855928353252)",
+      "(q2,0.0,0.0,0.0,0.0)",
+      "(q3,10.0,10.0,1.0,10.0)",
+      "(q4,1.3151139364844586,0.5654648767857287,0.5523531026111765,0.3614936962253256)" };
+
+    PigTest test = new PigTest(script);
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testDCGBudget() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Random random = new Random(17);
+    for (int i = 0; i < 1000; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", random.nextDouble(), (double)random.nextInt(3))));
+    }
+    Tuple input = tupleFactory.newTuple(bag);
+    double exact = (Double)new DCG("normalized", "-1", "1", "2").exec(input);
+
+    // within the budget, the result is exact
+    Tuple result = (Tuple)new DCG("normalized", "-1", "1", "2", "maxrows=1000", "maxtime=60000").exec(input);
+    assertEquals(3, result.size());
+    assertEquals(exact, (Double)result.get(0), 1e-12);
+    assertEquals(1.0, (Double)result.get(1), 0.0);
+    assertEquals(0.0, (Double)result.get(2), 0.0);
+
+    // beyond, the measure is estimated from a uniform sample
+    result = (Tuple)new DCG("normalized", "-1", "1", "2", "maxrows=100").exec(input);
+    assertEquals(0.1, (Double)result.get(1), 1e-12);
+    assertEquals(exact, (Double)result.get(0), 0.15);
+    double stderr = (Double)result.get(2);
+    assertTrue(stderr > 0.0);
+    assertEquals(exact, (Double)result.get(0), 3 * stderr);
+
+    // unnormalized DCG is scaled to the full list
+    exact = (Double)new DCG("unnormalized", "-1", "1", "2").exec(input);
+    result = (Tuple)new DCG("unnormalized", "-1", "1", "2", "maxrows=100").exec(input);
+    stderr = (Double)result.get(2);
+    assertTrue(stderr > 0.0);
+    assertEquals(exact, (Double)result.get(0), 3 * stderr);
+
+    // if the time is up, the sample is drawn from a prefix of the bag only
+    for (int i = 0; i < 2 * WorkBudget.CLOCK_INTERVAL; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", random.nextDouble(), (double)random.nextInt(3))));
+    }
+    DCG dcg = new DCG("normalized", "-1", "1", "2", "maxrows=100", "maxtime=60000");
+    dcg.columns.budget.maxNanos = 0L;
+    result = (Tuple)dcg.exec(input);
+    assertTrue((Double)result.get(1) < 1.0);
+    assertTrue(Double.isNaN((Double)result.get(2)));
+  };
+
+  @Test
+  public void testDCGBudgetCutoff() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Random random = new Random(19);
+    for (int i = 0; i < 1000; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", random.nextDouble(), (double)(random.nextInt(20) == 0 ? 1 + random.nextInt(3) : 0))));
+    }
+    Tuple input = tupleFactory.newTuple(bag);
+
+    // the top rows by score give the exact value, and the top targets of all rows the ideal DCG
+    for (String offHeap : new String[] { "offheap=0", "offheap=1" }) {
+      for (String normalization : new String[] { "normalized", "unnormalized", "weighted_average" }) {
+        double exact = (Double)new DCG(normalization, "10", "1", "2").exec(input);
+        Tuple result = (Tuple)new DCG(normalization, "10", "1", "2", "maxrows=100", offHeap).exec(input);
+        assertEquals(exact, (Double)result.get(0), 1e-12);
+        assertEquals(0.1, (Double)result.get(1), 1e-12);
+        assertEquals(0.0, (Double)result.get(2), 0.0);
+      }
+      double exact = (Double)new DCG("normalized", "10", "1", "2", "gain=exponential").exec(input);
+      Tuple result = (Tuple)new DCG("normalized", "10", "1", "2", "gain=exponential", "maxrows=10", offHeap).exec(input);
+      assertEquals(exact, (Double)result.get(0), 1e-12);
+    }
+
+    // a cutoff beyond the budget is estimated
+    double exact = (Double)new DCG("normalized", "500", "1", "2").exec(input);
+    Tuple result = (Tuple)new DCG("normalized", "500", "1", "2", "maxrows=100").exec(input);
+    double stderr = (Double)result.get(2);
+    assertTrue(stderr > 0.0);
+    assertEquals(exact, (Double)result.get(0), 3 * stderr);
+  };
+
+  @Test
+  public void testGainAndDiscount() throws IOException {
+    // scores in decreasing order, without ties
+    double[] targets = { 1, 3, 0, 2, 1 };
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    for (int i = 0; i < targets.length; i++) {
+      bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", (double)(10 - i), targets[i])));
+    }
+    Tuple input = TupleFactory.getInstance().newTuple(bag);
+
+    double dcg = 0.0;
+    for (int i = 0; i < targets.length; i++) {
+      dcg += (Math.pow(2.0, targets[i]) - 1.0) / (i + 1);
+    }
+    double maxDCG = 7.0 + 3.0 / 2 + 1.0 / 3 + 1.0 / 4;
+    assertEquals(dcg, (Double)new DCG("unnormalized", "-1", "1", "2", "gain=exponential", "discount=reciprocal").exec(input), 1e-12);
+    assertEquals(dcg / maxDCG, (Double)new DCG("normalized", "-1", "1", "2", "gain=exponential", "discount=reciprocal").exec(input), 1e-12);
+    assertEquals(dcg / maxDCG, (Double)new DCG("normalized", "-1", "1", "2", "gain=exponential", "discount=reciprocal", "offheap=1").exec(input), 1e-12);
+
+    // truncated position weights
+    assertEquals((1 * 1.0 + 3 * 0.5) / (3 * 1.0 + 2 * 0.5),
+                 (Double)new DCG("normalized", "-1", "1", "2", "discount=1,0.5").exec(input), 1e-12);
+    assertEquals((1 * 1.0 + 3 * 0.5) / (3 * 1.0 + 2 * 0.5),
+                 (Double)new DCG("normalized", "-1", "1", "2", "discount=1,0.5", "offheap=1").exec(input), 1e-12);
+
+    // the defaults
+    assertEquals(new DCG("normalized", "3", "1", "2").exec(input),
+                 new DCG("normalized", "3", "1", "2", "gain=linear", "discount=log").exec(input));
+  }
+
+  @Test
+  public void testOffHeapRanking() {
+
+    Random random = new Random(11);
+    OffHeapColumns columns = new OffHeapColumns();
+
+    for (int size : new int[] { 1, 31, 32, 33, 100, 1000 }) {
+      columns.reserve(2, 3, size, 0);
+      double[] scores = new double[size];
+      double[] targets = new double[size];
+      for (int i = 0; i < size; i++) {
+        // coarse scores, to produce ties
+        scores[i] = random.nextInt(20);
+        targets[i] = random.nextInt(4);
+        columns.getDoubles(0).put(i, scores[i]);
+        columns.getDoubles(1).put(i, targets[i]);
+      }
+
+      Ranking ranking = new Ranking(null, scores, targets, size);
+      ranking.rank();
+      double maxDCG = OffHeapRanking.getMaxDCG(columns.getDoubles(1), columns.getInts(2), columns.getInts(1), size, 10);
+      OffHeapRanking offHeapRanking = new OffHeapRanking(columns.getDoubles(0), columns.getDoubles(1), columns.getInts(0), columns.getInts(1), columns.getInts(2), size);
+      offHeapRanking.rank();
+
+      // with the vector kernels, heap rankings may differ by rounding
+      double tolerance = Kernels.TOLERANCE * 10;
+      assertEquals(ranking.getMaxDCG(10), maxDCG, tolerance);
+      for (int i = 0; i < size; i++) {
+        assertEquals(ranking.getPosition(i), offHeapRanking.getPosition(i));
+      }
+      assertEquals(ranking.getDCG(10, false), offHeapRanking.getDCG(10, false), tolerance);
+      assertEquals(ranking.getNDCG(5), offHeapRanking.getNDCG(5), tolerance);
+      assertEquals(ranking.getMRR(Integer.MAX_VALUE), offHeapRanking.getMRR(Integer.MAX_VALUE), 0.0);
+    }
+    columns.release();
+  };
+
+  @Test
+  public void testOffHeapFree() {
+    // the memory is released eagerly, with the cleaner of Java 8 or Unsafe of Java 9+
+    assertTrue(OffHeapColumns.free(java.nio.ByteBuffer.allocateDirect(1 << 16)));
+  };
+
+  @Test
+  public void testCompactOffHeap() throws IOException {
+
+    Random random = new Random(13);
+    for (int size : new int[] { 1, 33, 1000 }) {
+      DataBag bag = BagFactory.getInstance().newDefaultBag();
+      for (int i = 0; i < size; i++) {
+        // coarse scores, to produce ties
+        bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", random.nextInt(40) / 4.0, (double)random.nextInt(5))));
+      }
+      Tuple input = TupleFactory.getInstance().newTuple(bag);
+
+      RankColumns columns = new RankColumns("1", "2");
+      columns.offHeapThreshold = 1;
+      assertTrue(columns.extract(bag, "DCGTest"));
+      assertTrue(columns.isCompact);
+      columns.release();
+
+      // compact columns hold the same values, so the results are identical
+      for (String[] args : new String[][] { { "normalized", "10", "1", "2" },
+                                            { "unnormalized", "-1", "1", "2", "gain=exponential" },
+                                            { "normalized", "5", "1", "2", "gain=exponential", "discount=reciprocal" } }) {
+        String[] compact = Arrays.copyOf(args, args.length + 1);
+        compact[args.length] = "offheap=1";
+        String[] wide = Arrays.copyOf(compact, compact.length + 1);
+        wide[compact.length] = "compact=false";
+        assertEquals(new DCG(wide).exec(input), new DCG(compact).exec(input));
+      }
+
+      // values that do not fit widen the columns
+      bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", 0.1, 2.0)));
+      bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", 1.0, 2.5)));
+      RankColumns widened = new RankColumns("1", "2");
+      widened.offHeapThreshold = 1;
+      assertTrue(widened.extract(bag, "DCGTest"));
+      assertFalse(widened.isCompact);
+      widened.release();
+      assertEquals(new DCG("normalized", "10", "1", "2", "offheap=1", "compact=false").exec(input),
+                   new DCG("normalized", "10", "1", "2", "offheap=1").exec(input));
+      assertEquals((Double)new DCG("normalized", "10", "1", "2").exec(input),
+                   (Double)new DCG("normalized", "10", "1", "2", "offheap=1").exec(input), Kernels.TOLERANCE * 10);
+    }
+  };
+
+  @Test
+  public void testCompactSticky() throws Exception {
+
+    DataBag wide = BagFactory.getInstance().newDefaultBag();
+    DataBag narrow = BagFactory.getInstance().newDefaultBag();
+    for (int i = 0; i < 20; i++) {
+      wide.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", i / 10.0, (double)(i % 3))));
+      narrow.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", i / 4.0, (double)(i % 3))));
+    }
+
+    // once a bag was widened, later bags start with doubles in the same buffer
+    RankColumns columns = new RankColumns("1", "2");
+    columns.offHeapThreshold = 1;
+    assertTrue(columns.extract(narrow, "DCGTest"));
+    assertTrue(columns.isCompact);
+    assertTrue(columns.extract(wide, "DCGTest"));
+    assertFalse(columns.isCompact);
+    assertTrue(columns.extract(narrow, "DCGTest"));
+    assertFalse(columns.isCompact);
+    columns.release();
+
+    // declared double scores are stored as doubles from the first bag
+    RankColumns declared = new RankColumns("1", "2");
+    declared.offHeapThreshold = 1;
+    declared.setInputSchema(Utils.getSchemaFromString("data: {(query: chararray, score: double, target: double)}"));
+    assertTrue(declared.extract(narrow, "DCGTest"));
+    assertFalse(declared.isCompact);
+    declared.release();
+
+    RankColumns floats = new RankColumns("1", "2");
+    floats.offHeapThreshold = 1;
+    floats.setInputSchema(Utils.getSchemaFromString("data: {(query: chararray, score: float, target: int)}"));
+    assertTrue(floats.extract(narrow, "DCGTest"));
+    assertTrue(floats.isCompact);
+    floats.release();
+
+    // the results do not depend on the storage
+    DCG dcg = new DCG("normalized", "10", "1", "2", "offheap=1");
+    DCG reference = new DCG("normalized", "10", "1", "2", "offheap=1", "compact=false");
+    for (DataBag bag : new DataBag[] { narrow, wide, narrow }) {
+      Tuple input = TupleFactory.getInstance().newTuple(bag);
+      assertEquals(reference.exec(input), dcg.exec(input));
+    }
+  };
+
+  final static String[] pigScriptMultiple = {
+    " define NDCG_MULTI pigrank.DCG('normalized', '-1', '1,2', '3,4');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         score:double,",
+    "         score_inv:double,",
+    "         target:double,",
+    "         target_bin:double",
+    " );",
+    " ",
+    " data_gr = group data by query;",
+    " ",
+    " eval = foreach data_gr",
+    " generate",
+    "         flatten(group) as query,",
+    "         flatten(NDCG_MULTI(data))",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+  @Test
+  public void testDCGMultiple() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScriptMultiple);
+
+    String[] input = { "q1\t1.0\t-1.0\t5\t1", "q1\t2.0\t-2.0\t0\t0", "q1\t3.0\t-3.0\t2\t1", "q1\t4.0\t-4.0\t0\t0", "q1\t5.0\t-5.0\t0\t0",
+                       "q3\t5\t-5\t10\t1" };
+    String[] expected = {
+      "(q1,0.4685930805099648,0.5437713091520254,0.9581818297193971,0.9197207891481876)",
+      "(q3,1.0,1.0,1.0,1.0)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testDCGMultipleNulls() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Random random = new Random(23);
+    for (int i = 0; i < 200; i++) {
+      // the second score and the second target are sometimes null
+      Double score2 = (i % 7 == 3) ? null : (double)random.nextInt(20);
+      Double target2 = (i % 5 == 1) ? null : (double)random.nextInt(4);
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", (double)random.nextInt(20), score2, (double)random.nextInt(3), target2)));
+    }
+    Tuple input = tupleFactory.newTuple(bag);
+
+    // each pair equals the measure of its columns alone, which skips the rows with nulls
+    for (String offHeap : new String[] { "offheap=0", "offheap=1" }) {
+      for (String cutoff : new String[] { "-1", "10" }) {
+        Tuple result = (Tuple)new DCG("normalized", cutoff, "1,2", "3,4", offHeap).exec(input);
+        assertEquals(4, result.size());
+        for (int j = 0; j < 2; j++) {
+          for (int k = 0; k < 2; k++) {
+            double single = (Double)new DCG("normalized", cutoff, "" + (1 + j), "" + (3 + k), offHeap).exec(input);
+            assertEquals(single, (Double)result.get(2 * j + k), 1e-12);
+          }
+        }
+      }
+    }
+  };
+
+  @Test
+  public void testDCGQrels() throws IOException, ParseException {
+
+    QrelsIndexBuilder builder = new QrelsIndexBuilder();
+    builder.add("q1", "a", 5.0f);
+    builder.add("q1", "c", 2.0f);
+    builder.add("q1", "c", 2.0f);
+    builder.add("q2", "a", 1.0f);
+    File index = File.createTempFile("qrels", ".idx");
+    index.deleteOnExit();
+    builder.write(index);
+
+    String[] script = {
+      " define DCG      pigrank.DCG('unnormalized', '-1', '2', 'qrels', 'qrels=" + index.getPath() + "', 'query=0', 'id=1');",
+      " define DCG_SKIP pigrank.DCG('unnormalized', '-1', '2', 'qrels', 'qrels=" + index.getPath() + "', 'query=0', 'id=1', 'unjudged=skip');",
+      " define MRR      pigrank.MRR('2', 'qrels', 'qrels=" + index.getPath() + "', 'query=0', 'id=1');",
+      " ",
+      " data = load 'input' as (",
+      "         query:chararray,",
+      "         id:chararray,",
+      "         score:double",
+      " );",
+      " ",
+      " data_gr = group data by query;",
+      " ",
+      " eval = foreach data_gr",
+      " generate",
+      "         flatten(group) as query,",
+      "         DCG(data),",
+      "         DCG_SKIP(data),",
+      "         MRR(data)",
+      " ;",
+      " ",
+      " store eval into 'output';" };
+
+    PigTest test = new PigTest(script);
+
+    String[] input = { "q1\ta\t1.0", "q1\tb\t2.0", "q1\tc\t3.0", "q1\td\t4.0", "q1\te\t5.0",
+                       "q3\ta\t1.0" };
+    String[] expected = {
+      "(q1,2.934264036172708,5.154648767857287,0.3333333333333333)",
+      "(q3,0.0,0.0,0.0)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testTieAtTopRank() throws IOException {
+
+    // two items tied at the top rank count with the mean of their targets
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", 1.0, 1.0)));
+    bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("q", 1.0, 0.0)));
+    Tuple input = TupleFactory.getInstance().newTuple(bag);
+
+    double expected = 0.5 * (1.0 + Math.log(2.0) / Math.log(3.0));
+    assertEquals(expected, (Double)new DCG("unnormalized", "-1", "1", "2").exec(input), 1e-12);
+    assertEquals(expected, (Double)new DCG("unnormalized", "-1", "1", "2", "offheap=1").exec(input), 1e-12);
+
+    // at cutoff 1, only the weight of the first rank counts
+    assertEquals(0.5, (Double)new DCG("unnormalized", "1", "1", "2").exec(input), 1e-12);
+    assertEquals(0.5, (Double)new DCG("unnormalized", "1", "1", "2", "offheap=1").exec(input), 1e-12);
+  };
 };
@@ -0,0 +1,137 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DeltaNDCGTest {
+
+  static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  // rows (query, id, score, target), with ids d0, d1, ... in input order
+  static Tuple newInput(double[] scores, double[] targets) {
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    for (int i = 0; i < scores.length; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", "d" + i, scores[i], targets[i])));
+    }
+    return tupleFactory.newTuple(bag);
+  }
+
+  static HashMap<String, Double> toMap(DataBag pairs) throws IOException {
+    HashMap<String, Double> result = new HashMap<String, Double>();
+    Iterator<Tuple> it = pairs.iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      result.put(t.get(0) + "," + t.get(1), (Double)t.get(2));
+    }
+    return result;
+  }
+
+  // nDCG of the targets in rank order, with distinct scores
+  static double getNDCG(double[] ranked, int cutoff) {
+    double[] scores = new double[ranked.length];
+    for (int i = 0; i < ranked.length; i++) {
+      scores[i] = ranked.length - i;
+    }
+    Ranking ranking = new Ranking(null, scores, ranked, ranked.length);
+    ranking.rank();
+    return ranking.getNDCG(cutoff);
+  }
+
+  @Test
+  public void testSwaps() throws IOException {
+    Random random = new Random(7);
+    int n = 40;
+    double[] scores = new double[n];
+    double[] targets = new double[n];
+    for (int i = 0; i < n; i++) {
+      scores[i] = random.nextDouble();
+      targets[i] = random.nextInt(4);
+    }
+    Ranking sorted = new Ranking(null, scores, targets, n);
+    sorted.rank();
+    double[] ranked = new double[n];
+    for (int i = 0; i < n; i++) {
+      ranked[i] = sorted.getTarget(i);
+    }
+
+    for (int cutoff : new int[] { -1, 10 }) {
+      int k = cutoff <= 0 ? Integer.MAX_VALUE : cutoff;
+      HashMap<String, Double> pairs = toMap(new DeltaNDCG(Integer.toString(cutoff), "2", "3", "id=1").exec(newInput(scores, targets)));
+      double ndcg = getNDCG(ranked, k);
+      int numExpected = 0;
+      for (int i = 0; i < n; i++) {
+        for (int j = i + 1; j < n; j++) {
+          double[] swapped = ranked.clone();
+          swapped[i] = ranked[j];
+          swapped[j] = ranked[i];
+          double expected = Math.abs(getNDCG(swapped, k) - ndcg);
+          Double delta = pairs.get("d" + sorted.getPosition(i) + ",d" + sorted.getPosition(j));
+          if (ranked[i] == ranked[j] || i >= k) {
+            assertNull(delta);
+          } else {
+            assertEquals(expected, delta, 1e-12);
+            numExpected++;
+          }
+        }
+      }
+      assertEquals(numExpected, pairs.size());
+    }
+  }
+
+  @Test
+  public void testMaxPairs() throws IOException {
+    Tuple input = newInput(new double[] { 4, 3, 2, 1 }, new double[] { 0, 1, 2, 3 });
+    DataBag pairs = new DeltaNDCG("-1", "2", "3", "id=1", "maxpairs=4").exec(input);
+    assertEquals(4, pairs.size());
+    HashMap<String, Double> map = toMap(pairs);
+    assertTrue(map.containsKey("d0,d3"));
+    assertTrue(map.containsKey("d1,d2"));
+    assertFalse(map.containsKey("d1,d3"));
+
+    // no relevant items
+    assertEquals(0, new DeltaNDCG("-1", "2", "3").exec(newInput(new double[] { 2, 1 }, new double[] { 0, 0 })).size());
+  }
+
+  @Test
+  public void testBagOrder() throws IOException {
+    double[] scores = { 0.5, 0.9, 0.1, 0.7, 0.3 };
+    double[] targets = { 1, 0, 2, 3, 0 };
+    Tuple input = newInput(scores, targets);
+
+    // the same items in another bag order give the same pairs
+    DataBag reversed = BagFactory.getInstance().newDefaultBag();
+    for (int i = scores.length - 1; i >= 0; i--) {
+      reversed.add(tupleFactory.newTuple(Arrays.<Object>asList("q", "d" + i, scores[i], targets[i])));
+    }
+    HashMap<String, Double> pairs = toMap(new DeltaNDCG("3", "2", "3", "id=1").exec(input));
+    assertEquals(pairs, toMap(new DeltaNDCG("3", "2", "3", "id=1").exec(tupleFactory.newTuple(reversed))));
+    assertTrue(pairs.containsKey("d1,d3"));
+    assertFalse(pairs.containsKey("d3,d1"));
+
+    // without an id column, the pairs hold the input rows
+    Iterator<Tuple> it = new DeltaNDCG("3", "2", "3").exec(input).iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      String key = ((Tuple)t.get(0)).get(1) + "," + ((Tuple)t.get(1)).get(1);
+      assertEquals(pairs.get(key), (Double)t.get(2), 0.0);
+      assertEquals(4, ((Tuple)t.get(0)).size());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMultipleColumns() {
+    new DeltaNDCG("10", "1,2", "3");
+  }
+};
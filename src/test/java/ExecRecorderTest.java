@@ -0,0 +1,73 @@
+package pigrank;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExecRecorderTest {
+
+  @Test
+  public void testEvents() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Random random = new Random(3);
+    for (int i = 0; i < 1000; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", (double)random.nextInt(100), (double)random.nextInt(3))));
+    }
+    Tuple input = tupleFactory.newTuple(bag);
+
+    // without a cutoff, a uniform sample of the rows is evaluated
+    DCG dcg = new DCG("normalized", "-1", "1", "2", "maxrows=500");
+    assertTrue(dcg.recorder instanceof JfrExecRecorder);
+
+    // not recorded without a recording
+    dcg.exec(input);
+
+    File file = File.createTempFile("pigrank", ".jfr");
+    file.deleteOnExit();
+    Recording recording = new Recording();
+    try {
+      recording.enable("pigrank.UDFExec").withThreshold(java.time.Duration.ZERO);
+      recording.start();
+      dcg.exec(input);
+      new MRR("1", "2").exec(input);
+      recording.stop();
+      recording.dump(file.toPath());
+    } finally {
+      recording.close();
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+    assertEquals(2, events.size());
+
+    RecordedEvent event = events.get(0);
+    assertEquals("DCG", event.getString("udf"));
+    assertEquals(1000, event.getLong("bagSize"));
+    assertEquals(500, event.getLong("droppedRows"));
+    // the sort algorithm depends on the thresholds of SortDispatcher
+    assertTrue(event.getString("path").matches("heap,(insertion|merge|radix|groups|top),sampled"));
+    assertTrue(event.getLong("distinctScores") > 1 && event.getLong("distinctScores") <= 100);
+    assertTrue(event.getDuration("sortTime").toNanos() > 0);
+
+    event = events.get(1);
+    assertEquals("MRR", event.getString("udf"));
+    assertEquals(0, event.getLong("droppedRows"));
+    assertTrue(event.getString("path").matches("heap,(insertion|merge|radix|groups)"));
+    assertEquals(100, event.getLong("distinctScores"));
+  };
+};
@@ -0,0 +1,99 @@
+package pigrank;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class IncrementalEvalTest {
+
+  // per query: targets by item, scores are the reverse item index
+  static void write(File file, String[] queries, double[][] targets) throws IOException {
+    RankFileWriter writer = new RankFileWriter(new FileOutputStream(file), new String[] { "score", "target" });
+    for (int q = 0; q < queries.length; q++) {
+      writer.startQuery(queries[q]);
+      for (int i = 0; i < targets[q].length; i++) {
+        writer.addRow("id" + i, new double[] { targets[q].length - i, targets[q][i] });
+      }
+    }
+    writer.close();
+  }
+
+  static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+  }
+
+  @Test
+  public void testReuse() throws IOException {
+    File dir = Files.createTempDirectory("incremental").toFile();
+    File a = new File(dir, "a.prk");
+    File b = new File(dir, "b.prk");
+    write(a, new String[] { "q1", "q2" }, new double[][] { { 0, 1, 2 }, { 1, 0 } });
+    write(b, new String[] { "q3", "q\t4" }, new double[][] { { 3, 0, 0, 1 }, { 0, 0 } });
+    File manifest = new File(dir, "manifest.tsv");
+    File output = new File(dir, "output.tsv");
+    List<File> inputs = Arrays.asList(dir);
+
+    IncrementalEval eval = new IncrementalEval(new String[] { "ndcg", "mrr" }, 3, null, "target");
+    eval.run(inputs, manifest, output);
+    assertEquals(4, eval.numQueries);
+    assertEquals(4, eval.numComputed);
+    String[] lines = read(output).split("\n");
+    assertEquals(4, lines.length);
+    assertTrue(lines[3].startsWith("q\\t4\t"));
+    Ranking ranking = new Ranking(null, new double[] { 3, 2, 1 }, new double[] { 0, 1, 2 }, 3);
+    double maxDCG = ranking.getMaxDCG(3);
+    ranking.rank(3);
+    assertEquals("q1\t" + ranking.getNDCG(3, maxDCG) + "\t" + ranking.getMRR(3), lines[0]);
+
+    // unchanged files are not read
+    eval.run(inputs, manifest, output);
+    assertEquals(4, eval.numReused);
+    assertEquals(0, eval.numComputed);
+    assertEquals(2, eval.numSkippedFiles);
+
+    // only the changed query is recomputed, and q2 is gone
+    long modified = b.lastModified();
+    write(b, new String[] { "q3", "q\t4" }, new double[][] { { 3, 0, 0, 1 }, { 0, 2 } });
+    b.setLastModified(modified + 2000);
+    write(a, new String[] { "q1" }, new double[][] { { 0, 1, 2 } });
+    eval.run(inputs, manifest, output);
+    assertEquals(3, eval.numQueries);
+    assertEquals(2, eval.numReused);
+    assertEquals(1, eval.numComputed);
+    assertEquals(1, eval.numRemoved);
+    assertEquals(0, eval.numSkippedFiles);
+
+    // same output as a full evaluation
+    File fullManifest = new File(dir, "full.tsv");
+    File fullOutput = new File(dir, "full_output.tsv");
+    eval.run(inputs, fullManifest, fullOutput);
+    assertEquals(3, eval.numComputed);
+    assertEquals(read(fullOutput), read(output));
+
+    // other parameters invalidate the manifest
+    IncrementalEval other = new IncrementalEval(new String[] { "ndcg", "mrr" }, 2, null, "target");
+    other.run(inputs, manifest, output);
+    assertEquals(3, other.numComputed);
+  }
+
+  @Test
+  public void testEscape() {
+    String s = "a\tb\\n\nc\r";
+    assertEquals("a\\tb\\\\n\\nc\\r", IncrementalEval.escape(s));
+    assertEquals(s, IncrementalEval.unescape(IncrementalEval.escape(s)));
+    assertEquals("plain", IncrementalEval.escape("plain"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownMeasure() {
+    new IncrementalEval(new String[] { "ndcg", "auc" }, 0, null, null);
+  }
+};
@@ -0,0 +1,102 @@
+package pigrank;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KernelsTest {
+
+  private static Ranking randomRanking(Random random, int size, int numDistinct) {
+    Ranking ranking = new Ranking(size);
+    for (int i = 0; i < size; i++) {
+      double score = (numDistinct > 0) ? random.nextInt(numDistinct) : random.nextGaussian();
+      ranking.addItem(null, score, random.nextInt(4));
+    }
+    if (size > 2 && random.nextInt(4) == 0) {
+      ranking.scores[random.nextInt(size)] = Double.POSITIVE_INFINITY;
+      ranking.scores[random.nextInt(size)] = Double.POSITIVE_INFINITY;
+    }
+    ranking.rank();
+    return ranking;
+  }
+
+  @Test
+  public void testScalarKernels() {
+
+    // the scalar kernels reproduce the item-wise loop exactly
+    Random random = new Random(17);
+    Kernels scalar = new Kernels();
+    for (int trial = 0; trial < 200; trial++) {
+      Ranking ranking = randomRanking(random, random.nextInt(200), random.nextBoolean() ? 0 : 1 + random.nextInt(30));
+      int cutoff = random.nextBoolean() ? Integer.MAX_VALUE : random.nextInt(50);
+      for (boolean normalized : new boolean[] { false, true }) {
+        assertEquals(ranking.getDCGByItem(cutoff, normalized),
+                     scalar.dcg(ranking.scores, ranking.targets, ranking.size(), cutoff, normalized), 0.0);
+      }
+    }
+  };
+
+  @Test
+  public void testActiveKernels() {
+
+    // the active kernels, vector ones if enabled, agree with the scalar ones
+    Random random = new Random(19);
+    Kernels scalar = new Kernels();
+    Kernels kernels = Kernels.get();
+    for (int trial = 0; trial < 300; trial++) {
+      int size = random.nextInt(trial < 250 ? 100 : 5000);
+      Ranking ranking = randomRanking(random, size, random.nextBoolean() ? 0 : 1 + random.nextInt(trial % 3 == 0 ? 5 : 500));
+      int cutoff = random.nextBoolean() ? Integer.MAX_VALUE : random.nextInt(size + 2);
+      for (boolean normalized : new boolean[] { false, true }) {
+        double expected = scalar.dcg(ranking.scores, ranking.targets, size, cutoff, normalized);
+        double actual = kernels.dcg(ranking.scores, ranking.targets, size, cutoff, normalized);
+        assertEquals(kernels.getName(), expected, actual, Kernels.TOLERANCE * Math.abs(expected));
+      }
+      double[] sorted = Arrays.copyOf(ranking.targets, size);
+      Arrays.sort(sorted);
+      double expected = scalar.maxDCG(sorted, size, cutoff);
+      assertEquals(kernels.getName(), expected, kernels.maxDCG(sorted, size, cutoff), Kernels.TOLERANCE * expected);
+
+      // other discounts
+      for (Discount discount : new Discount[] { Discount.RECIPROCAL, Discount.weights(3, 2, 2, 1) }) {
+        double[] weights = discount.getWeights(Math.min(size, cutoff));
+        for (boolean normalized : new boolean[] { false, true }) {
+          double expectedDCG = scalar.dcg(ranking.scores, ranking.targets, size, cutoff, normalized, weights);
+          double actualDCG = kernels.dcg(ranking.scores, ranking.targets, size, cutoff, normalized, weights);
+          assertEquals(kernels.getName(), expectedDCG, actualDCG, Kernels.TOLERANCE * Math.abs(expectedDCG));
+        }
+        expected = scalar.maxDCG(sorted, size, cutoff, weights);
+        assertEquals(kernels.getName(), expected, kernels.maxDCG(sorted, size, cutoff, weights), Kernels.TOLERANCE * expected);
+      }
+    }
+  };
+
+  @Test
+  public void testDiscounts() {
+    double[] weights = Discount.RECIPROCAL.getWeights(1000);
+    assertTrue(weights.length >= 1000);
+    assertEquals(0.25, weights[3], 0.0);
+    assertArrayEquals(new double[] { 1.0, 0.5, 0.0 }, Discount.parse("1, 0.5").getWeights(3), 0.0);
+    assertSame(Discount.LOG, Discount.parse("log"));
+    assertEquals(31.0, Gain.EXPONENTIAL.apply(5.0), 0.0);
+    assertEquals(Math.pow(2.0, 1.5) - 1.0, Gain.EXPONENTIAL.apply(1.5), 0.0);
+    assertEquals(Math.pow(2.0, 70) - 1.0, Gain.EXPONENTIAL.apply(70.0), 0.0);
+    assertEquals(2.5, Gain.LINEAR.apply(2.5), 0.0);
+  };
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncreasingWeights() {
+    Discount.parse("1,2");
+  };
+
+  @Test
+  public void testTables() {
+    double[] weights = Kernels.getWeights(100);
+    assertTrue(weights.length >= 100);
+    assertEquals(1.0, weights[0], 0.0);
+    assertEquals(Math.log(2.0) / Math.log(12.0), weights[10], 0.0);
+    assertEquals(Kernels.MAX_TABLE_SIZE, Kernels.getLogs(Integer.MAX_VALUE).length);
+  };
+};
@@ -1,11 +1,19 @@
 package pigrank;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
 
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
 import org.apache.pig.pigunit.PigTest;
 import org.apache.pig.tools.parameters.ParseException;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 public class MRRTest {
 
   final static String[] pigScript = {
@@ -43,4 +51,104 @@ public class MRRTest {
     
     test.assertOutput("data", input, "eval", expected);
   };
+
+  @Test
+  public void testMRROffHeap() throws IOException, ParseException {
+
+    // every bag is extracted into off-heap columns
+    String[] script = pigScript.clone();
+    script[0] = " define MRR pigrank.MRR('1', '2', 'offheap=1');";
+
+    String[] input = { "q1\t1.0\t0", "q1\t2.0\t1", "q1\t3.0\t0", "q1\t4.0\t0", "q1\t5.0\t0",
+                       "q2\t2.1\t0", "q2\t2.0\t0",
+                       "q3\t5\t10",
+                       "q4\t5.0\t0", "q4\t3.0\t0", "q4\t4.0\t0", "q4\t2.0\t1", "q4\t4.0\t1", "q4\t1.0\t0", "q4\t4.0\t1",
+                       "q5\t5.0\t0", "q5\t3.0\t0", "q5\t4.0\t1", "q5\t2.0\t1", "q5\t5.0\t0", "q5\t1.0\t0", "q5\t2.0\t0",
+                       "q6\t4.0\t0", "q6\t4.0\t0", "q6\t4.0\t1", "q6\t4.0\t0", "q6\t4.0\t1" };
+    String[] expected = { "(q1,0.25)", "(q2,0.0)", "(q3,1.0)", "(q4,0.4444444444444444)", "(q5,0.3333333333333333)", "(q6,0.6416666666666667)" };
+
+    PigTest test = new PigTest(script);
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  final static String[] pigScriptMultiple = {
+    " define MRR_MULTI pigrank.MRR('1,2', '3');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         score:double,",
+    "         score_inv:double,",
+    "         target:double",
+    " );",
+    " ",
+    " data_gr = group data by query;",
+    " ",
+    " eval = foreach data_gr ",
+    " generate ",
+    "         flatten(group) as query,",
+    "         flatten(MRR_MULTI(data))",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+  @Test
+  public void testMRRMultiple() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScriptMultiple);
+
+    String[] input = { "q1\t1.0\t-1.0\t0", "q1\t2.0\t-2.0\t1", "q1\t3.0\t-3.0\t0", "q1\t4.0\t-4.0\t0", "q1\t5.0\t-5.0\t0",
+                       "q6\t4.0\t4.0\t0", "q6\t4.0\t4.0\t0", "q6\t4.0\t4.0\t1", "q6\t4.0\t4.0\t0", "q6\t4.0\t4.0\t1" };
+    String[] expected = { "(q1,0.25,0.5)", "(q6,0.6416666666666667,0.6416666666666667)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testMRRMultipleNulls() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Random random = new Random(29);
+    for (int i = 0; i < 100; i++) {
+      // the first score is sometimes null
+      Double score1 = (i % 3 == 0) ? null : (double)random.nextInt(10);
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", score1, (double)random.nextInt(10), (double)(random.nextInt(8) == 0 ? 1 : 0))));
+    }
+    Tuple input = tupleFactory.newTuple(bag);
+
+    for (String offHeap : new String[] { "offheap=0", "offheap=1" }) {
+      Tuple result = (Tuple)new MRR("1,2", "3", offHeap).exec(input);
+      assertEquals(new MRR("1", "3", offHeap).exec(input), result.get(0));
+      assertEquals(new MRR("2", "3", offHeap).exec(input), result.get(1));
+    }
+  };
+
+  @Test
+  public void testMRRBudget() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Random random = new Random(19);
+    for (int i = 0; i < 1000; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", random.nextDouble(), (double)(random.nextInt(20) == 0 ? 1 : 0))));
+    }
+    Tuple input = tupleFactory.newTuple(bag);
+
+    // with a cutoff within the budget, the top rows by score give the exact value
+    for (String offHeap : new String[] { "offheap=0", "offheap=1" }) {
+      double exact = (Double)new MRR("1", "2", "cutoff=10").exec(input);
+      Tuple result = (Tuple)new MRR("1", "2", "cutoff=10", "maxrows=100", offHeap).exec(input);
+      assertEquals(3, result.size());
+      assertEquals(exact, (Double)result.get(0), 1e-12);
+      assertEquals(0.1, (Double)result.get(1), 1e-12);
+      assertEquals(0.0, (Double)result.get(2), 0.0);
+    }
+
+    // without a cutoff, MRR is estimated from a sample, with a standard error
+    Tuple result = (Tuple)new MRR("1", "2", "maxrows=100").exec(input);
+    assertEquals(0.1, (Double)result.get(1), 1e-12);
+    double stderr = (Double)result.get(2);
+    assertTrue(stderr > 0.0 && stderr < 1.0);
+  };
 };
@@ -0,0 +1,107 @@
+package pigrank;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OnlineRankingTest {
+
+  private static void assertSameMeasures(OnlineRanking online, Ranking ranking) {
+    for (int cutoff : new int[] { 0, 1, 2, 5, 10, Integer.MAX_VALUE }) {
+      assertEquals(ranking.getDCG(cutoff, false), online.getDCG(cutoff, false), 1e-12);
+      if (cutoff > 0 && ranking.size() > 0) {
+        assertEquals(ranking.getDCG(cutoff, true), online.getDCG(cutoff, true), 1e-12);
+      }
+      assertEquals(ranking.getMaxDCG(cutoff), online.getMaxDCG(cutoff), 1e-12);
+      assertEquals(ranking.getNDCG(cutoff), online.getNDCG(cutoff), 1e-12);
+      assertEquals(ranking.getMRR(cutoff), online.getMRR(cutoff), 1e-12);
+    }
+  }
+
+  @Test
+  public void testAgainstRanking() {
+
+    Random random = new Random(23);
+    OnlineRanking online = new OnlineRanking();
+
+    // expected items in insertion order: id -> (score, target)
+    LinkedHashMap<String, double[]> items = new LinkedHashMap<String, double[]>();
+
+    for (int step = 0; step < 2000; step++) {
+      String id = "item" + random.nextInt(60);
+      int op = random.nextInt(10);
+      if (op < 5) {
+        // coarse scores, to produce ties
+        double score = random.nextInt(15);
+        double target = random.nextInt(3);
+        online.put(id, score, target);
+        double[] item = items.get(id);
+        if (item == null) {
+          items.put(id, new double[] { score, target });
+        } else {
+          item[0] = score;
+          item[1] = target;
+        }
+      } else if (op < 7) {
+        double target = random.nextInt(3);
+        assertEquals(items.containsKey(id), online.setTarget(id, target));
+        if (items.containsKey(id)) {
+          items.get(id)[1] = target;
+        }
+      } else if (op < 8) {
+        double score = random.nextInt(15);
+        assertEquals(items.containsKey(id), online.setScore(id, score));
+        if (items.containsKey(id)) {
+          items.get(id)[0] = score;
+        }
+      } else {
+        assertEquals(items.remove(id) != null, online.remove(id));
+      }
+
+      if (step % 20 == 0) {
+        Ranking ranking = new Ranking(items.size());
+        for (Map.Entry<String, double[]> entry : items.entrySet()) {
+          ranking.addItem(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        ranking.rank();
+        assertEquals(ranking.size(), online.size());
+        assertSameMeasures(online, ranking);
+        for (int i = 0; i < ranking.size(); i++) {
+          assertEquals(i, online.getRank(ranking.getID(i)));
+        }
+      }
+    }
+  };
+
+  @Test
+  public void testTiesAtTop() {
+    OnlineRanking online = new OnlineRanking();
+    online.put("a", 1.0, 1.0);
+    online.put("b", 1.0, 0.0);
+    online.put("c", -0.0, 2.0);
+    online.put("d", 0.0, 0.0);
+
+    // expectation over both orders of the tied items
+    double w2 = Math.log(2.0) / Math.log(3.0);
+    double w3 = Math.log(2.0) / Math.log(4.0);
+    double w4 = Math.log(2.0) / Math.log(5.0);
+    assertEquals(0.5 * (1.0 + w2) + (w3 + w4), online.getDCG(10, false), 1e-12);
+    assertEquals(0.5 * (1.0 + 0.5), online.getMRR(10), 1e-12);
+
+    Ranking ranking = online.toRanking();
+    ranking.rank();
+    assertSameMeasures(online, ranking);
+
+    online.remove("a");
+    online.setTarget("d", 1.0);
+    assertEquals(0.0, online.getMRR(1), 0.0);
+    online.setTarget("c", 0.0);
+    assertEquals(0.5 * (0.5 + 1.0 / 3.0), online.getMRR(3), 1e-12);
+    ranking = online.toRanking();
+    ranking.rank();
+    assertSameMeasures(online, ranking);
+    assertEquals(-1, online.getRank("a"));
+  };
+};
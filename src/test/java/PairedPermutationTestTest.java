@@ -0,0 +1,116 @@
+package pigrank;
+
+import java.util.*;
+
+import java.io.IOException;
+
+import org.apache.pig.pigunit.PigTest;
+import org.apache.pig.tools.parameters.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PairedPermutationTestTest {
+
+  final static String[] pigScript = {
+    " define PERMUTATION_TEST pigrank.PairedPermutationTest('1000', '1', '2', 'seed=3');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         ndcg_a:double,",
+    "         ndcg_b:double,",
+    "         market:chararray",
+    " );",
+    " ",
+    " data_gr = group data by market;",
+    " ",
+    " eval = foreach data_gr ",
+    " generate ",
+    "         group as market,",
+    "         flatten(PERMUTATION_TEST(data))",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+  @Test
+  public void testPairedPermutationTest() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScript);
+
+    // m1: no difference, every permutation is as extreme as the observed one;
+    // m2: a single pair, whose two sign assignments are equally extreme;
+    // m3: rows with missing metrics are skipped
+    String[] input = { "q1\t0.5\t0.5\tm1", "q2\t0.25\t0.25\tm1",
+                       "q3\t0.75\t0.5\tm2",
+                       "q4\t\t0.5\tm3", "q5\t0.5\t\tm3" };
+    String[] expected = { "(m1,2,0.0,,1.0,1.0)", "(m2,1,0.25,,1.0,0.5154845154845155)", "(m3,0,,,1.0,1.0)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testSignificance() {
+
+    // A better on all 10 queries: only 1 of 1024 sign assignments is as
+    // large, 2 of 1024 as extreme
+    double[] a = new double[10];
+    double[] b = new double[10];
+    for (int i = 0; i < 10; i++) {
+      a[i] = 0.5 + 0.0625 * (i % 3);
+      b[i] = a[i] - 0.125 - 0.0625 * (i % 2);
+    }
+    PermutationTest.Result result = new PermutationTest(20000, 7L, 1).test(a, b, 10);
+    assertEquals(10, result.n);
+    assertEquals(0.15625, result.meanDiff, 1e-12);
+    assertTrue(result.effectSize > 4.0);
+    assertEquals(2.0 / 1024, result.pValue, 0.001);
+    assertEquals(1.0 / 1024, result.pValueGreater, 0.001);
+
+    // reversed
+    result = new PermutationTest(20000, 7L, 1).test(b, a, 10);
+    assertEquals(-0.15625, result.meanDiff, 1e-12);
+    assertEquals(2.0 / 1024, result.pValue, 0.001);
+    assertEquals(1.0, result.pValueGreater, 0.001);
+  };
+
+  @Test
+  public void testNullHypothesis() {
+
+    // p-values of differences without effect are roughly uniform
+    Random random = new Random(11);
+    int rejected = 0;
+    for (int trial = 0; trial < 200; trial++) {
+      double[] diffs = new double[30];
+      for (int i = 0; i < diffs.length; i++) {
+        diffs[i] = random.nextGaussian();
+      }
+      PermutationTest.Result result = new PermutationTest(500, trial, 1).test(diffs, diffs.length);
+      assertTrue(result.pValue > 0.0 && result.pValue <= 1.0);
+      if (result.pValue < 0.1) {
+        rejected++;
+      }
+    }
+    assertTrue("rejected " + rejected, rejected >= 5 && rejected <= 40);
+  };
+
+  @Test
+  public void testThreadsAreDeterministic() {
+
+    Random random = new Random(3);
+    double[] diffs = new double[150];
+    for (int i = 0; i < diffs.length; i++) {
+      diffs[i] = 0.1 + random.nextGaussian();
+    }
+    PermutationTest.Result single = new PermutationTest(5000, 42L, 1).test(diffs, diffs.length);
+    for (int threads : new int[] { 2, 3, 8 }) {
+      PermutationTest test = new PermutationTest(5000, 42L, threads);
+      // the second test reuses the pool
+      for (int repeat = 0; repeat < 2; repeat++) {
+        PermutationTest.Result parallel = test.test(diffs, diffs.length);
+        assertEquals(single.pValue, parallel.pValue, 0.0);
+        assertEquals(single.pValueGreater, parallel.pValueGreater, 0.0);
+      }
+      test.close();
+    }
+  };
+};
@@ -0,0 +1,85 @@
+package pigrank;
+
+import java.util.*;
+
+import java.io.IOException;
+
+import org.apache.pig.pigunit.PigTest;
+import org.apache.pig.tools.parameters.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PairwiseAccuracyTest {
+
+  final static String[] pigScript = {
+    " define ACCURACY pigrank.PairwiseAccuracy('1', '2');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         score:double,",
+    "         target:double",
+    " );",
+    " ",
+    " data_gr = group data by query;",
+    " ",
+    " eval = foreach data_gr ",
+    " generate ",
+    "         flatten(group) as query,",
+    "         ACCURACY(data)",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+  @Test
+  public void testPairwiseAccuracy() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScript);
+
+    String[] input = { "q1\t1.0\t5", "q1\t2.0\t0", "q1\t3.0\t2", "q1\t4.0\t0", "q1\t5.0\t0",
+                       "q2\t2.1\t0", "q2\t2.0\t0",
+                       "q3\t5\t10",
+                       "q4\t4.0\t0", "q4\t4.0\t1", "q4\t3.0\t1" };
+    String[] expected = { "(q1,0.14285714285714285)", "(q2,)", "(q3,)", "(q4,0.25)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testAgainstAllPairs() {
+
+    Random random = new Random(5);
+    for (int trial = 0; trial < 200; trial++) {
+      int size = 1 + random.nextInt(100);
+      double[] scores = new double[size];
+      double[] targets = new double[size];
+      for (int i = 0; i < size; i++) {
+        scores[i] = random.nextInt(10);
+        targets[i] = random.nextInt(4);
+      }
+
+      double correct = 0.0;
+      long pairs = 0;
+      for (int i = 0; i < size; i++) {
+        for (int j = i + 1; j < size; j++) {
+          if (targets[i] != targets[j]) {
+            pairs++;
+            if (scores[i] == scores[j]) {
+              correct += 0.5;
+            } else if ((scores[i] > scores[j]) == (targets[i] > targets[j])) {
+              correct += 1.0;
+            }
+          }
+        }
+      }
+
+      Ranking ranking = new Ranking(null, scores, targets, size);
+      ranking.rank();
+      if (pairs == 0) {
+        assertTrue(Double.isNaN(ranking.getPairwiseAccuracy()));
+      } else {
+        assertEquals(correct / pairs, ranking.getPairwiseAccuracy(), 1e-12);
+      }
+    }
+  };
+};
@@ -0,0 +1,168 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.pigunit.PigTest;
+import org.apache.pig.tools.parameters.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PairwiseSimilarityTest {
+
+  final static String[] pigScript = {
+    " ",
+    " define JACCARD pigrank.PairwiseSimilarity('jaccard', '-1', '2', '3');",
+    " define COSINE  pigrank.PairwiseSimilarity('cosine', '-1', '2', '3');",
+    " define RBO     pigrank.PairwiseSimilarity('rbo', '0.9', '2', '3');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         treatment:chararray,",
+    "         asin:chararray,",
+    "         score:double",
+    " );",
+    " ",
+    " data_gr = group data by (query, treatment);",
+    " ",
+    " data_gr = foreach data_gr ",
+    " generate",
+    "         flatten(group) as (query, treatment),",
+    "         data",
+    " ;",
+    " ",
+    " split data_gr into data1 if treatment=='t1', data2 if treatment=='t2', data3 otherwise;",
+    " ",
+    " side_by_side = cogroup data1 by query, data2 by query, data3 by query;",
+    " ",
+    " eval = foreach side_by_side",
+    " generate",
+    "         flatten(group) as query,",
+    "         flatten(data1.data) as group_t1,",
+    "         flatten(data2.data) as group_t2,",
+    "         flatten(data3.data) as group_t3",
+    " ;",
+    " ",
+    " jaccard = foreach eval generate query, flatten(JACCARD(group_t1, group_t2, group_t3));",
+    " cosine  = foreach eval generate query, flatten(COSINE(group_t1, group_t2, group_t3));",
+    " rbo     = foreach eval generate query, flatten(RBO(group_t1, group_t2, group_t3));",
+    " ",
+    " eval = join jaccard by (query, i, j), cosine by (query, i, j), rbo by (query, i, j);",
+    " ",
+    " eval = foreach eval",
+    " generate",
+    "         $0, $1, $2, $3, $7, $11",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+
+  @Test
+  public void testPairwiseSimilarity() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScript);
+
+    String[] input = { "q1\tt1\ta1a\t9", "q1\tt1\ta2\t8",
+                       "q1\tt2\ta1b\t9", "q1\tt2\ta2\t8",
+                       "q1\tt3\ta1a\t9", "q1\tt3\ta2\t8",
+
+                       "q2\tt1\ta1a\t9", "q2\tt1\ta2\t8", "q2\tt1\ta3\t7", "q2\tt1\ta4\t6", "q2\tt1\ta5\t5", "q2\tt1\ta6\t4",
+                       "q2\tt2\ta1b\t9", "q2\tt2\ta2\t8",
+                       "q2\tt3\ta6\t9", "q2\tt3\ta5\t8", "q2\tt3\ta4\t7" };
+
+    String[] expected = {
+      "(q1,0,1,0.3333333333333333,0.2,0.45)",
+      "(q1,0,2,1.0,1.0,1.0)",
+      "(q1,1,2,0.3333333333333333,0.2,0.45)",
+      "(q2,0,1,0.14285714285714285,0.18310050856745497,0.45)",
+      "(q2,0,2,0.5,0.24565511032296714,0.339714)",
+      "(q2,1,2,0.0,0.0,0.0)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+
+  @Test
+  public void testKendall() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    Random random = new Random(11);
+    DataBag[] bags = new DataBag[3];
+    double[][] scores = new double[3][40];
+    for (int k = 0; k < 3; k++) {
+      bags[k] = BagFactory.getInstance().newDefaultBag();
+      for (int i = 0; i < 40; i++) {
+        scores[k][i] = random.nextDouble();
+        // the third ranking shares only the first half of the items
+        String id = (k < 2 || i < 20) ? "a" + i : "b" + i;
+        bags[k].add(tupleFactory.newTuple(Arrays.<Object>asList("q", id, scores[k][i])));
+      }
+    }
+
+    for (int cutoff : new int[] { -1, 25 }) {
+      PairwiseSimilarity kendall = new PairwiseSimilarity("kendall", Integer.toString(cutoff), "1", "2");
+      Iterator<Tuple> it = kendall.exec(tupleFactory.newTuple(Arrays.<Object>asList(bags[0], bags[1], bags[2]))).iterator();
+      int numPairs = 0;
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        int i = (Integer)t.get(0);
+        int j = (Integer)t.get(1);
+        double expected = getKendall(scores[i], scores[j], j == 2 ? 20 : 40, cutoff <= 0 ? 40 : cutoff);
+        assertEquals(expected, (Double)t.get(2), 1e-12);
+        numPairs++;
+      }
+      assertEquals(3, numPairs);
+    }
+
+    // identical and reversed rankings
+    int[] codes = { 0, 1, 2, 3 };
+    int[] reversed = { 3, 2, 1, 0 };
+    int[] pos = Ranking.getPositions(codes, 4);
+    int[] posReversed = Ranking.getPositions(reversed, 4);
+    assertEquals(1.0, Ranking.kendallSimilarity(codes, pos, codes, pos, Integer.MAX_VALUE), 0.0);
+    assertEquals(-1.0, Ranking.kendallSimilarity(codes, pos, reversed, posReversed, Integer.MAX_VALUE), 0.0);
+    assertTrue(Double.isNaN(Ranking.kendallSimilarity(codes, pos, reversed, posReversed, 1)));
+  };
+
+  /**
+   * Kendall's tau by comparing all pairs of the items i &lt; numShared that
+   * are in the top cutoff of both score lists.
+   */
+  private static double getKendall(double[] scores1, double[] scores2, int numShared, int cutoff) {
+    int n = scores1.length;
+    boolean[] shared = new boolean[n];
+    for (int i = 0; i < numShared; i++) {
+      shared[i] = getRank(scores1, i) < cutoff && getRank(scores2, i) < cutoff;
+    }
+    long concordant = 0;
+    long discordant = 0;
+    for (int i = 0; i < n; i++) {
+      for (int j = i + 1; j < n; j++) {
+        if (shared[i] && shared[j]) {
+          if ((scores1[i] - scores1[j]) * (scores2[i] - scores2[j]) > 0) {
+            concordant++;
+          } else {
+            discordant++;
+          }
+        }
+      }
+    }
+    return (double)(concordant - discordant) / (concordant + discordant);
+  };
+
+  private static int getRank(double[] scores, int i) {
+    int rank = 0;
+    for (double score : scores) {
+      if (score > scores[i]) {
+        rank++;
+      }
+    }
+    return rank;
+  };
+};
@@ -0,0 +1,100 @@
+package pigrank;
+
+import java.util.*;
+
+import java.io.IOException;
+
+import org.apache.pig.pigunit.PigTest;
+import org.apache.pig.tools.parameters.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class QuantilesTest {
+
+  final static String[] pigScript = {
+    " define QUANTILES pigrank.Quantiles('200', '0.05,0.25,0.5');",
+    " define SKETCH    pigrank.QuantileSketch('200');",
+    " ",
+    " data = load 'input' as (",
+    "         day:chararray,",
+    "         ndcg:double",
+    " );",
+    " ",
+    " data_all = group data all;",
+    " ",
+    " eval = foreach data_all",
+    " generate",
+    "         flatten(QUANTILES(data.ndcg))",
+    " ;",
+    " ",
+    " -- daily sketches, merged afterwards",
+    " data_day = group data by day;",
+    " ",
+    " daily = foreach data_day",
+    " generate",
+    "         group as day,",
+    "         SKETCH(data.ndcg) as sketch",
+    " ;",
+    " ",
+    " daily_all = group daily all;",
+    " ",
+    " merged = foreach daily_all",
+    " generate",
+    "         flatten(QUANTILES(daily.sketch))",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+  @Test
+  public void testQuantiles() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScript);
+
+    String[] input = new String[100];
+    for (int i = 0; i < 100; i++) {
+      input[i] = (i % 2 == 0 ? "d1" : "d2") + "\t" + (i + 1);
+    }
+
+    String[] expected = { "(5.0,25.0,50.0)" };
+
+    test.assertOutput("data", input, "eval", expected);
+    test.assertOutput("data", input, "merged", expected);
+  };
+
+  @Test
+  public void testSketchAccuracy() {
+
+    int n = 100000;
+    double[] values = new double[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = i;
+    }
+    Random random = new Random(17);
+    for (int i = n - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      double tmp = values[i];
+      values[i] = values[j];
+      values[j] = tmp;
+    }
+
+    // ten partial sketches, serialized and merged
+    KllSketch merged = new KllSketch(200);
+    for (int part = 0; part < 10; part++) {
+      KllSketch sketch = new KllSketch(200);
+      for (int i = part; i < n; i += 10) {
+        sketch.update(values[i]);
+      }
+      merged.merge(KllSketch.fromBytes(sketch.toBytes()));
+    }
+
+    assertEquals(n, merged.getCount());
+    assertTrue(merged.toBytes().length < 16 * 1024);
+    assertEquals(0.0, merged.getQuantile(0.0), 0.0);
+    assertEquals(n - 1, merged.getQuantile(1.0), 0.0);
+    for (double q : new double[] { 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99 }) {
+      assertEquals(q * n, merged.getQuantile(q), 0.02 * n);
+    }
+  };
+};
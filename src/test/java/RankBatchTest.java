@@ -0,0 +1,98 @@
+package pigrank;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RankBatchTest {
+
+  @Test
+  public void testAgainstRanking() {
+
+    Random random = new Random(41);
+    int numQueries = 200;
+    int[] offsets = new int[numQueries + 1];
+    for (int q = 0; q < numQueries; q++) {
+      offsets[q + 1] = offsets[q] + (q % 7 == 0 ? 0 : 1 + random.nextInt(q % 5 == 0 ? 500 : 20));
+    }
+    int numRows = offsets[numQueries];
+    double[] scores = new double[numRows];
+    double[] targets = new double[numRows];
+    for (int i = 0; i < numRows; i++) {
+      scores[i] = random.nextInt(30);
+      targets[i] = random.nextInt(4);
+    }
+
+    RankBatch batch = new RankBatch(scores, targets, null, offsets);
+    assertEquals(numQueries, batch.getNumQueries());
+    double[] dcg = batch.getDCG(10);
+    double[] ndcg = batch.getNDCG(10);
+    double[] wtdAvg = batch.getRankWeightedAverage(-1);
+    double[] mrr = batch.getMRR(0);
+    double[] accuracy = batch.getPairwiseAccuracy();
+
+    for (int q = 0; q < numQueries; q++) {
+      int from = offsets[q];
+      int size = batch.getQuerySize(q);
+      Ranking ranking = new Ranking(null, Arrays.copyOfRange(scores, from, from + size),
+                                    Arrays.copyOfRange(targets, from, from + size), size);
+      ranking.rank();
+      assertEquals(ranking.getDCG(10, false), dcg[q], 0.0);
+      assertEquals(ranking.getNDCG(10), ndcg[q], 0.0);
+      assertEquals(ranking.getDCG(Integer.MAX_VALUE, true), wtdAvg[q], 0.0);
+      assertEquals(ranking.getMRR(Integer.MAX_VALUE), mrr[q], 0.0);
+      assertEquals(ranking.getPairwiseAccuracy(), accuracy[q], 0.0);
+    }
+
+    // gains are applied to the targets, and do not change MRR
+    batch.setGain(Gain.EXPONENTIAL);
+    batch.setDiscount(Discount.RECIPROCAL);
+    ndcg = batch.getNDCG(5);
+    assertArrayEquals(mrr, batch.getMRR(0), 0.0);
+    for (int q = 0; q < numQueries; q++) {
+      int from = offsets[q];
+      int size = batch.getQuerySize(q);
+      double[] gains = Arrays.copyOfRange(targets, from, from + size);
+      Gain.EXPONENTIAL.apply(gains, size);
+      Ranking ranking = new Ranking(null, Arrays.copyOfRange(scores, from, from + size), gains, size);
+      double maxDCG = ranking.getMaxDCG(5, Discount.RECIPROCAL);
+      ranking.rank();
+      assertEquals(ranking.getNDCG(5, maxDCG, Discount.RECIPROCAL), ndcg[q], 0.0);
+    }
+  };
+
+  @Test
+  public void testSimilarity() {
+
+    // query 0: identical rankings; query 1: disjoint; query 2: top 2 swapped
+    int[] offsets = { 0, 3, 5, 8 };
+    double[] scores1 = { 3, 2, 1, 2, 1, 3, 2, 1 };
+    double[] scores2 = { 3, 2, 1, 2, 1, 2, 3, 1 };
+    long[] ids1 = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    long[] ids2 = { 1, 2, 3, 9, 10, 6, 7, 8 };
+
+    RankBatch batch1 = new RankBatch(scores1, null, ids1, offsets);
+    RankBatch batch2 = new RankBatch(scores2, null, ids2, offsets);
+
+    double[] jaccard = batch1.getJaccardSimilarity(batch2, 1);
+    assertArrayEquals(new double[] { 1.0, 0.0, 0.0 }, jaccard, 0.0);
+    jaccard = batch1.getJaccardSimilarity(batch2, -1);
+    assertArrayEquals(new double[] { 1.0, 0.0, 1.0 }, jaccard, 0.0);
+
+    double[] rbo = batch1.getRBOSimilarity(batch2, 0.9);
+    Ranking r1 = new Ranking(new String[] { "6", "7", "8" }, new double[] { 3, 2, 1 }, null, 3);
+    Ranking r2 = new Ranking(new String[] { "6", "7", "8" }, new double[] { 2, 3, 1 }, null, 3);
+    r1.rank();
+    r2.rank();
+    assertEquals(1.0, rbo[0], 1e-12);
+    assertEquals(0.0, rbo[1], 1e-12);
+    assertEquals(r1.rboSimilarity(r2, 0.9), rbo[2], 1e-12);
+  };
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidOffsets() {
+    new RankBatch(new double[3], new double[3], null, new int[] { 0, 2, 1 });
+  };
+};
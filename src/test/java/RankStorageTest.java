@@ -0,0 +1,160 @@
+package pigrank;
+
+import java.util.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import org.apache.pig.ExecType;
+import org.apache.pig.PigServer;
+import org.apache.pig.data.Tuple;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RankStorageTest {
+
+  final static String[] input = { "q1\ta\t1.0\t5", "q1\tb\t2.0\t0", "q1\tc\t3.0\t2", "q1\td\t4.0\t0", "q1\te\t5.0\t0",
+                                  "q2\ta\t2.1\t0", "q2\tb\t2.0\t0",
+                                  "q3\ta\t5\t10",
+                                  "q4\ta\t5.0\t0", "q4\tb\t3.0\t0", "q4\tc\t4.0\t0", "q4\td\t2.0\t1.5", "q4\te\t4.0\t0.5", "q4\tf\t1.0\t0", "q4\tg\t4.0\t1" };
+
+  @Test
+  public void testStoreAndLoad() throws IOException {
+
+    File dir = Files.createTempDirectory("rankstorage").toFile();
+    File inputFile = new File(dir, "input");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(inputFile), "UTF-8");
+    for (String line : input) {
+      writer.write(line + "\n");
+    }
+    writer.close();
+    File output = new File(dir, "ranked");
+
+    PigServer pig = new PigServer(ExecType.LOCAL);
+    pig.registerQuery("data = load '" + inputFile.getPath() + "' as (query:chararray, id:chararray, score:double, target:double);");
+    pig.registerQuery("data_gr = group data by query;");
+    pig.registerQuery("ranked = foreach data_gr generate group as query, data.(id, score, target) as rows;");
+    pig.store("ranked", output.getPath(), "pigrank.RankStorage()");
+
+    // random access
+    File part = null;
+    for (File f : output.listFiles()) {
+      if (f.getName().endsWith(".prk")) {
+        part = f;
+      }
+    }
+    assertNotNull(part);
+    RankFile file = new RankFile(part);
+    assertArrayEquals(new String[] { "score", "target" }, file.getColumnNames());
+    assertEquals(4, file.getNumQueries());
+    assertEquals(-1L, file.findQuery("q5"));
+    Ranking ranking = file.getRanking("q1", 0, 1);
+    ranking.rank();
+    assertEquals(2.934264036172708, ranking.getDCG(Integer.MAX_VALUE, false), 0.0);
+    assertEquals("e", ranking.getID(0));
+    file.close();
+
+    // whole query groups, without grouping
+    pig.registerQuery("define DCG pigrank.DCG('unnormalized', '-1', '1', '2');");
+    pig.registerQuery("loaded = load '" + output.getPath() + "' using pigrank.RankLoader();");
+    pig.registerQuery("eval = foreach loaded generate query, DCG(rows);");
+    assertEquals("{query: chararray,rows: {row: (id: chararray,score: double,target: double)}}", pig.dumpSchema("loaded").toString());
+
+    HashMap<String, Double> dcg = new HashMap<String, Double>();
+    Iterator<Tuple> it = pig.openIterator("eval");
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      dcg.put((String)t.get(0), (Double)t.get(1));
+    }
+    assertEquals(4, dcg.size());
+    assertEquals(2.934264036172708, dcg.get("q1"), 0.0);
+    assertEquals(0.0, dcg.get("q2"), 0.0);
+    assertEquals(10.0, dcg.get("q3"), 0.0);
+    assertEquals(1.3151139364844586, dcg.get("q4"), 0.0);
+  };
+
+  @Test
+  public void testBlocks() throws IOException {
+
+    // small blocks: each holds complete queries
+    File file = File.createTempFile("ranking", ".prk");
+    file.deleteOnExit();
+    RankFileWriter writer = new RankFileWriter(new FileOutputStream(file), new String[] { "score" }, 3);
+    for (int q = 0; q < 10; q++) {
+      writer.startQuery("q" + q);
+      for (int i = 0; i <= q; i++) {
+        writer.addRow(i % 2 == 0 ? "id" + i : null, new double[] { i == 1 ? Double.NaN : i });
+      }
+    }
+    writer.close();
+
+    RankFile rankFile = new RankFile(file);
+    assertEquals(10, rankFile.getNumQueries());
+    assertEquals(9, rankFile.getNumBlocks());
+    for (int q = 0; q < 10; q++) {
+      long location = rankFile.findQuery("q" + q);
+      RankBlock block = rankFile.getBlock((int)(location >>> 32));
+      int query = (int)location;
+      assertEquals("q" + q, block.getQuery(query));
+      assertEquals(q + 1, block.getNumRows(query));
+      int first = block.getFirstRow(query);
+      for (int i = 0; i <= q; i++) {
+        assertEquals(i % 2 == 0 ? "id" + i : null, block.getId(first + i));
+        assertEquals(i == 1 ? Double.NaN : i, block.getValue(0, first + i), 0.0);
+      }
+    }
+    rankFile.close();
+  };
+
+  @Test
+  public void testDuplicateQuery() throws IOException {
+
+    // a null key is stored as the empty string, and clashes with it
+    File file = File.createTempFile("ranking", ".prk");
+    file.deleteOnExit();
+    RankFileWriter writer = new RankFileWriter(new FileOutputStream(file), new String[] { "score" }, 1);
+    for (String query : new String[] { "", "q1", null }) {
+      writer.startQuery(query);
+      writer.addRow("id", new double[] { 1.0 });
+    }
+    writer.close();
+
+    try {
+      new RankFile(file);
+      fail("expected duplicate query to be rejected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("more than once"));
+    }
+  };
+
+  @Test
+  public void testTruncatedFile() throws IOException {
+
+    File file = File.createTempFile("ranking", ".prk");
+    file.deleteOnExit();
+    RankFileWriter writer = new RankFileWriter(new FileOutputStream(file), new String[] { "score" }, 1);
+    writer.startQuery("q1");
+    writer.addRow("id", new double[] { 1.0 });
+    writer.close();
+
+    // cut within the trailer, and right after the header
+    for (long length : new long[] { file.length() - 4, 20 }) {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.setLength(length);
+      raf.close();
+      try {
+        new RankFile(file);
+        fail("expected truncated file to be rejected");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("is truncated"));
+      }
+    }
+  };
+};
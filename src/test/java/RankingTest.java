@@ -0,0 +1,98 @@
+package pigrank;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RankingTest {
+
+  private static Ranking newRanking(double[] scores) {
+    Ranking ranking = new Ranking(scores.length);
+    for (int i = 0; i < scores.length; i++) {
+      ranking.addItem("id" + i, scores[i], i % 3);
+    }
+    return ranking;
+  };
+
+  private static void assertTopEquals(double[] scores, int k) {
+    Ranking full = newRanking(scores);
+    full.rank();
+    Ranking top = newRanking(scores);
+    top.rankTop(k);
+
+    assertEquals(Math.min(k, scores.length), top.size());
+    for (int i = 0; i < top.size(); i++) {
+      assertEquals(full.getPosition(i), top.getPosition(i));
+      assertEquals(full.getScore(i), top.getScore(i), 0.0);
+      assertEquals(full.getTarget(i), top.getTarget(i), 0.0);
+      assertEquals(full.getID(i), top.getID(i));
+    }
+  };
+
+  @Test
+  public void testRankTop() {
+
+    Random random = new Random(5);
+    for (int trial = 0; trial < 200; trial++) {
+      int size = 1 + random.nextInt(200);
+      double[] scores = new double[size];
+      for (int i = 0; i < size; i++) {
+        // few distinct values, so that ties straddle the threshold
+        scores[i] = random.nextInt(1 + random.nextInt(10));
+      }
+      assertTopEquals(scores, 1 + random.nextInt(size));
+    }
+  };
+
+  @Test
+  public void testRankTopTiesAtThreshold() {
+
+    // the tied items at the threshold are kept in insertion order
+    double[] scores = { 1.0, 3.0, 2.0, 2.0, 0.0, 2.0, 2.0 };
+    for (int k = 1; k <= scores.length; k++) {
+      assertTopEquals(scores, k);
+    }
+    Ranking top = newRanking(scores);
+    top.rankTop(3);
+    assertEquals(1, top.getPosition(0));
+    assertEquals(2, top.getPosition(1));
+    assertEquals(3, top.getPosition(2));
+  };
+
+  @Test
+  public void testRankTopNaN() {
+
+    double[] scores = { 1.0, Double.NaN, 3.0, 2.0, Double.NaN, 0.5 };
+    for (int k = 1; k <= scores.length; k++) {
+      assertTopEquals(scores, k);
+    }
+  };
+
+  @Test
+  public void testRankTopAll() {
+
+    double[] scores = { 1.0, 3.0, 2.0 };
+    assertTopEquals(scores, 3);
+    assertTopEquals(scores, 10);
+    assertTopEquals(new double[] { 4.0 }, 1);
+  };
+
+  @Test
+  public void testSelectLargest() {
+
+    Random random = new Random(7);
+    for (int trial = 0; trial < 200; trial++) {
+      int size = 1 + random.nextInt(100);
+      double[] values = new double[size];
+      for (int i = 0; i < size; i++) {
+        values[i] = (trial % 2 == 0) ? random.nextInt(5) : random.nextGaussian();
+      }
+      double[] sorted = values.clone();
+      Arrays.sort(sorted);
+      int k = 1 + random.nextInt(size);
+      assertEquals(sorted[size - k], Ranking.selectLargest(values.clone(), size, k), 0.0);
+    }
+  };
+};
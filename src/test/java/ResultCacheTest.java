@@ -0,0 +1,123 @@
+package pigrank;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ResultCacheTest {
+
+  static final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+  static DataBag newBag(String[] ids, double[] scores, double[] targets) {
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    for (int i = 0; i < ids.length; i++) {
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList(ids[i], scores[i], targets[i])));
+    }
+    return bag;
+  }
+
+  @Test
+  public void testDCG() throws IOException {
+    DCG cached = new DCG("normalized", "2", "1", "2", "cache=1");
+    DCG plain = new DCG("normalized", "2", "1", "2");
+    String[] ids = { "a", "b", "c" };
+
+    Tuple t1 = tupleFactory.newTuple(newBag(ids, new double[] { 3, 2, 1 }, new double[] { 0, 1, 2 }));
+    Tuple t2 = tupleFactory.newTuple(newBag(ids, new double[] { 3, 2, 1 }, new double[] { 0, 1, 2 }));
+    Tuple t3 = tupleFactory.newTuple(newBag(ids, new double[] { 3, 2, 1 }, new double[] { 2, 1, 0 }));
+
+    assertEquals(plain.exec(t1), cached.exec(t1));
+    assertEquals(plain.exec(t2), cached.exec(t2));
+    assertEquals(plain.exec(t3), cached.exec(t3));
+    assertEquals(1, cached.cache.numHits);
+    assertEquals(2, cached.cache.numMisses);
+    assertEquals(2, cached.cache.size());
+
+    // the key depends on the arguments
+    DCG other = new DCG("normalized", "1", "1", "2", "cache=1");
+    assertTrue(cached.cache.start().get() != other.cache.start().get());
+    assertNull(new DCG("normalized", "2", "1", "2").cache);
+  }
+
+  @Test
+  public void testBudget() throws IOException {
+    DCG cached = new DCG("normalized", "2", "1", "2", "maxrows=3", "cache=1");
+    DCG plain = new DCG("normalized", "2", "1", "2", "maxrows=3");
+
+    // the same top rows, but other dropped rows
+    Tuple a = tupleFactory.newTuple(newBag(new String[] { "a", "b", "c", "d", "e" },
+                                           new double[] { 3, 2, 1, 0, 0 }, new double[] { 1, 1, 1, 0, 0 }));
+    Tuple b = tupleFactory.newTuple(newBag(new String[] { "a", "b", "c", "d", "e" },
+                                           new double[] { 3, 2, 1, 0, 0 }, new double[] { 1, 1, 1, 10, 10 }));
+    Tuple c = tupleFactory.newTuple(newBag(new String[] { "a", "b", "c", "d", "e", "f" },
+                                           new double[] { 3, 2, 1, 0, 0, 0 }, new double[] { 1, 1, 1, 0, 0, 0 }));
+
+    assertEquals(plain.exec(a), cached.exec(a));
+    assertEquals(plain.exec(b), cached.exec(b));
+    assertEquals(plain.exec(c), cached.exec(c));
+    assertFalse(cached.exec(a).equals(cached.exec(b)));
+    assertFalse(cached.exec(a).equals(cached.exec(c)));
+    assertEquals(3, cached.cache.numMisses);
+
+    // for Similarity, the coverage depends on the dropped rows
+    Similarity sim = new Similarity("jaccard", "2", "0", "1", "0", "1", "maxrows=3", "cache=1");
+    Tuple pair1 = tupleFactory.newTuple(Arrays.<Object>asList(a.get(0), a.get(0)));
+    Tuple pair2 = tupleFactory.newTuple(Arrays.<Object>asList(a.get(0), c.get(0)));
+    Similarity reference = new Similarity("jaccard", "2", "0", "1", "0", "1", "maxrows=3");
+    assertEquals(reference.exec(pair1), sim.exec(pair1));
+    assertEquals(reference.exec(pair2), sim.exec(pair2));
+    assertEquals(2, sim.cache.numMisses);
+  }
+
+  @Test
+  public void testTupleResults() throws IOException {
+    MRR mrr = new MRR("1", "2", "maxrows=10", "cache=1");
+    Tuple input = tupleFactory.newTuple(newBag(new String[] { "a", "b" }, new double[] { 2, 1 }, new double[] { 0, 1 }));
+    Tuple first = (Tuple)mrr.exec(input);
+    Tuple second = (Tuple)mrr.exec(input);
+    assertEquals(first, second);
+    assertNotSame(first, second);
+    assertEquals(1, mrr.cache.numHits);
+  }
+
+  @Test
+  public void testSimilarity() throws IOException {
+    Similarity sim = new Similarity("jaccard", "2", "0", "1", "0", "1", "cache=1");
+    Tuple input = tupleFactory.newTuple(Arrays.<Object>asList(
+      newBag(new String[] { "a", "b", "c" }, new double[] { 3, 2, 1 }, new double[3]),
+      newBag(new String[] { "a", "c", "b" }, new double[] { 3, 2, 1 }, new double[3])));
+    Object value = sim.exec(input);
+    assertEquals(value, sim.exec(input));
+    assertEquals(1, sim.cache.numHits);
+
+    // other ids
+    Tuple other = tupleFactory.newTuple(Arrays.<Object>asList(
+      newBag(new String[] { "a", "b", "c" }, new double[] { 3, 2, 1 }, new double[3]),
+      newBag(new String[] { "a", "b", "d" }, new double[] { 3, 2, 1 }, new double[3])));
+    assertFalse(value.equals(sim.exec(other)));
+    assertEquals(2, sim.cache.numMisses);
+  }
+
+  @Test
+  public void testEviction() {
+    ResultCache cache = new ResultCache(3 * (ResultCache.ENTRY_BYTES + 16), "test", new String[0]);
+    for (long key = 0; key < 3; key++) {
+      cache.put(key, (double)key);
+    }
+    assertEquals(1.0, cache.get(1L));
+    cache.put(3L, 3.0);
+    assertEquals(3, cache.size());
+    assertNull(cache.get(0L));
+    assertEquals(1.0, cache.get(1L));
+    assertEquals(2.0, cache.get(2L));
+    assertEquals(3 * (ResultCache.ENTRY_BYTES + 16), cache.getBytes());
+  }
+};
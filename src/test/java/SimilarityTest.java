@@ -1,11 +1,20 @@
 package pigrank;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
 
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
 import org.apache.pig.pigunit.PigTest;
 import org.apache.pig.tools.parameters.ParseException;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 public class SimilarityTest {
 
   final static String[] pigScript = {
@@ -76,4 +85,239 @@ public class SimilarityTest {
 
     test.assertOutput("data", input, "eval", expected);
   };
+
+  final static String[] pigScriptBounds = {
+    " ",
+    " define RBO_BOUNDS   pigrank.Similarity('rbo_bounds', '0.9', '2', '3', '2', '3');",
+    " define RBO_BOUNDS_1 pigrank.Similarity('rbo_bounds', '0.9,0.5', '2', '3', '2', '3');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         treatment:chararray,",
+    "         asin:chararray,",
+    "         score:double",
+    " );",
+    " ",
+    " data_gr = group data by (query, treatment);",
+    " ",
+    " data_gr = foreach data_gr ",
+    " generate",
+    "         flatten(group) as (query, treatment),",
+    "         data",
+    " ;",
+    " ",
+    " split data_gr into data1 if treatment=='t1', data2 otherwise;",
+    " ",
+    " side_by_side = cogroup data1 by query, data2 by query;",
+    " ",
+    " eval = foreach side_by_side",
+    " generate",
+    "         flatten(group) as query,",
+    "         flatten(data1.data) as group_t1,",
+    "         flatten(data2.data) as group_t2",
+    " ;",
+    " ",
+    " eval = foreach eval",
+    " generate",
+    "         query,",
+    "         flatten(RBO_BOUNDS(group_t1, group_t2)),",
+    "         flatten(RBO_BOUNDS_1(group_t1, group_t2))",
+    " ;",
+    " ",
+    " store eval into 'output';" };
+
+
+  @Test
+  public void testRBOBounds() throws IOException, ParseException {
+
+    PigTest test = new PigTest(pigScriptBounds);
+
+    String[] input = { "q1\tt1\ta1a\t9", "q1\tt1\ta2\t8",
+                       "q1\tt2\ta1b\t9", "q1\tt2\ta2\t8",
+
+                       "q2\tt1\ta1\t9", "q2\tt1\ta2\t8", "q2\tt1\ta3\t7", "q2\tt1\ta4\t6",
+                       "q2\tt2\ta2\t9", "q2\tt2\ta1\t8", "q2\tt2\ta3\t7", "q2\tt2\ta4\t6" };
+
+    String[] expected = {
+      "(q1,0.45,0.15584278811044952,0.8550000000000001,2,0.45,0.15584278811044952,0.8550000000000001,2)",
+      "(q2,0.9,0.5063711524417981,0.9000000000000001,4,0.9,0.42252836433134855,0.9,3)" };
+
+    test.assertOutput("data", input, "eval", expected);
+  };
+  final static String[] pigScriptCurve = {
+    " ",
+    " define JACCARD_CURVE pigrank.Similarity('jaccard_curve', '-1', '2', '3', '2', '3');",
+    " define COSINE_CURVE  pigrank.Similarity('cosine_curve', '-1', '2', '3', '2', '3');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         treatment:chararray,",
+    "         asin:chararray,",
+    "         score:double",
+    " );",
+    " ",
+    " data_gr = group data by (query, treatment);",
+    " ",
+    " data_gr = foreach data_gr ",
+    " generate",
+    "         flatten(group) as (query, treatment),",
+    "         data",
+    " ;",
+    " ",
+    " split data_gr into data1 if treatment=='t1', data2 otherwise;",
+    " ",
+    " side_by_side = cogroup data1 by query, data2 by query;",
+    " ",
+    " eval = foreach side_by_side",
+    " generate",
+    "         flatten(group) as query,",
+    "         flatten(data1.data) as group_t1,",
+    "         flatten(data2.data) as group_t2",
+    " ;",
+    " ",
+    " jaccard = foreach eval generate query, flatten(JACCARD_CURVE(group_t1, group_t2));",
+    " cosine  = foreach eval generate query, flatten(COSINE_CURVE(group_t1, group_t2));",
+    " ",
+    " eval = join jaccard by (query, k), cosine by (query, k);",
+    " eval = foreach eval generate $0, $1, $2, $5;",
+    " ",
+    " store eval into 'output';" };
+
+  final static String[] pigScriptRBOCurve = {
+    " ",
+    " define RBO_CURVE pigrank.Similarity('rbo_curve', '0.9,0.5', '2', '3', '2', '3');",
+    " ",
+    " data = load 'input' as (",
+    "         query:chararray,",
+    "         treatment:chararray,",
+    "         asin:chararray,",
+    "         score:double",
+    " );",
+    " ",
+    " data_gr = group data by (query, treatment);",
+    " ",
+    " data_gr = foreach data_gr ",
+    " generate",
+    "         flatten(group) as (query, treatment),",
+    "         data",
+    " ;",
+    " ",
+    " split data_gr into data1 if treatment=='t1', data2 otherwise;",
+    " ",
+    " side_by_side = cogroup data1 by query, data2 by query;",
+    " ",
+    " eval = foreach side_by_side",
+    " generate",
+    "         flatten(group) as query,",
+    "         flatten(data1.data) as group_t1,",
+    "         flatten(data2.data) as group_t2",
+    " ;",
+    " ",
+    " eval = foreach eval generate query, flatten(RBO_CURVE(group_t1, group_t2));",
+    " ",
+    " store eval into 'output';" };
+
+
+  @Test
+  public void testCurves() throws IOException, ParseException {
+
+    String[] input = { "q1\tt1\ta1a\t9", "q1\tt1\ta2\t8",
+                       "q1\tt2\ta1b\t9", "q1\tt2\ta2\t8",
+
+                       "q2\tt1\ta1a\t9", "q2\tt1\ta2\t8", "q2\tt1\ta3\t7", "q2\tt1\ta4\t6", "q2\tt1\ta5\t5", "q2\tt1\ta6\t4",
+                       "q2\tt2\ta1b\t9", "q2\tt2\ta2\t8" };
+
+    // the last point of each curve equals the similarity without cutoff
+    String[] expected = {
+      "(q1,1,0.0,0.0)",
+      "(q1,2,0.3333333333333333,0.2)",
+      "(q2,1,0.0,0.0)",
+      "(q2,2,0.3333333333333333,0.2)",
+      "(q2,3,0.25,0.191662969499982)",
+      "(q2,4,0.2,0.1874085142663273)",
+      "(q2,5,0.16666666666666666,0.1848298679626723)",
+      "(q2,6,0.14285714285714285,0.18310050856745497)" };
+
+    PigTest test = new PigTest(pigScriptCurve);
+    test.assertOutput("data", input, "eval", expected);
+
+    String[] expectedRBO = {
+      "(q1,0.9,0.45)",
+      "(q1,0.5,0.25)",
+      "(q2,0.9,0.45000000000000007)",
+      "(q2,0.5,0.25)" };
+
+    test = new PigTest(pigScriptRBOCurve);
+    test.assertOutput("data", input, "eval", expectedRBO);
+  };
+
+  @Test
+  public void testSimilarityBudget() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    Random random = new Random(23);
+    DataBag[] bags = new DataBag[2];
+    for (int i = 0; i < 2; i++) {
+      bags[i] = BagFactory.getInstance().newDefaultBag();
+      for (int j = 0; j < 2000; j++) {
+        bags[i].add(tupleFactory.newTuple(Arrays.<Object>asList("q", "t", "a" + random.nextInt(3000), random.nextDouble())));
+      }
+    }
+    Tuple input = tupleFactory.newTuple(Arrays.<Object>asList(bags[0], bags[1]));
+
+    // the top rows by score are kept, so the top 50 are compared exactly
+    double exact = (Double)new Similarity("jaccard", "50", "2", "3", "2", "3").exec(input);
+    Tuple result = (Tuple)new Similarity("jaccard", "50", "2", "3", "2", "3", "maxrows=100").exec(input);
+    assertEquals(exact, (Double)result.get(0), 0.0);
+    assertEquals(0.05, (Double)result.get(1), 1e-12);
+
+    exact = (Double)new Similarity("rbo", "0.9", "2", "3", "2", "3").exec(input);
+    result = (Tuple)new Similarity("rbo", "0.9", "2", "3", "2", "3", "maxrows=100").exec(input);
+    assertEquals(exact, (Double)result.get(0), 1e-6);
+  };
+
+  @Test
+  public void testReadRankingLazyIds() throws IOException {
+
+    TupleFactory tupleFactory = TupleFactory.getInstance();
+    Random random = new Random(29);
+    DataBag bag = BagFactory.getInstance().newDefaultBag();
+    Ranking eager = new Ranking(100);
+    for (int j = 0; j < 100; j++) {
+      // integer ids are converted to strings on access
+      Integer id = random.nextInt(1000);
+      double score = random.nextInt(20);
+      bag.add(tupleFactory.newTuple(Arrays.<Object>asList("q", id, score)));
+      eager.addItem(id.toString(), score, 0.0);
+    }
+
+    Ranking lazy = Similarity.readRanking(bag, 1, 2, 3, "SimilarityTest");
+    assertNull(lazy.ids);
+    // the cache key does not convert the ids either
+    Similarity.hash(new Ranking[] { lazy }, new long[1], new ContentHash());
+    assertNull(lazy.ids);
+    lazy.rank();
+    eager.rank();
+    assertEquals(eager.getID(0), lazy.getID(0));
+    assertEquals(eager.getID(1), lazy.getID(1));
+    assertNull(lazy.ids[2]);
+    for (int i = 0; i < eager.size(); i++) {
+      assertEquals(eager.getID(i), lazy.getID(i));
+    }
+
+    // ids of the top items are also converted lazily
+    lazy = Similarity.readRanking(bag, 1, 2, 3, "SimilarityTest");
+    eager = new Ranking(100);
+    Iterator<Tuple> it = bag.iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      eager.addItem(t.get(1).toString(), (Double)t.get(2), 0.0);
+    }
+    lazy.rankTop(10);
+    eager.rank();
+    assertNull(lazy.ids);
+    for (int i = 0; i < lazy.size(); i++) {
+      assertEquals(eager.getID(i), lazy.getID(i));
+    }
+  };
 };
@@ -0,0 +1,108 @@
+package pigrank;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SortDispatcherTest {
+
+  private static double[] randomScores(Random random, int size, int numDistinct) {
+    double[] scores = new double[size];
+    for (int i = 0; i < size; i++) {
+      scores[i] = (numDistinct > 0) ? random.nextInt(numDistinct) - numDistinct / 2 : random.nextGaussian();
+    }
+    return scores;
+  }
+
+  private static int[] mergeOrder(double[] scores, int size) {
+    return SortDispatcher.sortOrder(scores, size, SortDispatcher.Path.MERGE);
+  }
+
+  @Test
+  public void testPathsAgree() {
+
+    Random random = new Random(13);
+    SortDispatcher.Path[] paths = { SortDispatcher.Path.INSERTION, SortDispatcher.Path.RADIX, SortDispatcher.Path.GROUPS };
+    for (int trial = 0; trial < 300; trial++) {
+      int size = random.nextInt(trial < 250 ? 100 : 20000);
+      double[] scores = randomScores(random, size, random.nextBoolean() ? 0 : 1 + random.nextInt(50));
+      if (size > 2 && random.nextBoolean()) {
+        scores[0] = -0.0;
+        scores[1] = 0.0;
+        scores[2] = Double.NEGATIVE_INFINITY;
+      }
+      int[] expected = mergeOrder(scores, size);
+      for (SortDispatcher.Path path : paths) {
+        if (path == SortDispatcher.Path.INSERTION && size > 1000) {
+          continue;
+        }
+        int[] order = SortDispatcher.sortOrder(scores, size, path);
+        if (order != null) {
+          assertArrayEquals(path.name(), expected, order);
+        } else {
+          assertEquals(SortDispatcher.Path.GROUPS, path);
+        }
+      }
+      assertArrayEquals(expected, Ranking.sortOrder(scores, size));
+    }
+  };
+
+  @Test
+  public void testNaNFallsBack() {
+
+    double[] scores = { 1.0, Double.NaN, 3.0, 2.0 };
+    assertNull(SortDispatcher.radixSort(scores, scores.length));
+    assertNull(SortDispatcher.groupSort(scores, scores.length));
+
+    Properties props = new Properties();
+    props.setProperty("insertion.max", "1");
+    props.setProperty("radix.min", "2");
+    SortDispatcher dispatcher = new SortDispatcher(props);
+    assertEquals(SortDispatcher.Path.RADIX, dispatcher.choose(scores, scores.length, Integer.MAX_VALUE));
+    assertArrayEquals(mergeOrder(scores, scores.length), dispatcher.sortOrder(scores, scores.length));
+  };
+
+  @Test
+  public void testChoose() {
+
+    SortDispatcher dispatcher = new SortDispatcher(new Properties());
+    Random random = new Random(1);
+    assertEquals(SortDispatcher.Path.INSERTION, dispatcher.choose(randomScores(random, 10, 0), 10, 5));
+    assertEquals(SortDispatcher.Path.MERGE, dispatcher.choose(randomScores(random, 1000, 0), 1000, Integer.MAX_VALUE));
+    assertEquals(SortDispatcher.Path.RADIX, dispatcher.choose(randomScores(random, 100000, 0), 100000, Integer.MAX_VALUE));
+    assertEquals(SortDispatcher.Path.GROUPS, dispatcher.choose(randomScores(random, 100000, 5), 100000, Integer.MAX_VALUE));
+    assertEquals(SortDispatcher.Path.TOP, dispatcher.choose(randomScores(random, 100000, 0), 100000, 10));
+
+    // the bundled thresholds are valid
+    SortDispatcher.getDefault();
+    assertNotNull(SortDispatcher.class.getClassLoader().getResource(SortDispatcher.RESOURCE));
+  };
+
+  @Test
+  public void testRankWithCutoff() {
+
+    Random random = new Random(29);
+    for (int trial = 0; trial < 50; trial++) {
+      int size = 2000 + random.nextInt(20000);
+      double[] scores = randomScores(random, size, random.nextBoolean() ? 0 : 1 + random.nextInt(2000));
+      double[] targets = randomScores(random, size, 5);
+      SortDispatcher dispatcher = SortDispatcher.getDefault();
+      int cutoff = 1 + random.nextInt(Math.max(1, (int)(size * dispatcher.topMaxFraction) - 1));
+
+      Ranking full = new Ranking(null, scores, targets, size);
+      full.rank();
+      Ranking top = new Ranking(null, scores, targets, size);
+      top.rank(cutoff);
+      assertEquals(size >= dispatcher.topMin && cutoff < size * dispatcher.topMaxFraction, top.getSortPath().equals("top"));
+      assertTrue(top.size() >= cutoff && top.size() <= full.size());
+      for (int i = 0; i < top.size(); i++) {
+        assertEquals(full.getPosition(i), top.getPosition(i));
+      }
+      assertEquals(full.getDCG(cutoff, false), top.getDCG(cutoff, false), 0.0);
+      assertEquals(full.getDCG(cutoff, true), top.getDCG(cutoff, true), 0.0);
+      assertEquals(full.getMRR(cutoff), top.getMRR(cutoff), 0.0);
+    }
+  };
+};